@@ -0,0 +1,129 @@
+package fiji.expressionparser.function;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The vector backend of {@link BlockOperations}, written with the
+ * <code>jdk.incubator.vector</code> API. Each loop processes as many values at
+ * once as the preferred float species of the CPU holds, and the values left
+ * over at the end of a block are processed by the scalar backend.
+ * <p>
+ * This class needs a JDK 17 or later to be compiled, and is packaged in the
+ * jar with the <code>vector</code> classifier, not in the main jar. It is
+ * only loaded by {@link BlockOperations#get()} through reflection, when the
+ * JVM runs with <code>--add-modules jdk.incubator.vector</code>.
+ */
+public final class VectorBlockOperations extends BlockOperations
+{
+
+	private static final VectorSpecies< Float > SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	private static final FloatVector ZERO = FloatVector.zero( SPECIES );
+
+	private static final FloatVector ONE = FloatVector.broadcast( SPECIES, 1f );
+
+	@Override
+	public void apply( final Operation operation, final float[] block1, final float[] block2, final float[] output, final int length )
+	{
+		final int bound = SPECIES.loopBound( length );
+		final int step = SPECIES.length();
+		switch ( operation )
+		{
+		case ADD:
+			for ( int i = 0; i < bound; i += step )
+			{
+				FloatVector.fromArray( SPECIES, block1, i ).add( FloatVector.fromArray( SPECIES, block2, i ) ).intoArray( output, i );
+			}
+			break;
+		case SUBTRACT:
+			for ( int i = 0; i < bound; i += step )
+			{
+				FloatVector.fromArray( SPECIES, block1, i ).sub( FloatVector.fromArray( SPECIES, block2, i ) ).intoArray( output, i );
+			}
+			break;
+		case MULTIPLY:
+			for ( int i = 0; i < bound; i += step )
+			{
+				FloatVector.fromArray( SPECIES, block1, i ).mul( FloatVector.fromArray( SPECIES, block2, i ) ).intoArray( output, i );
+			}
+			break;
+		case DIVIDE:
+			for ( int i = 0; i < bound; i += step )
+			{
+				FloatVector.fromArray( SPECIES, block1, i ).div( FloatVector.fromArray( SPECIES, block2, i ) ).intoArray( output, i );
+			}
+			break;
+		case GREATER_THAN:
+			for ( int i = 0; i < bound; i += step )
+			{
+				final VectorMask< Float > mask = FloatVector.fromArray( SPECIES, block1, i ).compare( VectorOperators.GT, FloatVector.fromArray( SPECIES, block2, i ) );
+				ZERO.blend( ONE, mask ).intoArray( output, i );
+			}
+			break;
+		case LOWER_THAN:
+			for ( int i = 0; i < bound; i += step )
+			{
+				final VectorMask< Float > mask = FloatVector.fromArray( SPECIES, block1, i ).compare( VectorOperators.LT, FloatVector.fromArray( SPECIES, block2, i ) );
+				ZERO.blend( ONE, mask ).intoArray( output, i );
+			}
+			break;
+		case GREATER_OR_EQUAL:
+			for ( int i = 0; i < bound; i += step )
+			{
+				final VectorMask< Float > mask = FloatVector.fromArray( SPECIES, block1, i ).compare( VectorOperators.GE, FloatVector.fromArray( SPECIES, block2, i ) );
+				ZERO.blend( ONE, mask ).intoArray( output, i );
+			}
+			break;
+		case LOWER_OR_EQUAL:
+			for ( int i = 0; i < bound; i += step )
+			{
+				final VectorMask< Float > mask = FloatVector.fromArray( SPECIES, block1, i ).compare( VectorOperators.LE, FloatVector.fromArray( SPECIES, block2, i ) );
+				ZERO.blend( ONE, mask ).intoArray( output, i );
+			}
+			break;
+		case EQUAL:
+			for ( int i = 0; i < bound; i += step )
+			{
+				final VectorMask< Float > mask = FloatVector.fromArray( SPECIES, block1, i ).compare( VectorOperators.EQ, FloatVector.fromArray( SPECIES, block2, i ) );
+				ZERO.blend( ONE, mask ).intoArray( output, i );
+			}
+			break;
+		case NOT_EQUAL:
+			for ( int i = 0; i < bound; i += step )
+			{
+				final VectorMask< Float > mask = FloatVector.fromArray( SPECIES, block1, i ).compare( VectorOperators.NE, FloatVector.fromArray( SPECIES, block2, i ) );
+				ZERO.blend( ONE, mask ).intoArray( output, i );
+			}
+			break;
+		case AND:
+			for ( int i = 0; i < bound; i += step )
+			{
+				final VectorMask< Float > mask1 = FloatVector.fromArray( SPECIES, block1, i ).compare( VectorOperators.NE, 0f );
+				final VectorMask< Float > mask2 = FloatVector.fromArray( SPECIES, block2, i ).compare( VectorOperators.NE, 0f );
+				ZERO.blend( ONE, mask1.and( mask2 ) ).intoArray( output, i );
+			}
+			break;
+		case OR:
+			for ( int i = 0; i < bound; i += step )
+			{
+				final VectorMask< Float > mask1 = FloatVector.fromArray( SPECIES, block1, i ).compare( VectorOperators.NE, 0f );
+				final VectorMask< Float > mask2 = FloatVector.fromArray( SPECIES, block2, i ).compare( VectorOperators.NE, 0f );
+				ZERO.blend( ONE, mask1.or( mask2 ) ).intoArray( output, i );
+			}
+			break;
+		default:
+			throw new IllegalArgumentException( "Unknown operation: " + operation );
+		}
+		ScalarBlockOperations.apply( operation, block1, block2, output, bound, length );
+	}
+
+	@Override
+	public String getName()
+	{
+		return "vector (" + SPECIES.length() + " float lanes)";
+	}
+
+}
@@ -0,0 +1,85 @@
+package fiji.expressionparser;
+
+import java.lang.invoke.MethodHandle;
+import java.util.function.Supplier;
+
+/**
+ * The template of the kernels compiled by {@link ImgLibKernelCompiler}.
+ * <p>
+ * This class is never used as it is. The compiler defines a new copy of it in
+ * its own class loader for every compiled kernel, and the loader supplies the
+ * method handles of the kernel when the copy is initialized. They are held in
+ * <code>static final</code> fields, which the JIT treats as constants: it
+ * inlines the whole method handle chain in the pixel loop of the copy, and
+ * every copy has its own loop, profiled for its kernel only.
+ */
+final class CompiledPixelKernel extends PixelKernel
+{
+
+	/** The kernel, of type <code>(float[][] inputs, int i)float</code>. */
+	private static final MethodHandle BLOCK;
+
+	/** The kernel, of type <code>(float[] pixel)float</code>. */
+	private static final MethodHandle PIXEL;
+
+	static
+	{
+		@SuppressWarnings( "unchecked" )
+		final MethodHandle[] handles = ( ( Supplier< MethodHandle[] > ) CompiledPixelKernel.class.getClassLoader() ).get();
+		BLOCK = handles[ 0 ];
+		PIXEL = handles[ 1 ];
+	}
+
+	private final float[] block = new float[ BLOCK_SIZE ];
+
+	@Override
+	public float evaluate( final float[] pixel )
+	{
+		try
+		{
+			return ( float ) PIXEL.invokeExact( pixel );
+		}
+		catch ( final RuntimeException e )
+		{
+			throw e;
+		}
+		catch ( final Throwable e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	@Override
+	public float[] evaluate( final float[][] inputs, final int length )
+	{
+		try
+		{
+			for ( int i = 0; i < length; i++ )
+			{
+				block[ i ] = ( float ) BLOCK.invokeExact( inputs, i );
+			}
+		}
+		catch ( final RuntimeException e )
+		{
+			throw e;
+		}
+		catch ( final Throwable e )
+		{
+			throw new RuntimeException( e );
+		}
+		return block;
+	}
+
+	@Override
+	public PixelKernel copy()
+	{
+		return new CompiledPixelKernel();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "compiled" + PIXEL.type();
+	}
+
+}
@@ -0,0 +1,35 @@
+package fiji.expressionparser;
+
+/**
+ * The strategies an {@link ImgLibParser} can use to evaluate a parsed
+ * expression.
+ */
+public enum EvaluationMode
+{
+
+	/**
+	 * The expression is evaluated by JEP, one operator at a time. Every
+	 * operator is applied to whole images and returns a new image.
+	 */
+	INTERPRETED,
+
+	/**
+	 * Pixel-wise sub-expressions are fused into a single kernel, evaluated in
+	 * one pass over the input images. Only the final result and the results of
+	 * non pixel-based functions are allocated. Identical sub-expressions, such
+	 * as two calls to <code>gauss(A,3)</code>, are evaluated once.
+	 *
+	 * @see ImgLibFusedEvaluator
+	 */
+	FUSED,
+
+	/**
+	 * Like {@link #FUSED}, but each pixel-wise sub-expression is compiled into
+	 * a single method handle chain, with direct calls to the functions. The
+	 * JIT can then inline the whole sub-expression in the pixel loop.
+	 *
+	 * @see ImgLibKernelCompiler
+	 */
+	COMPILED;
+
+}
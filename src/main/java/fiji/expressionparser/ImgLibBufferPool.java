@@ -0,0 +1,116 @@
+package fiji.expressionparser;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * A pool of {@link FloatType} images, keyed by their dimensions, in which
+ * intermediate results that will never be read again are stored so that a
+ * later evaluation step can reuse them instead of allocating a new image.
+ * <p>
+ * The images handed out by this pool are not cleared: their content is the
+ * one left by their previous use, and must be overwritten entirely. This class
+ * is not thread-safe.
+ */
+public class ImgLibBufferPool
+{
+
+	/** The free images, by dimensions. */
+	private final Map< String, Deque< ArrayImg< FloatType, FloatArray > > > buffers = new HashMap< String, Deque< ArrayImg< FloatType, FloatArray > > >();
+
+	/** The number of images created by this pool so far. */
+	private int n_allocated = 0;
+
+	/** The number of images handed out from the pool instead of created. */
+	private int n_reused = 0;
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Return a free image with the given dimensions, or a new one if there is
+	 * none in the pool.
+	 *
+	 * @param dimensions
+	 *            The dimensions of the image
+	 * @return An image whose content is undefined
+	 */
+	public ArrayImg< FloatType, FloatArray > acquire( final long[] dimensions )
+	{
+		final Deque< ArrayImg< FloatType, FloatArray > > free = buffers.get( Arrays.toString( dimensions ) );
+		if ( null != free && !free.isEmpty() )
+		{
+			n_reused++;
+			return free.pop();
+		}
+		n_allocated++;
+		return ArrayImgs.floats( dimensions );
+	}
+
+	/**
+	 * Put the given image in the pool, so that it is handed out by a later
+	 * call to {@link #acquire(long[])}. The caller must not use it afterwards.
+	 *
+	 * @param img
+	 *            The image to recycle
+	 * @return <code>true</code> if the image was put in the pool,
+	 *         <code>false</code> if it cannot be stored in it because it is not
+	 *         an {@link ArrayImg} of {@link FloatType}
+	 */
+	@SuppressWarnings( "unchecked" )
+	public boolean release( final Img< ? > img )
+	{
+		if ( !isFloatArrayImg( img ) ) { return false; }
+		final long[] dimensions = new long[ img.numDimensions() ];
+		img.dimensions( dimensions );
+		final String key = Arrays.toString( dimensions );
+		Deque< ArrayImg< FloatType, FloatArray > > free = buffers.get( key );
+		if ( null == free )
+		{
+			free = new ArrayDeque< ArrayImg< FloatType, FloatArray > >();
+			buffers.put( key, free );
+		}
+		free.push( ( ArrayImg< FloatType, FloatArray > ) img );
+		return true;
+	}
+
+	/**
+	 * Returns the number of images this pool had to create.
+	 */
+	public int getAllocatedCount()
+	{
+		return n_allocated;
+	}
+
+	/**
+	 * Returns the number of requests that were served with a recycled image.
+	 */
+	public int getReusedCount()
+	{
+		return n_reused;
+	}
+
+	/**
+	 * Returns <code>true</code> if the given image is an {@link ArrayImg} of
+	 * {@link FloatType}, backed by a single <code>float[]</code>, like the
+	 * images of this pool.
+	 */
+	public static final boolean isFloatArrayImg( final Img< ? > img )
+	{
+		return img instanceof ArrayImg
+				&& img.size() > 0
+				&& ( ( ArrayImg< ?, ? > ) img ).update( null ) instanceof FloatArray
+				&& img.firstElement() instanceof FloatType;
+	}
+
+}
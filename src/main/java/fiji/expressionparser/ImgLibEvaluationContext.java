@@ -0,0 +1,119 @@
+package fiji.expressionparser;
+
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * The settings of an evaluation, read by the functions while they run: the
+ * number of threads, the factory of result images and the {@link Precision}
+ * of the transcendental functions.
+ * <p>
+ * The function objects are shared by all the parsers, see
+ * {@link ImgLibFunctionRegistry}, so they cannot store these settings
+ * themselves. Instead, a parser makes its context current in the calling
+ * thread for the duration of an evaluation, and the functions read it with
+ * {@link #current()}. Two threads can therefore evaluate expressions with
+ * different settings at the same time.
+ */
+public final class ImgLibEvaluationContext
+{
+
+	/** The context of the evaluation running in each thread. */
+	private static final ThreadLocal< ImgLibEvaluationContext > CURRENT = new ThreadLocal< ImgLibEvaluationContext >();
+
+	private final int numThreads;
+
+	private final ImgFactory< FloatType > imgFactory;
+
+	private final Precision precision;
+
+	/**
+	 * @param numThreads
+	 *            The number of threads used to evaluate functions on images
+	 * @param imgFactory
+	 *            The factory used to create result images, <code>null</code>
+	 *            for ArrayImgs
+	 */
+	public ImgLibEvaluationContext( final int numThreads, final ImgFactory< FloatType > imgFactory )
+	{
+		this( numThreads, imgFactory, Precision.STRICT );
+	}
+
+	/**
+	 * @param numThreads
+	 *            The number of threads used to evaluate functions on images
+	 * @param imgFactory
+	 *            The factory used to create result images, <code>null</code>
+	 *            for ArrayImgs
+	 * @param precision
+	 *            The precision of the transcendental functions
+	 */
+	public ImgLibEvaluationContext( final int numThreads, final ImgFactory< FloatType > imgFactory, final Precision precision )
+	{
+		this.numThreads = numThreads;
+		this.imgFactory = imgFactory;
+		this.precision = precision;
+	}
+
+	/**
+	 * Return the context of the evaluation running in the calling thread, or
+	 * a default one, with as many threads as processors, no factory and the
+	 * {@link Precision#STRICT} precision, if there is none.
+	 */
+	public static ImgLibEvaluationContext current()
+	{
+		final ImgLibEvaluationContext context = CURRENT.get();
+		if ( null == context ) { return new ImgLibEvaluationContext( Runtime.getRuntime().availableProcessors(), null ); }
+		return context;
+	}
+
+	/**
+	 * Make the given context current in the calling thread, and return the
+	 * previous one, to be restored by the caller when its evaluation is done:
+	 *
+	 * <pre>
+	 * final ImgLibEvaluationContext previous = ImgLibEvaluationContext.set( context );
+	 * try
+	 * {
+	 * 	// evaluate
+	 * }
+	 * finally
+	 * {
+	 * 	ImgLibEvaluationContext.set( previous );
+	 * }
+	 * </pre>
+	 *
+	 * @param context
+	 *            The new context, or <code>null</code> for the default one
+	 * @return The previous context, possibly <code>null</code>
+	 */
+	public static ImgLibEvaluationContext set( final ImgLibEvaluationContext context )
+	{
+		final ImgLibEvaluationContext previous = CURRENT.get();
+		if ( null == context )
+		{
+			CURRENT.remove();
+		}
+		else
+		{
+			CURRENT.set( context );
+		}
+		return previous;
+	}
+
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	public ImgFactory< FloatType > getImgFactory()
+	{
+		return imgFactory;
+	}
+
+	public Precision getPrecision()
+	{
+		return precision;
+	}
+
+}
@@ -0,0 +1,164 @@
+package fiji.expressionparser;
+
+import fiji.expressionparser.function.ImgLibAbs;
+import fiji.expressionparser.function.ImgLibArcCosine;
+import fiji.expressionparser.function.ImgLibArcSine;
+import fiji.expressionparser.function.ImgLibArcTangent;
+import fiji.expressionparser.function.ImgLibArcTangent2;
+import fiji.expressionparser.function.ImgLibCeil;
+import fiji.expressionparser.function.ImgLibCosine;
+import fiji.expressionparser.function.ImgLibDithering;
+import fiji.expressionparser.function.ImgLibExp;
+import fiji.expressionparser.function.ImgLibFloor;
+import fiji.expressionparser.function.ImgLibFunction;
+import fiji.expressionparser.function.ImgLibGaussConv;
+import fiji.expressionparser.function.ImgLibLog;
+import fiji.expressionparser.function.ImgLibModulus;
+import fiji.expressionparser.function.ImgLibNormalize;
+import fiji.expressionparser.function.ImgLibPower;
+import fiji.expressionparser.function.ImgLibRound;
+import fiji.expressionparser.function.ImgLibSine;
+import fiji.expressionparser.function.ImgLibSquareRoot;
+import fiji.expressionparser.function.ImgLibTangent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.nfunk.jep.OperatorSet;
+
+/**
+ * The functions and operators of the {@link ImgLibParser}s, created once per
+ * JVM and shared by all the parsers. Creating a parser and adding the
+ * standard functions to it then only copies references into its function
+ * table.
+ * <p>
+ * The function objects hold no state: the settings of an evaluation, such as
+ * the number of threads, are read from the {@link ImgLibEvaluationContext} of
+ * the calling thread. They can therefore be used by several parsers, in
+ * several threads, at the same time. The maps returned by this registry
+ * cannot be modified, and its operator set must not be modified either.
+ */
+public final class ImgLibFunctionRegistry
+{
+
+	private static final ImgLibFunctionRegistry DEFAULT = new ImgLibFunctionRegistry();
+
+	/** The pixel-based standard functions, by name. */
+	private final Map< String, ImgLibFunction< ? > > standardFunctions;
+
+	/** The ImgLib algorithms, such as gaussian convolution, by name. */
+	private final Map< String, ImgLibFunction< ? > > algorithms;
+
+	private final ImgLibOperatorSet< FloatType > operatorSet;
+
+	private ImgLibFunctionRegistry()
+	{
+		this.standardFunctions = toMap( ImgLibFunctionRegistry.< FloatType >createStandardFunctions() );
+		this.algorithms = toMap( ImgLibFunctionRegistry.< FloatType >createAlgorithms() );
+		this.operatorSet = new ImgLibOperatorSet< FloatType >();
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Return the registry shared by all the parsers.
+	 */
+	public static ImgLibFunctionRegistry getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * Create a parser with the standard constants, the standard functions and
+	 * the ImgLib algorithms of this registry, but no variables.
+	 */
+	public < T extends RealType< T > > ImgLibParser< T > createParser()
+	{
+		final ImgLibParser< T > parser = new ImgLibParser< T >();
+		parser.addStandardConstants();
+		parser.addStandardFunctions();
+		parser.addImgLibAlgorithms();
+		return parser;
+	}
+
+	/**
+	 * Return the pixel-based standard functions, such as <code>cos</code> or
+	 * <code>sqrt</code>, by name.
+	 */
+	public Map< String, ImgLibFunction< ? > > getStandardFunctions()
+	{
+		return standardFunctions;
+	}
+
+	/**
+	 * Return the ImgLib algorithms, such as <code>gauss</code>, by name.
+	 */
+	public Map< String, ImgLibFunction< ? > > getAlgorithms()
+	{
+		return algorithms;
+	}
+
+	/**
+	 * Return the operators. The set is shared by all the parsers, and must not
+	 * be modified.
+	 */
+	public OperatorSet getOperatorSet()
+	{
+		return operatorSet;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private static < T extends RealType< T > > List< ImgLibFunction< T > > createStandardFunctions()
+	{
+		final List< ImgLibFunction< T > > il_funs = new ArrayList< ImgLibFunction< T > >();
+		il_funs.add( new ImgLibSine< T >() );
+		il_funs.add( new ImgLibCosine< T >() );
+		il_funs.add( new ImgLibTangent< T >() );
+		il_funs.add( new ImgLibArcSine< T >() );
+		il_funs.add( new ImgLibArcCosine< T >() );
+		il_funs.add( new ImgLibArcTangent< T >() );
+		il_funs.add( new ImgLibArcTangent2< T >() );
+		il_funs.add( new ImgLibLog< T >() );
+		il_funs.add( new ImgLibExp< T >() );
+		il_funs.add( new ImgLibPower< T >() );
+		il_funs.add( new ImgLibSquareRoot< T >() );
+		il_funs.add( new ImgLibAbs< T >() );
+		il_funs.add( new ImgLibModulus< T >() );
+		il_funs.add( new ImgLibCeil< T >() );
+		il_funs.add( new ImgLibFloor< T >() );
+		il_funs.add( new ImgLibRound< T >() );
+		return il_funs;
+	}
+
+	private static < T extends RealType< T > > List< ImgLibFunction< T > > createAlgorithms()
+	{
+		final List< ImgLibFunction< T > > il_algos = new ArrayList< ImgLibFunction< T > >();
+		il_algos.add( new ImgLibGaussConv< T >() );
+		il_algos.add( new ImgLibNormalize< T >() );
+//		il_algos.add( new ImgLibBandPassFilter< T >() ); // dont know what to do with it right now
+		il_algos.add( new ImgLibDithering< T >() );
+		return il_algos;
+	}
+
+	private static < T extends RealType< T > > Map< String, ImgLibFunction< ? > > toMap( final List< ImgLibFunction< T > > functions )
+	{
+		final Map< String, ImgLibFunction< ? > > map = new LinkedHashMap< String, ImgLibFunction< ? > >();
+		for ( final ImgLibFunction< T > fun : functions )
+		{
+			map.put( fun.getFunctionString(), fun );
+		}
+		return Collections.unmodifiableMap( map );
+	}
+
+}
@@ -0,0 +1,987 @@
+package fiji.expressionparser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+import org.nfunk.jep.ASTConstant;
+import org.nfunk.jep.ASTFunNode;
+import org.nfunk.jep.ASTVarNode;
+import org.nfunk.jep.EvaluatorVisitor;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.ParseException;
+import org.nfunk.jep.SymbolTable;
+import org.nfunk.jep.function.CallbackEvaluationI;
+import org.nfunk.jep.function.PostfixMathCommandI;
+
+import fiji.expressionparser.function.ImgFactoryConfigurable;
+import fiji.expressionparser.function.ImgTiles;
+import fiji.expressionparser.function.ParallelChunks;
+import fiji.expressionparser.function.PixelBlockReader;
+import fiji.expressionparser.function.PixelBlockWriter;
+import fiji.expressionparser.function.SingleOperandPixelBasedAbstractFunction;
+import fiji.expressionparser.function.TwoOperandsPixelBasedAbstractFunction;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Evaluates a parsed expression tree by fusing its pixel-wise sub-expressions.
+ * <p>
+ * When JEP evaluates an expression such as <code>sqrt(A*A + B*B)</code>, every
+ * operator is run on whole images and returns a new image, so this expression
+ * allocates 4 intermediate images. This evaluator walks the tree once instead,
+ * and compiles every maximal sub-tree made of pixel-based functions into a
+ * single {@link PixelKernel}, which is then evaluated in one pass over the
+ * input images. Only the final result is allocated.
+ * <p>
+ * Functions that are not pixel-based, such as the gaussian convolution, are
+ * evaluated as JEP would do, and their result becomes an input of the kernel
+ * of their parent.
+ * <p>
+ * Structurally identical sub-trees are evaluated only once per evaluator
+ * instance: in <code>gauss(A,3) &gt; A &amp;&amp; gauss(A,3) &lt; 2*A</code>,
+ * the convolution is run once and its result is used twice. An evaluator must
+ * therefore not be reused after the values of the variables changed.
+ * <p>
+ * The intermediate images created during the evaluation are tracked: before
+ * evaluating a tree, the number of times each sub-tree result will be read is
+ * counted, and once an intermediate image has been read for the last time, it
+ * is recycled in an {@link ImgLibBufferPool}. A kernel whose input is such an
+ * image writes its result into it, in place. The images of the variables are
+ * never written to.
+ * <p>
+ * If an {@link ImgFactory} is set, the kernels write their result in images
+ * created by it instead. With a cell image factory, each kernel is evaluated
+ * cell by cell, reading the inputs over the same cell, so that results can be
+ * larger than an {@link ArrayImg} or than the heap. Such results are not
+ * recycled.
+ * <p>
+ * The final result can be stored in a more compact type than
+ * {@link FloatType}, see {@link #setOutputType(OutputType)}. The kernel at
+ * the root of the tree then writes its values directly in an image of that
+ * type, and no float image of the size of the result is allocated. It can
+ * also be written in an existing image, see {@link #evaluate(Node, Img)}.
+ * <p>
+ * An operator whose second operand is a number, such as the power in
+ * <code>(A-B)^2</code> or the modulus in <code>A % 16</code>, is compiled
+ * into its specialized function, see
+ * {@link TwoOperandsPixelBasedAbstractFunction#specialize(float)}.
+ * <p>
+ * A kernel whose only input is an 8 or 16-bit image, or whose two inputs are
+ * 8-bit images, is evaluated once per possible pixel value, and then applied
+ * as a lookup table, see {@link ImgLibLookupTable}.
+ * <p>
+ * If {@link PixelStatistics} are set, the kernel at the root of the tree
+ * counts the values of the final result while it writes them, so that its
+ * extrema are known without another pass over it.
+ *
+ * @see EvaluationMode#FUSED
+ * @see EvaluationMode#COMPILED
+ */
+public class ImgLibFusedEvaluator implements MultiThreaded, ImgFactoryConfigurable
+{
+
+	/** The symbol table, used for functions that need JEP own evaluator. */
+	private final SymbolTable symTab;
+
+	/** If true, kernels are compiled into method handles before being run. */
+	private final boolean compiled;
+
+	/** The number of threads used to run the kernels. */
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/** The results of the function nodes evaluated so far, by structural key. */
+	private final Map< String, Object > results = new HashMap< String, Object >();
+
+	/** The structural key of the nodes met so far. */
+	private final Map< Node, String > keys = new IdentityHashMap< Node, String >();
+
+	/** The number of reads left for each structural key, during evaluation. */
+	private final Map< String, Integer > uses = new HashMap< String, Integer >();
+
+	/**
+	 * The intermediate images created by this evaluator, with the structural
+	 * key of the sub-tree they are the result of.
+	 */
+	private final Map< Img< ? >, String > intermediates = new IdentityHashMap< Img< ? >, String >();
+
+	/** Where the intermediate images that will not be read again are stored. */
+	private final ImgLibBufferPool pool = new ImgLibBufferPool();
+
+	/** The factory used to create results, <code>null</code> for ArrayImgs. */
+	private ImgFactory< FloatType > imgFactory = null;
+
+	/** The type of the final result. */
+	private OutputType outputType = OutputType.FLOAT;
+
+	/** Where the statistics of the final result are accumulated, if not <code>null</code>. */
+	private PixelStatistics statistics = null;
+
+	/** The precision of the transcendental functions. */
+	private Precision precision = Precision.STRICT;
+
+	public ImgLibFusedEvaluator( final SymbolTable symTab )
+	{
+		this( symTab, false );
+	}
+
+	/**
+	 * @param symTab
+	 *            The symbol table
+	 * @param compiled
+	 *            If true, the kernels are compiled by the
+	 *            {@link ImgLibKernelCompiler} before being run
+	 */
+	public ImgLibFusedEvaluator( final SymbolTable symTab, final boolean compiled )
+	{
+		this.symTab = symTab;
+		this.compiled = compiled;
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Evaluate the expression tree starting at the given node.
+	 *
+	 * @param node
+	 *            The root of the tree to evaluate
+	 * @return The result of the evaluation, as an {@link Img} of the
+	 *         {@link OutputType} of this evaluator or as a number
+	 * @throws ParseException
+	 *             If the expression cannot be evaluated
+	 */
+	public Object evaluate( final Node node ) throws ParseException
+	{
+		return evaluate( node, null );
+	}
+
+	/**
+	 * Evaluate the expression tree starting at the given node, and write its
+	 * result in the given image. Values are converted to the type of the
+	 * target, whatever the {@link OutputType} of this evaluator. When the root
+	 * of the tree is pixel-wise, its kernel writes directly in the target.
+	 *
+	 * @param node
+	 *            The root of the tree to evaluate
+	 * @param target
+	 *            The image to write the result in, with the dimensions of the
+	 *            result, or <code>null</code> to create a new image
+	 * @return The target, or a number if the expression does not depend on
+	 *         any image, in which case the target is not written
+	 * @throws ParseException
+	 *             If the expression cannot be evaluated, or the target does
+	 *             not have the dimensions of the result
+	 */
+	public Object evaluate( final Node node, final Img< ? > target ) throws ParseException
+	{
+		final ImgLibEvaluationContext previous = ImgLibEvaluationContext.set( new ImgLibEvaluationContext( numThreads, imgFactory, precision ) );
+		try
+		{
+			return evaluateRoot( node, target );
+		}
+		finally
+		{
+			ImgLibEvaluationContext.set( previous );
+		}
+	}
+
+	/**
+	 * Evaluate the expression tree starting at the given node lazily. If the
+	 * root of the tree is pixel-wise, its kernel is not run: the result is a
+	 * {@link ImgLibKernelView} whose pixels are computed when they are
+	 * accessed. The sub-trees that are not pixel-wise, such as a gaussian
+	 * convolution, are still evaluated entirely, since their value at one pixel
+	 * depends on other pixels.
+	 *
+	 * @param node
+	 *            The root of the tree to evaluate
+	 * @return The result of the evaluation, as a
+	 *         {@link RandomAccessibleInterval} of {@link FloatType}, as an
+	 *         {@link Img} if the root is not pixel-wise, or as a number
+	 * @throws ParseException
+	 *             If the expression cannot be evaluated
+	 */
+	public Object evaluateView( final Node node ) throws ParseException
+	{
+		if ( !( node instanceof ASTFunNode ) || !isPixelBased( ( ( ASTFunNode ) node ).getPFMC() ) ) { return evaluate( node ); }
+
+		final ImgLibEvaluationContext previous = ImgLibEvaluationContext.set( new ImgLibEvaluationContext( numThreads, imgFactory, precision ) );
+		try
+		{
+			return createView( node );
+		}
+		finally
+		{
+			ImgLibEvaluationContext.set( previous );
+		}
+	}
+
+	/**
+	 * Copy an image into a new image of the given type, created by the factory
+	 * of this evaluator.
+	 *
+	 * @param img
+	 *            The image to convert
+	 * @param type
+	 *            The type of the new image
+	 * @return A new image, with the dimensions of the source
+	 * @throws ParseException
+	 *             If the factory cannot create images of this type
+	 */
+	public Img< ? > convert( final Img< ? > img, final OutputType type ) throws ParseException
+	{
+		final long[] dimensions = new long[ img.numDimensions() ];
+		img.dimensions( dimensions );
+		return convert( img, type.createImg( dimensions, imgFactory ) );
+	}
+
+	/**
+	 * Copy an image into the given target, converting its values to the type
+	 * of the target.
+	 *
+	 * @param img
+	 *            The image to copy
+	 * @param target
+	 *            The image to write, with the dimensions of the source
+	 * @return The target
+	 * @throws ParseException
+	 *             If the images do not have the same dimensions
+	 */
+	public Img< ? > convert( final Img< ? > img, final Img< ? > target ) throws ParseException
+	{
+		final List< Img< ? > > inputs = new ArrayList< Img< ? > >( 1 );
+		inputs.add( img );
+		return run( new PixelKernel.Input( 0 ), inputs, target, statistics );
+	}
+
+	/**
+	 * Returns the pool in which this evaluator recycles its intermediate
+	 * images.
+	 */
+	public ImgLibBufferPool getBufferPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * Compile the pixel-wise expression tree starting at the given node into a
+	 * {@link PixelKernel}. The sub-trees that are not pixel-wise are evaluated
+	 * during compilation.
+	 *
+	 * @param node
+	 *            The root of the tree to compile
+	 * @param inputs
+	 *            The list in which to store the input images of the kernel.
+	 *            The index of an image in this list is the index of its values
+	 *            in the arrays passed to the kernel.
+	 * @return A new kernel
+	 * @throws ParseException
+	 *             If a sub-tree cannot be evaluated
+	 */
+	public PixelKernel compile( final Node node, final List< Img< ? > > inputs ) throws ParseException
+	{
+		return compile( node, inputs, new ArrayList< Node >() );
+	}
+
+	/**
+	 * Evaluate a kernel over all the pixels of its input images.
+	 *
+	 * @param kernel
+	 *            The kernel to evaluate
+	 * @param inputs
+	 *            The input images of the kernel. They must all have the same
+	 *            dimensions.
+	 * @return An {@link Img} of {@link FloatType}, with the dimensions of the
+	 *         first input image, that is either new or taken from the pool of
+	 *         this evaluator
+	 * @throws ParseException
+	 *             If the input images do not have the same dimensions
+	 */
+	@SuppressWarnings( "unchecked" )
+	public Img< FloatType > run( final PixelKernel kernel, final List< Img< ? > > inputs ) throws ParseException
+	{
+		return ( Img< FloatType > ) run( kernel, inputs, null, null );
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Evaluate the tree, in the context of this evaluator, in the given target
+	 * if it is not <code>null</code>.
+	 */
+	private Object evaluateRoot( final Node node, final Img< ? > target ) throws ParseException
+	{
+		countUses( node, new HashSet< String >() );
+		final OutputType type = outputType.resolve( node );
+
+		// Write the root kernel directly in the target or in an image of the
+		// output type, and count its values as they are written
+		if ( node instanceof ASTFunNode && isPixelBased( ( ( ASTFunNode ) node ).getPFMC() ) ) { return evaluatePixelWise( node, type, target, statistics ); }
+
+		final Object result = evaluateNode( node );
+		if ( !( result instanceof Img< ? > ) ) { return result; }
+		final Img< ? > img = ( Img< ? > ) result;
+		if ( img == target || null == target && OutputType.FLOAT == type )
+		{
+			// Not written by a kernel of this evaluator
+			if ( null != statistics )
+			{
+				statistics.accumulate( img, numThreads );
+			}
+			return img;
+		}
+		final Img< ? > converted = null == target ? convert( img, type ) : convert( img, target );
+		if ( intermediates.containsKey( img ) )
+		{
+			recycle( img );
+		}
+		return converted;
+	}
+
+	/**
+	 * Create the lazy view over the tree, in the context of this evaluator.
+	 */
+	private Object createView( final Node node ) throws ParseException
+	{
+		countUses( node, new HashSet< String >() );
+		final List< Img< ? > > inputs = new ArrayList< Img< ? > >();
+		// The leaves are not released: the view reads them after this call
+		final PixelKernel kernel = compile( node, inputs, new ArrayList< Node >() );
+		if ( inputs.isEmpty() )
+		{
+			// Only numbers: this is a singleton
+			return new FloatType( kernel.evaluate( new float[ 0 ] ) );
+		}
+		if ( compiled ) { return ImgLibKernelView.create( ImgLibKernelCompiler.compileKernel( kernel, inputs.size() ), inputs ); }
+		return ImgLibKernelView.create( kernel, inputs );
+	}
+
+	private Object evaluateNode( final Node node ) throws ParseException
+	{
+		if ( node instanceof ASTConstant )
+		{
+			return ( ( ASTConstant ) node ).getValue();
+		}
+		else if ( node instanceof ASTVarNode )
+		{
+			final ASTVarNode var_node = ( ASTVarNode ) node;
+			final Object value = var_node.getVar().getValue();
+			if ( null == value ) { throw new ParseException( "Variable '" + var_node.getName() + "' has no value." ); }
+			return value;
+		}
+		else if ( node instanceof ASTFunNode )
+		{
+			// Common sub-expressions are evaluated once
+			final String key = getKey( node );
+			Object result = results.get( key );
+			if ( null == result )
+			{
+				result = evaluateFunNode( ( ASTFunNode ) node );
+				results.put( key, result );
+			}
+			return result;
+		}
+		throw new ParseException( "Cannot evaluate node of type " + node.getClass().getSimpleName() );
+	}
+
+	/**
+	 * Compile a kernel, and store in <code>consumed</code> the roots of the
+	 * sub-trees that were evaluated to become its leaves.
+	 */
+	private PixelKernel compile( final Node node, final List< Img< ? > > inputs, final List< Node > consumed ) throws ParseException
+	{
+		// Sub-trees already evaluated are leaves
+		if ( node instanceof ASTFunNode && !results.containsKey( getKey( node ) ) )
+		{
+			final PostfixMathCommandI pfmc = ( ( ASTFunNode ) node ).getPFMC();
+			if ( pfmc instanceof SingleOperandPixelBasedAbstractFunction )
+			{
+				checkNumberOfChildren( node, 1 );
+				final SingleOperandPixelBasedAbstractFunction< ? > fun = ( ( SingleOperandPixelBasedAbstractFunction< ? > ) pfmc ).withPrecision( precision );
+				return new PixelKernel.Unary( fun, compile( node.jjtGetChild( 0 ), inputs, consumed ) );
+			}
+			else if ( pfmc instanceof TwoOperandsPixelBasedAbstractFunction )
+			{
+				checkNumberOfChildren( node, 2 );
+				final TwoOperandsPixelBasedAbstractFunction< ? > fun = ( ( TwoOperandsPixelBasedAbstractFunction< ? > ) pfmc ).withPrecision( precision );
+				final PixelKernel operand1 = compile( node.jjtGetChild( 0 ), inputs, consumed );
+				final PixelKernel operand2 = compile( node.jjtGetChild( 1 ), inputs, consumed );
+				// A constant second operand, as in A^2 or A % 16, may have a faster function
+				if ( operand2 instanceof PixelKernel.Constant )
+				{
+					final SingleOperandPixelBasedAbstractFunction< ? > specialized = fun.specialize( ( ( PixelKernel.Constant ) operand2 ).getValue() );
+					if ( null != specialized ) { return new PixelKernel.Unary( specialized, operand1 ); }
+				}
+				return new PixelKernel.Binary( fun, operand1, operand2 );
+			}
+		}
+
+		// Not pixel-wise: evaluate it and use the result as a leaf
+		final Object value = evaluateNode( node );
+		consumed.add( node );
+		if ( value instanceof Img< ? > )
+		{
+			final Img< ? > img = ( Img< ? > ) value;
+			int index = -1;
+			for ( int i = 0; i < inputs.size(); i++ )
+			{
+				if ( inputs.get( i ) == img )
+				{
+					index = i;
+					break;
+				}
+			}
+			if ( index < 0 )
+			{
+				index = inputs.size();
+				inputs.add( img );
+			}
+			return new PixelKernel.Input( index );
+		}
+		else if ( value instanceof RealType< ? > )
+		{
+			return new PixelKernel.Constant( ( ( RealType< ? > ) value ).getRealFloat() );
+		}
+		else if ( value instanceof Number )
+		{
+			return new PixelKernel.Constant( ( ( Number ) value ).floatValue() );
+		}
+		throw new ParseException( "Bad type of operand: " + value.getClass().getSimpleName() );
+	}
+
+	/**
+	 * Evaluate a kernel over all the pixels of its input images, and write the
+	 * result in the given target image, or in an image of the pool if it is
+	 * <code>null</code>. The target may be of any type, and may be one of the
+	 * inputs, since every block of pixels is read before it is written. The
+	 * values written are counted in the given statistics, if not
+	 * <code>null</code>.
+	 */
+	private Img< ? > run( final PixelKernel kernel, final List< Img< ? > > inputs, final Img< ? > target, final PixelStatistics statistics ) throws ParseException
+	{
+		final Img< ? > first = inputs.get( 0 );
+		final long size = first.size();
+		// The pixels are read and written in flat iteration order: images of
+		// the same size but of different shapes would be mixed up
+		for ( final Img< ? > img : inputs )
+		{
+			if ( !Intervals.equalDimensions( img, first ) ) { throw new ParseException( "Images do not have the same dimensions." ); }
+		}
+		if ( null != target && !Intervals.equalDimensions( target, first ) ) { throw new ParseException( "The target image does not have the same dimensions as the result." ); }
+
+		if ( null == target && null != imgFactory ) { return runTiles( kernel, inputs, statistics ); }
+
+		// Get target image
+		final Img< ? > result;
+		if ( null == target )
+		{
+			final long[] dimensions = new long[ first.numDimensions() ];
+			first.dimensions( dimensions );
+			result = pool.acquire( dimensions );
+		}
+		else
+		{
+			result = target;
+		}
+
+		ParallelChunks.runAligned( size, PixelBlockWriter.getAlignment( result ), numThreads, new ParallelChunks.Task()
+		{
+			@Override
+			public void run( final long offset, final long length )
+			{
+				final PixelStatistics chunk_statistics = null == statistics ? null : statistics.newAccumulator();
+				runChunk( kernel.copy(), inputs, result, offset, length, chunk_statistics );
+				if ( null != statistics )
+				{
+					statistics.merge( chunk_statistics );
+				}
+			}
+		} );
+		return result;
+	}
+
+	/**
+	 * Evaluate a kernel in a new image created by the factory, tile by tile.
+	 * The tiles are distributed over the threads.
+	 */
+	private Img< FloatType > runTiles( final PixelKernel kernel, final List< Img< ? > > inputs, final PixelStatistics statistics ) throws ParseException
+	{
+		final Img< ? > first = inputs.get( 0 );
+		for ( final Img< ? > img : inputs )
+		{
+			if ( !Intervals.equalDimensions( img, first ) ) { throw new ParseException( "Images do not have the same dimensions." ); }
+		}
+
+		final long[] dimensions = new long[ first.numDimensions() ];
+		first.dimensions( dimensions );
+		final Img< FloatType > result = imgFactory.create( dimensions );
+		final List< Interval > tiles = ImgTiles.getTiles( result );
+		ParallelChunks.run( tiles.size(), 1, numThreads, new ParallelChunks.Task()
+		{
+			@Override
+			public void run( final long offset, final long length )
+			{
+				final PixelKernel chunk_kernel = kernel.copy();
+				final PixelStatistics chunk_statistics = null == statistics ? null : statistics.newAccumulator();
+				for ( long i = offset; i < offset + length; i++ )
+				{
+					runTile( chunk_kernel, inputs, result, tiles.get( ( int ) i ), chunk_statistics );
+				}
+				if ( null != statistics )
+				{
+					statistics.merge( chunk_statistics );
+				}
+			}
+		} );
+		return result;
+	}
+
+	/**
+	 * Evaluate a kernel over one tile, block by block. The result is written
+	 * directly in the storage array of the tile when it is a plain
+	 * {@link FloatArray}, and through a cursor otherwise, so that cell images
+	 * that track their modified cells, such as disk-cached ones, see the
+	 * writes.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static void runTile( final PixelKernel kernel, final List< Img< ? > > inputs, final Img< FloatType > result, final Interval tile, final PixelStatistics statistics )
+	{
+		final PixelBlockReader[] readers = new PixelBlockReader[ inputs.size() ];
+		for ( int i = 0; i < readers.length; i++ )
+		{
+			readers[ i ] = PixelBlockReader.create( ( Img ) inputs.get( i ), tile );
+		}
+
+		final Object data = ImgTiles.getCellData( result, tile );
+		final float[] output = null != data && data.getClass() == FloatArray.class ? ( ( FloatArray ) data ).getCurrentStorageArray() : null;
+		final Cursor< FloatType > cursor = null == output ? Views.flatIterable( Views.interval( result, tile ) ).cursor() : null;
+
+		final long length = Intervals.numElements( tile );
+		final float[][] blocks = new float[ readers.length ][ PixelKernel.BLOCK_SIZE ];
+		int done = 0;
+		while ( done < length )
+		{
+			final int block_length = ( int ) Math.min( PixelKernel.BLOCK_SIZE, length - done );
+			for ( int i = 0; i < readers.length; i++ )
+			{
+				readers[ i ].read( blocks[ i ], block_length );
+			}
+			final float[] values = kernel.evaluate( blocks, block_length );
+			if ( null != output )
+			{
+				System.arraycopy( values, 0, output, done, block_length );
+			}
+			else
+			{
+				for ( int j = 0; j < block_length; j++ )
+				{
+					cursor.next().set( values[ j ] );
+				}
+			}
+			if ( null != statistics )
+			{
+				statistics.add( values, block_length );
+			}
+			done += block_length;
+		}
+	}
+
+	/**
+	 * Evaluate a kernel over a chunk of pixels, block by block.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static void runChunk( final PixelKernel kernel, final List< Img< ? > > inputs, final Img< ? > target, final long offset, final long length, final PixelStatistics statistics )
+	{
+		final PixelBlockReader[] readers = new PixelBlockReader[ inputs.size() ];
+		for ( int i = 0; i < readers.length; i++ )
+		{
+			readers[ i ] = PixelBlockReader.create( ( Img ) inputs.get( i ), offset );
+		}
+		final PixelBlockWriter writer = PixelBlockWriter.create( ( Img ) target, offset, statistics );
+
+		final float[][] blocks = new float[ readers.length ][ PixelKernel.BLOCK_SIZE ];
+		int done = 0;
+		while ( done < length )
+		{
+			final int block_length = ( int ) Math.min( PixelKernel.BLOCK_SIZE, length - done );
+			for ( int i = 0; i < readers.length; i++ )
+			{
+				readers[ i ].read( blocks[ i ], block_length );
+			}
+			final float[] values = kernel.evaluate( blocks, block_length );
+			writer.write( values, block_length );
+			done += block_length;
+		}
+	}
+
+	private Object evaluateFunNode( final ASTFunNode node ) throws ParseException
+	{
+		final PostfixMathCommandI pfmc = node.getPFMC();
+		if ( isPixelBased( pfmc ) )
+		{
+			return evaluatePixelWise( node );
+		}
+		else if ( pfmc instanceof CallbackEvaluationI )
+		{
+			// Let JEP deal with functions that evaluate their own arguments
+			return new EvaluatorVisitor().getValue( node, symTab );
+		}
+		else
+		{
+			return evaluateFunction( node );
+		}
+	}
+
+	/**
+	 * Return a string that is the same for two sub-trees if and only if they
+	 * are structurally identical: same functions, same variables and same
+	 * constants, in the same places.
+	 */
+	private String getKey( final Node node )
+	{
+		String key = keys.get( node );
+		if ( null != key ) { return key; }
+
+		if ( node instanceof ASTConstant )
+		{
+			final Object value = ( ( ASTConstant ) node ).getValue();
+			if ( value instanceof RealType< ? > )
+			{
+				key = "#" + Float.floatToIntBits( ( ( RealType< ? > ) value ).getRealFloat() );
+			}
+			else
+			{
+				key = "#" + value;
+			}
+		}
+		else if ( node instanceof ASTVarNode )
+		{
+			key = "$" + ( ( ASTVarNode ) node ).getName();
+		}
+		else
+		{
+			final StringBuilder sb = new StringBuilder();
+			sb.append( node instanceof ASTFunNode ? ( ( ASTFunNode ) node ).getName() : node.getClass().getSimpleName() );
+			sb.append( '(' );
+			for ( int i = 0; i < node.jjtGetNumChildren(); i++ )
+			{
+				if ( i > 0 )
+				{
+					sb.append( ',' );
+				}
+				sb.append( getKey( node.jjtGetChild( i ) ) );
+			}
+			sb.append( ')' );
+			key = sb.toString();
+		}
+		keys.put( node, key );
+		return key;
+	}
+
+	/**
+	 * Evaluate the pixel-wise tree starting at the given node in one pass.
+	 */
+	private Object evaluatePixelWise( final Node node ) throws ParseException
+	{
+		return evaluatePixelWise( node, OutputType.FLOAT, null, null );
+	}
+
+	/**
+	 * Evaluate the pixel-wise tree starting at the given node in one pass, and
+	 * store its result in the given final target, or if it is
+	 * <code>null</code> in an image of the given type. Only {@link FloatType}
+	 * results written in new images are tracked as intermediates: the others
+	 * are final results. The values of the result are counted in the given
+	 * statistics, if not <code>null</code>.
+	 */
+	private Object evaluatePixelWise( final Node node, final OutputType type, final Img< ? > final_target, final PixelStatistics statistics ) throws ParseException
+	{
+		final List< Img< ? > > inputs = new ArrayList< Img< ? > >();
+		final List< Node > consumed = new ArrayList< Node >();
+		final PixelKernel kernel = compile( node, inputs, consumed );
+		for ( final Node leaf : consumed )
+		{
+			decrementUses( leaf );
+		}
+		if ( inputs.isEmpty() )
+		{
+			// Only numbers: this is a singleton
+			return new FloatType( kernel.evaluate( new float[ 0 ] ) );
+		}
+
+		Img< ? > target = null;
+		if ( null != final_target )
+		{
+			target = final_target;
+		}
+		else if ( OutputType.FLOAT == type )
+		{
+			// Write in place in an input that will not be read again, if any
+			for ( final Img< ? > img : inputs )
+			{
+				if ( isDead( img ) && ImgLibBufferPool.isFloatArrayImg( img ) && Intervals.equalDimensions( img, inputs.get( 0 ) ) )
+				{
+					target = img;
+					break;
+				}
+			}
+		}
+		else
+		{
+			final long[] dimensions = new long[ inputs.get( 0 ).numDimensions() ];
+			inputs.get( 0 ).dimensions( dimensions );
+			target = type.createImg( dimensions, imgFactory );
+		}
+
+		// A kernel of a single 8 or 16-bit image, or of two 8-bit images, is
+		// a lookup table
+		final PixelKernel table = ImgLibLookupTable.tabulate( kernel, inputs );
+		final Img< ? > result;
+		if ( null != table )
+		{
+			result = run( table, inputs, target, statistics );
+		}
+		else if ( compiled )
+		{
+			result = run( ImgLibKernelCompiler.compileKernel( kernel, inputs.size() ), inputs, target, statistics );
+		}
+		else
+		{
+			result = run( kernel, inputs, target, statistics );
+		}
+
+		for ( final Img< ? > img : inputs )
+		{
+			if ( img != target && isDead( img ) )
+			{
+				recycle( img );
+			}
+		}
+		if ( null != final_target || OutputType.FLOAT != type ) { return result; }
+		if ( null != target )
+		{
+			forget( target );
+		}
+		intermediates.put( result, getKey( node ) );
+		return result;
+	}
+
+	/**
+	 * Evaluate a function node the way JEP does: evaluate its children, push
+	 * the results on a stack and let the function pop them.
+	 */
+	private Object evaluateFunction( final ASTFunNode node ) throws ParseException
+	{
+		final int n_children = node.jjtGetNumChildren();
+		final Stack< Object > stack = new Stack< Object >();
+		final Object[] operands = new Object[ n_children ];
+		for ( int i = 0; i < n_children; i++ )
+		{
+			operands[ i ] = evaluateNode( node.jjtGetChild( i ) );
+			stack.push( operands[ i ] );
+		}
+		final PostfixMathCommandI pfmc = node.getPFMC();
+		pfmc.setCurNumberOfParameters( n_children );
+		pfmc.run( stack );
+		final Object result = stack.pop();
+
+		boolean is_new = result instanceof Img< ? >;
+		for ( int i = 0; i < n_children; i++ )
+		{
+			decrementUses( node.jjtGetChild( i ) );
+			is_new = is_new && result != operands[ i ];
+		}
+		for ( final Object operand : operands )
+		{
+			if ( operand instanceof Img< ? > && operand != result && isDead( ( Img< ? > ) operand ) )
+			{
+				recycle( ( Img< ? > ) operand );
+			}
+		}
+		if ( is_new )
+		{
+			intermediates.put( ( Img< ? > ) result, getKey( node ) );
+		}
+		return result;
+	}
+
+	/**
+	 * Count how many times the result of each sub-tree will be read. A sub-tree
+	 * met several times is only evaluated once, so its own children are only
+	 * counted once, unless it is pixel-wise: it is then inlined in the kernel
+	 * of its parent and its children may be read again. Counting too many reads
+	 * only prevents an image from being recycled.
+	 */
+	private void countUses( final Node node, final Set< String > visited )
+	{
+		for ( int i = 0; i < node.jjtGetNumChildren(); i++ )
+		{
+			final Node child = node.jjtGetChild( i );
+			final String key = getKey( child );
+			final Integer n = uses.get( key );
+			uses.put( key, null == n ? 1 : n + 1 );
+			if ( visited.add( key ) || child instanceof ASTFunNode && isPixelBased( ( ( ASTFunNode ) child ).getPFMC() ) )
+			{
+				countUses( child, visited );
+			}
+		}
+	}
+
+	private void decrementUses( final Node node )
+	{
+		final String key = getKey( node );
+		final Integer n = uses.get( key );
+		if ( null != n && n > 0 )
+		{
+			uses.put( key, n - 1 );
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the given image is an intermediate result
+	 * that will not be read again.
+	 */
+	private boolean isDead( final Img< ? > img )
+	{
+		final String key = intermediates.get( img );
+		if ( null == key ) { return false; }
+		final Integer n = uses.get( key );
+		return null != n && n == 0;
+	}
+
+	/**
+	 * Stop tracking the given intermediate image, which now belongs to the
+	 * caller.
+	 */
+	private void forget( final Img< ? > img )
+	{
+		final String key = intermediates.remove( img );
+		if ( null != key )
+		{
+			results.remove( key );
+		}
+	}
+
+	private void recycle( final Img< ? > img )
+	{
+		forget( img );
+		pool.release( img );
+	}
+
+	private static final boolean isPixelBased( final PostfixMathCommandI pfmc )
+	{
+		return pfmc instanceof SingleOperandPixelBasedAbstractFunction || pfmc instanceof TwoOperandsPixelBasedAbstractFunction;
+	}
+
+	private static final void checkNumberOfChildren( final Node node, final int expected ) throws ParseException
+	{
+		if ( node.jjtGetNumChildren() != expected )
+		{
+			throw new ParseException( "In function '" + ( ( ASTFunNode ) node ).getName() + "': expected "
+					+ expected + " operand(s), got " + node.jjtGetNumChildren() + "." );
+		}
+	}
+
+	/**
+	 * Set the type of the final result of {@link #evaluate(Node)}. Default is
+	 * {@link OutputType#FLOAT}. Intermediate results, and the results of
+	 * {@link #evaluateView(Node)}, are always {@link FloatType} images.
+	 */
+	public void setOutputType( final OutputType outputType )
+	{
+		this.outputType = outputType;
+	}
+
+	public OutputType getOutputType()
+	{
+		return outputType;
+	}
+
+	/**
+	 * Set the statistics in which the values of the final result of
+	 * {@link #evaluate(Node, Img)} and {@link #convert(Img, Img)} are
+	 * accumulated, or <code>null</code> to compute none. Intermediate
+	 * results are not counted.
+	 */
+	public void setStatistics( final PixelStatistics statistics )
+	{
+		this.statistics = statistics;
+	}
+
+	public PixelStatistics getStatistics()
+	{
+		return statistics;
+	}
+
+	/**
+	 * Set the precision of the transcendental functions of the kernels, and of
+	 * the functions evaluated by JEP. Default is {@link Precision#STRICT}.
+	 */
+	public void setPrecision( final Precision precision )
+	{
+		this.precision = precision;
+	}
+
+	public Precision getPrecision()
+	{
+		return precision;
+	}
+
+	/*
+	 * IMG FACTORY
+	 */
+
+	@Override
+	public void setImgFactory( final ImgFactory< FloatType > imgFactory )
+	{
+		this.imgFactory = imgFactory;
+	}
+
+	@Override
+	public ImgFactory< FloatType > getImgFactory()
+	{
+		return imgFactory;
+	}
+
+	/*
+	 * MULTITHREADING
+	 */
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+}
@@ -0,0 +1,318 @@
+package fiji.expressionparser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import fiji.expressionparser.function.SingleOperandPixelBasedAbstractFunction;
+import fiji.expressionparser.function.TwoOperandsPixelBasedAbstractFunction;
+
+/**
+ * Compiles a {@link PixelKernel} into a chain of {@link MethodHandle}s.
+ * <p>
+ * Each function of the kernel is bound as a direct call to the primitive
+ * <code>evaluate</code> method of its concrete (final) class, so that the
+ * whole expression is a single call tree with monomorphic call sites, instead
+ * of a kernel tree interpreted node by node.
+ * <p>
+ * A method handle is only inlined by the JIT when it is a constant. The
+ * compiled kernels are therefore copies of {@link CompiledPixelKernel}, each
+ * defined in its own class loader, that hold their method handles in
+ * <code>static final</code> fields and run the loop over a block of pixels
+ * themselves.
+ * <p>
+ * Compiled kernels are cached by structure, so that evaluating the same
+ * expression again, such as on every slice of a virtual stack or on every
+ * refresh of a preview, reuses a class that the JIT has already compiled.
+ *
+ * @see EvaluationMode#COMPILED
+ */
+public class ImgLibKernelCompiler
+{
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+	private static final String TEMPLATE_NAME = CompiledPixelKernel.class.getName();
+
+	/** The maximal number of compiled kernels kept in the cache. */
+	private static final int KERNEL_CACHE_SIZE = 64;
+
+	/**
+	 * Compiled kernels, by number of inputs and structure of the kernel. The
+	 * least recently used ones are dropped first. Only copies of them are
+	 * returned, since kernels hold their own output blocks.
+	 */
+	private static final Map< String, PixelKernel > KERNEL_CACHE = new LinkedHashMap< String, PixelKernel >( 16, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< String, PixelKernel > eldest )
+		{
+			return size() > KERNEL_CACHE_SIZE;
+		}
+	};
+
+	/** The class file of {@link CompiledPixelKernel}, read once. */
+	private static byte[] template;
+
+	private ImgLibKernelCompiler()
+	{}
+
+	/**
+	 * Compile the given kernel into a method handle of type
+	 * <code>(float, float, ...)float</code>, with one parameter per input.
+	 *
+	 * @param kernel
+	 *            The kernel to compile
+	 * @param n_inputs
+	 *            The number of input images of the kernel
+	 * @return A new method handle
+	 */
+	public static final MethodHandle compile( final PixelKernel kernel, final int n_inputs )
+	{
+		final Class< ? >[] parameters = new Class< ? >[ n_inputs ];
+		Arrays.fill( parameters, float.class );
+		final MethodType type = MethodType.methodType( float.class, parameters );
+		final MethodHandle[] inputs = new MethodHandle[ n_inputs ];
+		for ( int i = 0; i < n_inputs; i++ )
+		{
+			final MethodHandle identity = MethodHandles.identity( float.class );
+			final MethodHandle handle = MethodHandles.dropArguments( identity, 1, type.parameterList().subList( i + 1, n_inputs ) );
+			inputs[ i ] = MethodHandles.dropArguments( handle, 0, type.parameterList().subList( 0, i ) );
+		}
+		return compile( kernel, inputs, type );
+	}
+
+	/**
+	 * Compile the given kernel into a {@link PixelKernel} that evaluates the
+	 * pixels of a block in a loop where the whole kernel is inlined. A kernel
+	 * with the same structure as one compiled before is not compiled again: a
+	 * copy of the cached one is returned.
+	 *
+	 * @param kernel
+	 *            The kernel to compile
+	 * @param n_inputs
+	 *            The number of input images of the kernel
+	 * @return A new copy of a compiled kernel
+	 */
+	public static final PixelKernel compileKernel( final PixelKernel kernel, final int n_inputs )
+	{
+		final String key = n_inputs + ":" + getKey( kernel );
+		synchronized ( KERNEL_CACHE )
+		{
+			final PixelKernel cached = KERNEL_CACHE.get( key );
+			if ( null != cached ) { return cached.copy(); }
+		}
+
+		final PixelKernel compiled = defineKernel( kernel, n_inputs );
+		synchronized ( KERNEL_CACHE )
+		{
+			final PixelKernel cached = KERNEL_CACHE.get( key );
+			if ( null != cached ) { return cached.copy(); }
+			KERNEL_CACHE.put( key, compiled );
+		}
+		return compiled.copy();
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Define a new copy of {@link CompiledPixelKernel} that evaluates the
+	 * given kernel.
+	 */
+	private static PixelKernel defineKernel( final PixelKernel kernel, final int n_inputs )
+	{
+		// The value of input j at pixel i: inputs[ j ][ i ]
+		final MethodType block_type = MethodType.methodType( float.class, float[][].class, int.class );
+		final MethodHandle[] block_inputs = new MethodHandle[ n_inputs ];
+		// The value of input j: pixel[ j ]
+		final MethodType pixel_type = MethodType.methodType( float.class, float[].class );
+		final MethodHandle[] pixel_inputs = new MethodHandle[ n_inputs ];
+		final MethodHandle get_float = MethodHandles.arrayElementGetter( float[].class );
+		final MethodHandle get_array = MethodHandles.arrayElementGetter( float[][].class );
+		for ( int j = 0; j < n_inputs; j++ )
+		{
+			block_inputs[ j ] = MethodHandles.filterArguments( get_float, 0, MethodHandles.insertArguments( get_array, 1, j ) );
+			pixel_inputs[ j ] = MethodHandles.insertArguments( get_float, 1, j );
+		}
+		final MethodHandle[] handles = new MethodHandle[] {
+				compile( kernel, block_inputs, block_type ),
+				compile( kernel, pixel_inputs, pixel_type )
+		};
+
+		try
+		{
+			final Constructor< ? > constructor = new KernelLoader( handles ).loadKernel().getDeclaredConstructor();
+			constructor.setAccessible( true );
+			return ( PixelKernel ) constructor.newInstance();
+		}
+		catch ( final IOException e )
+		{
+			throw new IllegalStateException( e );
+		}
+		catch ( final ReflectiveOperationException e )
+		{
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * Return a string that is the same for two kernels if and only if they
+	 * compile to the same code: same functions, with the same precision and
+	 * parameters, same inputs and same constants, in the same places.
+	 */
+	private static String getKey( final PixelKernel kernel )
+	{
+		if ( kernel instanceof PixelKernel.Input )
+		{
+			return "#" + ( ( PixelKernel.Input ) kernel ).getIndex();
+		}
+		else if ( kernel instanceof PixelKernel.Constant )
+		{
+			return "=" + Integer.toHexString( Float.floatToRawIntBits( ( ( PixelKernel.Constant ) kernel ).getValue() ) );
+		}
+		else if ( kernel instanceof PixelKernel.Unary )
+		{
+			final PixelKernel.Unary unary = ( PixelKernel.Unary ) kernel;
+			final SingleOperandPixelBasedAbstractFunction< ? > fun = unary.getFunction();
+			return fun.getClass().getName() + "[" + fun.getPrecision() + ", " + fun.getFunctionString() + "](" + getKey( unary.getOperand() ) + ")";
+		}
+		else if ( kernel instanceof PixelKernel.Binary )
+		{
+			final PixelKernel.Binary binary = ( PixelKernel.Binary ) kernel;
+			final TwoOperandsPixelBasedAbstractFunction< ? > fun = binary.getFunction();
+			return fun.getClass().getName() + "[" + fun.getPrecision() + ", " + fun.getFunctionString() + "](" + getKey( binary.getOperand1() ) + ", " + getKey( binary.getOperand2() ) + ")";
+		}
+		throw new IllegalArgumentException( "Cannot compile kernel node " + kernel.getClass().getSimpleName() );
+	}
+
+	/**
+	 * Compile the given kernel into a method handle of the given type, given
+	 * the handles of this type that return the values of its inputs.
+	 */
+	private static MethodHandle compile( final PixelKernel kernel, final MethodHandle[] inputs, final MethodType type )
+	{
+		final List< Class< ? > > parameters = type.parameterList();
+		try
+		{
+			if ( kernel instanceof PixelKernel.Input )
+			{
+				return inputs[ ( ( PixelKernel.Input ) kernel ).getIndex() ];
+			}
+			else if ( kernel instanceof PixelKernel.Constant )
+			{
+				final float value = ( ( PixelKernel.Constant ) kernel ).getValue();
+				return MethodHandles.dropArguments( MethodHandles.constant( float.class, value ), 0, parameters );
+			}
+			else if ( kernel instanceof PixelKernel.Unary )
+			{
+				final PixelKernel.Unary unary = ( PixelKernel.Unary ) kernel;
+				final SingleOperandPixelBasedAbstractFunction< ? > fun = unary.getFunction();
+				final MethodHandle fun_handle = LOOKUP
+						.findVirtual( fun.getClass(), "evaluate", MethodType.methodType( float.class, float.class ) )
+						.bindTo( fun );
+				return MethodHandles.filterReturnValue( compile( unary.getOperand(), inputs, type ), fun_handle );
+			}
+			else if ( kernel instanceof PixelKernel.Binary )
+			{
+				final PixelKernel.Binary binary = ( PixelKernel.Binary ) kernel;
+				final TwoOperandsPixelBasedAbstractFunction< ? > fun = binary.getFunction();
+				final MethodHandle fun_handle = LOOKUP
+						.findVirtual( fun.getClass(), "evaluate", MethodType.methodType( float.class, float.class, float.class ) )
+						.bindTo( fun );
+				// (a..., a...) -> f( op1(a...), op2(a...) )
+				final int n = parameters.size();
+				MethodHandle collected = MethodHandles.collectArguments( fun_handle, 0, compile( binary.getOperand1(), inputs, type ) );
+				collected = MethodHandles.collectArguments( collected, n, compile( binary.getOperand2(), inputs, type ) );
+				// Merge the two copies of the parameters
+				final int[] reorder = new int[ 2 * n ];
+				for ( int i = 0; i < n; i++ )
+				{
+					reorder[ i ] = i;
+					reorder[ n + i ] = i;
+				}
+				return MethodHandles.permuteArguments( collected, type, reorder );
+			}
+		}
+		catch ( final NoSuchMethodException e )
+		{
+			throw new IllegalStateException( e );
+		}
+		catch ( final IllegalAccessException e )
+		{
+			throw new IllegalStateException( e );
+		}
+		throw new IllegalArgumentException( "Cannot compile kernel node " + kernel.getClass().getSimpleName() );
+	}
+
+	private static synchronized byte[] getTemplate() throws IOException
+	{
+		if ( null == template )
+		{
+			final InputStream in = CompiledPixelKernel.class.getResourceAsStream( CompiledPixelKernel.class.getSimpleName() + ".class" );
+			if ( null == in ) { throw new IOException( "Cannot find the class file of " + TEMPLATE_NAME ); }
+			try
+			{
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				final byte[] buffer = new byte[ 4096 ];
+				int n;
+				while ( ( n = in.read( buffer ) ) > 0 )
+				{
+					out.write( buffer, 0, n );
+				}
+				template = out.toByteArray();
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		return template;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * The class loader of a single compiled kernel: it defines a new copy of
+	 * {@link CompiledPixelKernel}, and supplies the handles of the kernel to
+	 * its static initializer. All the other classes are loaded by the parent.
+	 */
+	private static final class KernelLoader extends ClassLoader implements Supplier< MethodHandle[] >
+	{
+
+		private final MethodHandle[] handles;
+
+		private KernelLoader( final MethodHandle[] handles )
+		{
+			super( ImgLibKernelCompiler.class.getClassLoader() );
+			this.handles = handles;
+		}
+
+		@Override
+		public MethodHandle[] get()
+		{
+			return handles;
+		}
+
+		private Class< ? > loadKernel() throws IOException
+		{
+			final byte[] bytes = getTemplate();
+			return defineClass( TEMPLATE_NAME, bytes, 0, bytes.length );
+		}
+	}
+
+}
@@ -0,0 +1,218 @@
+package fiji.expressionparser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nfunk.jep.ParseException;
+
+import fiji.expressionparser.function.ParallelChunks;
+import fiji.expressionparser.function.PixelBlockWriter;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import net.imglib2.view.composite.RealComposite;
+
+/**
+ * Wraps a {@link PixelKernel} and its input images in a lazy
+ * {@link RandomAccessibleInterval}, whose pixels are computed when they are
+ * accessed. Nothing is computed nor allocated when the view is created, so
+ * that a caller can sample, crop or stream the result of an expression
+ * without paying for the whole image.
+ * <p>
+ * The input images are stacked along a new last dimension and collapsed into
+ * a {@link RealComposite} view, which is then converted pixel by pixel by the
+ * kernel. Every access to a pixel therefore evaluates the kernel again: when
+ * all the pixels are needed, {@link #materialize(RandomAccessibleInterval, int)}
+ * is faster than iterating over the view several times.
+ */
+public class ImgLibKernelView
+{
+
+	private ImgLibKernelView()
+	{}
+
+	/**
+	 * Create a lazy view over the result of the given kernel.
+	 *
+	 * @param kernel
+	 *            The kernel to evaluate at every pixel
+	 * @param inputs
+	 *            The input images of the kernel. They must all have the same
+	 *            dimensions. They are read every time a pixel of the view is
+	 *            accessed, and must therefore not be modified while the view
+	 *            is in use.
+	 * @return A view with the dimensions of the input images
+	 * @throws ParseException
+	 *             If the input images do not have the same dimensions
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static RandomAccessibleInterval< FloatType > create( final PixelKernel kernel, final List< Img< ? > > inputs ) throws ParseException
+	{
+		final Img< ? > first = inputs.get( 0 );
+		final List< RandomAccessibleInterval< FloatType > > slices = new ArrayList< RandomAccessibleInterval< FloatType > >( inputs.size() );
+		for ( final Img< ? > img : inputs )
+		{
+			if ( img.numDimensions() != first.numDimensions() ) { throw new ParseException( "Images do not have the same dimensions." ); }
+			for ( int d = 0; d < first.numDimensions(); d++ )
+			{
+				if ( img.dimension( d ) != first.dimension( d ) ) { throw new ParseException( "Images do not have the same dimensions." ); }
+			}
+			if ( img.firstElement() instanceof FloatType )
+			{
+				slices.add( ( Img< FloatType > ) img );
+			}
+			else
+			{
+				slices.add( Converters.convert( ( Img ) img, new RealFloatConverter(), new FloatType() ) );
+			}
+		}
+		final RandomAccessibleInterval< RealComposite< FloatType > > pixels = Views.collapseReal( Views.stack( slices ) );
+		return Converters.convert( pixels, new KernelConverter( kernel, inputs.size() ), new FloatType() );
+	}
+
+	/**
+	 * Compute all the pixels of a view and store them in a new image.
+	 *
+	 * @param view
+	 *            The view to copy
+	 * @param numThreads
+	 *            The number of threads to use
+	 * @return A new {@link Img} of {@link FloatType}, with the dimensions of
+	 *         the view
+	 * @throws ParseException
+	 *             If the view cannot be evaluated
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static Img< FloatType > materialize( final RandomAccessibleInterval< FloatType > view, final int numThreads ) throws ParseException
+	{
+		final long[] dimensions = new long[ view.numDimensions() ];
+		view.dimensions( dimensions );
+		return ( Img< FloatType > ) materialize( view, ArrayImgs.floats( dimensions ), numThreads );
+	}
+
+	/**
+	 * Compute all the pixels of a view and store them in the given image,
+	 * converted to its type as by a {@link PixelBlockWriter}.
+	 *
+	 * @param view
+	 *            The view to copy
+	 * @param target
+	 *            The image to write in, with the dimensions of the view
+	 * @param numThreads
+	 *            The number of threads to use
+	 * @return The target image
+	 * @throws ParseException
+	 *             If the view cannot be evaluated
+	 */
+	public static Img< ? > materialize( final RandomAccessibleInterval< FloatType > view, final Img< ? > target, final int numThreads ) throws ParseException
+	{
+		return materialize( view, target, numThreads, null );
+	}
+
+	/**
+	 * Compute all the pixels of a view and store them in the given image, and
+	 * count the values written in the given statistics.
+	 *
+	 * @param view
+	 *            The view to copy
+	 * @param target
+	 *            The image to write in, with the dimensions of the view
+	 * @param numThreads
+	 *            The number of threads to use
+	 * @param statistics
+	 *            The statistics to accumulate in, or <code>null</code>
+	 * @return The target image
+	 * @throws ParseException
+	 *             If the view cannot be evaluated
+	 */
+	public static Img< ? > materialize( final RandomAccessibleInterval< FloatType > view, final Img< ? > target, final int numThreads, final PixelStatistics statistics ) throws ParseException
+	{
+		ParallelChunks.runAligned( target.size(), PixelBlockWriter.getAlignment( target ), numThreads, new ParallelChunks.Task()
+		{
+			@Override
+			@SuppressWarnings( { "unchecked", "rawtypes" } )
+			public void run( final long offset, final long length )
+			{
+				final Cursor< FloatType > cursor = Views.flatIterable( view ).cursor();
+				cursor.jumpFwd( offset );
+				final PixelStatistics chunk_statistics = null == statistics ? null : statistics.newAccumulator();
+				final PixelBlockWriter writer = PixelBlockWriter.create( ( Img ) target, offset, chunk_statistics );
+				final float[] block = new float[ PixelKernel.BLOCK_SIZE ];
+				long done = 0;
+				while ( done < length )
+				{
+					final int block_length = ( int ) Math.min( PixelKernel.BLOCK_SIZE, length - done );
+					for ( int i = 0; i < block_length; i++ )
+					{
+						block[ i ] = cursor.next().get();
+					}
+					writer.write( block, block_length );
+					done += block_length;
+				}
+				if ( null != statistics )
+				{
+					statistics.merge( chunk_statistics );
+				}
+			}
+		} );
+		return target;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * Evaluates a kernel on the values of the input images at one pixel. The
+	 * converter is shared by all the accessors of the view, so each thread
+	 * uses its own copy of the kernel and its own array of values.
+	 */
+	private static final class KernelConverter implements Converter< RealComposite< FloatType >, FloatType >
+	{
+
+		private final ThreadLocal< PixelKernel > kernels;
+
+		private final ThreadLocal< float[] > pixels;
+
+		private final int n_inputs;
+
+		public KernelConverter( final PixelKernel kernel, final int n_inputs )
+		{
+			this.n_inputs = n_inputs;
+			this.kernels = new ThreadLocal< PixelKernel >()
+			{
+				@Override
+				protected PixelKernel initialValue()
+				{
+					return kernel.copy();
+				}
+			};
+			this.pixels = new ThreadLocal< float[] >()
+			{
+				@Override
+				protected float[] initialValue()
+				{
+					return new float[ n_inputs ];
+				}
+			};
+		}
+
+		@Override
+		public void convert( final RealComposite< FloatType > input, final FloatType output )
+		{
+			final float[] pixel = pixels.get();
+			for ( int i = 0; i < n_inputs; i++ )
+			{
+				pixel[ i ] = input.get( i ).get();
+			}
+			output.set( kernels.get().evaluate( pixel ) );
+		}
+	}
+
+}
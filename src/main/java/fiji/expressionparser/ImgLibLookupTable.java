@@ -0,0 +1,225 @@
+package fiji.expressionparser;
+
+import java.util.List;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Replaces a {@link PixelKernel} by a lookup table when its result only
+ * depends on the values of one or two integer images.
+ * <p>
+ * When the single input of a kernel is an image of
+ * {@link UnsignedByteType} or {@link UnsignedShortType}, as in
+ * <code>log(A)*255/log(255)</code> or <code>A &gt; 100 &amp;&amp; A &lt; 2000</code>,
+ * the kernel can only be evaluated on 256 or 65536 different values. It is
+ * evaluated once for each of them, and the pixels are then computed by
+ * reading the table, which is much cheaper than calling transcendental
+ * functions on each pixel.
+ * <p>
+ * Likewise, a kernel of two {@link UnsignedByteType} images, such as the
+ * ratio <code>(A-B)/(A+B)</code>, can only be evaluated on 65536 pairs of
+ * values: it is tabulated in a 256&times;256 table, indexed by the value of
+ * the first input times 256 plus the value of the second one. Kernels of two
+ * images that are not both 8-bit are evaluated as usual, since their table
+ * would not fit in the caches.
+ * <p>
+ * A table is built only if the images have at least as many pixels as the
+ * table has entries.
+ * <p>
+ * The functions of a kernel are pure, so the results are exactly the ones of
+ * the kernel.
+ */
+public final class ImgLibLookupTable
+{
+
+	private ImgLibLookupTable()
+	{}
+
+	/**
+	 * Return a kernel that computes the same values as the given one by
+	 * reading a lookup table, or <code>null</code> if its inputs do not allow
+	 * it.
+	 *
+	 * @param kernel
+	 *            The kernel to tabulate
+	 * @param inputs
+	 *            The input images of the kernel
+	 * @return A new kernel, or <code>null</code>
+	 */
+	public static PixelKernel tabulate( final PixelKernel kernel, final List< Img< ? > > inputs )
+	{
+		if ( inputs.size() == 1 )
+		{
+			final int n_values = getNumberOfValues( inputs.get( 0 ) );
+			if ( n_values == 0 || inputs.get( 0 ).size() < n_values ) { return null; }
+			return new Lookup( createTable( kernel, n_values ) );
+		}
+		if ( inputs.size() == 2 )
+		{
+			if ( getNumberOfValues( inputs.get( 0 ) ) != 256 || getNumberOfValues( inputs.get( 1 ) ) != 256 ) { return null; }
+			if ( inputs.get( 0 ).size() < 256 * 256 ) { return null; }
+			return new Lookup2D( createTable2D( kernel ) );
+		}
+		return null;
+	}
+
+	/**
+	 * Return the number of values the pixels of the given image can take if
+	 * it is an image of {@link UnsignedByteType} or {@link UnsignedShortType},
+	 * and 0 otherwise.
+	 */
+	public static int getNumberOfValues( final Img< ? > img )
+	{
+		if ( img.size() == 0 ) { return 0; }
+		final Class< ? > type_class = img.firstElement().getClass();
+		if ( type_class == UnsignedByteType.class ) { return 1 << 8; }
+		if ( type_class == UnsignedShortType.class ) { return 1 << 16; }
+		return 0;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Evaluate a single-input kernel on all the integers from 0 to
+	 * <code>n_values - 1</code>.
+	 */
+	private static float[] createTable( final PixelKernel kernel, final int n_values )
+	{
+		final float[] table = new float[ n_values ];
+		final float[][] block = new float[ 1 ][ PixelKernel.BLOCK_SIZE ];
+		for ( int start = 0; start < n_values; start += PixelKernel.BLOCK_SIZE )
+		{
+			final int length = Math.min( PixelKernel.BLOCK_SIZE, n_values - start );
+			for ( int i = 0; i < length; i++ )
+			{
+				block[ 0 ][ i ] = start + i;
+			}
+			System.arraycopy( kernel.evaluate( block, length ), 0, table, start, length );
+		}
+		return table;
+	}
+
+	/**
+	 * Evaluate a kernel of two 8-bit inputs on all the pairs of integers from
+	 * 0 to 255. The value for <code>(a, b)</code> is at index
+	 * <code>a * 256 + b</code>.
+	 */
+	private static float[] createTable2D( final PixelKernel kernel )
+	{
+		final float[] table = new float[ 256 * 256 ];
+		final float[][] block = new float[ 2 ][ PixelKernel.BLOCK_SIZE ];
+		for ( int start = 0; start < table.length; start += PixelKernel.BLOCK_SIZE )
+		{
+			final int length = Math.min( PixelKernel.BLOCK_SIZE, table.length - start );
+			for ( int i = 0; i < length; i++ )
+			{
+				block[ 0 ][ i ] = ( start + i ) >> 8;
+				block[ 1 ][ i ] = ( start + i ) & 0xff;
+			}
+			System.arraycopy( kernel.evaluate( block, length ), 0, table, start, length );
+		}
+		return table;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * A kernel that returns the entry of a table at the value of its single
+	 * input, which must be an integer within the table.
+	 */
+	private static final class Lookup extends PixelKernel
+	{
+
+		private final float[] table;
+
+		private final float[] block = new float[ BLOCK_SIZE ];
+
+		private Lookup( final float[] table )
+		{
+			this.table = table;
+		}
+
+		@Override
+		public float evaluate( final float[] pixel )
+		{
+			return table[ ( int ) pixel[ 0 ] ];
+		}
+
+		@Override
+		public float[] evaluate( final float[][] inputs, final int length )
+		{
+			final float[] input = inputs[ 0 ];
+			for ( int i = 0; i < length; i++ )
+			{
+				block[ i ] = table[ ( int ) input[ i ] ];
+			}
+			return block;
+		}
+
+		@Override
+		public PixelKernel copy()
+		{
+			return new Lookup( table ); // the table is shared
+		}
+
+		@Override
+		public String toString()
+		{
+			return "lookup[" + table.length + "]";
+		}
+	}
+
+	/**
+	 * A kernel that returns the entry of a 256&times;256 table at the values
+	 * of its two inputs, which must be integers from 0 to 255.
+	 */
+	private static final class Lookup2D extends PixelKernel
+	{
+
+		private final float[] table;
+
+		private final float[] block = new float[ BLOCK_SIZE ];
+
+		private Lookup2D( final float[] table )
+		{
+			this.table = table;
+		}
+
+		@Override
+		public float evaluate( final float[] pixel )
+		{
+			return table[ ( ( int ) pixel[ 0 ] << 8 ) | ( int ) pixel[ 1 ] ];
+		}
+
+		@Override
+		public float[] evaluate( final float[][] inputs, final int length )
+		{
+			final float[] input1 = inputs[ 0 ];
+			final float[] input2 = inputs[ 1 ];
+			for ( int i = 0; i < length; i++ )
+			{
+				block[ i ] = table[ ( ( int ) input1[ i ] << 8 ) | ( int ) input2[ i ] ];
+			}
+			return block;
+		}
+
+		@Override
+		public PixelKernel copy()
+		{
+			return new Lookup2D( table ); // the table is shared
+		}
+
+		@Override
+		public String toString()
+		{
+			return "lookup[256x256]";
+		}
+	}
+
+}
@@ -0,0 +1,283 @@
+package fiji.expressionparser;
+
+import org.nfunk.jep.ASTConstant;
+import org.nfunk.jep.ASTFunNode;
+import org.nfunk.jep.ASTVarNode;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.Operator;
+import org.nfunk.jep.OperatorSet;
+import org.nfunk.jep.ParserTreeConstants;
+import org.nfunk.jep.Variable;
+import org.nfunk.jep.function.PostfixMathCommandI;
+
+import fiji.expressionparser.function.ImgLibAdd;
+import fiji.expressionparser.function.ImgLibDivide;
+import fiji.expressionparser.function.ImgLibMultiply;
+import fiji.expressionparser.function.ImgLibPower;
+import fiji.expressionparser.function.ImgLibSubtract;
+import fiji.expressionparser.function.SingleOperandPixelBasedAbstractFunction;
+import fiji.expressionparser.function.TwoOperandsPixelBasedAbstractFunction;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Simplifies a parsed expression tree before it is evaluated, so that no
+ * image pass is spent on work that can be done once. The following rewrites
+ * are applied, bottom-up:
+ * <ul>
+ * <li>Pixel-based functions and operators whose operands are all numbers or
+ * constants (such as <code>pi</code>) are folded into a single
+ * {@link FloatType} constant. <code>2*3.14159/360*A</code> becomes
+ * <code>0.01745*A</code>.
+ * <li>Division by a constant becomes multiplication by its reciprocal, and
+ * chains of multiplications by constants are merged.
+ * <li>Identity operations <code>X*1</code>, <code>1*X</code>,
+ * <code>X+0</code>, <code>0+X</code>, <code>X-0</code>, <code>X/1</code> and
+ * <code>X^1</code> are removed when <code>X</code> is a function, since it
+ * already returns a new image. On a bare variable, they are kept, so that the
+ * result is never the input image itself.
+ * <li>Small integer powers of a variable, such as <code>A^2</code> or
+ * <code>pow(A, 3)</code>, become multiplications instead of calls to
+ * {@link Math#pow(double, double)}.
+ * </ul>
+ * Folding uses the functions themselves, so a folded constant has the value
+ * the interpreter would compute. The last two rewrites can change the result
+ * in the last bits of the float representation.
+ */
+public class ImgLibOptimizer
+{
+
+	/** The largest integer exponent rewritten as multiplications. */
+	public static final int MAX_POWER_EXPANSION = 4;
+
+	/** The operator used to build new multiplication nodes. */
+	private final Operator multiply;
+
+	/**
+	 * Create an optimizer that builds new nodes with the operators of the
+	 * given set.
+	 */
+	public ImgLibOptimizer( final OperatorSet opSet )
+	{
+		this.multiply = opSet.getMultiply();
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Simplify the expression tree starting at the given node. The tree is
+	 * modified in place when possible.
+	 *
+	 * @param node
+	 *            The root of the tree to simplify
+	 * @return The root of the simplified tree, which may be a new node
+	 */
+	public Node optimize( final Node node )
+	{
+		if ( node instanceof ASTVarNode )
+		{
+			// Named constants, such as pi, are inlined
+			final Float value = getConstantValue( node );
+			return null == value ? node : createConstant( value );
+		}
+		if ( !( node instanceof ASTFunNode ) ) { return node; }
+
+		final ASTFunNode fun_node = ( ASTFunNode ) node;
+		for ( int i = 0; i < node.jjtGetNumChildren(); i++ )
+		{
+			final Node child = optimize( node.jjtGetChild( i ) );
+			node.jjtAddChild( child, i );
+			child.jjtSetParent( node );
+		}
+
+		final Node folded = fold( fun_node );
+		if ( null != folded ) { return folded; }
+
+		final PostfixMathCommandI pfmc = fun_node.getPFMC();
+		if ( node.jjtGetNumChildren() != 2 ) { return node; }
+		final Node left = node.jjtGetChild( 0 );
+		final Node right = node.jjtGetChild( 1 );
+
+		if ( pfmc instanceof ImgLibMultiply )
+		{
+			if ( isConstant( left, 1f ) && isRemovable( right ) ) { return right; }
+			if ( isConstant( right, 1f ) && isRemovable( left ) ) { return left; }
+			return mergeMultiplications( fun_node );
+		}
+		else if ( pfmc instanceof ImgLibAdd )
+		{
+			if ( isConstant( left, 0f ) && isRemovable( right ) ) { return right; }
+			if ( isConstant( right, 0f ) && isRemovable( left ) ) { return left; }
+		}
+		else if ( pfmc instanceof ImgLibSubtract )
+		{
+			if ( isConstant( right, 0f ) && isRemovable( left ) ) { return left; }
+		}
+		else if ( pfmc instanceof ImgLibDivide )
+		{
+			if ( isConstant( right, 1f ) && isRemovable( left ) ) { return left; }
+			final Float divisor = getConstantValue( right );
+			if ( null != divisor && divisor != 0f && !Float.isInfinite( 1f / divisor ) )
+			{
+				return mergeMultiplications( createMultiply( left, createConstant( 1f / divisor ) ) );
+			}
+		}
+		else if ( pfmc instanceof ImgLibPower )
+		{
+			if ( isConstant( right, 1f ) && isRemovable( left ) ) { return left; }
+			final Float exponent = getConstantValue( right );
+			if ( null != exponent && left instanceof ASTVarNode
+					&& exponent >= 2 && exponent <= MAX_POWER_EXPANSION && exponent == Math.rint( exponent ) )
+			{
+				return expandPower( left, exponent.intValue() );
+			}
+		}
+		return node;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Evaluate a pixel-based function whose operands are all constants.
+	 * Return <code>null</code> if this is not possible.
+	 */
+	private Node fold( final ASTFunNode node )
+	{
+		final PostfixMathCommandI pfmc = node.getPFMC();
+		if ( pfmc instanceof SingleOperandPixelBasedAbstractFunction && node.jjtGetNumChildren() == 1 )
+		{
+			final Float alpha = getConstantValue( node.jjtGetChild( 0 ) );
+			if ( null == alpha ) { return null; }
+			return createConstant( ( ( SingleOperandPixelBasedAbstractFunction< ? > ) pfmc ).evaluate( alpha ) );
+		}
+		else if ( pfmc instanceof TwoOperandsPixelBasedAbstractFunction && node.jjtGetNumChildren() == 2 )
+		{
+			final Float t1 = getConstantValue( node.jjtGetChild( 0 ) );
+			final Float t2 = getConstantValue( node.jjtGetChild( 1 ) );
+			if ( null == t1 || null == t2 ) { return null; }
+			return createConstant( ( ( TwoOperandsPixelBasedAbstractFunction< ? > ) pfmc ).evaluate( t1, t2 ) );
+		}
+		return null;
+	}
+
+	/**
+	 * Rewrite <code>(X*a)*b</code>, <code>(a*X)*b</code> and their mirrors as
+	 * <code>X*(a*b)</code>, with <code>a</code> and <code>b</code> constants.
+	 */
+	private Node mergeMultiplications( final ASTFunNode node )
+	{
+		final Node left = node.jjtGetChild( 0 );
+		final Node right = node.jjtGetChild( 1 );
+		final Float c;
+		final Node other;
+		if ( null != getConstantValue( left ) )
+		{
+			c = getConstantValue( left );
+			other = right;
+		}
+		else if ( null != getConstantValue( right ) )
+		{
+			c = getConstantValue( right );
+			other = left;
+		}
+		else
+		{
+			return node;
+		}
+
+		if ( !( other instanceof ASTFunNode ) || !( ( ( ASTFunNode ) other ).getPFMC() instanceof ImgLibMultiply ) ) { return node; }
+		final Node a = other.jjtGetChild( 0 );
+		final Node b = other.jjtGetChild( 1 );
+		final Float ca = getConstantValue( a );
+		final Float cb = getConstantValue( b );
+		if ( null != ca ) { return createMultiply( b, createConstant( ca * c ) ); }
+		if ( null != cb ) { return createMultiply( a, createConstant( cb * c ) ); }
+		return node;
+	}
+
+	/**
+	 * Build <code>X*X*...*X</code>, with the given number of factors.
+	 */
+	private Node expandPower( final Node base, final int exponent )
+	{
+		Node product = base;
+		for ( int i = 1; i < exponent; i++ )
+		{
+			product = createMultiply( product, copyVariable( ( ASTVarNode ) base ) );
+		}
+		return product;
+	}
+
+	private ASTFunNode createMultiply( final Node left, final Node right )
+	{
+		final ASTFunNode node = new ASTFunNode( ParserTreeConstants.JJTFUNNODE );
+		node.setOperator( multiply );
+		node.jjtAddChild( left, 0 );
+		node.jjtAddChild( right, 1 );
+		left.jjtSetParent( node );
+		right.jjtSetParent( node );
+		return node;
+	}
+
+	/**
+	 * Returns <code>true</code> if an identity operation applied on this
+	 * operand can be removed, that is, if the operand is not a bare variable.
+	 * Otherwise the result of the expression would be the input image itself.
+	 */
+	private static final boolean isRemovable( final Node operand )
+	{
+		return operand instanceof ASTFunNode;
+	}
+
+	private static final ASTVarNode copyVariable( final ASTVarNode node )
+	{
+		final ASTVarNode copy = new ASTVarNode( ParserTreeConstants.JJTVARNODE );
+		copy.setVar( node.getVar() );
+		return copy;
+	}
+
+	private static final ASTConstant createConstant( final float value )
+	{
+		final ASTConstant node = new ASTConstant( ParserTreeConstants.JJTCONSTANT );
+		node.setValue( new FloatType( value ) );
+		return node;
+	}
+
+	private static final boolean isConstant( final Node node, final float value )
+	{
+		final Float constant = getConstantValue( node );
+		return null != constant && constant == value;
+	}
+
+	/**
+	 * Return the value of the given node if it is a number or a named
+	 * constant, <code>null</code> otherwise.
+	 */
+	private static final Float getConstantValue( final Node node )
+	{
+		final Object value;
+		if ( node instanceof ASTConstant )
+		{
+			value = ( ( ASTConstant ) node ).getValue();
+		}
+		else if ( node instanceof ASTVarNode )
+		{
+			final Variable var = ( ( ASTVarNode ) node ).getVar();
+			if ( null == var || !var.isConstant() ) { return null; }
+			value = var.getValue();
+		}
+		else
+		{
+			return null;
+		}
+
+		if ( value instanceof RealType< ? > ) { return ( ( RealType< ? > ) value ).getRealFloat(); }
+		if ( value instanceof Number ) { return ( ( Number ) value ).floatValue(); }
+		return null;
+	}
+
+}
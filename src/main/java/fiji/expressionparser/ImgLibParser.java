@@ -1,45 +1,60 @@
 package fiji.expressionparser;
 
-import fiji.expressionparser.function.ImgLibAbs;
-import fiji.expressionparser.function.ImgLibArcCosine;
-import fiji.expressionparser.function.ImgLibArcSine;
-import fiji.expressionparser.function.ImgLibArcTangent;
-import fiji.expressionparser.function.ImgLibArcTangent2;
-import fiji.expressionparser.function.ImgLibCeil;
-import fiji.expressionparser.function.ImgLibCosine;
-import fiji.expressionparser.function.ImgLibDithering;
-import fiji.expressionparser.function.ImgLibExp;
-import fiji.expressionparser.function.ImgLibFloor;
-import fiji.expressionparser.function.ImgLibFunction;
-import fiji.expressionparser.function.ImgLibGaussConv;
-import fiji.expressionparser.function.ImgLibLog;
-import fiji.expressionparser.function.ImgLibModulus;
-import fiji.expressionparser.function.ImgLibNormalize;
-import fiji.expressionparser.function.ImgLibPower;
-import fiji.expressionparser.function.ImgLibRound;
-import fiji.expressionparser.function.ImgLibSine;
-import fiji.expressionparser.function.ImgLibSquareRoot;
-import fiji.expressionparser.function.ImgLibTangent;
-
-import java.util.ArrayList;
-
+import fiji.expressionparser.function.ImgFactoryConfigurable;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
 
+import org.nfunk.jep.ASTConstant;
+import org.nfunk.jep.ASTFunNode;
+import org.nfunk.jep.ASTVarNode;
+import org.nfunk.jep.EvaluatorVisitor;
 import org.nfunk.jep.JEP;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.Operator;
+import org.nfunk.jep.ParseException;
+import org.nfunk.jep.ParserTreeConstants;
+import org.nfunk.jep.Variable;
 import org.nfunk.jep.type.NumberFactory;
 
-public class ImgLibParser< T extends RealType< T > > extends JEP
+/**
+ * A JEP parser whose functions and operators work on ImgLib images.
+ * <p>
+ * The function and operator objects are shared by all the parsers, see
+ * {@link ImgLibFunctionRegistry}, so a parser is cheap to create. A parser can
+ * evaluate parsed trees from several threads at once, as long as the values
+ * of its variables are not changed meanwhile; threads evaluating over
+ * different images should use one parser each.
+ */
+public class ImgLibParser< T extends RealType< T > > extends JEP implements MultiThreaded
 {
 
+	/** The strategy used by {@link #evaluate(Node)}. */
+	protected EvaluationMode evaluationMode = EvaluationMode.INTERPRETED;
+
+	/** The number of threads used to evaluate expressions on images. */
+	protected int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/** The factory used to create result images, <code>null</code> for ArrayImgs. */
+	protected ImgFactory< FloatType > imgFactory = null;
+
+	/** The type of the images returned by {@link #evaluate(Node)}. */
+	protected OutputType outputType = OutputType.FLOAT;
+
+	/** The precision of the transcendental functions. */
+	protected Precision precision = Precision.STRICT;
+
 	/**
-	 * Creates a default ImgLib expression parser, with ImgLib operator set
+	 * Creates a default ImgLib expression parser, with the shared
 	 * {@link ImgLibOperatorSet} and {@link ImgLibNumberFactory} as number
 	 * factory.
 	 */
 	public ImgLibParser()
 	{
 		super();
-		opSet = new ImgLibOperatorSet< T >();
+		opSet = ImgLibFunctionRegistry.getDefault().getOperatorSet();
 		numberFactory = new ImgLibNumberFactory();
 	}
 
@@ -54,7 +69,7 @@ public class ImgLibParser< T extends RealType< T > > extends JEP
 	public ImgLibParser( JEP j )
 	{
 		super( j );
-		opSet = new ImgLibOperatorSet< T >();
+		opSet = ImgLibFunctionRegistry.getDefault().getOperatorSet();
 		numberFactory = new ImgLibNumberFactory();
 	}
 
@@ -62,74 +77,340 @@ public class ImgLibParser< T extends RealType< T > > extends JEP
 			boolean implicitMulIn, NumberFactory numberFactoryIn )
 	{
 		super( traverseIn, allowUndeclaredIn, implicitMulIn, numberFactoryIn );
-		opSet = new ImgLibOperatorSet< T >();
+		opSet = ImgLibFunctionRegistry.getDefault().getOperatorSet();
 	}
 
+	/**
+	 * Add the standard pixel-based functions to the parser. The function
+	 * objects are shared with all the other parsers, see
+	 * {@link ImgLibFunctionRegistry}.
+	 */
 	@Override
 	public void addStandardFunctions()
 	{
+		funTab.putAll( ImgLibFunctionRegistry.getDefault().getStandardFunctions() );
+	}
+
+	/**
+	 * Add ImgLib algorithms to the parser, such as gaussian convolution.
+	 */
+	public void addImgLibAlgorithms()
+	{
+		funTab.putAll( ImgLibFunctionRegistry.getDefault().getAlgorithms() );
+	}
+
+	/**
+	 * Evaluate the expression tree starting at the given node, using the
+	 * current {@link EvaluationMode}. Image results are of the current
+	 * {@link OutputType}.
+	 */
+	@Override
+	public Object evaluate( final Node node ) throws ParseException
+	{
+		return evaluate( node, null );
+	}
+
+	/**
+	 * Evaluate the expression tree starting at the given node, using the
+	 * current {@link EvaluationMode}, and write its result in the given image.
+	 * Values are converted to the type of the target.
+	 *
+	 * @param node
+	 *            The root of the tree to evaluate
+	 * @param target
+	 *            The image to write the result in, with the dimensions of the
+	 *            result, or <code>null</code> to create a new image of the
+	 *            current {@link OutputType}
+	 * @return The result, which is the target if it is not <code>null</code>,
+	 *         unless the expression does not depend on any image
+	 * @see ImgLibFusedEvaluator#evaluate(Node, Img)
+	 */
+	public Object evaluate( final Node node, final Img< ? > target ) throws ParseException
+	{
+		return evaluate( node, target, null );
+	}
+
+	/**
+	 * Evaluate the expression tree starting at the given node like
+	 * {@link #evaluate(Node, Img)}, and count the values of its result in the
+	 * given statistics. In the fused modes, they are counted while the result
+	 * is written when its root is pixel-wise or when it is converted; other
+	 * results are read once more.
+	 *
+	 * @param node
+	 *            The root of the tree to evaluate
+	 * @param target
+	 *            The image to write the result in, or <code>null</code>
+	 * @param statistics
+	 *            The statistics to accumulate in, or <code>null</code>
+	 * @return The result
+	 * @see ImgLibFusedEvaluator#setStatistics(PixelStatistics)
+	 */
+	public Object evaluate( final Node node, final Img< ? > target, final PixelStatistics statistics ) throws ParseException
+	{
+		propagateSettings();
+		final ImgLibEvaluationContext previous = ImgLibEvaluationContext.set( new ImgLibEvaluationContext( numThreads, imgFactory, precision ) );
+		try
+		{
+			switch ( evaluationMode )
+			{
+			case FUSED:
+			case COMPILED:
+				return createFusedEvaluator( statistics ).evaluate( node, target );
+			default:
+				// Not the shared visitor of JEP, so that threads can evaluate at once
+				final Object result = new EvaluatorVisitor().getValue( node, symTab );
+				if ( !( result instanceof Img< ? > ) ) { return result; }
+				final OutputType type = outputType.resolve( node );
+				if ( result == target || null == target && OutputType.FLOAT == type )
+				{
+					if ( null != statistics )
+					{
+						statistics.accumulate( ( Img< ? > ) result, numThreads );
+					}
+					return result;
+				}
+				if ( null != target ) { return createFusedEvaluator( statistics ).convert( ( Img< ? > ) result, target ); }
+				return createFusedEvaluator( statistics ).convert( ( Img< ? > ) result, type );
+			}
+		}
+		finally
+		{
+			ImgLibEvaluationContext.set( previous );
+		}
+	}
+
+	/**
+	 * Evaluate the expression tree starting at the given node lazily: when the
+	 * expression is pixel-wise at its root, the result is a view whose pixels
+	 * are computed on access. The {@link EvaluationMode#INTERPRETED} mode has
+	 * no lazy counterpart, and is treated as {@link EvaluationMode#FUSED}.
+	 *
+	 * @see ImgLibFusedEvaluator#evaluateView(Node)
+	 */
+	public Object evaluateView( final Node node ) throws ParseException
+	{
+		propagateSettings();
+		final ImgLibFusedEvaluator evaluator = createFusedEvaluator();
+		evaluator.setOutputType( OutputType.FLOAT );
+		// The evaluator makes its own context current
+		return evaluator.evaluateView( node );
+	}
+
+	/**
+	 * Simplify a parsed expression tree before its evaluation: fold constant
+	 * sub-expressions, remove identity operations and rewrite some costly
+	 * operations into cheaper ones.
+	 *
+	 * @param node
+	 *            The root of the tree, as returned by {@link #parse(String)}
+	 * @return The root of the simplified tree
+	 * @see ImgLibOptimizer
+	 */
+	public Node optimize( final Node node )
+	{
+		return new ImgLibOptimizer( opSet ).optimize( node );
+	}
 
-		ImgLibSine< T > sine = new ImgLibSine< T >();
-		ImgLibCosine< T > cosine = new ImgLibCosine< T >();
-		ImgLibTangent< T > tangent = new ImgLibTangent< T >();
-		ImgLibArcSine< T > arcsine = new ImgLibArcSine< T >();
-		ImgLibArcCosine< T > arccosine = new ImgLibArcCosine< T >();
-		ImgLibArcTangent< T > arctangent = new ImgLibArcTangent< T >();
-		ImgLibArcTangent2< T > arctangent2 = new ImgLibArcTangent2< T >();
-		ImgLibLog< T > log = new ImgLibLog< T >();
-		ImgLibExp< T > exp = new ImgLibExp< T >();
-		ImgLibPower< T > power = new ImgLibPower< T >();
-		ImgLibSquareRoot< T > sqrt = new ImgLibSquareRoot< T >();
-		ImgLibAbs< T > abs = new ImgLibAbs< T >();
-		ImgLibModulus< T > modulus = new ImgLibModulus< T >();
-		ImgLibCeil< T > ceil = new ImgLibCeil< T >();
-		ImgLibFloor< T > floor = new ImgLibFloor< T >();
-		ImgLibRound< T > round = new ImgLibRound< T >();
-
-		ArrayList< ImgLibFunction< T > > il_funs = new ArrayList< ImgLibFunction< T > >();
-		il_funs.add( sine );
-		il_funs.add( cosine );
-		il_funs.add( tangent );
-		il_funs.add( arcsine );
-		il_funs.add( arccosine );
-		il_funs.add( arctangent );
-		il_funs.add( arctangent2 );
-		il_funs.add( log );
-		il_funs.add( exp );
-		il_funs.add( power );
-		il_funs.add( sqrt );
-		il_funs.add( abs );
-		il_funs.add( modulus );
-		il_funs.add( ceil );
-		il_funs.add( floor );
-		il_funs.add( round );
-
-		for ( ImgLibFunction< T > il_fun : il_funs )
+	/**
+	 * Return a copy of a tree parsed by another parser with the same
+	 * functions, whose variables are the ones of this parser. The function
+	 * and operator objects are shared with the given tree, which is not
+	 * modified. This is much cheaper than parsing the expression again, and
+	 * lets several parsers, each with its own settings and variable values,
+	 * evaluate the same parsed expression at once.
+	 *
+	 * @param node
+	 *            The root of the tree
+	 * @return The root of the copy
+	 * @throws ParseException
+	 *             If a variable of the tree is not a variable of this parser
+	 */
+	public Node bind( final Node node ) throws ParseException
+	{
+		final Node copy;
+		if ( node instanceof ASTVarNode )
+		{
+			final String name = ( ( ASTVarNode ) node ).getVar().getName();
+			final Variable var = symTab.getVar( name );
+			if ( null == var ) { throw new ParseException( "Unrecognized symbol \"" + name + "\"" ); }
+			final ASTVarNode var_node = new ASTVarNode( ParserTreeConstants.JJTVARNODE );
+			var_node.setVar( var );
+			copy = var_node;
+		}
+		else if ( node instanceof ASTFunNode )
+		{
+			final ASTFunNode fun_node = ( ASTFunNode ) node;
+			final ASTFunNode fun_copy = new ASTFunNode( ParserTreeConstants.JJTFUNNODE );
+			if ( fun_node.isOperator() )
+			{
+				fun_copy.setOperator( fun_node.getOperator() );
+			}
+			else
+			{
+				fun_copy.setFunction( fun_node.getName(), fun_node.getPFMC() );
+			}
+			copy = fun_copy;
+		}
+		else if ( node instanceof ASTConstant )
 		{
-			funTab.put( il_fun.getFunctionString(), il_fun );
+			final ASTConstant constant = new ASTConstant( ParserTreeConstants.JJTCONSTANT );
+			constant.setValue( ( ( ASTConstant ) node ).getValue() );
+			copy = constant;
+		}
+		else
+		{
+			throw new ParseException( "Cannot bind node " + node.getClass().getSimpleName() );
 		}
 
+		for ( int i = 0; i < node.jjtGetNumChildren(); i++ )
+		{
+			final Node child = bind( node.jjtGetChild( i ) );
+			copy.jjtAddChild( child, i );
+			child.jjtSetParent( copy );
+		}
+		return copy;
 	}
 
 	/**
-	 * Add ImgLib algorithms to the parser, such as gaussian convolution.
+	 * Set the strategy used to evaluate expressions. Default is
+	 * {@link EvaluationMode#INTERPRETED}.
 	 */
-	public void addImgLibAlgorithms()
+	public void setEvaluationMode( final EvaluationMode evaluationMode )
+	{
+		this.evaluationMode = evaluationMode;
+	}
+
+	public EvaluationMode getEvaluationMode()
+	{
+		return evaluationMode;
+	}
+
+	/**
+	 * Set the number of threads used to evaluate expressions on images.
+	 * Default is the number of available processors.
+	 */
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * Set the factory used to create result images. Default is
+	 * <code>null</code>, for {@link net.imglib2.img.array.ArrayImg}s. With a
+	 * {@link net.imglib2.img.cell.CellImgFactory}, or a factory of disk-cached
+	 * cell images, pixel-wise operations and gaussian convolutions are
+	 * computed cell by cell, and results can be larger than the heap. Only
+	 * the {@link EvaluationMode#FUSED} and {@link EvaluationMode#COMPILED}
+	 * modes use it for pixel-wise operations.
+	 */
+	public void setImgFactory( final ImgFactory< FloatType > imgFactory )
+	{
+		this.imgFactory = imgFactory;
+	}
+
+	public ImgFactory< FloatType > getImgFactory()
+	{
+		return imgFactory;
+	}
+
+	/**
+	 * Set the type of the images returned by {@link #evaluate(Node)}. Default
+	 * is {@link OutputType#FLOAT}. With {@link OutputType#AUTO}, masks made by
+	 * comparisons and logical operators are returned as bit images. In the
+	 * {@link EvaluationMode#FUSED} and {@link EvaluationMode#COMPILED} modes,
+	 * a pixel-wise expression writes its values directly in an image of this
+	 * type; in the {@link EvaluationMode#INTERPRETED} mode, the float result
+	 * is converted afterwards. Lazy evaluations always return float views.
+	 */
+	public void setOutputType( final OutputType outputType )
+	{
+		this.outputType = outputType;
+	}
+
+	public OutputType getOutputType()
+	{
+		return outputType;
+	}
+
+	/**
+	 * Set the precision of <code>exp</code>, <code>log</code>, the
+	 * trigonometric and arc functions, and the power operator. Default is
+	 * {@link Precision#STRICT}. With {@link Precision#FAST}, they are computed
+	 * with float approximations, in all the evaluation modes.
+	 */
+	public void setPrecision( final Precision precision )
+	{
+		this.precision = precision;
+	}
+
+	public Precision getPrecision()
+	{
+		return precision;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private ImgLibFusedEvaluator createFusedEvaluator()
 	{
-		ImgLibGaussConv< T > gauss = new ImgLibGaussConv< T >();
-		ImgLibNormalize< T > normalizer = new ImgLibNormalize< T >();
-//		ImgLibBandPassFilter<T> bandpass = new ImgLibBandPassFilter<T>(); // dont know what to do with it right now
-		ImgLibDithering< T > dither = new ImgLibDithering< T >();
+		return createFusedEvaluator( null );
+	}
 
-		ArrayList< ImgLibFunction< T > > il_algos = new ArrayList< ImgLibFunction< T > >();
-		il_algos.add( gauss );
-		il_algos.add( normalizer );
-//		il_algos.add(bandpass);
-		il_algos.add( dither );
+	private ImgLibFusedEvaluator createFusedEvaluator( final PixelStatistics statistics )
+	{
+		final ImgLibFusedEvaluator evaluator = new ImgLibFusedEvaluator( symTab, evaluationMode == EvaluationMode.COMPILED );
+		evaluator.setNumThreads( numThreads );
+		evaluator.setImgFactory( imgFactory );
+		evaluator.setOutputType( outputType );
+		evaluator.setStatistics( statistics );
+		evaluator.setPrecision( precision );
+		return evaluator;
+	}
 
-		for ( ImgLibFunction< T > il_algo : il_algos )
+	/**
+	 * Pass the number of threads and the image factory to the functions and
+	 * operators added to this parser that store them. The shared functions of
+	 * the {@link ImgLibFunctionRegistry} read them from the
+	 * {@link ImgLibEvaluationContext} instead. This is done before each
+	 * evaluation, so that functions added after the call to
+	 * {@link #setNumThreads(int)} are configured as well.
+	 */
+	private void propagateSettings()
+	{
+		for ( final Object fun : funTab.values() )
+		{
+			configure( fun );
+		}
+		for ( final Operator op : opSet.getOperators() )
+		{
+			configure( op.getPFMC() );
+		}
+	}
+
+	private void configure( final Object fun )
+	{
+		if ( fun instanceof MultiThreaded )
+		{
+			( ( MultiThreaded ) fun ).setNumThreads( numThreads );
+		}
+		if ( fun instanceof ImgFactoryConfigurable )
 		{
-			funTab.put( il_algo.getFunctionString(), il_algo );
+			( ( ImgFactoryConfigurable ) fun ).setImgFactory( imgFactory );
 		}
 	}
 
@@ -0,0 +1,127 @@
+package fiji.expressionparser;
+
+import org.nfunk.jep.ASTFunNode;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.ParseException;
+
+import fiji.expressionparser.function.ImgLibComparison;
+import fiji.expressionparser.function.ImgLibLogical;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * The pixel types an {@link ImgLibParser} can store the result of an
+ * expression in. Functions compute in <code>float</code>, and the final
+ * result is converted to the chosen type when it is written: values are
+ * rounded and clamped to the range of integer types, and any value other than
+ * 0 is <code>true</code> for {@link #BIT}.
+ * <p>
+ * A mask such as <code>A &gt; 128 &amp;&amp; B &lt; 50</code> only holds 0 and
+ * 1, and takes 32 times less memory as a {@link #BIT} image than as a
+ * {@link #FLOAT} one.
+ */
+public enum OutputType
+{
+
+	/**
+	 * The type is inferred from the expression: {@link #BIT} when its root is
+	 * a comparison or a logical operator, {@link #FLOAT} otherwise.
+	 */
+	AUTO,
+
+	/** {@link BitType}, 1 bit per pixel. */
+	BIT,
+
+	/** {@link UnsignedByteType}, 8 bits per pixel, from 0 to 255. */
+	UNSIGNED_BYTE,
+
+	/**
+	 * {@link UnsignedShortType}, 16 bits per pixel, from 0 to 65535. Exact for
+	 * integer arithmetic on 8 and 16-bit images, as long as the results stay
+	 * in this range.
+	 */
+	UNSIGNED_SHORT,
+
+	/** {@link FloatType}, 32 bits per pixel, as computed by the functions. */
+	FLOAT;
+
+	/**
+	 * Return the type to use for the result of the given expression: this
+	 * type, or the inferred one if this is {@link #AUTO}.
+	 */
+	public OutputType resolve( final Node root )
+	{
+		if ( this != AUTO ) { return this; }
+		return isBoolean( root ) ? BIT : FLOAT;
+	}
+
+	/**
+	 * Create an image of this type. {@link #AUTO} is treated as
+	 * {@link #FLOAT}.
+	 *
+	 * @param dimensions
+	 *            The dimensions of the image
+	 * @param factory
+	 *            The factory whose kind of container is used, or
+	 *            <code>null</code> for an ArrayImg
+	 * @return A new image
+	 * @throws ParseException
+	 *             If the factory cannot create images of this type
+	 */
+	public Img< ? > createImg( final long[] dimensions, final ImgFactory< FloatType > factory ) throws ParseException
+	{
+		if ( null == factory )
+		{
+			switch ( this )
+			{
+			case BIT:
+				return ArrayImgs.bits( dimensions );
+			case UNSIGNED_BYTE:
+				return ArrayImgs.unsignedBytes( dimensions );
+			case UNSIGNED_SHORT:
+				return ArrayImgs.unsignedShorts( dimensions );
+			default:
+				return ArrayImgs.floats( dimensions );
+			}
+		}
+
+		try
+		{
+			switch ( this )
+			{
+			case BIT:
+				return factory.imgFactory( new BitType() ).create( dimensions );
+			case UNSIGNED_BYTE:
+				return factory.imgFactory( new UnsignedByteType() ).create( dimensions );
+			case UNSIGNED_SHORT:
+				return factory.imgFactory( new UnsignedShortType() ).create( dimensions );
+			default:
+				return factory.create( dimensions );
+			}
+		}
+		catch ( final IncompatibleTypeException e )
+		{
+			throw new ParseException( "Cannot create images of type " + this + ": " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the given expression only evaluates to 0
+	 * or 1, that is, if its root is a comparison or a logical operator.
+	 */
+	public static boolean isBoolean( final Node root )
+	{
+		if ( !( root instanceof ASTFunNode ) ) { return false; }
+		final Object pfmc = ( ( ASTFunNode ) root ).getPFMC();
+		if ( null == pfmc ) { return false; }
+		final Class< ? > enclosing = pfmc.getClass().getEnclosingClass();
+		return enclosing == ImgLibComparison.class || enclosing == ImgLibLogical.class;
+	}
+
+}
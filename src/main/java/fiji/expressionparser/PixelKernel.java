@@ -0,0 +1,270 @@
+package fiji.expressionparser;
+
+import java.util.Arrays;
+
+import fiji.expressionparser.function.SingleOperandPixelBasedAbstractFunction;
+import fiji.expressionparser.function.TwoOperandsPixelBasedAbstractFunction;
+
+/**
+ * A pixel-wise sub-expression, compiled from the parsed expression tree, that
+ * can be evaluated over all the pixels of its input images in a single pass,
+ * without allocating intermediate images.
+ * <p>
+ * Kernels are evaluated block by block: the values of each input image for
+ * {@link #BLOCK_SIZE} consecutive pixels are handed to the kernel as float
+ * arrays, and every node of the kernel computes its result in a block buffer
+ * it owns. The buffers are small enough to stay in cache, and the dispatch to
+ * the functions is made once per block instead of once per pixel.
+ * <p>
+ * Because of these buffers, a kernel instance must not be used by several
+ * threads at once. Use {@link #copy()} to get an independent instance.
+ */
+public abstract class PixelKernel
+{
+
+	/** The number of pixels processed in one block. */
+	public static final int BLOCK_SIZE = 4096;
+
+	/**
+	 * Evaluate this kernel on a single pixel.
+	 *
+	 * @param pixel
+	 *            The values of the input images at this pixel, one per input
+	 * @return The value of the expression at this pixel
+	 */
+	public abstract float evaluate( final float[] pixel );
+
+	/**
+	 * Evaluate this kernel on a block of pixels.
+	 *
+	 * @param inputs
+	 *            The values of the input images for the block, one array per
+	 *            input
+	 * @param length
+	 *            The number of pixels in the block, at most
+	 *            {@link #BLOCK_SIZE}
+	 * @return An array whose first <code>length</code> elements contain the
+	 *         results. It is only valid until the next call to this method,
+	 *         and must not be modified.
+	 */
+	public abstract float[] evaluate( final float[][] inputs, final int length );
+
+	/**
+	 * Return a new kernel, computing the same expression as this one, but that
+	 * does not share any buffer with it.
+	 */
+	public abstract PixelKernel copy();
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * Leaf of the kernel that returns the value of one of the input images.
+	 */
+	public static final class Input extends PixelKernel
+	{
+
+		private final int index;
+
+		public Input( final int index )
+		{
+			this.index = index;
+		}
+
+		public int getIndex()
+		{
+			return index;
+		}
+
+		@Override
+		public float evaluate( final float[] pixel )
+		{
+			return pixel[ index ];
+		}
+
+		@Override
+		public float[] evaluate( final float[][] inputs, final int length )
+		{
+			return inputs[ index ];
+		}
+
+		@Override
+		public PixelKernel copy()
+		{
+			return this; // stateless
+		}
+
+		@Override
+		public String toString()
+		{
+			return "#" + index;
+		}
+	}
+
+	/**
+	 * Leaf of the kernel that returns a constant value.
+	 */
+	public static final class Constant extends PixelKernel
+	{
+
+		private final float value;
+
+		private final float[] block;
+
+		public Constant( final float value )
+		{
+			this.value = value;
+			this.block = new float[ BLOCK_SIZE ];
+			Arrays.fill( block, value );
+		}
+
+		public float getValue()
+		{
+			return value;
+		}
+
+		@Override
+		public float evaluate( final float[] pixel )
+		{
+			return value;
+		}
+
+		@Override
+		public float[] evaluate( final float[][] inputs, final int length )
+		{
+			return block;
+		}
+
+		@Override
+		public PixelKernel copy()
+		{
+			return this; // the block is never written after construction
+		}
+
+		@Override
+		public String toString()
+		{
+			return Float.toString( value );
+		}
+	}
+
+	/**
+	 * Kernel node applying a single operand pixel-based function.
+	 */
+	public static final class Unary extends PixelKernel
+	{
+
+		private final SingleOperandPixelBasedAbstractFunction< ? > function;
+
+		private final PixelKernel operand;
+
+		private final float[] block = new float[ BLOCK_SIZE ];
+
+		public Unary( final SingleOperandPixelBasedAbstractFunction< ? > function, final PixelKernel operand )
+		{
+			this.function = function;
+			this.operand = operand;
+		}
+
+		public SingleOperandPixelBasedAbstractFunction< ? > getFunction()
+		{
+			return function;
+		}
+
+		public PixelKernel getOperand()
+		{
+			return operand;
+		}
+
+		@Override
+		public float evaluate( final float[] pixel )
+		{
+			return function.evaluate( operand.evaluate( pixel ) );
+		}
+
+		@Override
+		public float[] evaluate( final float[][] inputs, final int length )
+		{
+			function.evaluate( operand.evaluate( inputs, length ), block, length );
+			return block;
+		}
+
+		@Override
+		public PixelKernel copy()
+		{
+			return new Unary( function, operand.copy() );
+		}
+
+		@Override
+		public String toString()
+		{
+			return function.getFunctionString() + "(" + operand + ")";
+		}
+	}
+
+	/**
+	 * Kernel node applying a two operands pixel-based function.
+	 */
+	public static final class Binary extends PixelKernel
+	{
+
+		private final TwoOperandsPixelBasedAbstractFunction< ? > function;
+
+		private final PixelKernel operand1;
+
+		private final PixelKernel operand2;
+
+		private final float[] block = new float[ BLOCK_SIZE ];
+
+		public Binary( final TwoOperandsPixelBasedAbstractFunction< ? > function, final PixelKernel operand1, final PixelKernel operand2 )
+		{
+			this.function = function;
+			this.operand1 = operand1;
+			this.operand2 = operand2;
+		}
+
+		public TwoOperandsPixelBasedAbstractFunction< ? > getFunction()
+		{
+			return function;
+		}
+
+		public PixelKernel getOperand1()
+		{
+			return operand1;
+		}
+
+		public PixelKernel getOperand2()
+		{
+			return operand2;
+		}
+
+		@Override
+		public float evaluate( final float[] pixel )
+		{
+			return function.evaluate( operand1.evaluate( pixel ), operand2.evaluate( pixel ) );
+		}
+
+		@Override
+		public float[] evaluate( final float[][] inputs, final int length )
+		{
+			final float[] block1 = operand1.evaluate( inputs, length );
+			final float[] block2 = operand2.evaluate( inputs, length );
+			function.evaluate( block1, block2, block, length );
+			return block;
+		}
+
+		@Override
+		public PixelKernel copy()
+		{
+			return new Binary( function, operand1.copy(), operand2.copy() );
+		}
+
+		@Override
+		public String toString()
+		{
+			return function.getFunctionString() + "(" + operand1 + ", " + operand2 + ")";
+		}
+	}
+
+}
@@ -0,0 +1,241 @@
+package fiji.expressionparser;
+
+import org.nfunk.jep.ParseException;
+
+import fiji.expressionparser.function.ParallelChunks;
+import fiji.expressionparser.function.PixelBlockReader;
+import fiji.expressionparser.function.PixelBlockWriter;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * The minimum, maximum and sum of the pixel values of an image, and
+ * optionally their histogram, accumulated while the image is written.
+ * <p>
+ * The evaluators fill these statistics as the kernel at the root of an
+ * expression writes its result: every chunk of pixels accumulates its own
+ * statistics, which are merged into this object when the chunk is done. The
+ * values counted are the ones stored in the image, after their conversion to
+ * its type, see {@link PixelBlockWriter}. NaN values are not counted.
+ * <p>
+ * The histogram has a fixed range, given at creation, since the extrema of the
+ * values are not known before they are written. Values outside of this range
+ * are not counted in it.
+ */
+public class PixelStatistics
+{
+
+	private double min = Double.POSITIVE_INFINITY;
+
+	private double max = Double.NEGATIVE_INFINITY;
+
+	private double sum = 0;
+
+	/** The number of pixels counted, NaN excluded. */
+	private long count = 0;
+
+	/** The histogram, <code>null</code> if it is not computed. */
+	private final long[] histogram;
+
+	private final double histogramMin;
+
+	private final double histogramMax;
+
+	/**
+	 * Create empty statistics, without histogram.
+	 */
+	public PixelStatistics()
+	{
+		this( 0, 0, 0 );
+	}
+
+	/**
+	 * Create empty statistics, with a histogram.
+	 *
+	 * @param nBins
+	 *            The number of bins of the histogram, 0 for no histogram
+	 * @param histogramMin
+	 *            The lower bound of the first bin
+	 * @param histogramMax
+	 *            The upper bound of the last bin, included in it
+	 */
+	public PixelStatistics( final int nBins, final double histogramMin, final double histogramMax )
+	{
+		if ( nBins < 0 ) { throw new IllegalArgumentException( "The number of bins must not be negative: " + nBins ); }
+		if ( nBins > 0 && !( histogramMax > histogramMin ) ) { throw new IllegalArgumentException( "The histogram range is empty: [" + histogramMin + ", " + histogramMax + "]" ); }
+		this.histogram = nBins > 0 ? new long[ nBins ] : null;
+		this.histogramMin = histogramMin;
+		this.histogramMax = histogramMax;
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Return new empty statistics, with the same histogram settings as these.
+	 * This is what each chunk of pixels accumulates in before being merged.
+	 */
+	public PixelStatistics newAccumulator()
+	{
+		return new PixelStatistics( null == histogram ? 0 : histogram.length, histogramMin, histogramMax );
+	}
+
+	/**
+	 * Count the first <code>length</code> values of the given block.
+	 */
+	public void add( final float[] block, final int length )
+	{
+		double block_min = min;
+		double block_max = max;
+		double block_sum = 0;
+		long block_count = 0;
+		final double scale = null == histogram ? 0 : histogram.length / ( histogramMax - histogramMin );
+		for ( int i = 0; i < length; i++ )
+		{
+			final float value = block[ i ];
+			if ( value != value )
+			{
+				continue; // NaN
+			}
+			if ( value < block_min )
+			{
+				block_min = value;
+			}
+			if ( value > block_max )
+			{
+				block_max = value;
+			}
+			block_sum += value;
+			block_count++;
+			if ( null != histogram && value >= histogramMin && value <= histogramMax )
+			{
+				histogram[ Math.min( histogram.length - 1, ( int ) ( ( value - histogramMin ) * scale ) ) ]++;
+			}
+		}
+		min = block_min;
+		max = block_max;
+		sum += block_sum;
+		count += block_count;
+	}
+
+	/**
+	 * Add the given statistics to these. Several chunks can merge their
+	 * statistics at the same time.
+	 *
+	 * @param other
+	 *            Statistics with the same histogram settings, as returned by
+	 *            {@link #newAccumulator()}
+	 */
+	public synchronized void merge( final PixelStatistics other )
+	{
+		min = Math.min( min, other.min );
+		max = Math.max( max, other.max );
+		sum += other.sum;
+		count += other.count;
+		if ( null != histogram )
+		{
+			for ( int i = 0; i < histogram.length; i++ )
+			{
+				histogram[ i ] += other.histogram[ i ];
+			}
+		}
+	}
+
+	/**
+	 * Count all the pixels of an image. This is used for the results that
+	 * are not written by a kernel, such as the result of a gaussian
+	 * convolution, and costs one more pass over the image.
+	 *
+	 * @param img
+	 *            The image to read
+	 * @param numThreads
+	 *            The number of threads to use
+	 * @throws ParseException
+	 *             If the image cannot be read
+	 */
+	public void accumulate( final Img< ? > img, final int numThreads ) throws ParseException
+	{
+		ParallelChunks.run( img.size(), numThreads, new ParallelChunks.Task()
+		{
+			@Override
+			@SuppressWarnings( { "unchecked", "rawtypes" } )
+			public void run( final long offset, final long length )
+			{
+				final PixelBlockReader reader = PixelBlockReader.create( ( Img< RealType > ) img, offset );
+				final PixelStatistics chunk_statistics = newAccumulator();
+				final float[] block = new float[ PixelKernel.BLOCK_SIZE ];
+				long done = 0;
+				while ( done < length )
+				{
+					final int block_length = ( int ) Math.min( PixelKernel.BLOCK_SIZE, length - done );
+					reader.read( block, block_length );
+					chunk_statistics.add( block, block_length );
+					done += block_length;
+				}
+				merge( chunk_statistics );
+			}
+		} );
+	}
+
+	/*
+	 * GETTERS
+	 */
+
+	/**
+	 * Return the smallest value counted, or NaN if no value was counted.
+	 */
+	public synchronized double getMin()
+	{
+		return count == 0 ? Double.NaN : min;
+	}
+
+	/**
+	 * Return the largest value counted, or NaN if no value was counted.
+	 */
+	public synchronized double getMax()
+	{
+		return count == 0 ? Double.NaN : max;
+	}
+
+	public synchronized double getSum()
+	{
+		return sum;
+	}
+
+	/**
+	 * Return the number of values counted, NaN excluded.
+	 */
+	public synchronized long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Return the mean of the values counted, or NaN if no value was counted.
+	 */
+	public synchronized double getMean()
+	{
+		return count == 0 ? Double.NaN : sum / count;
+	}
+
+	/**
+	 * Return a copy of the histogram, or <code>null</code> if it is not
+	 * computed.
+	 */
+	public synchronized long[] getHistogram()
+	{
+		return null == histogram ? null : histogram.clone();
+	}
+
+	public double getHistogramMin()
+	{
+		return histogramMin;
+	}
+
+	public double getHistogramMax()
+	{
+		return histogramMax;
+	}
+
+}
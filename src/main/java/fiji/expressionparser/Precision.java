@@ -0,0 +1,28 @@
+package fiji.expressionparser;
+
+import fiji.expressionparser.function.FloatMath;
+
+/**
+ * The accuracy of the transcendental functions of an {@link ImgLibParser}:
+ * <code>exp</code>, <code>log</code>, the trigonometric and arc functions,
+ * and the power operator.
+ */
+public enum Precision
+{
+
+	/**
+	 * The functions are computed in double precision by {@link Math}, and the
+	 * result is rounded to float.
+	 */
+	STRICT,
+
+	/**
+	 * The functions are computed with the float approximations of
+	 * {@link FloatMath}, which are accurate to a few units in the last place
+	 * of a float (see there for the maximal errors), and are enough for
+	 * display-oriented transforms such as <code>log(A)</code> or
+	 * <code>A^0.45</code>.
+	 */
+	FAST;
+
+}
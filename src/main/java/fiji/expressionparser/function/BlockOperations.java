@@ -0,0 +1,133 @@
+package fiji.expressionparser.function;
+
+/**
+ * Element-wise arithmetic, comparison and logical operations on blocks of
+ * float values, used by the bulk <code>evaluate</code> methods of the
+ * operators.
+ * <p>
+ * Two backends are available. The scalar one is plain Java loops, which the
+ * JIT may or may not vectorize. The vector one, {@link #VECTOR_CLASS}, is
+ * written with the <code>jdk.incubator.vector</code> API and processes as
+ * many float lanes at once as the CPU supports. It is only compiled when the
+ * project is built with a JDK 17 or later (see the <code>vector-api</code>
+ * profile), and shipped in a separate jar, with the <code>vector</code>
+ * classifier, since the main jar targets Java 8. It is only usable when this
+ * jar is on the class path and the JVM is started with
+ * <code>--add-modules jdk.incubator.vector</code>, which the Fiji launcher
+ * does not pass by default: add it to the JVM options of the launcher.
+ * {@link #get()} returns the vector backend when it can be loaded, and the
+ * scalar backend otherwise. It can be disabled by setting the system property
+ * {@link #DISABLE_PROPERTY} to <code>true</code>.
+ * <p>
+ * Both backends follow the IEEE rules of the scalar Java operators, so they
+ * return exactly the same values, NaN included.
+ */
+public abstract class BlockOperations
+{
+
+	/** The class of the vector backend, loaded by reflection. */
+	public static final String VECTOR_CLASS = "fiji.expressionparser.function.VectorBlockOperations";
+
+	/** Set this system property to <code>true</code> to use the scalar backend. */
+	public static final String DISABLE_PROPERTY = "fiji.expressionparser.vector.disable";
+
+	private static final BlockOperations SCALAR = new ScalarBlockOperations();
+
+	private static final BlockOperations DEFAULT = load();
+
+	/**
+	 * The operations on two operands.
+	 */
+	public enum Operation
+	{
+		ADD,
+		SUBTRACT,
+		MULTIPLY,
+		DIVIDE,
+		/** 1 if the first operand is greater than the second, 0 otherwise. */
+		GREATER_THAN,
+		LOWER_THAN,
+		GREATER_OR_EQUAL,
+		LOWER_OR_EQUAL,
+		EQUAL,
+		NOT_EQUAL,
+		/** 1 if both operands are different from 0, 0 otherwise. */
+		AND,
+		/** 1 if one of the operands is different from 0, 0 otherwise. */
+		OR;
+	}
+
+	protected BlockOperations()
+	{}
+
+	/**
+	 * Apply an operation to two blocks of values, element-wise. The result for
+	 * the value <code>i</code> is written in <code>output[i]</code>.
+	 *
+	 * @param operation
+	 *            The operation
+	 * @param block1
+	 *            The values of the first operand
+	 * @param block2
+	 *            The values of the second operand
+	 * @param output
+	 *            The array to write the results in. It may be one of the
+	 *            operand arrays.
+	 * @param length
+	 *            The number of values to compute
+	 */
+	public abstract void apply( final Operation operation, final float[] block1, final float[] block2, final float[] output, final int length );
+
+	/**
+	 * Return the name of this backend, for benchmarks and logs.
+	 */
+	public abstract String getName();
+
+	/**
+	 * Return the vector backend if it can be used in this JVM, and the scalar
+	 * one otherwise.
+	 */
+	public static BlockOperations get()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * Return the scalar backend.
+	 */
+	public static BlockOperations scalar()
+	{
+		return SCALAR;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private static BlockOperations load()
+	{
+		if ( Boolean.getBoolean( DISABLE_PROPERTY ) ) { return SCALAR; }
+		try
+		{
+			final BlockOperations operations = ( BlockOperations ) Class.forName( VECTOR_CLASS ).newInstance();
+			// Run it once, so that a missing module fails here
+			final float[] block = new float[] { 1f };
+			operations.apply( Operation.ADD, block, block, block, 1 );
+			return operations;
+		}
+		catch ( final ReflectiveOperationException e )
+		{
+			// Not compiled
+		}
+		catch ( final LinkageError e )
+		{
+			// Compiled for a newer JVM, or jdk.incubator.vector not available
+		}
+		catch ( final RuntimeException e )
+		{
+			// e.g. unsupported by the platform
+		}
+		return SCALAR;
+	}
+
+}
@@ -0,0 +1,262 @@
+package fiji.expressionparser.function;
+
+/**
+ * Float approximations of the transcendental functions of {@link Math}, used
+ * by the pixel-wise functions in the {@link fiji.expressionparser.Precision#FAST}
+ * precision. They trade a few units in the last place for speed: the
+ * arguments are reduced with a few float or double operations, and the
+ * functions are evaluated with polynomials in float arithmetic, where
+ * {@link Math} computes in double precision and may take slow paths.
+ * <p>
+ * Maximal errors, measured against the double results of {@link Math}
+ * rounded to float:
+ * <table summary="Maximal errors">
+ * <tr><th>Function</th><th>Domain</th><th>Maximal error</th></tr>
+ * <tr><td>{@link #exp(float)}</td><td>normal results</td><td>3e-7 relative</td></tr>
+ * <tr><td>{@link #log(float)}</td><td>x &gt; 0</td><td>3e-7 relative</td></tr>
+ * <tr><td>{@link #pow(float, float)}</td><td>x &gt; 0, normal results</td><td>3e-7 &times; (1 + |y ln x|) relative</td></tr>
+ * <tr><td>{@link #sin(float)}, {@link #cos(float)}</td><td>|x| &lt; 65536</td><td>2e-7 absolute</td></tr>
+ * <tr><td>{@link #tan(float)}</td><td>|x| &lt; 65536</td><td>4e-7 relative</td></tr>
+ * <tr><td>{@link #atan(float)}, {@link #atan2(float, float)}, {@link #asin(float)}, {@link #acos(float)}</td><td>all</td><td>3e-7 absolute</td></tr>
+ * </table>
+ * <p>
+ * Special values (NaN, infinities, zeros, negative arguments of
+ * {@link #pow(float, float)}) and arguments outside of these domains are
+ * handled by {@link Math}, so they return the same values as the strict
+ * functions.
+ */
+public final class FloatMath
+{
+
+	private static final float LOG2E = 1.44269504f;
+
+	/** ln(2) split in a part with few significant bits, and the rest. */
+	private static final float LN2_HI = 0.693359375f;
+
+	private static final float LN2_LO = -2.12194440e-4f;
+
+	private static final float SQRT_HALF = 0.707106781f;
+
+	private static final float PI = ( float ) Math.PI;
+
+	private static final float PI_2 = ( float ) ( Math.PI / 2 );
+
+	private static final float PI_4 = ( float ) ( Math.PI / 4 );
+
+	private static final double TWO_OVER_PI = 2 / Math.PI;
+
+	private static final double PI_2_HI = 1.5707963267341256;
+
+	private static final double PI_2_LO = 6.077100506506192e-11;
+
+	/** The largest argument of the trigonometric functions reduced here. */
+	private static final float MAX_TRIGONOMETRIC = 65536f;
+
+	private static final float TAN_PI_8 = 0.414213562f;
+
+	private FloatMath()
+	{}
+
+	/**
+	 * Return <i>e</i> raised to the power of <code>x</code>.
+	 */
+	public static float exp( final float x )
+	{
+		// Also false for NaN
+		if ( !( x > -87f && x < 88f ) ) { return ( float ) Math.exp( x ); }
+		// x = k ln2 + r, with |r| <= ln2 / 2
+		final int k = Math.round( x * LOG2E );
+		final float r = ( x - k * LN2_HI ) - k * LN2_LO;
+		final float p = 1f + r * ( 1f + r * ( 1f / 2 + r * ( 1f / 6 + r * ( 1f / 24 + r * ( 1f / 120 + r * ( 1f / 720 ) ) ) ) ) );
+		return p * Float.intBitsToFloat( ( k + 127 ) << 23 );
+	}
+
+	/**
+	 * Return the natural logarithm of <code>x</code>.
+	 */
+	public static float log( final float x )
+	{
+		// Also false for NaN, negative values and subnormals
+		if ( !( x >= Float.MIN_NORMAL && x < Float.POSITIVE_INFINITY ) ) { return ( float ) Math.log( x ); }
+		// x = m 2^e, with sqrt(1/2) <= m < sqrt(2)
+		final int bits = Float.floatToRawIntBits( x );
+		int e = ( bits >>> 23 ) - 127;
+		float m = Float.intBitsToFloat( ( bits & 0x007fffff ) | 0x3f800000 );
+		if ( m > 2 * SQRT_HALF )
+		{
+			m *= 0.5f;
+			e++;
+		}
+		// ln(m) = 2 atanh(s), with s = (m - 1) / (m + 1), |s| < 0.172
+		final float s = ( m - 1f ) / ( m + 1f );
+		final float s2 = s * s;
+		final float p = s2 * ( 2f / 3 + s2 * ( 2f / 5 + s2 * ( 2f / 7 + s2 * ( 2f / 9 ) ) ) );
+		return ( e * LN2_LO + ( 2 * s + s * p ) ) + e * LN2_HI;
+	}
+
+	/**
+	 * Return <code>x</code> raised to the power of <code>y</code>.
+	 */
+	public static float pow( final float x, final float y )
+	{
+		if ( x > 0f && x < Float.POSITIVE_INFINITY )
+		{
+			final float z = y * log( x );
+			// Also false for NaN and infinite exponents
+			if ( z > -87f && z < 88f ) { return exp( z ); }
+		}
+		return ( float ) Math.pow( x, y );
+	}
+
+	/**
+	 * Return the sine of <code>x</code>, in radians.
+	 */
+	public static float sin( final float x )
+	{
+		if ( !( Math.abs( x ) < MAX_TRIGONOMETRIC ) ) { return ( float ) Math.sin( x ); }
+		final int k = quadrant( x );
+		final float r = reduce( x, k );
+		switch ( k & 3 )
+		{
+		case 0:
+			return sinKernel( r );
+		case 1:
+			return cosKernel( r );
+		case 2:
+			return -sinKernel( r );
+		default:
+			return -cosKernel( r );
+		}
+	}
+
+	/**
+	 * Return the cosine of <code>x</code>, in radians.
+	 */
+	public static float cos( final float x )
+	{
+		if ( !( Math.abs( x ) < MAX_TRIGONOMETRIC ) ) { return ( float ) Math.cos( x ); }
+		final int k = quadrant( x );
+		final float r = reduce( x, k );
+		switch ( k & 3 )
+		{
+		case 0:
+			return cosKernel( r );
+		case 1:
+			return -sinKernel( r );
+		case 2:
+			return -cosKernel( r );
+		default:
+			return sinKernel( r );
+		}
+	}
+
+	/**
+	 * Return the tangent of <code>x</code>, in radians.
+	 */
+	public static float tan( final float x )
+	{
+		if ( !( Math.abs( x ) < MAX_TRIGONOMETRIC ) ) { return ( float ) Math.tan( x ); }
+		final int k = quadrant( x );
+		final float r = reduce( x, k );
+		if ( ( k & 1 ) == 0 ) { return sinKernel( r ) / cosKernel( r ); }
+		return -cosKernel( r ) / sinKernel( r );
+	}
+
+	/**
+	 * Return the arc tangent of <code>x</code>, from -pi/2 to pi/2.
+	 */
+	public static float atan( final float x )
+	{
+		if ( x != x ) { return x; }
+		final float a = Math.abs( x );
+		final float result;
+		if ( a <= TAN_PI_8 )
+		{
+			result = atanKernel( a );
+		}
+		else if ( a <= 1f / TAN_PI_8 )
+		{
+			// atan(a) = pi/4 + atan((a - 1) / (a + 1))
+			result = PI_4 + atanKernel( ( a - 1f ) / ( a + 1f ) );
+		}
+		else
+		{
+			// atan(a) = pi/2 - atan(1 / a)
+			result = PI_2 - atanKernel( 1f / a );
+		}
+		return Math.copySign( result, x );
+	}
+
+	/**
+	 * Return the angle of the point <code>(x, y)</code>, from -pi to pi.
+	 */
+	public static float atan2( final float y, final float x )
+	{
+		// Zeros, infinities and NaNs have many particular cases
+		if ( !( x != 0f && Math.abs( x ) < Float.POSITIVE_INFINITY && y != 0f && Math.abs( y ) < Float.POSITIVE_INFINITY ) ) { return ( float ) Math.atan2( y, x ); }
+		final float a = atan( Math.abs( y ) / Math.abs( x ) );
+		final float angle = x > 0f ? a : PI - a;
+		return y < 0f ? -angle : angle;
+	}
+
+	/**
+	 * Return the arc sine of <code>x</code>, from -pi/2 to pi/2.
+	 */
+	public static float asin( final float x )
+	{
+		if ( !( Math.abs( x ) < 1f ) ) { return ( float ) Math.asin( x ); }
+		return atan( x / ( float ) Math.sqrt( ( 1f - x ) * ( 1f + x ) ) );
+	}
+
+	/**
+	 * Return the arc cosine of <code>x</code>, from 0 to pi.
+	 */
+	public static float acos( final float x )
+	{
+		if ( !( Math.abs( x ) < 1f ) ) { return ( float ) Math.acos( x ); }
+		final float a = atan( ( float ) Math.sqrt( ( 1f - x ) * ( 1f + x ) ) / Math.abs( x ) );
+		return x >= 0f ? a : PI - a;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Return the integer <code>k</code> nearest to <code>x / (pi/2)</code>.
+	 */
+	private static int quadrant( final float x )
+	{
+		return ( int ) Math.rint( x * TWO_OVER_PI );
+	}
+
+	/**
+	 * Return <code>x - k pi/2</code>, from -pi/4 to pi/4.
+	 */
+	private static float reduce( final float x, final int k )
+	{
+		return ( float ) ( ( x - k * PI_2_HI ) - k * PI_2_LO );
+	}
+
+	/** sin(r) for |r| &lt;= pi/4. */
+	private static float sinKernel( final float r )
+	{
+		final float r2 = r * r;
+		return r + r * r2 * ( -1f / 6 + r2 * ( 1f / 120 + r2 * ( -1f / 5040 + r2 * ( 1f / 362880 ) ) ) );
+	}
+
+	/** cos(r) for |r| &lt;= pi/4. */
+	private static float cosKernel( final float r )
+	{
+		final float r2 = r * r;
+		return 1f + r2 * ( -1f / 2 + r2 * ( 1f / 24 + r2 * ( -1f / 720 + r2 * ( 1f / 40320 + r2 * ( -1f / 3628800 ) ) ) ) );
+	}
+
+	/** atan(a) for 0 &lt;= |a| &lt;= tan(pi/8). */
+	private static float atanKernel( final float a )
+	{
+		final float a2 = a * a;
+		return a + a * a2 * ( -1f / 3 + a2 * ( 1f / 5 + a2 * ( -1f / 7 + a2 * ( 1f / 9 + a2 * ( -1f / 11 + a2 * ( 1f / 13 + a2 * ( -1f / 15 ) ) ) ) ) ) );
+	}
+
+}
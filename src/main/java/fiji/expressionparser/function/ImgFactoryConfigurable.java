@@ -0,0 +1,27 @@
+package fiji.expressionparser.function;
+
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Implemented by the objects that can create their result images with a
+ * given {@link ImgFactory}. With a cell image factory, the result can be
+ * larger than the 2^31 pixels of an {@link net.imglib2.img.array.ArrayImg},
+ * and it is computed tile by tile, see {@link ImgTiles}.
+ */
+public interface ImgFactoryConfigurable
+{
+
+	/**
+	 * Set the factory used to create result images. If <code>null</code>, the
+	 * results are {@link net.imglib2.img.array.ArrayImg}s.
+	 */
+	public void setImgFactory( final ImgFactory< FloatType > imgFactory );
+
+	/**
+	 * Returns the factory used to create result images, or <code>null</code>
+	 * if the results are {@link net.imglib2.img.array.ArrayImg}s.
+	 */
+	public ImgFactory< FloatType > getImgFactory();
+
+}
@@ -17,9 +17,9 @@ public final class ImgLibAbs< T extends RealType< T > > extends SingleOperandPix
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R alpha )
+	public final float evaluate( final float alpha )
 	{
-		return ( float ) Math.abs( alpha.getRealDouble() );
+		return ( float ) Math.abs( alpha );
 	}
 
 	public String getDocumentationString()
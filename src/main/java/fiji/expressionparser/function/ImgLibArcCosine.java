@@ -1,5 +1,6 @@
 package fiji.expressionparser.function;
 
+import fiji.expressionparser.Precision;
 import net.imglib2.type.numeric.RealType;
 
 public final class ImgLibArcCosine< T extends RealType< T > > extends SingleOperandPixelBasedAbstractFunction< T >
@@ -8,18 +9,39 @@ public final class ImgLibArcCosine< T extends RealType< T > > extends SingleOper
 	public static final String DOCUMENTATION_STRING =
 			"<h3>Element-wise arc-cosine</h3> " +
 					"This function computes the arc cosine of an ImgLib image, taking " +
-					"each pixel as its operand. Calculations are done using <i>Math.acos</i>. " +
+					"each pixel as its operand. Calculations are done using <i>Math.acos</i>, or <i>FloatMath.acos</i> in fast precision. " +
 					"Values returned are in the range [0, π].";
 
+	/** <code>true</code> to compute with {@link FloatMath}. */
+	private final boolean fast;
+
 	public ImgLibArcCosine()
+	{
+		this( Precision.STRICT );
+	}
+
+	public ImgLibArcCosine( final Precision precision )
 	{
 		numberOfParameters = 1;
+		fast = precision == Precision.FAST;
+	}
+
+	@Override
+	public final float evaluate( final float t )
+	{
+		return fast ? FloatMath.acos( t ) : ( float ) Math.acos( t );
+	}
+
+	@Override
+	public ImgLibArcCosine< T > withPrecision( final Precision precision )
+	{
+		return precision == getPrecision() ? this : new ImgLibArcCosine< T >( precision );
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R t )
+	public Precision getPrecision()
 	{
-		return ( float ) Math.acos( t.getRealDouble() );
+		return fast ? Precision.FAST : Precision.STRICT;
 	}
 
 	@Override
@@ -1,5 +1,6 @@
 package fiji.expressionparser.function;
 
+import fiji.expressionparser.Precision;
 import net.imglib2.type.numeric.RealType;
 
 public final class ImgLibArcSine< T extends RealType< T > > extends
@@ -9,18 +10,39 @@ public final class ImgLibArcSine< T extends RealType< T > > extends
 	public static final String DOCUMENTATION_STRING =
 			"<h3>Element-wise arc-sine</h3> " +
 					"This function computes the arc sine of an ImgLib image, taking " +
-					"each pixel as its operand. Calculations are done using <i>Math.asin</i>. " +
+					"each pixel as its operand. Calculations are done using <i>Math.asin</i>, or <i>FloatMath.asin</i> in fast precision. " +
 					"Values returned are in the range [-π/2, π/2]";
 
+	/** <code>true</code> to compute with {@link FloatMath}. */
+	private final boolean fast;
+
 	public ImgLibArcSine()
+	{
+		this( Precision.STRICT );
+	}
+
+	public ImgLibArcSine( final Precision precision )
 	{
 		numberOfParameters = 1;
+		fast = precision == Precision.FAST;
+	}
+
+	@Override
+	public final float evaluate( final float alpha )
+	{
+		return fast ? FloatMath.asin( alpha ) : ( float ) Math.asin( alpha );
+	}
+
+	@Override
+	public ImgLibArcSine< T > withPrecision( final Precision precision )
+	{
+		return precision == getPrecision() ? this : new ImgLibArcSine< T >( precision );
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R alpha )
+	public Precision getPrecision()
 	{
-		return ( float ) Math.asin( alpha.getRealDouble() );
+		return fast ? Precision.FAST : Precision.STRICT;
 	}
 
 	@Override
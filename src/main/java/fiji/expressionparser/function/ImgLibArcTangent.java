@@ -1,5 +1,6 @@
 package fiji.expressionparser.function;
 
+import fiji.expressionparser.Precision;
 import net.imglib2.type.numeric.RealType;
 
 public final class ImgLibArcTangent< T extends RealType< T > > extends
@@ -9,18 +10,39 @@ public final class ImgLibArcTangent< T extends RealType< T > > extends
 	public static final String DOCUMENTATION_STRING =
 			"<h3>Element-wise arc-tangent</h3> " +
 					"This function computes the arc tangent of an ImgLib image, taking " +
-					"each pixel as its operand. Calculations are done using <i>Math.atan</i>. " +
+					"each pixel as its operand. Calculations are done using <i>Math.atan</i>, or <i>FloatMath.atan</i> in fast precision. " +
 					"Values returned are in the range [-π/2, π/2].";
 
+	/** <code>true</code> to compute with {@link FloatMath}. */
+	private final boolean fast;
+
 	public ImgLibArcTangent()
+	{
+		this( Precision.STRICT );
+	}
+
+	public ImgLibArcTangent( final Precision precision )
 	{
 		numberOfParameters = 1;
+		fast = precision == Precision.FAST;
+	}
+
+	@Override
+	public final float evaluate( final float t )
+	{
+		return fast ? FloatMath.atan( t ) : ( float ) Math.atan( t );
+	}
+
+	@Override
+	public ImgLibArcTangent< T > withPrecision( final Precision precision )
+	{
+		return precision == getPrecision() ? this : new ImgLibArcTangent< T >( precision );
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R t )
+	public Precision getPrecision()
 	{
-		return ( float ) Math.atan( t.getRealDouble() );
+		return fast ? Precision.FAST : Precision.STRICT;
 	}
 
 	@Override
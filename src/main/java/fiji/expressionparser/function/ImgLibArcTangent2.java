@@ -1,9 +1,8 @@
 package fiji.expressionparser.function;
 
+import fiji.expressionparser.Precision;
 import net.imglib2.type.numeric.RealType;
 
-import org.nfunk.jep.ParseException;
-
 public final class ImgLibArcTangent2< T extends RealType< T > > extends
 		TwoOperandsPixelBasedAbstractFunction< T >
 {
@@ -11,18 +10,39 @@ public final class ImgLibArcTangent2< T extends RealType< T > > extends
 	public static final String DOCUMENTATION_STRING =
 			"<h3>Element-wise arc-tangent</h3> " +
 					"This function computes the two operands arc-tangent of two ImgLib images, taking " +
-					"each pixel of the two images as its two operands. Calculations are done using <i>Math.atan2</i>. " +
+					"each pixel of the two images as its two operands. Calculations are done using <i>Math.atan2</i>, or <i>FloatMath.atan2</i> in fast precision. " +
 					"Values returned are in the range [-π, π].";
 
+	/** <code>true</code> to compute with {@link FloatMath}. */
+	private final boolean fast;
+
 	public ImgLibArcTangent2()
+	{
+		this( Precision.STRICT );
+	}
+
+	public ImgLibArcTangent2( final Precision precision )
 	{
 		numberOfParameters = 2;
+		fast = precision == Precision.FAST;
+	}
+
+	@Override
+	public final float evaluate( final float t1, final float t2 )
+	{
+		return fast ? FloatMath.atan2( t1, t2 ) : ( float ) Math.atan2( t1, t2 );
+	}
+
+	@Override
+	public ImgLibArcTangent2< T > withPrecision( final Precision precision )
+	{
+		return precision == getPrecision() ? this : new ImgLibArcTangent2< T >( precision );
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException
+	public Precision getPrecision()
 	{
-		return ( float ) Math.atan2( t1.getRealDouble(), t2.getRealDouble() );
+		return fast ? Precision.FAST : Precision.STRICT;
 	}
 
 	@Override
@@ -18,9 +18,9 @@ public final class ImgLibCeil< T extends RealType< T > > extends SingleOperandPi
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R alpha )
+	public final float evaluate( final float alpha )
 	{
-		return ( float ) Math.ceil( alpha.getRealDouble() );
+		return ( float ) Math.ceil( alpha );
 	}
 
 	public String getDocumentationString()
@@ -2,8 +2,6 @@ package fiji.expressionparser.function;
 
 import net.imglib2.type.numeric.RealType;
 
-import org.nfunk.jep.ParseException;
-
 public final class ImgLibComparison
 {
 
@@ -63,9 +61,15 @@ public final class ImgLibComparison
 		}
 
 		@Override
-		public final < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException
+		public final float evaluate( final float t1, final float t2 )
 		{
-			return t1.getRealFloat() > t2.getRealFloat() ? 1.0f : 0.0f;
+			return t1 > t2 ? 1.0f : 0.0f;
+		}
+
+		@Override
+		public final void evaluate( final float[] block1, final float[] block2, final float[] output, final int length )
+		{
+			BlockOperations.get().apply( BlockOperations.Operation.GREATER_THAN, block1, block2, output, length );
 		}
 
 		@Override
@@ -96,9 +100,15 @@ public final class ImgLibComparison
 		}
 
 		@Override
-		public final < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException
+		public final float evaluate( final float t1, final float t2 )
 		{
-			return t1.getRealFloat() < t2.getRealFloat() ? 1.0f : 0.0f;
+			return t1 < t2 ? 1.0f : 0.0f;
+		}
+
+		@Override
+		public final void evaluate( final float[] block1, final float[] block2, final float[] output, final int length )
+		{
+			BlockOperations.get().apply( BlockOperations.Operation.LOWER_THAN, block1, block2, output, length );
 		}
 
 		@Override
@@ -130,9 +140,15 @@ public final class ImgLibComparison
 		}
 
 		@Override
-		public final < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException
+		public final float evaluate( final float t1, final float t2 )
+		{
+			return t1 >= t2 ? 1.0f : 0.0f;
+		}
+
+		@Override
+		public final void evaluate( final float[] block1, final float[] block2, final float[] output, final int length )
 		{
-			return t1.getRealFloat() >= t2.getRealFloat() ? 1.0f : 0.0f;
+			BlockOperations.get().apply( BlockOperations.Operation.GREATER_OR_EQUAL, block1, block2, output, length );
 		}
 
 		@Override
@@ -164,9 +180,15 @@ public final class ImgLibComparison
 		}
 
 		@Override
-		public final < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException
+		public final float evaluate( final float t1, final float t2 )
 		{
-			return t1.getRealFloat() <= t2.getRealFloat() ? 1.0f : 0.0f;
+			return t1 <= t2 ? 1.0f : 0.0f;
+		}
+
+		@Override
+		public final void evaluate( final float[] block1, final float[] block2, final float[] output, final int length )
+		{
+			BlockOperations.get().apply( BlockOperations.Operation.LOWER_OR_EQUAL, block1, block2, output, length );
 		}
 
 		@Override
@@ -197,9 +219,15 @@ public final class ImgLibComparison
 		}
 
 		@Override
-		public final < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException
+		public final float evaluate( final float t1, final float t2 )
+		{
+			return t1 == t2 ? 1.0f : 0.0f;
+		}
+
+		@Override
+		public final void evaluate( final float[] block1, final float[] block2, final float[] output, final int length )
 		{
-			return t1.getRealFloat() == t2.getRealFloat() ? 1.0f : 0.0f;
+			BlockOperations.get().apply( BlockOperations.Operation.EQUAL, block1, block2, output, length );
 		}
 
 		@Override
@@ -230,9 +258,15 @@ public final class ImgLibComparison
 		}
 
 		@Override
-		public final < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException
+		public final float evaluate( final float t1, final float t2 )
+		{
+			return t1 != t2 ? 1.0f : 0.0f;
+		}
+
+		@Override
+		public final void evaluate( final float[] block1, final float[] block2, final float[] output, final int length )
 		{
-			return t1.getRealFloat() != t2.getRealFloat() ? 1.0f : 0.0f;
+			BlockOperations.get().apply( BlockOperations.Operation.NOT_EQUAL, block1, block2, output, length );
 		}
 
 		@Override
@@ -1,5 +1,6 @@
 package fiji.expressionparser.function;
 
+import fiji.expressionparser.Precision;
 import net.imglib2.type.numeric.RealType;
 
 public final class ImgLibCosine< T extends RealType< T > > extends SingleOperandPixelBasedAbstractFunction< T >
@@ -9,17 +10,38 @@ public final class ImgLibCosine< T extends RealType< T > > extends SingleOperand
 			"<h3>Element-wise cosine</h3> " +
 					"This function computes the cosine of an ImgLib image, taking " +
 					"each pixel as its operand (must be in radians). " +
-					"Calculations are done using <i>Math.cos</i>.";
+					"Calculations are done using <i>Math.cos</i>, or <i>FloatMath.cos</i> in fast precision.";
+
+	/** <code>true</code> to compute with {@link FloatMath}. */
+	private final boolean fast;
 
 	public ImgLibCosine()
+	{
+		this( Precision.STRICT );
+	}
+
+	public ImgLibCosine( final Precision precision )
 	{
 		numberOfParameters = 1;
+		fast = precision == Precision.FAST;
+	}
+
+	@Override
+	public final float evaluate( final float alpha )
+	{
+		return fast ? FloatMath.cos( alpha ) : ( float ) Math.cos( alpha );
+	}
+
+	@Override
+	public ImgLibCosine< T > withPrecision( final Precision precision )
+	{
+		return precision == getPrecision() ? this : new ImgLibCosine< T >( precision );
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R alpha )
+	public Precision getPrecision()
 	{
-		return ( float ) Math.cos( alpha.getRealDouble() );
+		return fast ? Precision.FAST : Precision.STRICT;
 	}
 
 	@Override
@@ -15,11 +15,24 @@ import net.imglib2.type.numeric.real.FloatType;
 public class ImgLibDithering< T extends RealType< T > > extends PostfixMathCommand implements ImgLibFunction< T >
 {
 
+	/**
+	 * The number of parameters of the current call, per thread. JEP sets it
+	 * just before calling {@link #run(Stack)}, in the same thread, and this
+	 * function may be evaluated by several threads at once.
+	 */
+	private final ThreadLocal< Integer > numberOfParametersInThread = new ThreadLocal< Integer >();
+
 	public ImgLibDithering()
 	{
 		numberOfParameters = -1;
 	}
 
+	@Override
+	public void setCurNumberOfParameters( final int n )
+	{
+		numberOfParametersInThread.set( n );
+	}
+
 	@Override
 	public boolean checkNumberOfParameters( final int n )
 	{
@@ -37,7 +50,8 @@ public class ImgLibDithering< T extends RealType< T > > extends PostfixMathComma
 		// Deal with 1 or 2 parameters
 		FloydSteinbergDithering< T > dither = null;
 		Img< T > img;
-		if ( curNumberOfParameters == 1 )
+		final Integer n_parameters = numberOfParametersInThread.get();
+		if ( null != n_parameters && n_parameters == 1 )
 		{
 			final Object param = stack.pop();
 
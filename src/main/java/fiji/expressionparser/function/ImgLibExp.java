@@ -1,5 +1,6 @@
 package fiji.expressionparser.function;
 
+import fiji.expressionparser.Precision;
 import net.imglib2.type.numeric.RealType;
 
 public final class ImgLibExp< T extends RealType< T > > extends SingleOperandPixelBasedAbstractFunction< T >
@@ -9,17 +10,38 @@ public final class ImgLibExp< T extends RealType< T > > extends SingleOperandPix
 			"<h3>Element-wise exponential</h3> " +
 					"This function computes the exponential of an ImgLib image, taking " +
 					"each pixel as its operand. " +
-					"Calculations are done using <i>Math.exp</i>.";
+					"Calculations are done using <i>Math.exp</i>, or <i>FloatMath.exp</i> in fast precision.";
+
+	/** <code>true</code> to compute with {@link FloatMath}. */
+	private final boolean fast;
 
 	public ImgLibExp()
+	{
+		this( Precision.STRICT );
+	}
+
+	public ImgLibExp( final Precision precision )
 	{
 		numberOfParameters = 1;
+		fast = precision == Precision.FAST;
+	}
+
+	@Override
+	public final float evaluate( final float alpha )
+	{
+		return fast ? FloatMath.exp( alpha ) : ( float ) Math.exp( alpha );
+	}
+
+	@Override
+	public ImgLibExp< T > withPrecision( final Precision precision )
+	{
+		return precision == getPrecision() ? this : new ImgLibExp< T >( precision );
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R alpha )
+	public Precision getPrecision()
 	{
-		return ( float ) Math.exp( alpha.getRealDouble() );
+		return fast ? Precision.FAST : Precision.STRICT;
 	}
 
 	public String getDocumentationString()
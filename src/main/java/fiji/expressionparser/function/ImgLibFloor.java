@@ -18,9 +18,9 @@ public final class ImgLibFloor< T extends RealType< T > > extends SingleOperandP
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R alpha )
+	public final float evaluate( final float alpha )
 	{
-		return ( float ) Math.floor( alpha.getRealDouble() );
+		return ( float ) Math.floor( alpha );
 	}
 
 	public String getDocumentationString()
@@ -1,10 +1,21 @@
 package fiji.expressionparser.function;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import fiji.expressionparser.ImgLibEvaluationContext;
 import fiji.expressionparser.ImgLibUtils;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.gauss3.Gauss3;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
@@ -14,6 +25,8 @@ import org.nfunk.jep.ParseException;
 public final class ImgLibGaussConv< T extends RealType< T > > extends TwoOperandsAbstractFunction< T >
 {
 
+	private static final ExecutorService CALLER_RUNS = new CallerRunsExecutor();
+
 	public ImgLibGaussConv()
 	{
 		numberOfParameters = 2;
@@ -35,7 +48,9 @@ public final class ImgLibGaussConv< T extends RealType< T > > extends TwoOperand
 				"with A an image and sigma a number. Sigma is the standard deviation " +
 				"of the gaussian kernel applied to image A.<br> " +
 				"Input image is converted to <i>FloatType</i> then convolved. " +
-				"If the source image is a 3D image, the convolution will be made in 3D as well. ";
+				"If the source image is a 3D image, the convolution will be made in 3D as well. " +
+				"When results are cell images, the convolution is made cell by cell, " +
+				"the cells being distributed over the threads. ";
 	}
 
 	@Override
@@ -47,6 +62,10 @@ public final class ImgLibGaussConv< T extends RealType< T > > extends TwoOperand
 	@Override
 	public final < R extends RealType< R > > Img< FloatType > evaluate( final Img< R > img, final R alpha ) throws ParseException
 	{
+		// The factory of the current evaluation, if any
+		final ImgFactory< FloatType > imgFactory = ImgLibEvaluationContext.current().getImgFactory();
+		if ( null != imgFactory ) { return evaluateTiles( img, alpha.getRealDouble(), imgFactory ); }
+
 		RandomAccessibleInterval< FloatType > fimg = ImgLibUtils.copyToFloatTypeImage( img );
 		try
 		{
@@ -80,4 +99,92 @@ public final class ImgLibGaussConv< T extends RealType< T > > extends TwoOperand
 				+ ": First argument must be one image and second one a number, in this order." );
 	}
 
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Convolve the source image tile by tile in a new image created by the
+	 * given factory. Every tile reads the source around it, over the half-size
+	 * of the gaussian kernel, so that the tile borders are the same as with a
+	 * convolution of the whole image. The tiles are distributed over the
+	 * threads of the evaluation, and each one is convolved in the thread that
+	 * takes it.
+	 */
+	private < R extends RealType< R > > Img< FloatType > evaluateTiles( final Img< R > img, final double sigma, final ImgFactory< FloatType > imgFactory ) throws ParseException
+	{
+		final long[] dimensions = new long[ img.numDimensions() ];
+		img.dimensions( dimensions );
+		final Img< FloatType > target = imgFactory.create( dimensions );
+		final RandomAccessible< R > source = Views.extendZero( img );
+		final double[] sigmas = new double[ img.numDimensions() ];
+		Arrays.fill( sigmas, sigma );
+		final List< Interval > tiles = ImgTiles.getTiles( target );
+		ParallelChunks.run( tiles.size(), 1, ImgLibEvaluationContext.current().getNumThreads(), new ParallelChunks.Task()
+		{
+			@Override
+			public void run( final long offset, final long length )
+			{
+				try
+				{
+					for ( long i = offset; i < offset + length; i++ )
+					{
+						Gauss3.gauss( sigmas, source, Views.interval( target, tiles.get( ( int ) i ) ), CALLER_RUNS );
+					}
+				}
+				catch ( IncompatibleTypeException e )
+				{
+					throw new RuntimeException( e );
+				}
+			}
+		} );
+		return target;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * An executor that runs the tasks in the calling thread, so that
+	 * {@link Gauss3} convolves a tile without creating a thread pool.
+	 */
+	private static final class CallerRunsExecutor extends AbstractExecutorService
+	{
+
+		@Override
+		public void execute( final Runnable command )
+		{
+			command.run();
+		}
+
+		@Override
+		public void shutdown()
+		{}
+
+		@Override
+		public List< Runnable > shutdownNow()
+		{
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean isShutdown()
+		{
+			return false;
+		}
+
+		@Override
+		public boolean isTerminated()
+		{
+			return false;
+		}
+
+		@Override
+		public boolean awaitTermination( final long timeout, final TimeUnit unit )
+		{
+			return false;
+		}
+	}
+
 }
@@ -1,5 +1,6 @@
 package fiji.expressionparser.function;
 
+import fiji.expressionparser.Precision;
 import net.imglib2.type.numeric.RealType;
 
 public class ImgLibLog< T extends RealType< T > > extends SingleOperandPixelBasedAbstractFunction< T >
@@ -10,17 +11,38 @@ public class ImgLibLog< T extends RealType< T > > extends SingleOperandPixelBase
 					"This function computes the natural logarithm (base <i>e</i>) " +
 					"of an ImgLib image, taking " +
 					"each pixel as its operand. " +
-					"Calculations are done using <i>Math.log</i>.";
+					"Calculations are done using <i>Math.log</i>, or <i>FloatMath.log</i> in fast precision.";
+
+	/** <code>true</code> to compute with {@link FloatMath}. */
+	private final boolean fast;
 
 	public ImgLibLog()
+	{
+		this( Precision.STRICT );
+	}
+
+	public ImgLibLog( final Precision precision )
 	{
 		numberOfParameters = 1;
+		fast = precision == Precision.FAST;
+	}
+
+	@Override
+	public final float evaluate( final float alpha )
+	{
+		return fast ? FloatMath.log( alpha ) : ( float ) Math.log( alpha );
+	}
+
+	@Override
+	public ImgLibLog< T > withPrecision( final Precision precision )
+	{
+		return precision == getPrecision() ? this : new ImgLibLog< T >( precision );
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( R alpha )
+	public Precision getPrecision()
 	{
-		return ( float ) Math.log( alpha.getRealDouble() );
+		return fast ? Precision.FAST : Precision.STRICT;
 	}
 
 	public String getDocumentationString()
@@ -2,8 +2,6 @@ package fiji.expressionparser.function;
 
 import net.imglib2.type.numeric.RealType;
 
-import org.nfunk.jep.ParseException;
-
 public final class ImgLibLogical
 {
 
@@ -32,9 +30,15 @@ public final class ImgLibLogical
 		}
 
 		@Override
-		public final < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException
+		public final float evaluate( final float t1, final float t2 )
+		{
+			return t1 != 0f && t2 != 0f ? 1.0f : 0.0f;
+		}
+
+		@Override
+		public final void evaluate( final float[] block1, final float[] block2, final float[] output, final int length )
 		{
-			return t1.getRealFloat() != 0f && t2.getRealFloat() != 0f ? 1.0f : 0.0f;
+			BlockOperations.get().apply( BlockOperations.Operation.AND, block1, block2, output, length );
 		}
 
 		@Override
@@ -60,9 +64,15 @@ public final class ImgLibLogical
 		}
 
 		@Override
-		public final < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException
+		public final float evaluate( final float t1, final float t2 )
+		{
+			return t1 != 0f || t2 != 0f ? 1.0f : 0.0f;
+		}
+
+		@Override
+		public final void evaluate( final float[] block1, final float[] block2, final float[] output, final int length )
 		{
-			return t1.getRealFloat() != 0f || t2.getRealFloat() != 0f ? 1.0f : 0.0f;
+			BlockOperations.get().apply( BlockOperations.Operation.OR, block1, block2, output, length );
 		}
 
 		@Override
@@ -88,9 +98,9 @@ public final class ImgLibLogical
 		}
 
 		@Override
-		public final < R extends RealType< R > > float evaluate( final R t ) throws ParseException
+		public final float evaluate( final float t )
 		{
-			return t.getRealFloat() == 0f ? 1.0f : 0.0f;
+			return t == 0f ? 1.0f : 0.0f;
 		}
 
 		@Override
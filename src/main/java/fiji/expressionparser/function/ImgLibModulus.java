@@ -2,8 +2,6 @@ package fiji.expressionparser.function;
 
 import net.imglib2.type.numeric.RealType;
 
-import org.nfunk.jep.ParseException;
-
 public final class ImgLibModulus< T extends RealType< T > > extends
 		TwoOperandsPixelBasedAbstractFunction< T >
 {
@@ -13,15 +11,29 @@ public final class ImgLibModulus< T extends RealType< T > > extends
 					"This function computes the modulus of two ImgLib images, with the Java meaning " +
 					"of it, taking each pixel of the two images as its two operands. ";
 
+	/** The largest integer divisor computed in integer arithmetic, 2^24. */
+	public static final int MAX_INTEGER_DIVISOR = 1 << 24;
+
 	public ImgLibModulus()
 	{
 		numberOfParameters = 2;
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException
+	public final float evaluate( final float t1, final float t2 )
 	{
-		return t1.getRealFloat() % t2.getRealFloat();
+		return t1 % t2;
+	}
+
+	/**
+	 * Return {@link IntegerModulus} for a non-zero integer divisor that is
+	 * exact as a float, and <code>null</code> otherwise.
+	 */
+	@Override
+	public SingleOperandPixelBasedAbstractFunction< T > specialize( final float divisor )
+	{
+		if ( divisor != 0f && divisor == Math.rint( divisor ) && Math.abs( divisor ) <= MAX_INTEGER_DIVISOR ) { return new IntegerModulus< T >( ( int ) divisor ); }
+		return null;
 	}
 
 	@Override
@@ -42,4 +54,61 @@ public final class ImgLibModulus< T extends RealType< T > > extends
 		return "Pixel-wise, two operands, arc tangent";
 	}
 
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * The modulus by a constant integer. Operands that are integers, such as
+	 * the pixels of integer images, are computed with the integer
+	 * <code>%</code> instead of the much slower float one, with the same
+	 * result; the others with the float one.
+	 */
+	public static final class IntegerModulus< T extends RealType< T > > extends SingleOperandPixelBasedAbstractFunction< T >
+	{
+
+		private final int divisor;
+
+		public IntegerModulus( final int divisor )
+		{
+			numberOfParameters = 1;
+			this.divisor = divisor;
+		}
+
+		public int getDivisor()
+		{
+			return divisor;
+		}
+
+		@Override
+		public final float evaluate( final float alpha )
+		{
+			if ( alpha > -2147483648f && alpha < 2147483648f )
+			{
+				final int i = ( int ) alpha;
+				// The sign of the float result is the one of the operand, even for 0
+				if ( i == alpha ) { return Math.copySign( ( float ) ( i % divisor ), alpha ); }
+			}
+			return alpha % divisor;
+		}
+
+		@Override
+		public String getDocumentationString()
+		{
+			return DOCUMENTATION_STRING;
+		}
+
+		@Override
+		public String getFunctionString()
+		{
+			return "% " + divisor;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Pixel-wise modulus by " + divisor;
+		}
+	}
+
 }
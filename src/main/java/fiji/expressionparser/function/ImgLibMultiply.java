@@ -15,9 +15,15 @@ public final class ImgLibMultiply< T extends RealType< T > > extends TwoOperands
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R t1, final R t2 )
+	public final float evaluate( final float t1, final float t2 )
 	{
-		return t1.getRealFloat() * t2.getRealFloat();
+		return t1 * t2;
+	}
+
+	@Override
+	public final void evaluate( final float[] block1, final float[] block2, final float[] output, final int length )
+	{
+		BlockOperations.get().apply( BlockOperations.Operation.MULTIPLY, block1, block2, output, length );
 	}
 
 	@Override
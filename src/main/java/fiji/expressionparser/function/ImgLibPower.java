@@ -1,9 +1,8 @@
 package fiji.expressionparser.function;
 
+import fiji.expressionparser.Precision;
 import net.imglib2.type.numeric.RealType;
 
-import org.nfunk.jep.ParseException;
-
 public final class ImgLibPower< T extends RealType< T > > extends
 		TwoOperandsPixelBasedAbstractFunction< T >
 {
@@ -12,17 +11,60 @@ public final class ImgLibPower< T extends RealType< T > > extends
 			"<h3>Element-wise power</h3> " +
 					"This function computes the value of the first argument raised to the power of the second " +
 					"argument, pixel by pixel, with singleton exapnsion. " +
-					"Calculations are done using <i>Math.pow</i>.";
+					"Calculations are done using <i>Math.pow</i>, or <i>FloatMath.pow</i> in fast precision.";
+
+	/**
+	 * The largest absolute value of an integer exponent computed by
+	 * multiplications in the fast precision.
+	 */
+	public static final int MAX_INTEGER_EXPONENT = 64;
+
+	/** <code>true</code> to compute with {@link FloatMath}. */
+	private final boolean fast;
 
 	public ImgLibPower()
+	{
+		this( Precision.STRICT );
+	}
+
+	public ImgLibPower( final Precision precision )
 	{
 		numberOfParameters = 2;
+		fast = precision == Precision.FAST;
+	}
+
+	@Override
+	public final float evaluate( final float t1, final float t2 )
+	{
+		return fast ? FloatMath.pow( t1, t2 ) : ( float ) Math.pow( t1, t2 );
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException
+	public ImgLibPower< T > withPrecision( final Precision precision )
 	{
-		return ( float ) Math.pow( t1.getRealDouble(), t2.getRealDouble() );
+		return precision == getPrecision() ? this : new ImgLibPower< T >( precision );
+	}
+
+	@Override
+	public Precision getPrecision()
+	{
+		return fast ? Precision.FAST : Precision.STRICT;
+	}
+
+	/**
+	 * Return {@link SquareRoot} for 0.5, and {@link IntegerPower} for the
+	 * exponents 0, 1 and 2, for which they are exact. In the fast precision,
+	 * also return {@link IntegerPower} for the other integer exponents up to
+	 * {@link #MAX_INTEGER_EXPONENT} in absolute value. Return
+	 * <code>null</code> otherwise.
+	 */
+	@Override
+	public SingleOperandPixelBasedAbstractFunction< T > specialize( final float exponent )
+	{
+		if ( exponent == 0.5f ) { return new SquareRoot< T >(); }
+		if ( exponent == 0f || exponent == 1f || exponent == 2f ) { return new IntegerPower< T >( ( int ) exponent ); }
+		if ( fast && exponent == Math.rint( exponent ) && Math.abs( exponent ) <= MAX_INTEGER_EXPONENT ) { return new IntegerPower< T >( ( int ) exponent ); }
+		return null;
 	}
 
 	@Override
@@ -43,4 +85,122 @@ public final class ImgLibPower< T extends RealType< T > > extends
 		return "Value of first argument to the power of the second argument";
 	}
 
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * The power to a constant integer exponent, computed by repeated squaring
+	 * in double precision instead of {@link Math#pow(double, double)}. For the
+	 * exponents 0, 1 and 2, the double result is exact, so the results are
+	 * the ones of {@link Math#pow(double, double)} rounded to float. For the
+	 * others, they can differ from them in the last bit, in rare cases.
+	 */
+	public static final class IntegerPower< T extends RealType< T > > extends SingleOperandPixelBasedAbstractFunction< T >
+	{
+
+		private final int exponent;
+
+		public IntegerPower( final int exponent )
+		{
+			numberOfParameters = 1;
+			this.exponent = exponent;
+		}
+
+		public int getExponent()
+		{
+			return exponent;
+		}
+
+		@Override
+		public final float evaluate( final float alpha )
+		{
+			int n = Math.abs( exponent );
+			double power = alpha;
+			double result = 1;
+			while ( n != 0 )
+			{
+				if ( ( n & 1 ) != 0 )
+				{
+					result *= power;
+				}
+				power *= power;
+				n >>>= 1;
+			}
+			return ( float ) ( exponent < 0 ? 1 / result : result );
+		}
+
+		@Override
+		public void evaluate( final float[] block, final float[] output, final int length )
+		{
+			if ( exponent != 2 )
+			{
+				super.evaluate( block, output, length );
+				return;
+			}
+			// The product of two floats is exact in double, so this is exact
+			for ( int i = 0; i < length; i++ )
+			{
+				output[ i ] = block[ i ] * block[ i ];
+			}
+		}
+
+		@Override
+		public String getDocumentationString()
+		{
+			return DOCUMENTATION_STRING;
+		}
+
+		@Override
+		public String getFunctionString()
+		{
+			return "pow(*, " + exponent + ")";
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Value of argument to the power of " + exponent;
+		}
+	}
+
+	/**
+	 * The power to 0.5, computed with {@link Math#sqrt(double)}, with the
+	 * special cases of {@link Math#pow(double, double)}.
+	 */
+	public static final class SquareRoot< T extends RealType< T > > extends SingleOperandPixelBasedAbstractFunction< T >
+	{
+
+		public SquareRoot()
+		{
+			numberOfParameters = 1;
+		}
+
+		@Override
+		public final float evaluate( final float alpha )
+		{
+			// pow(-inf, 0.5) is +inf, and pow(-0, 0.5) is +0
+			if ( alpha == Float.NEGATIVE_INFINITY ) { return Float.POSITIVE_INFINITY; }
+			return ( float ) Math.sqrt( alpha + 0f );
+		}
+
+		@Override
+		public String getDocumentationString()
+		{
+			return DOCUMENTATION_STRING;
+		}
+
+		@Override
+		public String getFunctionString()
+		{
+			return "pow(*, 0.5)";
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Value of argument to the power of 0.5";
+		}
+	}
+
 }
@@ -17,9 +17,9 @@ public final class ImgLibRound< T extends RealType< T > > extends SingleOperandP
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R alpha )
+	public final float evaluate( final float alpha )
 	{
-		return ( float ) Math.round( alpha.getRealDouble() );
+		return ( float ) Math.round( ( double ) alpha );
 	}
 
 	public String getDocumentationString()
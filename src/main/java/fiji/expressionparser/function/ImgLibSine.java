@@ -1,5 +1,6 @@
 package fiji.expressionparser.function;
 
+import fiji.expressionparser.Precision;
 import net.imglib2.type.numeric.RealType;
 
 public final class ImgLibSine< T extends RealType< T > > extends SingleOperandPixelBasedAbstractFunction< T >
@@ -9,17 +10,38 @@ public final class ImgLibSine< T extends RealType< T > > extends SingleOperandPi
 			"<h3>Element-wise sine</h3> " +
 					"This function computes the sine of an ImgLib image, taking " +
 					"each pixel as its operand (must be in radians). " +
-					"Calculations are done using <i>Math.sin</i>.";
+					"Calculations are done using <i>Math.sin</i>, or <i>FloatMath.sin</i> in fast precision.";
+
+	/** <code>true</code> to compute with {@link FloatMath}. */
+	private final boolean fast;
 
 	public ImgLibSine()
+	{
+		this( Precision.STRICT );
+	}
+
+	public ImgLibSine( final Precision precision )
 	{
 		numberOfParameters = 1;
+		fast = precision == Precision.FAST;
+	}
+
+	@Override
+	public final float evaluate( final float alpha )
+	{
+		return fast ? FloatMath.sin( alpha ) : ( float ) Math.sin( alpha );
+	}
+
+	@Override
+	public ImgLibSine< T > withPrecision( final Precision precision )
+	{
+		return precision == getPrecision() ? this : new ImgLibSine< T >( precision );
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R alpha )
+	public Precision getPrecision()
 	{
-		return ( float ) Math.sin( alpha.getRealDouble() );
+		return fast ? Precision.FAST : Precision.STRICT;
 	}
 
 	public String getDocumentationString()
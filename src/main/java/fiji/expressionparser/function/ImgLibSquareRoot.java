@@ -17,9 +17,9 @@ public final class ImgLibSquareRoot< T extends RealType< T > > extends SingleOpe
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R alpha )
+	public final float evaluate( final float alpha )
 	{
-		return ( float ) Math.sqrt( alpha.getRealDouble() );
+		return ( float ) Math.sqrt( alpha );
 	}
 
 	@Override
@@ -1,5 +1,6 @@
 package fiji.expressionparser.function;
 
+import fiji.expressionparser.Precision;
 import net.imglib2.type.numeric.RealType;
 
 public final class ImgLibTangent< T extends RealType< T > > extends SingleOperandPixelBasedAbstractFunction< T >
@@ -9,17 +10,38 @@ public final class ImgLibTangent< T extends RealType< T > > extends SingleOperan
 			"<h3>Element-wise tangent</h3> " +
 					"This function computes the tangent of an ImgLib image, taking " +
 					"each pixel as its operand (must be in radians). " +
-					"Calculations are done using Math.tan";
+					"Calculations are done using <i>Math.tan</i>, or <i>FloatMath.tan</i> in fast precision.";
+
+	/** <code>true</code> to compute with {@link FloatMath}. */
+	private final boolean fast;
 
 	public ImgLibTangent()
+	{
+		this( Precision.STRICT );
+	}
+
+	public ImgLibTangent( final Precision precision )
 	{
 		numberOfParameters = 1;
+		fast = precision == Precision.FAST;
+	}
+
+	@Override
+	public final float evaluate( final float alpha )
+	{
+		return fast ? FloatMath.tan( alpha ) : ( float ) Math.tan( alpha );
+	}
+
+	@Override
+	public ImgLibTangent< T > withPrecision( final Precision precision )
+	{
+		return precision == getPrecision() ? this : new ImgLibTangent< T >( precision );
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R alpha )
+	public Precision getPrecision()
 	{
-		return ( float ) Math.tan( alpha.getRealDouble() );
+		return fast ? Precision.FAST : Precision.STRICT;
 	}
 
 	@Override
@@ -16,9 +16,18 @@ public final class ImgLibUMinus< T extends RealType< T > > extends SingleOperand
 	}
 
 	@Override
-	public final < R extends RealType< R > > float evaluate( final R alpha )
+	public final float evaluate( final float alpha )
 	{
-		return -alpha.getRealFloat();
+		return -alpha;
+	}
+
+	@Override
+	public final void evaluate( final float[] block, final float[] output, final int length )
+	{
+		for ( int i = 0; i < length; i++ )
+		{
+			output[ i ] = -block[ i ];
+		}
 	}
 
 	public String getDocumentationString()
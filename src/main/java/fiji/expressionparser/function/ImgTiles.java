@@ -0,0 +1,81 @@
+package fiji.expressionparser.function;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.view.Views;
+
+/**
+ * Splits images in tiles that can be computed independently, so that images
+ * larger than the heap, or than the 2^31 pixels of an
+ * {@link net.imglib2.img.array.ArrayImg}, can be processed one tile at a time.
+ * <p>
+ * The tiles of a cell image, such as a {@link net.imglib2.img.cell.CellImg}
+ * or a disk-cached cell image, are its cells: computing a tile then only
+ * touches the data of one cell. Other images are made of a single tile.
+ */
+public final class ImgTiles
+{
+
+	private ImgTiles()
+	{}
+
+	/**
+	 * Return the tiles of the given image, in the iteration order of its
+	 * cells.
+	 */
+	public static final List< Interval > getTiles( final Img< ? > img )
+	{
+		final List< Interval > tiles = new ArrayList< Interval >();
+		if ( img instanceof AbstractCellImg )
+		{
+			final RandomAccessibleInterval< ? extends Cell< ? > > cells = ( ( AbstractCellImg< ?, ?, ?, ? > ) img ).getCells();
+			for ( final Cell< ? > cell : Views.flatIterable( cells ) )
+			{
+				tiles.add( new FinalInterval( cell ) );
+			}
+		}
+		else
+		{
+			tiles.add( new FinalInterval( img ) );
+		}
+		return tiles;
+	}
+
+	/**
+	 * Return the data of the cell of the given image that covers exactly the
+	 * given tile, or <code>null</code> if the image is not a cell image, or if
+	 * the tile is not one of its cells. The pixels of the cell are stored in
+	 * flat iteration order over the tile.
+	 */
+	public static final Object getCellData( final Img< ? > img, final Interval tile )
+	{
+		if ( !( img instanceof AbstractCellImg ) || img.numDimensions() != tile.numDimensions() ) { return null; }
+		final AbstractCellImg< ?, ?, ?, ? > cell_img = ( AbstractCellImg< ?, ?, ?, ? > ) img;
+		final CellGrid grid = cell_img.getCellGrid();
+		final long[] grid_position = new long[ tile.numDimensions() ];
+		for ( int d = 0; d < grid_position.length; d++ )
+		{
+			if ( tile.min( d ) % grid.cellDimension( d ) != 0 ) { return null; }
+			grid_position[ d ] = tile.min( d ) / grid.cellDimension( d );
+		}
+
+		final RandomAccess< ? extends Cell< ? > > ra = cell_img.getCells().randomAccess();
+		ra.setPosition( grid_position );
+		final Cell< ? > cell = ra.get();
+		for ( int d = 0; d < grid_position.length; d++ )
+		{
+			if ( cell.min( d ) != tile.min( d ) || cell.dimension( d ) != tile.dimension( d ) ) { return null; }
+		}
+		return cell.getData();
+	}
+
+}
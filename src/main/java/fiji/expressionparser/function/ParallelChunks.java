@@ -0,0 +1,197 @@
+package fiji.expressionparser.function;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nfunk.jep.ParseException;
+
+/**
+ * Splits a loop over the pixels of an image into chunks of consecutive pixels
+ * in iteration order, and runs them on a {@link ForkJoinPool}.
+ * <p>
+ * A chunk is given as an offset and a length, so a task typically creates
+ * its own cursors, moves them to the start of the chunk with
+ * <code>Cursor.jumpFwd(offset)</code>, and iterates over <code>length</code>
+ * pixels. Images smaller than {@link #MIN_CHUNK_SIZE} pixels are processed
+ * in the calling thread.
+ * <p>
+ * All the evaluations share a single pool, with one thread per processor. An
+ * evaluation uses at most its requested number of threads of it, whatever the
+ * number of chunks.
+ */
+public final class ParallelChunks
+{
+
+	/** The minimal number of pixels in a chunk. */
+	public static final long MIN_CHUNK_SIZE = 1 << 16;
+
+	/** The number of chunks created per thread, to balance the load. */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * The pool shared by all evaluations, with one thread per processor. Its
+	 * threads are created on demand, and stop when they are idle.
+	 */
+	private static final ForkJoinPool POOL = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+
+	/**
+	 * A task run on one chunk of pixels.
+	 */
+	public interface Task
+	{
+		/**
+		 * Process the pixels <code>offset</code> to
+		 * <code>offset + length - 1</code>, in iteration order.
+		 */
+		public void run( final long offset, final long length ) throws ParseException;
+	}
+
+	private ParallelChunks()
+	{}
+
+	/**
+	 * Run the given task over <code>size</code> pixels, split in chunks
+	 * processed by at most <code>numThreads</code> threads. Returns when all
+	 * the chunks are done.
+	 *
+	 * @param size
+	 *            The total number of pixels
+	 * @param numThreads
+	 *            The maximal number of threads to use
+	 * @param task
+	 *            The task to run on every chunk
+	 * @throws ParseException
+	 *             If the task throws it on one of the chunks
+	 */
+	public static void run( final long size, final int numThreads, final Task task ) throws ParseException
+	{
+		run( size, MIN_CHUNK_SIZE, numThreads, task );
+	}
+
+	/**
+	 * Run the given task over <code>size</code> items, split in chunks of at
+	 * least <code>minChunkSize</code> items, processed by at most
+	 * <code>numThreads</code> threads. Use it to distribute items that are
+	 * more expensive than a pixel, such as the tiles of an image.
+	 *
+	 * @param size
+	 *            The total number of items
+	 * @param minChunkSize
+	 *            The minimal number of items in a chunk
+	 * @param numThreads
+	 *            The maximal number of threads to use
+	 * @param task
+	 *            The task to run on every chunk
+	 * @throws ParseException
+	 *             If the task throws it on one of the chunks
+	 */
+	public static void run( final long size, final long minChunkSize, final int numThreads, final Task task ) throws ParseException
+	{
+		final long n_chunks = Math.min( ( long ) numThreads * CHUNKS_PER_THREAD, size / minChunkSize );
+		if ( numThreads <= 1 || n_chunks <= 1 )
+		{
+			task.run( 0, size );
+			return;
+		}
+
+		// At most numThreads workers, that take the chunks in turn
+		final long chunk_size = ( size + n_chunks - 1 ) / n_chunks;
+		final long n_actual_chunks = ( size + chunk_size - 1 ) / chunk_size;
+		final AtomicLong next_chunk = new AtomicLong();
+		final int n_workers = ( int ) Math.min( numThreads, n_actual_chunks );
+		final List< Callable< Void > > workers = new ArrayList< Callable< Void > >( n_workers );
+		for ( int i = 0; i < n_workers; i++ )
+		{
+			workers.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					long chunk;
+					while ( ( chunk = next_chunk.getAndIncrement() ) < n_actual_chunks )
+					{
+						final long offset = chunk * chunk_size;
+						task.run( offset, Math.min( chunk_size, size - offset ) );
+					}
+					return null;
+				}
+			} );
+		}
+
+		final List< Future< Void > > futures = POOL.invokeAll( workers );
+		for ( final Future< Void > future : futures )
+		{
+			try
+			{
+				future.get();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new ParseException( "Evaluation interrupted." );
+			}
+			catch ( final ExecutionException e )
+			{
+				final Throwable cause = e.getCause();
+				if ( cause instanceof ParseException ) { throw ( ParseException ) cause; }
+				if ( cause instanceof RuntimeException ) { throw ( RuntimeException ) cause; }
+				if ( cause instanceof Error ) { throw ( Error ) cause; }
+				throw new RuntimeException( cause );
+			}
+		}
+	}
+
+	/**
+	 * Run the given task over <code>size</code> pixels, like
+	 * {@link #run(long, int, Task)}, but with chunks that all start at a
+	 * multiple of <code>alignment</code>. Use it to write images that pack
+	 * several pixels in one storage word.
+	 *
+	 * @param size
+	 *            The total number of pixels
+	 * @param alignment
+	 *            The number of pixels the chunk offsets must be a multiple of
+	 * @param numThreads
+	 *            The maximal number of threads to use
+	 * @param task
+	 *            The task to run on every chunk
+	 * @throws ParseException
+	 *             If the task throws it on one of the chunks
+	 * @see PixelBlockWriter#getAlignment(net.imglib2.img.Img)
+	 */
+	public static void runAligned( final long size, final long alignment, final int numThreads, final Task task ) throws ParseException
+	{
+		if ( alignment <= 1 )
+		{
+			run( size, numThreads, task );
+			return;
+		}
+
+		final long n_units = ( size + alignment - 1 ) / alignment;
+		run( n_units, Math.max( 1, MIN_CHUNK_SIZE / alignment ), numThreads, new Task()
+		{
+			@Override
+			public void run( final long offset, final long length ) throws ParseException
+			{
+				final long start = offset * alignment;
+				task.run( start, Math.min( length * alignment, size - start ) );
+			}
+		} );
+	}
+
+	/**
+	 * Return the pool shared by all evaluations. Tasks that run work
+	 * concurrently with an evaluation, such as the channels of a RGB image,
+	 * can be submitted to it too, instead of creating threads.
+	 */
+	public static ForkJoinPool getPool()
+	{
+		return POOL;
+	}
+
+}
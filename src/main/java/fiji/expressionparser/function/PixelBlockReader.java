@@ -0,0 +1,587 @@
+package fiji.expressionparser.function;
+
+import java.lang.reflect.Array;
+
+import net.imglib2.Cursor;
+import net.imglib2.FlatIterationOrder;
+import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Reads the pixel values of an image as float, block by block, in flat
+ * iteration order. This is the order in which the <i>FloatType</i> images
+ * returned by the functions of this package are iterated, so a reader can be
+ * used to feed any image to a loop writing such a result, whatever the
+ * iteration order of its container.
+ * <p>
+ * {@link ArrayImg}s and {@link PlanarImg}s of the common ImageJ types, backed
+ * by primitive arrays, are read directly from their storage arrays, plane by
+ * plane, in tight loops without any per-pixel virtual call. Other images are
+ * read through a cursor, with a reader specialized for the pixel type of the
+ * image when it is one of the common ImageJ types. When an image is read tile
+ * by tile, the cells of a cell image are read directly as well, see
+ * {@link ImgTiles}.
+ * <p>
+ * A reader is chosen for each input when an evaluation starts, so every
+ * combination of input types is evaluated with dedicated readers feeding the
+ * primitive <code>float</code> methods of the functions.
+ */
+public abstract class PixelBlockReader
+{
+
+	/**
+	 * Read the next <code>length</code> pixel values in the first elements of
+	 * the given block.
+	 *
+	 * @param block
+	 *            The array to write the values in
+	 * @param length
+	 *            The number of pixels to read
+	 */
+	public abstract void read( final float[] block, final int length );
+
+	/**
+	 * Return a reader that iterates over the pixels of the given image, in
+	 * flat iteration order, starting from the first pixel.
+	 *
+	 * @param img
+	 *            The image to read
+	 * @return A new reader
+	 */
+	public static final < R extends RealType< R > > PixelBlockReader create( final Img< R > img )
+	{
+		return create( img, 0 );
+	}
+
+	/**
+	 * Return a reader that iterates over the pixels of the given image, in
+	 * flat iteration order, starting from the pixel at the given index.
+	 *
+	 * @param img
+	 *            The image to read
+	 * @param offset
+	 *            The index of the first pixel to read, in flat iteration order
+	 * @return A new reader
+	 */
+	public static final < R extends RealType< R > > PixelBlockReader create( final Img< R > img, final long offset )
+	{
+		final Object[] planes = getPlanes( img );
+		if ( null != planes )
+		{
+			final ArrayReader reader = createArrayReader( img.firstElement(), planes );
+			if ( null != reader )
+			{
+				reader.skip( offset );
+				return reader;
+			}
+		}
+
+		final IterableInterval< R > flat;
+		if ( img.iterationOrder() instanceof FlatIterationOrder )
+		{
+			flat = img;
+		}
+		else
+		{
+			flat = Views.flatIterable( img );
+		}
+		final Cursor< R > cursor = flat.cursor();
+		cursor.jumpFwd( offset );
+		if ( img.size() == 0 ) { return new CursorReader< R >( cursor ); }
+		return createCursorReader( img.firstElement(), cursor );
+	}
+
+	/**
+	 * Return a reader that iterates over the pixels of the given image within
+	 * a tile, in flat iteration order over the tile. If the image is a cell
+	 * image whose cell is exactly this tile, the storage array of the cell is
+	 * read directly.
+	 *
+	 * @param img
+	 *            The image to read
+	 * @param tile
+	 *            The interval to read, within the image
+	 * @return A new reader
+	 * @see ImgTiles
+	 */
+	public static final < R extends RealType< R > > PixelBlockReader create( final Img< R > img, final Interval tile )
+	{
+		if ( isWholeImage( img, tile ) ) { return create( img ); }
+
+		final Object data = ImgTiles.getCellData( img, tile );
+		if ( data instanceof ArrayDataAccess )
+		{
+			final ArrayReader reader = createArrayReader( img.firstElement(), new Object[] { ( ( ArrayDataAccess< ? > ) data ).getCurrentStorageArray() } );
+			if ( null != reader ) { return reader; }
+		}
+
+		final Cursor< R > cursor = Views.flatIterable( Views.interval( img, tile ) ).cursor();
+		return createCursorReader( img.firstElement(), cursor );
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private static final boolean isWholeImage( final Img< ? > img, final Interval tile )
+	{
+		for ( int d = 0; d < img.numDimensions(); d++ )
+		{
+			if ( tile.min( d ) != img.min( d ) || tile.max( d ) != img.max( d ) ) { return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * Return the primitive storage arrays of the given image, in flat
+	 * iteration order, or <code>null</code> if it is not backed by primitive
+	 * arrays.
+	 */
+	private static final Object[] getPlanes( final Img< ? > img )
+	{
+		if ( img.size() == 0 )
+		{
+			return null;
+		}
+		else if ( img instanceof ArrayImg )
+		{
+			final Object access = ( ( ArrayImg< ?, ? > ) img ).update( null );
+			if ( !( access instanceof ArrayDataAccess ) ) { return null; }
+			return new Object[] { ( ( ArrayDataAccess< ? > ) access ).getCurrentStorageArray() };
+		}
+		else if ( img instanceof PlanarImg )
+		{
+			final PlanarImg< ?, ? > planar = ( PlanarImg< ?, ? > ) img;
+			final Object[] planes = new Object[ planar.numSlices() ];
+			for ( int i = 0; i < planes.length; i++ )
+			{
+				planes[ i ] = planar.getPlane( i ).getCurrentStorageArray();
+			}
+			return planes;
+		}
+		return null;
+	}
+
+	/**
+	 * Return a reader for the given storage arrays and pixel type, or
+	 * <code>null</code> if this combination is not supported.
+	 */
+	private static final ArrayReader createArrayReader( final Object type, final Object[] planes )
+	{
+		if ( planes.length == 0 ) { return null; }
+		final Class< ? > array_class = planes[ 0 ].getClass();
+		for ( final Object plane : planes )
+		{
+			if ( plane.getClass() != array_class ) { return null; }
+		}
+
+		final Class< ? > type_class = type.getClass();
+		if ( array_class == byte[].class )
+		{
+			if ( type_class == UnsignedByteType.class ) { return new UnsignedByteReader( planes ); }
+			if ( type_class == ByteType.class ) { return new ByteReader( planes ); }
+		}
+		else if ( array_class == short[].class )
+		{
+			if ( type_class == UnsignedShortType.class ) { return new UnsignedShortReader( planes ); }
+			if ( type_class == ShortType.class ) { return new ShortReader( planes ); }
+		}
+		else if ( array_class == int[].class )
+		{
+			if ( type_class == UnsignedIntType.class ) { return new UnsignedIntReader( planes ); }
+			if ( type_class == IntType.class ) { return new IntReader( planes ); }
+		}
+		else if ( array_class == float[].class )
+		{
+			if ( type_class == FloatType.class ) { return new FloatReader( planes ); }
+		}
+		return null;
+	}
+
+	/**
+	 * Return a cursor reader specialized for the given pixel type, so that the
+	 * pixel values are read with a monomorphic call to the getter of this
+	 * type, instead of through {@link RealType#getRealFloat()}.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static final < R extends RealType< R > > PixelBlockReader createCursorReader( final R type, final Cursor< R > cursor )
+	{
+		final Class< ? > type_class = type.getClass();
+		if ( type_class == UnsignedByteType.class ) { return new UnsignedByteCursorReader( ( Cursor< UnsignedByteType > ) cursor ); }
+		if ( type_class == UnsignedShortType.class ) { return new UnsignedShortCursorReader( ( Cursor< UnsignedShortType > ) cursor ); }
+		if ( type_class == FloatType.class ) { return new FloatCursorReader( ( Cursor< FloatType > ) cursor ); }
+		return new CursorReader< R >( cursor );
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	private static final class CursorReader< R extends RealType< R > > extends PixelBlockReader
+	{
+
+		private final Cursor< R > cursor;
+
+		private CursorReader( final Cursor< R > cursor )
+		{
+			this.cursor = cursor;
+		}
+
+		@Override
+		public void read( final float[] block, final int length )
+		{
+			for ( int i = 0; i < length; i++ )
+			{
+				block[ i ] = cursor.next().getRealFloat();
+			}
+		}
+	}
+
+	private static final class UnsignedByteCursorReader extends PixelBlockReader
+	{
+
+		private final Cursor< UnsignedByteType > cursor;
+
+		private UnsignedByteCursorReader( final Cursor< UnsignedByteType > cursor )
+		{
+			this.cursor = cursor;
+		}
+
+		@Override
+		public void read( final float[] block, final int length )
+		{
+			for ( int i = 0; i < length; i++ )
+			{
+				block[ i ] = cursor.next().get();
+			}
+		}
+	}
+
+	private static final class UnsignedShortCursorReader extends PixelBlockReader
+	{
+
+		private final Cursor< UnsignedShortType > cursor;
+
+		private UnsignedShortCursorReader( final Cursor< UnsignedShortType > cursor )
+		{
+			this.cursor = cursor;
+		}
+
+		@Override
+		public void read( final float[] block, final int length )
+		{
+			for ( int i = 0; i < length; i++ )
+			{
+				block[ i ] = cursor.next().get();
+			}
+		}
+	}
+
+	private static final class FloatCursorReader extends PixelBlockReader
+	{
+
+		private final Cursor< FloatType > cursor;
+
+		private FloatCursorReader( final Cursor< FloatType > cursor )
+		{
+			this.cursor = cursor;
+		}
+
+		@Override
+		public void read( final float[] block, final int length )
+		{
+			for ( int i = 0; i < length; i++ )
+			{
+				block[ i ] = cursor.next().get();
+			}
+		}
+	}
+
+	/**
+	 * Reads pixel values from a list of primitive arrays, one per plane.
+	 * Subclasses convert a run of values from one plane.
+	 */
+	private static abstract class ArrayReader extends PixelBlockReader
+	{
+
+		/** The index of the current plane. */
+		protected int plane = 0;
+
+		/** The position of the next value in the current plane. */
+		protected int position = 0;
+
+		/** The length of each plane. */
+		private final int[] lengths;
+
+		protected ArrayReader( final int[] lengths )
+		{
+			this.lengths = lengths;
+		}
+
+		/**
+		 * Convert <code>length</code> values of the current plane, starting at
+		 * {@link #position}, into <code>block</code>, starting at
+		 * <code>start</code>.
+		 */
+		protected abstract void copy( final float[] block, final int start, final int length );
+
+		@Override
+		public final void read( final float[] block, final int length )
+		{
+			int done = 0;
+			while ( done < length )
+			{
+				while ( position >= lengths[ plane ] )
+				{
+					plane++;
+					position = 0;
+				}
+				final int n = Math.min( length - done, lengths[ plane ] - position );
+				copy( block, done, n );
+				position += n;
+				done += n;
+			}
+		}
+
+		private void skip( long offset )
+		{
+			while ( plane < lengths.length && offset >= lengths[ plane ] )
+			{
+				offset -= lengths[ plane ];
+				plane++;
+			}
+			position = ( int ) offset;
+			if ( plane == lengths.length )
+			{
+				// Positioned at the end
+				plane = lengths.length - 1;
+				position = lengths[ plane ];
+			}
+		}
+	}
+
+	private static final class UnsignedByteReader extends ArrayReader
+	{
+
+		private final byte[][] planes;
+
+		private UnsignedByteReader( final Object[] data )
+		{
+			this( toArrays( data, new byte[ data.length ][] ) );
+		}
+
+		private UnsignedByteReader( final byte[][] planes )
+		{
+			super( lengths( planes ) );
+			this.planes = planes;
+		}
+
+		@Override
+		protected void copy( final float[] block, final int start, final int length )
+		{
+			final byte[] data = planes[ plane ];
+			final int offset = position - start;
+			for ( int i = start; i < start + length; i++ )
+			{
+				block[ i ] = data[ i + offset ] & 0xff;
+			}
+		}
+	}
+
+	private static final class ByteReader extends ArrayReader
+	{
+
+		private final byte[][] planes;
+
+		private ByteReader( final Object[] data )
+		{
+			this( toArrays( data, new byte[ data.length ][] ) );
+		}
+
+		private ByteReader( final byte[][] planes )
+		{
+			super( lengths( planes ) );
+			this.planes = planes;
+		}
+
+		@Override
+		protected void copy( final float[] block, final int start, final int length )
+		{
+			final byte[] data = planes[ plane ];
+			final int offset = position - start;
+			for ( int i = start; i < start + length; i++ )
+			{
+				block[ i ] = data[ i + offset ];
+			}
+		}
+	}
+
+	private static final class UnsignedShortReader extends ArrayReader
+	{
+
+		private final short[][] planes;
+
+		private UnsignedShortReader( final Object[] data )
+		{
+			this( toArrays( data, new short[ data.length ][] ) );
+		}
+
+		private UnsignedShortReader( final short[][] planes )
+		{
+			super( lengths( planes ) );
+			this.planes = planes;
+		}
+
+		@Override
+		protected void copy( final float[] block, final int start, final int length )
+		{
+			final short[] data = planes[ plane ];
+			final int offset = position - start;
+			for ( int i = start; i < start + length; i++ )
+			{
+				block[ i ] = data[ i + offset ] & 0xffff;
+			}
+		}
+	}
+
+	private static final class ShortReader extends ArrayReader
+	{
+
+		private final short[][] planes;
+
+		private ShortReader( final Object[] data )
+		{
+			this( toArrays( data, new short[ data.length ][] ) );
+		}
+
+		private ShortReader( final short[][] planes )
+		{
+			super( lengths( planes ) );
+			this.planes = planes;
+		}
+
+		@Override
+		protected void copy( final float[] block, final int start, final int length )
+		{
+			final short[] data = planes[ plane ];
+			final int offset = position - start;
+			for ( int i = start; i < start + length; i++ )
+			{
+				block[ i ] = data[ i + offset ];
+			}
+		}
+	}
+
+	private static final class UnsignedIntReader extends ArrayReader
+	{
+
+		private final int[][] planes;
+
+		private UnsignedIntReader( final Object[] data )
+		{
+			this( toArrays( data, new int[ data.length ][] ) );
+		}
+
+		private UnsignedIntReader( final int[][] planes )
+		{
+			super( lengths( planes ) );
+			this.planes = planes;
+		}
+
+		@Override
+		protected void copy( final float[] block, final int start, final int length )
+		{
+			final int[] data = planes[ plane ];
+			final int offset = position - start;
+			for ( int i = start; i < start + length; i++ )
+			{
+				block[ i ] = data[ i + offset ] & 0xffffffffL;
+			}
+		}
+	}
+
+	private static final class IntReader extends ArrayReader
+	{
+
+		private final int[][] planes;
+
+		private IntReader( final Object[] data )
+		{
+			this( toArrays( data, new int[ data.length ][] ) );
+		}
+
+		private IntReader( final int[][] planes )
+		{
+			super( lengths( planes ) );
+			this.planes = planes;
+		}
+
+		@Override
+		protected void copy( final float[] block, final int start, final int length )
+		{
+			final int[] data = planes[ plane ];
+			final int offset = position - start;
+			for ( int i = start; i < start + length; i++ )
+			{
+				block[ i ] = data[ i + offset ];
+			}
+		}
+	}
+
+	private static final class FloatReader extends ArrayReader
+	{
+
+		private final float[][] planes;
+
+		private FloatReader( final Object[] data )
+		{
+			this( toArrays( data, new float[ data.length ][] ) );
+		}
+
+		private FloatReader( final float[][] planes )
+		{
+			super( lengths( planes ) );
+			this.planes = planes;
+		}
+
+		@Override
+		protected void copy( final float[] block, final int start, final int length )
+		{
+			System.arraycopy( planes[ plane ], position, block, start, length );
+		}
+	}
+
+	/*
+	 * STATIC UTILS
+	 */
+
+	private static final < A > A[] toArrays( final Object[] data, final A[] target )
+	{
+		System.arraycopy( data, 0, target, 0, data.length );
+		return target;
+	}
+
+	private static final int[] lengths( final Object[] planes )
+	{
+		final int[] lengths = new int[ planes.length ];
+		for ( int i = 0; i < planes.length; i++ )
+		{
+			lengths[ i ] = Array.getLength( planes[ i ] );
+		}
+		return lengths;
+	}
+
+}
@@ -0,0 +1,471 @@
+package fiji.expressionparser.function;
+
+import fiji.expressionparser.PixelStatistics;
+import net.imglib2.Cursor;
+import net.imglib2.FlatIterationOrder;
+import net.imglib2.IterableInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Writes float pixel values into an image, block by block, in flat iteration
+ * order. This is the counterpart of {@link PixelBlockReader}, used to store
+ * the result of a kernel in an image of any type.
+ * <p>
+ * Values are converted to the type of the image: for integer types, they are
+ * rounded and clamped to the range of the type, and NaN becomes 0. For a
+ * {@link BitType}, any value other than 0 and NaN is <code>true</code>.
+ * {@link ArrayImg}s of {@link FloatType}, {@link UnsignedByteType},
+ * {@link UnsignedShortType} and {@link BitType}, and {@link PlanarImg}s of
+ * {@link FloatType}, such as the images wrapping a 32-bit ImageJ stack, are
+ * written directly in their storage arrays. Other images are written through
+ * a cursor.
+ * <p>
+ * A {@link BitType} image packs 64 pixels in each <code>long</code>, so two
+ * writers running concurrently on such an image must not share a word: their
+ * chunks must start at a multiple of {@link #getAlignment(Img)}.
+ * <p>
+ * A writer can also count the values it stores in {@link PixelStatistics},
+ * see {@link #create(Img, long, PixelStatistics)}, so that the statistics of a
+ * result are known without reading it again.
+ */
+public abstract class PixelBlockWriter
+{
+
+	/**
+	 * Write the first <code>length</code> values of the given block in the
+	 * next <code>length</code> pixels.
+	 *
+	 * @param block
+	 *            The values to write
+	 * @param length
+	 *            The number of pixels to write
+	 */
+	public abstract void write( final float[] block, final int length );
+
+	/**
+	 * Return a writer that iterates over the pixels of the given image, in
+	 * flat iteration order, starting from the pixel at the given index.
+	 *
+	 * @param img
+	 *            The image to write
+	 * @param offset
+	 *            The index of the first pixel to write, in flat iteration
+	 *            order
+	 * @return A new writer
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static final < R extends RealType< R > > PixelBlockWriter create( final Img< R > img, final long offset )
+	{
+		if ( img instanceof ArrayImg && img.size() > 0 )
+		{
+			final Object data = ( ( ArrayImg< ?, ? > ) img ).update( null );
+			final Class< ? > type_class = img.firstElement().getClass();
+			if ( data.getClass() == FloatArray.class && type_class == FloatType.class ) { return new FloatArrayWriter( ( ( FloatArray ) data ).getCurrentStorageArray(), ( int ) offset ); }
+			if ( data.getClass() == ByteArray.class && type_class == UnsignedByteType.class ) { return new UnsignedByteArrayWriter( ( ( ByteArray ) data ).getCurrentStorageArray(), ( int ) offset ); }
+			if ( data.getClass() == ShortArray.class && type_class == UnsignedShortType.class ) { return new UnsignedShortArrayWriter( ( ( ShortArray ) data ).getCurrentStorageArray(), ( int ) offset ); }
+			if ( data.getClass() == LongArray.class && type_class == BitType.class ) { return new BitArrayWriter( ( ( LongArray ) data ).getCurrentStorageArray(), offset ); }
+		}
+		else if ( img instanceof PlanarImg && img.size() > 0 && img.firstElement().getClass() == FloatType.class )
+		{
+			final float[][] planes = getFloatPlanes( ( PlanarImg< ?, ? > ) img );
+			if ( null != planes ) { return new FloatPlanesWriter( planes, offset ); }
+		}
+
+		final IterableInterval< R > flat;
+		if ( img.iterationOrder() instanceof FlatIterationOrder )
+		{
+			flat = img;
+		}
+		else
+		{
+			flat = Views.flatIterable( img );
+		}
+		final Cursor< R > cursor = flat.cursor();
+		cursor.jumpFwd( offset );
+		if ( img.size() == 0 ) { return new RealCursorWriter< R >( cursor ); }
+
+		final R type = img.firstElement();
+		if ( type instanceof BitType ) { return new BitCursorWriter( ( Cursor< BitType > ) ( Cursor< ? > ) cursor ); }
+		if ( type instanceof IntegerType ) { return new IntegerCursorWriter< R >( cursor, type.getMinValue(), type.getMaxValue() ); }
+		return new RealCursorWriter< R >( cursor );
+	}
+
+	/**
+	 * Return a writer like {@link #create(Img, long)}, that also counts the
+	 * values it stores in the given statistics. The values are counted after
+	 * their conversion to the type of the image.
+	 *
+	 * @param img
+	 *            The image to write
+	 * @param offset
+	 *            The index of the first pixel to write, in flat iteration
+	 *            order
+	 * @param statistics
+	 *            The statistics to accumulate in, not shared with other
+	 *            writers, or <code>null</code> to count nothing
+	 * @return A new writer
+	 */
+	public static final < R extends RealType< R > > PixelBlockWriter create( final Img< R > img, final long offset, final PixelStatistics statistics )
+	{
+		final PixelBlockWriter writer = create( img, offset );
+		if ( null == statistics ) { return writer; }
+		if ( img.size() > 0 )
+		{
+			final R type = img.firstElement();
+			if ( type instanceof BitType ) { return new StatisticsWriter( writer, statistics, 0, 1, true ); }
+			if ( type instanceof IntegerType ) { return new StatisticsWriter( writer, statistics, type.getMinValue(), type.getMaxValue(), false ); }
+		}
+		return new StatisticsWriter( writer, statistics );
+	}
+
+	/**
+	 * Return the number of pixels that the chunks written concurrently in the
+	 * given image must be a multiple of: 64 for an {@link ArrayImg} of
+	 * {@link BitType}, the size of the image for other images whose pixels are
+	 * packed in words, which must therefore be written by a single writer, and
+	 * 1 otherwise.
+	 */
+	public static final long getAlignment( final Img< ? > img )
+	{
+		if ( img.size() == 0 ) { return 1; }
+		final Object type = img.firstElement();
+		if ( !( type instanceof RealType ) || ( ( RealType< ? > ) type ).getBitsPerPixel() % 8 == 0 ) { return 1; }
+		if ( img instanceof ArrayImg && type.getClass() == BitType.class ) { return Long.SIZE; }
+		return img.size();
+	}
+
+	/**
+	 * Round and clamp a value to the range <code>[0, max]</code>. NaN becomes
+	 * 0.
+	 */
+	public static final int toUnsigned( final float value, final int max )
+	{
+		if ( !( value > 0f ) ) { return 0; }
+		if ( value >= max ) { return max; }
+		return ( int ) ( value + 0.5f );
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Return the storage arrays of the planes of the given image, or
+	 * <code>null</code> if they are not all {@link FloatArray}s.
+	 */
+	private static final float[][] getFloatPlanes( final PlanarImg< ?, ? > planar )
+	{
+		final float[][] planes = new float[ planar.numSlices() ][];
+		for ( int i = 0; i < planes.length; i++ )
+		{
+			final Object plane = planar.getPlane( i );
+			if ( plane.getClass() != FloatArray.class ) { return null; }
+			planes[ i ] = ( ( FloatArray ) plane ).getCurrentStorageArray();
+		}
+		return planes;
+	}
+
+	private static final boolean isTrue( final float value )
+	{
+		return value != 0f && !Float.isNaN( value );
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	private static final class FloatArrayWriter extends PixelBlockWriter
+	{
+
+		private final float[] output;
+
+		private int position;
+
+		private FloatArrayWriter( final float[] output, final int offset )
+		{
+			this.output = output;
+			this.position = offset;
+		}
+
+		@Override
+		public void write( final float[] block, final int length )
+		{
+			System.arraycopy( block, 0, output, position, length );
+			position += length;
+		}
+	}
+
+	private static final class FloatPlanesWriter extends PixelBlockWriter
+	{
+
+		private final float[][] planes;
+
+		/** The index of the current plane. */
+		private int plane = 0;
+
+		/** The position of the next value in the current plane. */
+		private int position;
+
+		private FloatPlanesWriter( final float[][] planes, long offset )
+		{
+			this.planes = planes;
+			while ( plane < planes.length - 1 && offset >= planes[ plane ].length )
+			{
+				offset -= planes[ plane ].length;
+				plane++;
+			}
+			this.position = ( int ) offset;
+		}
+
+		@Override
+		public void write( final float[] block, final int length )
+		{
+			int done = 0;
+			while ( done < length )
+			{
+				while ( position >= planes[ plane ].length )
+				{
+					plane++;
+					position = 0;
+				}
+				final int n = Math.min( length - done, planes[ plane ].length - position );
+				System.arraycopy( block, done, planes[ plane ], position, n );
+				position += n;
+				done += n;
+			}
+		}
+	}
+
+	/**
+	 * Counts the values written by another writer. For integer types, the
+	 * values are converted to the stored ones first, in a block of its own.
+	 */
+	private static final class StatisticsWriter extends PixelBlockWriter
+	{
+
+		private final PixelBlockWriter writer;
+
+		private final PixelStatistics statistics;
+
+		/** If false, the values are counted as they are. */
+		private final boolean convert;
+
+		private final double min;
+
+		private final double max;
+
+		private final boolean bit;
+
+		private float[] converted;
+
+		private StatisticsWriter( final PixelBlockWriter writer, final PixelStatistics statistics )
+		{
+			this.writer = writer;
+			this.statistics = statistics;
+			this.convert = false;
+			this.min = 0;
+			this.max = 0;
+			this.bit = false;
+		}
+
+		private StatisticsWriter( final PixelBlockWriter writer, final PixelStatistics statistics, final double min, final double max, final boolean bit )
+		{
+			this.writer = writer;
+			this.statistics = statistics;
+			this.convert = true;
+			this.min = min;
+			this.max = max;
+			this.bit = bit;
+		}
+
+		@Override
+		public void write( final float[] block, final int length )
+		{
+			writer.write( block, length );
+			if ( !convert )
+			{
+				statistics.add( block, length );
+				return;
+			}
+			if ( null == converted || converted.length < length )
+			{
+				converted = new float[ length ];
+			}
+			for ( int i = 0; i < length; i++ )
+			{
+				final float value = block[ i ];
+				if ( bit )
+				{
+					converted[ i ] = isTrue( value ) ? 1f : 0f;
+				}
+				else
+				{
+					converted[ i ] = Float.isNaN( value ) ? 0f : ( float ) Math.max( min, Math.min( max, Math.floor( value + 0.5 ) ) );
+				}
+			}
+			statistics.add( converted, length );
+		}
+	}
+
+	private static final class UnsignedByteArrayWriter extends PixelBlockWriter
+	{
+
+		private final byte[] output;
+
+		private int position;
+
+		private UnsignedByteArrayWriter( final byte[] output, final int offset )
+		{
+			this.output = output;
+			this.position = offset;
+		}
+
+		@Override
+		public void write( final float[] block, final int length )
+		{
+			for ( int i = 0; i < length; i++ )
+			{
+				output[ position + i ] = ( byte ) toUnsigned( block[ i ], 0xff );
+			}
+			position += length;
+		}
+	}
+
+	private static final class UnsignedShortArrayWriter extends PixelBlockWriter
+	{
+
+		private final short[] output;
+
+		private int position;
+
+		private UnsignedShortArrayWriter( final short[] output, final int offset )
+		{
+			this.output = output;
+			this.position = offset;
+		}
+
+		@Override
+		public void write( final float[] block, final int length )
+		{
+			for ( int i = 0; i < length; i++ )
+			{
+				output[ position + i ] = ( short ) toUnsigned( block[ i ], 0xffff );
+			}
+			position += length;
+		}
+	}
+
+	private static final class BitArrayWriter extends PixelBlockWriter
+	{
+
+		private final long[] output;
+
+		private long position;
+
+		private BitArrayWriter( final long[] output, final long offset )
+		{
+			this.output = output;
+			this.position = offset;
+		}
+
+		@Override
+		public void write( final float[] block, final int length )
+		{
+			for ( int i = 0; i < length; i++ )
+			{
+				final int word = ( int ) ( position >>> 6 );
+				final long mask = 1l << ( position & 63 );
+				if ( isTrue( block[ i ] ) )
+				{
+					output[ word ] |= mask;
+				}
+				else
+				{
+					output[ word ] &= ~mask;
+				}
+				position++;
+			}
+		}
+	}
+
+	private static final class BitCursorWriter extends PixelBlockWriter
+	{
+
+		private final Cursor< BitType > cursor;
+
+		private BitCursorWriter( final Cursor< BitType > cursor )
+		{
+			this.cursor = cursor;
+		}
+
+		@Override
+		public void write( final float[] block, final int length )
+		{
+			for ( int i = 0; i < length; i++ )
+			{
+				cursor.next().set( isTrue( block[ i ] ) );
+			}
+		}
+	}
+
+	private static final class IntegerCursorWriter< R extends RealType< R > > extends PixelBlockWriter
+	{
+
+		private final Cursor< R > cursor;
+
+		private final double min;
+
+		private final double max;
+
+		private IntegerCursorWriter( final Cursor< R > cursor, final double min, final double max )
+		{
+			this.cursor = cursor;
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		public void write( final float[] block, final int length )
+		{
+			for ( int i = 0; i < length; i++ )
+			{
+				final float value = block[ i ];
+				cursor.next().setReal( Float.isNaN( value ) ? 0 : Math.max( min, Math.min( max, Math.floor( value + 0.5 ) ) ) );
+			}
+		}
+	}
+
+	private static final class RealCursorWriter< R extends RealType< R > > extends PixelBlockWriter
+	{
+
+		private final Cursor< R > cursor;
+
+		private RealCursorWriter( final Cursor< R > cursor )
+		{
+			this.cursor = cursor;
+		}
+
+		@Override
+		public void write( final float[] block, final int length )
+		{
+			for ( int i = 0; i < length; i++ )
+			{
+				cursor.next().setReal( block[ i ] );
+			}
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+package fiji.expressionparser.function;
+
+/**
+ * The scalar backend of {@link BlockOperations}: one loop per operation,
+ * simple enough for the JIT to unroll, and to vectorize the arithmetic
+ * ones.
+ */
+final class ScalarBlockOperations extends BlockOperations
+{
+
+	@Override
+	public void apply( final Operation operation, final float[] block1, final float[] block2, final float[] output, final int length )
+	{
+		apply( operation, block1, block2, output, 0, length );
+	}
+
+	@Override
+	public String getName()
+	{
+		return "scalar";
+	}
+
+	/**
+	 * Apply an operation to the values <code>from</code> to
+	 * <code>to - 1</code> of two blocks. This is also used by the vector
+	 * backend for the values that do not fill a vector.
+	 */
+	static void apply( final Operation operation, final float[] block1, final float[] block2, final float[] output, final int from, final int to )
+	{
+		switch ( operation )
+		{
+		case ADD:
+			for ( int i = from; i < to; i++ )
+			{
+				output[ i ] = block1[ i ] + block2[ i ];
+			}
+			break;
+		case SUBTRACT:
+			for ( int i = from; i < to; i++ )
+			{
+				output[ i ] = block1[ i ] - block2[ i ];
+			}
+			break;
+		case MULTIPLY:
+			for ( int i = from; i < to; i++ )
+			{
+				output[ i ] = block1[ i ] * block2[ i ];
+			}
+			break;
+		case DIVIDE:
+			for ( int i = from; i < to; i++ )
+			{
+				output[ i ] = block1[ i ] / block2[ i ];
+			}
+			break;
+		case GREATER_THAN:
+			for ( int i = from; i < to; i++ )
+			{
+				output[ i ] = block1[ i ] > block2[ i ] ? 1f : 0f;
+			}
+			break;
+		case LOWER_THAN:
+			for ( int i = from; i < to; i++ )
+			{
+				output[ i ] = block1[ i ] < block2[ i ] ? 1f : 0f;
+			}
+			break;
+		case GREATER_OR_EQUAL:
+			for ( int i = from; i < to; i++ )
+			{
+				output[ i ] = block1[ i ] >= block2[ i ] ? 1f : 0f;
+			}
+			break;
+		case LOWER_OR_EQUAL:
+			for ( int i = from; i < to; i++ )
+			{
+				output[ i ] = block1[ i ] <= block2[ i ] ? 1f : 0f;
+			}
+			break;
+		case EQUAL:
+			for ( int i = from; i < to; i++ )
+			{
+				output[ i ] = block1[ i ] == block2[ i ] ? 1f : 0f;
+			}
+			break;
+		case NOT_EQUAL:
+			for ( int i = from; i < to; i++ )
+			{
+				output[ i ] = block1[ i ] != block2[ i ] ? 1f : 0f;
+			}
+			break;
+		case AND:
+			for ( int i = from; i < to; i++ )
+			{
+				output[ i ] = block1[ i ] != 0f && block2[ i ] != 0f ? 1f : 0f;
+			}
+			break;
+		case OR:
+			for ( int i = from; i < to; i++ )
+			{
+				output[ i ] = block1[ i ] != 0f || block2[ i ] != 0f ? 1f : 0f;
+			}
+			break;
+		default:
+			throw new IllegalArgumentException( "Unknown operation: " + operation );
+		}
+	}
+
+}
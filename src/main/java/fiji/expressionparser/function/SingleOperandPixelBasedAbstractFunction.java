@@ -5,9 +5,13 @@ import java.util.Stack;
 import org.nfunk.jep.ParseException;
 import org.nfunk.jep.function.PostfixMathCommand;
 
-import net.imglib2.Cursor;
+import fiji.expressionparser.ImgLibEvaluationContext;
+import fiji.expressionparser.PixelKernel;
+import fiji.expressionparser.Precision;
 import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 
@@ -22,19 +26,20 @@ public abstract class SingleOperandPixelBasedAbstractFunction< T extends RealTyp
 		checkStack( inStack ); // check the stack
 
 		final Object param = inStack.pop();
+		final SingleOperandPixelBasedAbstractFunction fun = withPrecision( ImgLibEvaluationContext.current().getPrecision() );
 		Object result = null;
 
 		if ( param instanceof Img< ? > )
 		{
 
-			result = evaluate( ( Img ) param );
+			result = fun.evaluate( ( Img ) param );
 
 		}
 		else if ( param instanceof RealType )
 		{
 
 			final FloatType t = ( FloatType ) param;
-			result = new FloatType( evaluate( t ) ); // since this is
+			result = new FloatType( fun.evaluate( t ) ); // since this is
 														// pixel-based, this
 														// must be a singleton
 
@@ -62,21 +67,30 @@ public abstract class SingleOperandPixelBasedAbstractFunction< T extends RealTyp
 		// Create target image
 		final long[] dimensions = new long[ img.numDimensions() ];
 		img.dimensions( dimensions );
-		final Img< FloatType > result = new ArrayImgFactory< FloatType >()
-				.create( dimensions, new FloatType() );
+		final ArrayImg< FloatType, FloatArray > result = ArrayImgs.floats( dimensions );
+		final float[] output = result.update( null ).getCurrentStorageArray();
 
-		final Cursor< T > ic = img.cursor();
-		final Cursor< FloatType > rc = result.cursor();
-
-		while ( rc.hasNext() )
+		// The pixels are read in flat iteration order, by a reader specialized for the image
+		ParallelChunks.run( output.length, ImgLibEvaluationContext.current().getNumThreads(), new ParallelChunks.Task()
 		{
-			rc.fwd();
-			ic.fwd();
-			rc.get().set( evaluate( ic.get() ) );
-		}
+			@Override
+			public void run( final long offset, final long length )
+			{
+				final PixelBlockReader reader = PixelBlockReader.create( img, offset );
+				final float[] block = new float[ PixelKernel.BLOCK_SIZE ];
+				int done = 0;
+				while ( done < length )
+				{
+					final int n = ( int ) Math.min( PixelKernel.BLOCK_SIZE, length - done );
+					reader.read( block, n );
+					evaluate( block, block, n );
+					System.arraycopy( block, 0, output, ( int ) offset + done, n );
+					done += n;
+				}
+			}
+		} );
 
 		return result;
-
 	}
 
 	/**
@@ -89,6 +103,64 @@ public abstract class SingleOperandPixelBasedAbstractFunction< T extends RealTyp
 	 * @return The resulting number as a float
 	 * @throws ParseException
 	 */
-	public abstract < R extends RealType< R > > float evaluate( final R alpha ) throws ParseException;
+	public final < R extends RealType< R > > float evaluate( final R alpha ) throws ParseException
+	{
+		return evaluate( alpha.getRealFloat() );
+	}
+
+	/**
+	 * Evaluate this function on a float value. This is the primitive form of
+	 * the function, on which all the other evaluation methods rely.
+	 * 
+	 * @param alpha
+	 *            The number
+	 * @return The resulting number
+	 */
+	public abstract float evaluate( final float alpha );
+
+	/**
+	 * Return this function with the given {@link Precision}: this instance if
+	 * it already has it, or a new instance otherwise. Functions that have no
+	 * approximation, which is the default, return this instance.
+	 *
+	 * @param precision
+	 *            The precision of the returned function
+	 * @return A function computing the same values as this one, with the
+	 *         given precision
+	 */
+	public SingleOperandPixelBasedAbstractFunction< T > withPrecision( final Precision precision )
+	{
+		return this;
+	}
+
+	/**
+	 * Return the {@link Precision} of this function. Default is
+	 * {@link Precision#STRICT}.
+	 */
+	public Precision getPrecision()
+	{
+		return Precision.STRICT;
+	}
+
+	/**
+	 * Evaluate this function on a block of pixel values, element-wise. The
+	 * result for the pixel <code>i</code> is written in
+	 * <code>output[i]</code>.
+	 * 
+	 * @param block
+	 *            The values of the operand
+	 * @param output
+	 *            The array to write the results in. It may be the operand
+	 *            array.
+	 * @param length
+	 *            The number of values to evaluate
+	 */
+	public void evaluate( final float[] block, final float[] output, final int length )
+	{
+		for ( int i = 0; i < length; i++ )
+		{
+			output[ i ] = evaluate( block[ i ] );
+		}
+	}
 
 }
@@ -1,17 +1,24 @@
 package fiji.expressionparser.function;
 
+import java.util.Arrays;
 import java.util.Stack;
 
 import org.nfunk.jep.ParseException;
 import org.nfunk.jep.function.PostfixMathCommand;
 
+import fiji.expressionparser.ImgLibEvaluationContext;
+import fiji.expressionparser.PixelKernel;
+import fiji.expressionparser.Precision;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Util;
+import net.imglib2.util.Intervals;
 
 public abstract class TwoOperandsPixelBasedAbstractFunction< T extends RealType< T > > extends PostfixMathCommand implements ImgLibFunction< T >
 {
@@ -24,6 +31,7 @@ public abstract class TwoOperandsPixelBasedAbstractFunction< T extends RealType<
 
 		final Object param2 = inStack.pop();
 		final Object param1 = inStack.pop();
+		final TwoOperandsPixelBasedAbstractFunction fun = withPrecision( ImgLibEvaluationContext.current().getPrecision() );
 		Object result = null;
 
 		if ( param1 instanceof Img< ? > )
@@ -31,17 +39,17 @@ public abstract class TwoOperandsPixelBasedAbstractFunction< T extends RealType<
 
 			if ( param2 instanceof Img< ? > )
 			{
-				result = evaluate( ( Img ) param1, ( Img ) param2 );
+				result = fun.evaluate( ( Img ) param1, ( Img ) param2 );
 			}
 			else if ( param2 instanceof RealType )
 			{
 				final FloatType t2 = ( FloatType ) param2;
-				result = evaluate( ( Img ) param1, t2 );
+				result = fun.evaluate( ( Img ) param1, t2 );
 			}
 			else if ( param2 instanceof Double )
 			{
 				final FloatType t2 = new FloatType( ( ( Double ) param2 ).floatValue() );
-				result = evaluate( ( Img ) param1, t2 );
+				result = fun.evaluate( ( Img ) param1, t2 );
 			}
 			else
 			{
@@ -57,12 +65,12 @@ public abstract class TwoOperandsPixelBasedAbstractFunction< T extends RealType<
 
 			if ( param2 instanceof Img< ? > )
 			{
-				result = evaluate( t1, ( Img ) param2 );
+				result = fun.evaluate( t1, ( Img ) param2 );
 			}
 			else if ( param2 instanceof RealType )
 			{
 				final FloatType t2 = ( FloatType ) param2;
-				result = new FloatType( evaluate( t1, t2 ) ); // since it is
+				result = new FloatType( fun.evaluate( t1, t2 ) ); // since it is
 																// pixel based,
 																// this must be
 																// a singleton
@@ -94,46 +102,32 @@ public abstract class TwoOperandsPixelBasedAbstractFunction< T extends RealType<
 	 */
 	public final < R extends RealType< R > > Img< FloatType > evaluate( final Img< R > img1, final Img< R > img2 ) throws ParseException
 	{
+		if ( Intervals.equalDimensions( img1, img2 ) ) { return evaluateBlocks( img1, 0f, img2, 0f ); }
 
-		// Create target image
+		// Different shapes: fetch the pixels of both images at each position of the result
 		final long[] dimensions = new long[ img1.numDimensions() ];
 		img1.dimensions( dimensions );
 		final Img< FloatType > result = new ArrayImgFactory< FloatType >()
 				.create( dimensions, new FloatType() );
 
-		// Check if all Containers are compatibles
-		final boolean compatible_containers = Util.equalIterationOrder( img1, img2 );
-
-		if ( compatible_containers )
+		ParallelChunks.run( result.size(), ImgLibEvaluationContext.current().getNumThreads(), new ParallelChunks.Task()
 		{
-
-			final Cursor< R > c1 = img1.cursor();
-			final Cursor< R > c2 = img2.cursor();
-			final Cursor< FloatType > rc = result.cursor();
-			while ( c1.hasNext() )
+			@Override
+			public void run( final long offset, final long length ) throws ParseException
 			{
-				c1.fwd();
-				c2.fwd();
-				rc.fwd();
-				rc.get().set( evaluate( c1.get(), c2.get() ) );
+				final Cursor< FloatType > rc = result.localizingCursor();
+				final RandomAccess< R > c1 = img1.randomAccess();
+				final RandomAccess< R > c2 = img2.randomAccess();
+				rc.jumpFwd( offset );
+				for ( long i = 0; i < length; i++ )
+				{
+					rc.fwd();
+					c1.setPosition( rc );
+					c2.setPosition( rc );
+					rc.get().set( evaluate( c1.get(), c2.get() ) );
+				}
 			}
-
-		}
-		else
-		{
-
-			final Cursor< FloatType > rc = result.localizingCursor();
-			final RandomAccess< R > c1 = img1.randomAccess();
-			final RandomAccess< R > c2 = img2.randomAccess();
-			while ( rc.hasNext() )
-			{
-				rc.fwd();
-				c1.setPosition( rc );
-				c2.setPosition( rc );
-				rc.get().set( evaluate( c1.get(), c2.get() ) );
-			}
-
-		}
+		} );
 
 		return result;
 	}
@@ -149,25 +143,12 @@ public abstract class TwoOperandsPixelBasedAbstractFunction< T extends RealType<
 	 *            The number to do singleton expansion on
 	 * @return The resulting image
 	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
 	public final < R extends RealType< R > > Img< FloatType > evaluate( final Img< R > img, final R alpha ) throws ParseException
 	{
-		// Create target image
-		final long[] dimensions = new long[ img.numDimensions() ];
-		img.dimensions( dimensions );
-		final Img< FloatType > result = new ArrayImgFactory< FloatType >()
-				.create( dimensions, new FloatType() );
-
-		final Cursor< R > ic = img.cursor();
-		final Cursor< FloatType > rc = result.cursor();
-
-		while ( rc.hasNext() )
-		{
-			rc.fwd();
-			ic.fwd();
-			rc.get().set( evaluate( ic.get(), alpha ) );
-		}
-
-		return result;
+		final SingleOperandPixelBasedAbstractFunction< T > specialized = specialize( alpha.getRealFloat() );
+		if ( null != specialized ) { return specialized.evaluate( ( Img ) img ); }
+		return evaluateBlocks( img, 0f, null, alpha.getRealFloat() );
 	}
 
 	/**
@@ -183,23 +164,7 @@ public abstract class TwoOperandsPixelBasedAbstractFunction< T extends RealType<
 	 */
 	public final < R extends RealType< R > > Img< FloatType > evaluate( final R alpha, final Img< R > img ) throws ParseException
 	{
-		// Create target image
-		final long[] dimensions = new long[ img.numDimensions() ];
-		img.dimensions( dimensions );
-		final Img< FloatType > result = new ArrayImgFactory< FloatType >()
-				.create( dimensions, new FloatType() );
-
-		final Cursor< R > ic = img.cursor();
-		final Cursor< FloatType > rc = result.cursor();
-
-		while ( rc.hasNext() )
-		{
-			rc.fwd();
-			ic.fwd();
-			rc.get().set( evaluate( alpha, ic.get() ) );
-		}
-
-		return result;
+		return evaluateBlocks( null, alpha.getRealFloat(), img, 0f );
 	}
 
 	/**
@@ -213,6 +178,143 @@ public abstract class TwoOperandsPixelBasedAbstractFunction< T extends RealType<
 	 *            The second number
 	 * @return The resulting number
 	 */
-	public abstract < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException;
+	public final < R extends RealType< R > > float evaluate( final R t1, final R t2 ) throws ParseException
+	{
+		return evaluate( t1.getRealFloat(), t2.getRealFloat() );
+	}
+
+	/**
+	 * Evaluate this function on two float values. This is the primitive form
+	 * of the function, on which all the other evaluation methods rely.
+	 * 
+	 * @param t1
+	 *            The first number
+	 * @param t2
+	 *            The second number
+	 * @return The resulting number
+	 */
+	public abstract float evaluate( final float t1, final float t2 );
+
+	/**
+	 * Return this function with the given {@link Precision}: this instance if
+	 * it already has it, or a new instance otherwise. Functions that have no
+	 * approximation, which is the default, return this instance.
+	 *
+	 * @param precision
+	 *            The precision of the returned function
+	 * @return A function computing the same values as this one, with the
+	 *         given precision
+	 */
+	public TwoOperandsPixelBasedAbstractFunction< T > withPrecision( final Precision precision )
+	{
+		return this;
+	}
+
+	/**
+	 * Return the {@link Precision} of this function. Default is
+	 * {@link Precision#STRICT}.
+	 */
+	public Precision getPrecision()
+	{
+		return Precision.STRICT;
+	}
+
+	/**
+	 * Return a single operand function that computes this function with the
+	 * given constant as second operand, faster than the general one, such as
+	 * <code>x*x</code> for <code>x^2</code>. It is used when the second
+	 * operand is a number known before the evaluation. In the strict
+	 * precision, the specialized function must return exactly the values of
+	 * this one; approximations are only allowed in the fast precision.
+	 * Default is <code>null</code>, for no specialized function.
+	 *
+	 * @param t2
+	 *            The value of the second operand
+	 * @return A new function, or <code>null</code>
+	 */
+	public SingleOperandPixelBasedAbstractFunction< T > specialize( final float t2 )
+	{
+		return null;
+	}
+
+	/**
+	 * Evaluate this function on a block of pixel values, element-wise. The
+	 * result for the pixel <code>i</code> is written in
+	 * <code>output[i]</code>.
+	 * 
+	 * @param block1
+	 *            The values of the first operand
+	 * @param block2
+	 *            The values of the second operand
+	 * @param output
+	 *            The array to write the results in. It may be one of the
+	 *            operand arrays.
+	 * @param length
+	 *            The number of values to evaluate
+	 */
+	public void evaluate( final float[] block1, final float[] block2, final float[] output, final int length )
+	{
+		for ( int i = 0; i < length; i++ )
+		{
+			output[ i ] = evaluate( block1[ i ], block2[ i ] );
+		}
+	}
+
+	/**
+	 * Evaluate this function over images of the same dimensions, block by
+	 * block, writing directly in the storage array of the result. The pixels
+	 * are read in flat iteration order by {@link PixelBlockReader}s
+	 * specialized for each image. A <code>null</code> image stands for a
+	 * singleton, whose value is given instead.
+	 */
+	private < R extends RealType< R > > Img< FloatType > evaluateBlocks( final Img< R > img1, final float alpha1, final Img< R > img2, final float alpha2 ) throws ParseException
+	{
+		// Create target image
+		final Img< R > img = null == img1 ? img2 : img1;
+		final long[] dimensions = new long[ img.numDimensions() ];
+		img.dimensions( dimensions );
+		final ArrayImg< FloatType, FloatArray > result = ArrayImgs.floats( dimensions );
+		final float[] output = result.update( null ).getCurrentStorageArray();
+
+		ParallelChunks.run( output.length, ImgLibEvaluationContext.current().getNumThreads(), new ParallelChunks.Task()
+		{
+			@Override
+			public void run( final long offset, final long length )
+			{
+				final PixelBlockReader r1 = null == img1 ? null : PixelBlockReader.create( img1, offset );
+				final PixelBlockReader r2 = null == img2 ? null : PixelBlockReader.create( img2, offset );
+				final float[] block1 = new float[ PixelKernel.BLOCK_SIZE ];
+				final float[] block2 = new float[ PixelKernel.BLOCK_SIZE ];
+				final float[] values = new float[ PixelKernel.BLOCK_SIZE ];
+				if ( null == r1 )
+				{
+					Arrays.fill( block1, alpha1 );
+				}
+				if ( null == r2 )
+				{
+					Arrays.fill( block2, alpha2 );
+				}
+
+				int done = 0;
+				while ( done < length )
+				{
+					final int n = ( int ) Math.min( PixelKernel.BLOCK_SIZE, length - done );
+					if ( null != r1 )
+					{
+						r1.read( block1, n );
+					}
+					if ( null != r2 )
+					{
+						r2.read( block2, n );
+					}
+					evaluate( block1, block2, values, n );
+					System.arraycopy( values, 0, output, ( int ) offset + done, n );
+					done += n;
+				}
+			}
+		} );
+
+		return result;
+	}
 
 }
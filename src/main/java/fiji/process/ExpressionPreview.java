@@ -0,0 +1,138 @@
+package fiji.process;
+
+import java.util.Map;
+
+import org.nfunk.jep.Node;
+import org.nfunk.jep.ParseException;
+
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibFunctionRegistry;
+import fiji.expressionparser.ImgLibParser;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.imglib2.img.ImagePlusAdapter;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Evaluates an expression on a single slice of the input images, possibly
+ * downsampled, to preview its result while it is being edited.
+ * <p>
+ * The slice is downsampled only when the expression is pixel-wise, see
+ * {@link ExpressionVirtualStack#isPixelWise(Node)}: the result of an algorithm
+ * such as a gaussian convolution depends on the pixel size. Other expressions
+ * are always previewed at full resolution. In all cases, the preview has the
+ * size of an input slice.
+ */
+public class ExpressionPreview< T extends RealType< T > & NativeType< T > >
+{
+
+	/** The parser, whose variables are set to the slices being evaluated. */
+	private final ImgLibParser< T > parser;
+
+	/** The parsed and optimized expression. */
+	private final Node root;
+
+	/** The input images, by variable name. */
+	private final Map< String, ImagePlus > imp_map;
+
+	/** The slice to evaluate, 1-based. */
+	private final int slice;
+
+	private final int width;
+
+	private final int height;
+
+	/**
+	 * Parse an expression for preview.
+	 *
+	 * @param expression
+	 *            The expression
+	 * @param imp_map
+	 *            The input images, by variable name. They must all have the
+	 *            same width and height, and must not be RGB images.
+	 * @param slice
+	 *            The slice to evaluate, 1-based. Images with fewer slices are
+	 *            evaluated on their last one.
+	 * @throws ParseException
+	 *             If the expression is not valid, or the images cannot be
+	 *             previewed
+	 */
+	public ExpressionPreview( final String expression, final Map< String, ImagePlus > imp_map, final int slice ) throws ParseException
+	{
+		final ImagePlus first = imp_map.values().iterator().next();
+		for ( final ImagePlus imp : imp_map.values() )
+		{
+			if ( imp.getType() == ImagePlus.COLOR_RGB ) { throw new ParseException( "RGB images cannot be previewed." ); }
+			if ( imp.getWidth() != first.getWidth() || imp.getHeight() != first.getHeight() ) { throw new ParseException( "Input images do not have all the same dimensions." ); }
+		}
+		this.parser = ImgLibFunctionRegistry.getDefault().createParser();
+		for ( final String var : imp_map.keySet() )
+		{
+			parser.addVariable( var, null ); // set at evaluation
+		}
+		parser.setEvaluationMode( EvaluationMode.FUSED );
+		this.root = parser.optimize( parser.parse( expression ) );
+		this.imp_map = imp_map;
+		this.slice = slice;
+		this.width = first.getWidth();
+		this.height = first.getHeight();
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Returns <code>true</code> if the expression can be evaluated on a
+	 * downsampled slice.
+	 */
+	public boolean canDownsample()
+	{
+		return ExpressionVirtualStack.isPixelWise( root );
+	}
+
+	/**
+	 * Evaluate the expression on the slice, downsampled so that its largest
+	 * side is at most <code>max_size</code> pixels if the expression allows
+	 * it. A downsampled result is scaled back to the size of the slice, with
+	 * no interpolation.
+	 *
+	 * @param max_size
+	 *            The largest side of the evaluated slice, or
+	 *            {@link Integer#MAX_VALUE} for a full resolution preview
+	 */
+	public FloatProcessor evaluate( final int max_size ) throws ParseException
+	{
+		final double scale = canDownsample() ? Math.min( 1d, ( double ) max_size / Math.max( width, height ) ) : 1d;
+		final int preview_width = Math.max( 1, ( int ) Math.round( width * scale ) );
+		final int preview_height = Math.max( 1, ( int ) Math.round( height * scale ) );
+		final boolean downsample = preview_width != width || preview_height != height;
+		try
+		{
+			for ( final String var : imp_map.keySet() )
+			{
+				final ImagePlus imp = imp_map.get( var );
+				ImageProcessor ip = imp.getStack().getProcessor( Math.min( slice, imp.getStackSize() ) );
+				if ( downsample )
+				{
+					ip = ip.resize( preview_width, preview_height );
+				}
+				parser.setVarValue( var, ImagePlusAdapter.< T >wrap( new ImagePlus( var, ip ) ) );
+			}
+			final FloatProcessor fp = ExpressionVirtualStack.toProcessor( parser.evaluate( root ), preview_width, preview_height );
+			if ( !downsample ) { return fp; }
+			fp.setInterpolationMethod( ImageProcessor.NONE );
+			return ( FloatProcessor ) fp.resize( width, height );
+		}
+		finally
+		{
+			for ( final String var : imp_map.keySet() )
+			{
+				parser.setVarValue( var, null );
+			}
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+package fiji.process;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.nfunk.jep.ASTFunNode;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.ParseException;
+import org.nfunk.jep.function.PostfixMathCommandI;
+
+import fiji.expressionparser.ImgLibBufferPool;
+import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.function.SingleOperandPixelBasedAbstractFunction;
+import fiji.expressionparser.function.TwoOperandsPixelBasedAbstractFunction;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.img.ImagePlusAdapter;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * A virtual stack whose slices are the result of a pixel-wise expression,
+ * evaluated on the matching slices of the input images when they are
+ * requested. Only the slices being evaluated are in memory, so inputs that
+ * are themselves virtual stacks are never loaded entirely.
+ * <p>
+ * Since every slice is evaluated on its own, the expression must be made of
+ * pixel-based functions and operators only: a gaussian convolution on a
+ * slice is not the same as on the whole stack.
+ */
+public class ExpressionVirtualStack< T extends RealType< T > & NativeType< T > > extends VirtualStack
+{
+
+	/** The parser, whose variables are set to the slices being evaluated. */
+	private final ImgLibParser< T > parser;
+
+	/** The parsed expression. */
+	private final Node root;
+
+	/** The input images, by variable name. */
+	private final Map< String, ImagePlus > imp_map;
+
+	private final int n_slices;
+
+	/**
+	 * Create a virtual stack over the result of an expression.
+	 *
+	 * @param parser
+	 *            The parser to evaluate the expression with. Its variables are
+	 *            set by this stack.
+	 * @param root
+	 *            The parsed expression
+	 * @param imp_map
+	 *            The input images, by variable name. They must all have the
+	 *            same width, height and number of slices.
+	 * @throws ParseException
+	 *             If the expression is not pixel-wise, or if the images do not
+	 *             have the same dimensions
+	 */
+	public ExpressionVirtualStack( final ImgLibParser< T > parser, final Node root, final Map< String, ImagePlus > imp_map ) throws ParseException
+	{
+		super( getFirst( imp_map ).getWidth(), getFirst( imp_map ).getHeight(), null, null );
+		if ( !isPixelWise( root ) ) { throw new ParseException( "Only pixel-wise expressions can be evaluated slice by slice." ); }
+		final ImagePlus first = getFirst( imp_map );
+		for ( final ImagePlus imp : imp_map.values() )
+		{
+			if ( imp.getWidth() != first.getWidth() || imp.getHeight() != first.getHeight() || imp.getStackSize() != first.getStackSize() ) { throw new ParseException( "Input images do not have all the same dimensions." ); }
+		}
+		this.parser = parser;
+		this.root = root;
+		this.imp_map = imp_map;
+		this.n_slices = first.getStackSize();
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Evaluate the expression on the slice <code>n</code> of the input
+	 * images, 1 &lt;= n &lt;= {@link #getSize()}.
+	 */
+	@Override
+	public synchronized ImageProcessor getProcessor( final int n )
+	{
+		try
+		{
+			for ( final String var : imp_map.keySet() )
+			{
+				final ImageProcessor ip = imp_map.get( var ).getStack().getProcessor( n );
+				parser.setVarValue( var, ImagePlusAdapter.< T >wrap( new ImagePlus( var, ip ) ) );
+			}
+			return toProcessor( parser.evaluate( root ), getWidth(), getHeight() );
+		}
+		catch ( final ParseException e )
+		{
+			IJ.log( "Could not evaluate slice " + n + ": " + e.getErrorInfo() );
+			return new FloatProcessor( getWidth(), getHeight() );
+		}
+	}
+
+	@Override
+	public Object getPixels( final int n )
+	{
+		return getProcessor( n ).getPixels();
+	}
+
+	@Override
+	public int getSize()
+	{
+		return n_slices;
+	}
+
+	@Override
+	public int getBitDepth()
+	{
+		return 32;
+	}
+
+	/**
+	 * Evaluate all the slices in turn, and store them in a new stack. Only the
+	 * slice being evaluated and the result are in memory.
+	 */
+	public ImageStack toImageStack()
+	{
+		final ImageStack stack = new ImageStack( getWidth(), getHeight() );
+		for ( int n = 1; n <= n_slices; n++ )
+		{
+			IJ.showProgress( n, n_slices );
+			stack.addSlice( getSliceLabel( n ), getProcessor( n ) );
+		}
+		return stack;
+	}
+
+	/**
+	 * Returns <code>true</code> if the given expression tree is made only of
+	 * pixel-based functions, variables and constants, and can therefore be
+	 * evaluated slice by slice.
+	 */
+	public static final boolean isPixelWise( final Node node )
+	{
+		if ( node instanceof ASTFunNode )
+		{
+			final PostfixMathCommandI pfmc = ( ( ASTFunNode ) node ).getPFMC();
+			if ( !( pfmc instanceof SingleOperandPixelBasedAbstractFunction ) && !( pfmc instanceof TwoOperandsPixelBasedAbstractFunction ) ) { return false; }
+		}
+		for ( int i = 0; i < node.jjtGetNumChildren(); i++ )
+		{
+			if ( !isPixelWise( node.jjtGetChild( i ) ) ) { return false; }
+		}
+		return true;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Copy the result of an evaluation in a new processor of the given size, or
+	 * wrap its storage array when it is a {@link FloatArray}.
+	 */
+	@SuppressWarnings( "unchecked" )
+	static FloatProcessor toProcessor( final Object result, final int width, final int height )
+	{
+		if ( result instanceof Img )
+		{
+			final Img< ? > img = ( Img< ? > ) result;
+			if ( ImgLibBufferPool.isFloatArrayImg( img ) )
+			{
+				final float[] pixels = ( ( ArrayImg< ?, FloatArray > ) img ).update( null ).getCurrentStorageArray();
+				return new FloatProcessor( width, height, pixels );
+			}
+			final float[] pixels = new float[ width * height ];
+			final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( ( Img< ? extends RealType< ? > > ) img ).cursor();
+			for ( int i = 0; i < pixels.length; i++ )
+			{
+				pixels[ i ] = cursor.next().getRealFloat();
+			}
+			return new FloatProcessor( width, height, pixels );
+		}
+
+		// A number: fill the slice with it
+		final float value = result instanceof RealType ? ( ( RealType< ? > ) result ).getRealFloat() : ( ( Number ) result ).floatValue();
+		final float[] pixels = new float[ width * height ];
+		Arrays.fill( pixels, value );
+		return new FloatProcessor( width, height, pixels );
+	}
+
+	private static final ImagePlus getFirst( final Map< String, ImagePlus > imp_map )
+	{
+		return imp_map.values().iterator().next();
+	}
+
+}
@@ -16,11 +16,18 @@ import java.awt.event.WindowListener;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JEditorPane;
 import javax.swing.JLabel;
@@ -29,20 +36,24 @@ import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.SwingUtilities;
 import javax.swing.border.LineBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.JTextComponent;
 
+import fiji.expressionparser.ImgLibFunctionRegistry;
 import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.PixelStatistics;
 import ij.CompositeImage;
 import ij.IJ;
 import ij.ImageListener;
 import ij.ImagePlus;
 import ij.WindowManager;
-import ij.plugin.RGBStackMerge;
-import ij.plugin.filter.RGBStackSplitter;
-import net.imglib2.img.Img;
-import net.imglib2.img.display.imagej.ImageJFunctions;
+import ij.process.FloatProcessor;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 
+import org.nfunk.jep.ParseException;
+
 /**
  * <h2>GUI for the plugin {@link Image_Expression_Parser}</h2>
  * <p>
@@ -57,13 +68,20 @@ import net.imglib2.type.numeric.RealType;
  * <p>
  * When the images are RGB images, they are processed in a special way:
  * <ul>
- * <li>they are split in 3 RGB channels;
- * <li>each channel is parsed and evaluated separately;
+ * <li>their 3 RGB channels are evaluated separately, directly on the packed
+ * pixels for pixel-wise expressions, and in parallel otherwise;
  * <li>the 3 resulting images are put back together in a 3 channel composite
  * image.
  * </ul>
+ * See {@link Image_Expression_Parser#processRGB(Map)}.
  * 
  * <p>
+ * When the preview is enabled, the expression is evaluated on the current
+ * slice of the first image while the user types: first on a downsampled slice
+ * when the expression is pixel-wise, then at full resolution once the user
+ * stopped typing. The whole images are only processed when the 'Parse' button
+ * is pressed.
+ * <p>
  * The information the user entered can be retrieved afterwards with the
  * following methods:
  * <ul>
@@ -109,6 +127,21 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 
 	private static final int BOX_SPACE = 40;
 
+	/**
+	 * Delay in ms without edit after which the expression is validated in the
+	 * background.
+	 */
+	private static final long VALIDATION_DELAY = 200;
+
+	/**
+	 * Delay in ms without edit after the low resolution preview, after which
+	 * the preview is refined to full resolution.
+	 */
+	private static final long PREVIEW_REFINE_DELAY = 500;
+
+	/** Largest side in pixels of the low resolution preview. */
+	private static final int PREVIEW_SIZE = 256;
+
 	/**
 	 * Contains a html string referring to the expression syntax, and error
 	 * messages to be displayed in the info text box.
@@ -247,6 +280,33 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 	/** The ImagePlus that will be used to display results. */
 	private ImagePlus target_imp;
 
+	/**
+	 * The single thread on which expressions are validated while the user
+	 * types.
+	 */
+	private final ScheduledExecutorService validation_executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+	{
+		@Override
+		public Thread newThread( final Runnable r )
+		{
+			final Thread thread = new Thread( r, PLUGIN_NAME + " validation" );
+			thread.setDaemon( true );
+			return thread;
+		}
+	} );
+
+	/**
+	 * Incremented at each edit. A validation only displays its result if no
+	 * edit was made since it was scheduled.
+	 */
+	private final AtomicLong validation_generation = new AtomicLong();
+
+	/** The last validation scheduled, only accessed on the EDT. */
+	private ScheduledFuture< ? > pending_validation;
+
+	/** The ImagePlus that displays the preview, only accessed on the EDT. */
+	private ImagePlus preview_imp;
+
 	private JPanel jPanelImages;
 
 	private JSplitPane jSplitPane1;
@@ -271,6 +331,8 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 
 	private JButton jButtonCancel;
 
+	private JCheckBox jCheckBoxPreview;
+
 	private JComboBox< String > expressionField;
 
 	private JLabel jLabelExpression;
@@ -397,50 +459,226 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 	}
 
 	/**
-	 * Called when something is selected or typed. Goal is to check that
-	 * everything is valid.
+	 * Called before a calculation is launched. Checks synchronously that
+	 * everything is valid, and discards the pending background validation.
 	 */
 	private boolean checkValid()
 	{
 		if ( !this.isShowing() )
 			return true; // prevent to check while init
-		if ( !compatibleDimensions() )
+		validation_generation.incrementAndGet();
+		if ( null != pending_validation )
+			pending_validation.cancel( false );
+
+		final Validation validation = validate( getExpression(), variables, getImages() );
+		showValidation( validation );
+		return validation.isValid();
+	}
+
+	/**
+	 * Called when something is selected or typed. The inputs are validated on
+	 * the {@link #validation_executor} once the user stopped editing for
+	 * {@link #VALIDATION_DELAY} ms, so that typing does not wait for the
+	 * parser. A result is only displayed if nothing was edited meanwhile.
+	 */
+	private void scheduleValidation()
+	{
+		if ( !SwingUtilities.isEventDispatchThread() )
 		{
-			jButtonOK.setEnabled( false );
-			for ( final JComboBox< String > box : image_boxes )
-				box.setForeground( Color.RED );
+			// Image listener events come from other threads
+			SwingUtilities.invokeLater( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					scheduleValidation();
+				}
+			} );
+			return;
+		}
+		if ( !this.isShowing() )
+			return; // prevent to check while init, and after quitting
 
-			jTextAreaInfo.setText( MESSAGES[ 2 ] );
-			jTextAreaInfo.setCaretPosition( 0 );
-			return false;
+		final long generation = validation_generation.incrementAndGet();
+		if ( null != pending_validation )
+			pending_validation.cancel( false );
+
+		// Collect input from GUI widgets while under the event dispatch thread
+		final String expression = getEditedExpression();
+		final String[] vars = variables.clone();
+		final ImagePlus[] imps = getImages();
+		final boolean preview = jCheckBoxPreview.isSelected() && null != imps && null != imps[ 0 ];
+		final Map< String, ImagePlus > imp_map = preview ? getImageMap() : null;
+		final int slice = preview ? imps[ 0 ].getCurrentSlice() : 1;
+
+		pending_validation = validation_executor.schedule( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if ( generation != validation_generation.get() )
+					return; // stale
+				final Validation validation = validate( expression, vars, imps );
+				SwingUtilities.invokeLater( new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						if ( generation == validation_generation.get() && isShowing() )
+							showValidation( validation );
+					}
+				} );
+				if ( preview && validation.isValid() && null != expression && !expression.isEmpty() )
+					preview( generation, expression, imp_map, slice );
+			}
+		}, VALIDATION_DELAY, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Called on the {@link #validation_executor} once an expression is found
+	 * valid. Displays a low resolution preview right away if the expression
+	 * allows it, and schedules the full resolution one after
+	 * {@link #PREVIEW_REFINE_DELAY} ms. Nothing is computed nor displayed if
+	 * the user edited anything meanwhile.
+	 */
+	private void preview( final long generation, final String expression, final Map< String, ImagePlus > imp_map, final int slice )
+	{
+		final ExpressionPreview< T > expression_preview;
+		try
+		{
+			expression_preview = new ExpressionPreview< T >( expression, imp_map, slice );
+		}
+		catch ( final ParseException e )
+		{
+			return; // e.g. RGB images, previewed after parsing only
+		}
 
+		final Runnable refine = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				showPreview( generation, expression, expression_preview, Integer.MAX_VALUE );
+			}
+		};
+		if ( expression_preview.canDownsample() )
+		{
+			showPreview( generation, expression, expression_preview, PREVIEW_SIZE );
+			validation_executor.schedule( refine, PREVIEW_REFINE_DELAY, TimeUnit.MILLISECONDS );
 		}
 		else
 		{
+			refine.run();
+		}
+	}
 
-			final String error = getExpressionError();
-			if ( error.length() != 0 )
+	/**
+	 * Evaluate the preview at the given resolution and display it, if it is
+	 * still current.
+	 */
+	private void showPreview( final long generation, final String expression, final ExpressionPreview< T > expression_preview, final int max_size )
+	{
+		if ( generation != validation_generation.get() )
+			return; // stale
+		final FloatProcessor fp;
+		try
+		{
+			fp = expression_preview.evaluate( max_size );
+		}
+		catch ( final ParseException e )
+		{
+			IJ.log( "Could not preview expression: " + e.getErrorInfo() );
+			return;
+		}
+		SwingUtilities.invokeLater( new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				jButtonOK.setEnabled( false );
-				expressionField.getEditor().getEditorComponent().setForeground( Color.RED );
-				jTextAreaInfo.setText( error );
-				jTextAreaInfo.setCaretPosition( 0 );
-				return false;
-
+				if ( generation != validation_generation.get() || !isShowing() || !jCheckBoxPreview.isSelected() )
+					return;
+				final String title = "Preview - " + expression;
+				if ( null == preview_imp || !preview_imp.isVisible() )
+				{
+					preview_imp = new ImagePlus( title, fp );
+					preview_imp.show();
+				}
+				else
+				{
+					preview_imp.setProcessor( title, fp );
+				}
+				preview_imp.resetDisplayRange();
+				preview_imp.updateAndDraw();
 			}
-			else
-			{
+		} );
+	}
 
-				jButtonOK.setEnabled( true );
-				for ( final JComboBox< String > box : image_boxes )
-					box.setForeground( Color.BLACK );
+	/**
+	 * Close the preview window, if any.
+	 */
+	private void closePreview()
+	{
+		if ( null != preview_imp )
+		{
+			preview_imp.close();
+			preview_imp = null;
+		}
+	}
 
-				expressionField.getEditor().getEditorComponent().setForeground( Color.BLACK );
-				jTextAreaInfo.setText( MESSAGES[ 0 ] );
-				jTextAreaInfo.setCaretPosition( 0 );
-				return true;
-			}
+	/**
+	 * Check the given inputs. Does not touch the GUI, and can therefore be
+	 * called from any thread.
+	 */
+	private Validation validate( final String expression, final String[] vars, final ImagePlus[] imps )
+	{
+		if ( !compatibleDimensions( imps ) )
+			return new Validation( false, "" );
+		return new Validation( true, getExpressionError( expression, vars ) );
+	}
+
+	/**
+	 * Display the result of a validation.
+	 */
+	private void showValidation( final Validation validation )
+	{
+		if ( !validation.dimensions_ok )
+		{
+			jButtonOK.setEnabled( false );
+			for ( final JComboBox< String > box : image_boxes )
+				box.setForeground( Color.RED );
+
+			jTextAreaInfo.setText( MESSAGES[ 2 ] );
+			jTextAreaInfo.setCaretPosition( 0 );
 		}
+		else if ( validation.error.length() != 0 )
+		{
+			jButtonOK.setEnabled( false );
+			expressionField.getEditor().getEditorComponent().setForeground( Color.RED );
+			jTextAreaInfo.setText( validation.error );
+			jTextAreaInfo.setCaretPosition( 0 );
+		}
+		else
+		{
+			jButtonOK.setEnabled( true );
+			for ( final JComboBox< String > box : image_boxes )
+				box.setForeground( Color.BLACK );
+
+			expressionField.getEditor().getEditorComponent().setForeground( Color.BLACK );
+			jTextAreaInfo.setText( MESSAGES[ 0 ] );
+			jTextAreaInfo.setCaretPosition( 0 );
+		}
+	}
+
+	/**
+	 * Return the expression currently in the editor of the expression field,
+	 * which is only committed to the combo box when the user presses enter.
+	 */
+	private String getEditedExpression()
+	{
+		final Object item = expressionField.getEditor().getItem();
+		if ( null == item )
+			return null;
+		return item.toString().trim();
 	}
 
 	private void addCurrentExpressionToHistory()
@@ -461,9 +699,8 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 	/**
 	 * Check that dimensions are compatible.
 	 */
-	private boolean compatibleDimensions()
+	private boolean compatibleDimensions( final ImagePlus[] selected_images )
 	{
-		final ImagePlus[] selected_images = getImages();
 		if ( null == selected_images )
 			return true; // avoid check for empty list
 		if ( selected_images.length <= 1 ) { return true; }
@@ -485,16 +722,11 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 	/**
 	 * Called when the user type something in the expression area.
 	 */
-	private String getExpressionError()
+	private String getExpressionError( final String expression, final String[] vars )
 	{
-		final String expression = getExpression();
 		if ( ( null == expression ) || ( expression.equals( "" ) ) ) { return ""; }
-		@SuppressWarnings( "rawtypes" )
-		final ImgLibParser parser = new ImgLibParser();
-		parser.addStandardConstants();
-		parser.addStandardFunctions();
-		parser.addImgLibAlgorithms();
-		for ( final String var : variables )
+		final ImgLibParser< T > parser = ImgLibFunctionRegistry.getDefault().createParser();
+		for ( final String var : vars )
 		{
 			parser.addVariable( var, null ); // we do not care for value yet
 		}
@@ -557,7 +789,7 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 			@Override
 			public void actionPerformed( final ActionEvent e )
 			{
-				checkValid();
+				scheduleValidation();
 			}
 		} );
 		labels.add( label );
@@ -565,7 +797,7 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 		jPanelImages.setPreferredSize( new Dimension( width, 50 + BOX_SPACE * n_image_box ) );
 		n_image_box++;
 		refreshVariableList();
-		checkValid();
+		scheduleValidation();
 		if ( n_image_box >= 26 )
 		{
 			jButtonPlus.setEnabled( false );
@@ -588,7 +820,7 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 		jPanelImages.revalidate();
 		jPanelImages.repaint();
 		refreshVariableList();
-		checkValid();
+		scheduleValidation();
 		if ( n_image_box <= 1 )
 		{
 			jButtonMinus.setEnabled( false );
@@ -643,8 +875,7 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 			box.setModel( new DefaultComboBoxModel<>( image_names ) );
 			box.setSelectedIndex( Math.min( current_index, max_index ) );
 		}
-		if ( this.isShowing() )
-			checkValid();
+		scheduleValidation();
 	}
 
 	/**
@@ -679,6 +910,8 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 	{
 		ImagePlus.removeImageListener( this );
 		this.removeWindowListener( this );
+		validation_executor.shutdownNow();
+		closePreview();
 		this.dispose();
 	}
 
@@ -734,8 +967,6 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 					// Prepare parser
 					image_expression_parser.setExpression( expression );
 
-					Img< T > result_img = null;
-
 					// Here, we check if we get a RGB image. They are handled in
 					// a special way:
 					// They are converted to 3 8-bit images which are processed
@@ -750,55 +981,18 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 						}
 					}
 
+					// The statistics of the result, if they were counted
+					PixelStatistics statistics = null;
+
 					if ( is_rgb_image )
 					{
 
-						// Prepare holders
-						final Map< String, ImagePlus > red_map = new HashMap< String, ImagePlus >();
-						final Map< String, ImagePlus > green_map = new HashMap< String, ImagePlus >();
-						final Map< String, ImagePlus > blue_map = new HashMap< String, ImagePlus >();
-						final ArrayList< Map< String, ImagePlus > > map_array = new ArrayList< Map< String, ImagePlus > >( 3 );
-						map_array.add( red_map );
-						map_array.add( green_map );
-						map_array.add( blue_map );
-
-						// Split stacks
-						final RGBStackSplitter channel_splitter = new RGBStackSplitter();
-						ImagePlus current_imp = null;
-						for ( final String key : imp_map.keySet() )
+						// Channels are evaluated in parallel and merged back
+						final ImagePlus new_imp = image_expression_parser.processRGB( imp_map );
+						if ( null == new_imp )
 						{
-							current_imp = imp_map.get( key );
-							// And stored individual channels in a new map
-							channel_splitter.split( current_imp.getImageStack(), true );
-							red_map.put( key, new ImagePlus( current_imp.getShortTitle() + "-R", channel_splitter.red ) );
-							green_map.put( key, new ImagePlus( current_imp.getShortTitle() + "-G", channel_splitter.green ) );
-							blue_map.put( key, new ImagePlus( current_imp.getShortTitle() + "-B", channel_splitter.blue ) );
-						}
-
-						// Have the parser process individual channel separately
-						Map< String, Img< T > > img_map;
-						final ImagePlus[] result_array = new ImagePlus[ 3 ];
-						Img< T > tmp_image;
-						int index = 0;
-						for ( final Map< String, ImagePlus > current_map : map_array )
-						{
-							img_map = image_expression_parser.convertToImglib( current_map );
-							image_expression_parser.setImageMap( img_map );
-							image_expression_parser.process();
-							// Collect results
-							tmp_image = image_expression_parser.getResult();
-							result_array[ index ] = ImageJFunctions.show( tmp_image );
-							index++;
-						}
-
-						// Merge back channels
-						final RGBStackMerge rgb_merger = new RGBStackMerge();
-						final ImagePlus new_imp = rgb_merger.mergeHyperstacks( result_array, false );
-						// Jump through hoops...
-						for ( int channel = new_imp.getNChannels(); channel > 0; channel-- )
-						{
-							new_imp.setPosition( channel, new_imp.getSlice(), new_imp.getFrame() );
-							new_imp.resetDisplayRange();
+							IJ.error( image_expression_parser.getErrorMessage() );
+							return;
 						}
 
 						if ( target_imp == null )
@@ -827,26 +1021,38 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 					else
 					{
 
-						final Map< String, Img< T > > img_map = image_expression_parser.convertToImglib( imp_map );
-						image_expression_parser.setImageMap( img_map );
-						// Call calculation
-						if ( !image_expression_parser.process() )
+						// Pixel-wise expressions on virtual stacks are computed
+						// slice by slice, when the slices are displayed
+						final ExpressionVirtualStack< T > virtual_stack = Image_Expression_Parser.hasVirtualStack( imp_map ) ? image_expression_parser.createVirtualStack( imp_map ) : null;
+						if ( null != virtual_stack )
 						{
-							IJ.error( image_expression_parser.getErrorMessage() );
-							return;
-						}
-						// Collect result
-						result_img = image_expression_parser.getResult();
-
-						if ( target_imp == null )
-						{
-							target_imp = ImageJFunctions.show( result_img );
-							target_imp.show();
+							if ( target_imp == null || !target_imp.isVisible() )
+							{
+								target_imp = new ImagePlus( expression, virtual_stack );
+								target_imp.show();
+							}
+							else
+							{
+								target_imp.setStack( expression, virtual_stack );
+							}
 						}
 						else
 						{
-							final ImagePlus new_imp = ImageJFunctions.show( result_img );
-							if ( !target_imp.isVisible() )
+							// Call calculation. The result is written directly in
+							// the pixels of the displayed one when they fit
+							final ImagePlus reusable_imp = null != target_imp && target_imp.isVisible() && !target_imp.isComposite() ? target_imp : null;
+							final ImagePlus new_imp = image_expression_parser.processToImagePlus( imp_map, reusable_imp );
+							if ( null == new_imp )
+							{
+								IJ.error( image_expression_parser.getErrorMessage() );
+								return;
+							}
+
+							if ( new_imp == target_imp )
+							{
+								target_imp.setTitle( expression );
+							}
+							else if ( target_imp == null || !target_imp.isVisible() )
 							{
 								target_imp = new_imp;
 								target_imp.show();
@@ -855,11 +1061,17 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 							{
 								target_imp.setStack( expression, new_imp.getStack() );
 							}
+							statistics = image_expression_parser.getStatistics();
 						}
 
 					}
 
-					target_imp.resetDisplayRange();
+					// The extrema of the result were counted while it was
+					// written: no need to read it again
+					if ( null != statistics && statistics.getCount() > 0 && target_imp.getBitDepth() != 8 )
+						target_imp.setDisplayRange( statistics.getMin(), statistics.getMax() );
+					else
+						target_imp.resetDisplayRange();
 					target_imp.updateAndDraw();
 
 				}
@@ -907,6 +1119,8 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 	@Override
 	public void imageClosed( final ImagePlus imp )
 	{
+		if ( imp == preview_imp )
+			return;
 		images.remove( imp );
 		refreshImageNames();
 	}
@@ -914,6 +1128,8 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 	@Override
 	public void imageOpened( final ImagePlus imp )
 	{
+		if ( imp == preview_imp )
+			return;
 		images.add( imp );
 		refreshImageNames();
 	}
@@ -980,6 +1196,27 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 							}
 						} );
 					}
+					{
+						jCheckBoxPreview = new JCheckBox();
+						jPanelRight.add( jCheckBoxPreview, new GridBagConstraints( 1, 3, 1, 1, 0.0, 0.0, GridBagConstraints.CENTER, GridBagConstraints.NONE, new Insets( 0, 0, 10, 0 ), 0, 0 ) );
+						jCheckBoxPreview.setText( "Preview" );
+						jCheckBoxPreview.addActionListener( new ActionListener()
+						{
+							@Override
+							public void actionPerformed( final ActionEvent e )
+							{
+								if ( jCheckBoxPreview.isSelected() )
+								{
+									scheduleValidation();
+								}
+								else
+								{
+									validation_generation.incrementAndGet();
+									closePreview();
+								}
+							}
+						} );
+					}
 					{
 						jScrollPane1 = new JScrollPane();
 						jPanelRight.add( jScrollPane1, new GridBagConstraints( 0, 2, 3, 1, 0.0, 0.0, GridBagConstraints.CENTER, GridBagConstraints.BOTH, new Insets( 10, 10, 10, 10 ), 0, 0 ) );
@@ -1043,6 +1280,28 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 							}
 
 						} );
+						final java.awt.Component editor = expressionField.getEditor().getEditorComponent();
+						if ( editor instanceof JTextComponent )
+						{
+							( ( JTextComponent ) editor ).getDocument().addDocumentListener( new DocumentListener()
+							{
+								@Override
+								public void insertUpdate( final DocumentEvent e )
+								{
+									scheduleValidation();
+								}
+
+								@Override
+								public void removeUpdate( final DocumentEvent e )
+								{
+									scheduleValidation();
+								}
+
+								@Override
+								public void changedUpdate( final DocumentEvent e )
+								{}
+							} );
+						}
 					}
 					{
 						jScrollPaneImages = new JScrollPane();
@@ -1127,6 +1386,33 @@ public class IepGui< T extends RealType< T > & NativeType< T > > extends javax.s
 		}
 	}
 
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * The outcome of the validation of the GUI inputs.
+	 */
+	private static final class Validation
+	{
+		/** False if the selected images do not have the same dimensions. */
+		private final boolean dimensions_ok;
+
+		/** The formatted error of the parser, empty if there is none. */
+		private final String error;
+
+		private Validation( final boolean dimensions_ok, final String error )
+		{
+			this.dimensions_ok = dimensions_ok;
+			this.error = error;
+		}
+
+		private boolean isValid()
+		{
+			return dimensions_ok && error.length() == 0;
+		}
+	}
+
 	/*
 	 * WINDOWLISTENER METHODS
 	 */
@@ -1,28 +1,52 @@
 package fiji.process;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import org.nfunk.jep.ASTVarNode;
 import org.nfunk.jep.Node;
 import org.nfunk.jep.ParseException;
 
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibFunctionRegistry;
+import fiji.expressionparser.ImgLibKernelView;
 import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.OutputType;
+import fiji.expressionparser.PixelStatistics;
+import fiji.expressionparser.Precision;
+import fiji.expressionparser.function.ParallelChunks;
+import ij.CompositeImage;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
-import ij.process.FloatProcessor;
+import ij.plugin.filter.RGBStackSplitter;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.OutputAlgorithm;
 import net.imglib2.img.ImagePlusAdapter;
 import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 
 /**
  * <h1>Image expression parser</h1>
@@ -49,6 +73,23 @@ import net.imglib2.type.numeric.RealType;
  * <li>{@link #process()} to compute the resulting image
  * <li>{@link #getResult()} to retrieve the resulting image
  * </ul>
+ * With {@link #setLazy(boolean)}, {@link #process()} does not compute the
+ * pixel-wise part of the expression: {@link #getResultView()} then returns a
+ * view whose pixels are computed when they are accessed, and
+ * {@link #getResult()} computes the whole image on its first call.
+ * <p>
+ * ImageJ virtual stacks can be evaluated slice by slice, without loading them
+ * in memory, with {@link #createVirtualStack(Map)}. The GUI and the macro
+ * dialog do so when an input is a virtual stack and the expression is
+ * pixel-wise.
+ * <p>
+ * Parsed expressions are kept in a cache shared by all instances, so that
+ * evaluating the same expression again, for instance in a batch macro, does
+ * not parse it again.
+ * <p>
+ * RGB images are evaluated with {@link #processRGB(Map)}: their red, green and
+ * blue channels are evaluated in parallel, and merged back in a composite
+ * image.
  * 
  * 
  * <h2>Calling the plugin from elsewhere</h2>
@@ -117,6 +158,26 @@ public class Image_Expression_Parser< T extends RealType< T > & NativeType< T >
 
 	protected boolean user_has_canceled = false;
 
+	/** The maximal number of parsed expressions kept in the cache */
+	private static final int PARSE_CACHE_SIZE = 64;
+
+	/**
+	 * Parsed expressions, by expression, variable names and optimization flag,
+	 * from the least to the most recently used. Shared by all instances, so
+	 * that an expression evaluated many times, as in a batch macro, is only
+	 * parsed once.
+	 */
+	private static final Map< String, ParsedExpression > PARSE_CACHE = new LinkedHashMap< String, ParsedExpression >( 16, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< String, ParsedExpression > eldest )
+		{
+			return size() > PARSE_CACHE_SIZE;
+		}
+	};
+
 	/** Array of Imglib images, on which calculations will be done */
 	protected Map< String, Img< T > > image_map;
 
@@ -129,6 +190,49 @@ public class Image_Expression_Parser< T extends RealType< T > & NativeType< T >
 	/** If an error occurred, an error message is put here */
 	protected String error_message = "";
 
+	/** The strategy used to evaluate the expression */
+	protected EvaluationMode evaluation_mode = EvaluationMode.FUSED;
+
+	/** The number of threads used to evaluate the expression */
+	protected int num_threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * If true, the parsed expression is simplified before its evaluation. Off
+	 * by default, since some rewrites change the last bits of the results.
+	 */
+	protected boolean optimize = false;
+
+	/** If true, the result is a view computed on access */
+	protected boolean lazy = false;
+
+	/** Here is stored the result of a lazy evaluation */
+	protected RandomAccessibleInterval< FloatType > result_view = null;
+
+	/** The factory used to create the result, <code>null</code> for an ArrayImg */
+	protected ImgFactory< FloatType > img_factory = null;
+
+	/** The pixel type of the result */
+	protected OutputType output_type = OutputType.FLOAT;
+
+	/** The precision of the transcendental functions */
+	protected Precision precision = Precision.STRICT;
+
+	/** The pixel type a lazy result is computed in, resolved from the expression */
+	protected OutputType view_output_type = OutputType.FLOAT;
+
+	/** The image the result is written in, <code>null</code> for a new one */
+	protected Img< ? > target = null;
+
+	/** The statistics of the result, counted while it is written */
+	protected PixelStatistics statistics = null;
+
+	/** The number of bins of the histogram of the result, 0 for none */
+	protected int histogram_bins = 0;
+
+	protected double histogram_min = 0;
+
+	protected double histogram_max = 0;
+
 	/*
 	 * RUN METHOD
 	 */
@@ -207,24 +311,33 @@ public class Image_Expression_Parser< T extends RealType< T > & NativeType< T >
 	{
 
 		result = null;
+		result_view = null;
+		statistics = null;
 		final boolean valid = checkInput();
 		if ( !valid ) { return false; }
 
-		// Instantiate and prepare parser
-		final ImgLibParser< T > parser = new ImgLibParser< T >();
-		parser.addStandardConstants();
-		parser.addStandardFunctions();
-		parser.addImgLibAlgorithms();
-		final Set< String > variables = image_map.keySet();
-		for ( final String var : variables )
+		// The parsed tree is shared with other instances: evaluate a copy of
+		// it bound to a parser of our own, with our settings and images
+		final ParsedExpression parsed = getParsedExpression( getSortedVariables() );
+		final ImgLibParser< T > parser = createParser();
+		for ( final String var : image_map.keySet() )
 		{
 			parser.addVariable( var, image_map.get( var ) );
 		}
-
 		try
 		{
-			final Node root_node = parser.parse( expression );
-			result = ( Img< T > ) parser.evaluate( root_node );
+			final Node root = parser.bind( parsed.root );
+			if ( lazy )
+			{
+				result_view = ( RandomAccessibleInterval< FloatType > ) parser.evaluateView( root );
+				view_output_type = output_type.resolve( root );
+			}
+			else
+			{
+				final PixelStatistics result_statistics = createStatistics();
+				result = ( Img< T > ) parser.evaluate( root, target, result_statistics );
+				statistics = result_statistics;
+			}
 			error_message = "";
 			return true;
 
@@ -238,6 +351,290 @@ public class Image_Expression_Parser< T extends RealType< T > & NativeType< T >
 
 	}
 
+	/**
+	 * Evaluate the expression over RGB images.
+	 * <p>
+	 * Pixel-wise expressions with a {@link OutputType#FLOAT} or
+	 * {@link OutputType#UNSIGNED_BYTE} output are evaluated directly on the
+	 * packed pixels, see {@link PackedRGBEvaluator}. The result is a 3-channel
+	 * float composite image in the first case, and a RGB image in the second.
+	 * <p>
+	 * Otherwise, the red, green and blue channels of the images are split and
+	 * evaluated in parallel, each by its own instance with the settings of
+	 * this one and a third of its threads, and the results are merged in a
+	 * 3-channel composite image. No intermediate image is displayed.
+	 * <p>
+	 * If the expression is invalid or if the image dimensions mismatch,
+	 * <code>null</code> is returned and an explanatory error message can be
+	 * obtained by {@link #getErrorMessage()}.
+	 *
+	 * @param imp_map
+	 *            the <code>String, ImagePlus</code> map of the input images
+	 * @return a new composite image, not displayed yet
+	 */
+	public ImagePlus processRGB( final Map< String, ImagePlus > imp_map )
+	{
+		statistics = null;
+		if ( !hasVirtualStack( imp_map ) )
+		{
+			final List< String > variables = new ArrayList< String >( imp_map.keySet() );
+			Collections.sort( variables );
+			final ParsedExpression parsed = getParsedExpression( variables );
+			if ( null != parsed.error )
+			{
+				error_message = "Expression is invalid:\n" + parsed.error;
+				return null;
+			}
+
+			final OutputType type = output_type.resolve( parsed.root );
+			// An expression that does not use any image is evaluated on the
+			// split channels, which returns the expected composite image
+			if ( ExpressionVirtualStack.isPixelWise( parsed.root ) && usesVariable( parsed.root, imp_map.keySet() ) && ( OutputType.FLOAT == type || OutputType.UNSIGNED_BYTE == type ) )
+			{
+				final ImgLibParser< T > parser = createParser();
+				for ( final String var : variables )
+				{
+					parser.addVariable( var, null ); // set during compilation
+				}
+				try
+				{
+					final PackedRGBEvaluator evaluator = new PackedRGBEvaluator( parser, parser.bind( parsed.root ), imp_map );
+					final ImagePlus first = imp_map.values().iterator().next();
+					error_message = "";
+					if ( OutputType.UNSIGNED_BYTE == type )
+					{
+						final ImagePlus imp = new ImagePlus( expression, evaluator.evaluatePacked( num_threads ) );
+						imp.setDimensions( 1, first.getNSlices(), first.getNFrames() );
+						return imp;
+					}
+					return toComposite( evaluator.evaluateChannels( num_threads ), first );
+				}
+				catch ( final ParseException e )
+				{
+					error_message = e.getErrorInfo();
+					return null;
+				}
+			}
+		}
+
+		// Split channels
+		final List< Map< String, ImagePlus > > channel_maps = new ArrayList< Map< String, ImagePlus > >( 3 );
+		for ( int c = 0; c < 3; c++ )
+		{
+			channel_maps.add( new HashMap< String, ImagePlus >() );
+		}
+		final RGBStackSplitter channel_splitter = new RGBStackSplitter();
+		for ( final String key : imp_map.keySet() )
+		{
+			final ImagePlus imp = imp_map.get( key );
+			channel_splitter.split( imp.getImageStack(), true );
+			channel_maps.get( 0 ).put( key, new ImagePlus( imp.getShortTitle() + "-R", channel_splitter.red ) );
+			channel_maps.get( 1 ).put( key, new ImagePlus( imp.getShortTitle() + "-G", channel_splitter.green ) );
+			channel_maps.get( 2 ).put( key, new ImagePlus( imp.getShortTitle() + "-B", channel_splitter.blue ) );
+		}
+
+		// Evaluate them in parallel, on the pool of the evaluations. Errors
+		// are returned through the futures, and reported in this thread
+		final List< Future< ImageStack > > futures = new ArrayList< Future< ImageStack > >( 3 );
+		for ( final Map< String, ImagePlus > channel_map : channel_maps )
+		{
+			final Image_Expression_Parser< T > channel_iep = copySettings();
+			channel_iep.setNumThreads( Math.max( 1, num_threads / 3 ) );
+			futures.add( ParallelChunks.getPool().submit( new Callable< ImageStack >()
+			{
+				@Override
+				public ImageStack call() throws ParseException
+				{
+					final ImagePlus channel_imp = channel_iep.processToImagePlus( channel_map, null );
+					if ( null == channel_imp ) { throw new ParseException( channel_iep.getErrorMessage() ); }
+					return channel_imp.getStack();
+				}
+			} ) );
+		}
+		final ImageStack[] channel_stacks = new ImageStack[ 3 ];
+		try
+		{
+			for ( int c = 0; c < 3; c++ )
+			{
+				channel_stacks[ c ] = futures.get( c ).get();
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			error_message = "Evaluation was interrupted.";
+			return null;
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof ParseException )
+			{
+				error_message = ( ( ParseException ) e.getCause() ).getErrorInfo();
+			}
+			else
+			{
+				e.printStackTrace();
+				error_message = "Evaluation failed: " + e.getCause();
+			}
+			return null;
+		}
+		finally
+		{
+			// Stop the other channels after a failure
+			for ( final Future< ImageStack > future : futures )
+			{
+				future.cancel( true );
+			}
+		}
+		error_message = "";
+
+		// Merge channels, plane by plane
+		final ImagePlus first = imp_map.values().iterator().next();
+		final ImageStack stack = new ImageStack( first.getWidth(), first.getHeight() );
+		for ( int n = 1; n <= channel_stacks[ 0 ].getSize(); n++ )
+		{
+			for ( final ImageStack channel_stack : channel_stacks )
+			{
+				stack.addSlice( channel_stack.getProcessor( n ) );
+			}
+		}
+		return toComposite( stack, first );
+	}
+
+	/**
+	 * Evaluate the expression over ImageJ images, and return the result as an
+	 * ImagePlus, with no copy of the result.
+	 * <p>
+	 * If the given target is a 32-bit image with the dimensions of the inputs,
+	 * with its stack split in the same channels, slices and frames, the
+	 * result is written directly in its pixel arrays, and the target is
+	 * returned. Otherwise the result is written in a new {@link PlanarImg},
+	 * and the stack of the returned ImagePlus is made of the float arrays of
+	 * its planes. This is only possible for a {@link OutputType#FLOAT} result:
+	 * other result types are wrapped in a new ImagePlus instead. In both
+	 * cases, the statistics of the result are then given by
+	 * {@link #getStatistics()}.
+	 * <p>
+	 * If the expression is invalid or if the image dimensions mismatch,
+	 * <code>null</code> is returned and an explanatory error message can be
+	 * obtained by {@link #getErrorMessage()}.
+	 *
+	 * @param imp_map
+	 *            the <code>String, ImagePlus</code> map of the input images
+	 * @param target_imp
+	 *            the image to write the result in if possible, may be
+	 *            <code>null</code>
+	 * @return the target, or a new image, not displayed yet
+	 */
+	@SuppressWarnings( "unchecked" )
+	public ImagePlus processToImagePlus( final Map< String, ImagePlus > imp_map, final ImagePlus target_imp )
+	{
+		image_map = convertToImglib( imp_map );
+		if ( !checkInput() ) { return null; }
+		final ImagePlus first = imp_map.values().iterator().next();
+		final Img< T > first_img = image_map.values().iterator().next();
+		final Img< ? > previous_target = target;
+		try
+		{
+			if ( OutputType.FLOAT != output_type.resolve( getParsedExpression( getSortedVariables() ).root ) )
+			{
+				target = null;
+				if ( !process() ) { return null; }
+				return ImageJFunctions.wrap( getResult(), expression );
+			}
+
+			// The wrapped target keeps its C/Z/T layout, which must match the
+			// one of the inputs, not only its number of slices
+			final Img< FloatType > wrapped_target = null != target_imp && target_imp.getType() == ImagePlus.GRAY32 && !target_imp.getStack().isVirtual() ? ImagePlusAdapter.wrapFloat( target_imp ) : null;
+			final boolean in_target = null != wrapped_target && Intervals.equalDimensions( wrapped_target, first_img );
+			if ( in_target )
+			{
+				target = wrapped_target;
+			}
+			else
+			{
+				final long[] dimensions = new long[ first_img.numDimensions() ];
+				first_img.dimensions( dimensions );
+				target = PlanarImgs.floats( dimensions );
+			}
+			if ( !process() ) { return null; }
+			getResult(); // lazy results are written in the target now
+			if ( in_target ) { return target_imp; }
+
+			final PlanarImg< FloatType, FloatArray > planar = ( PlanarImg< FloatType, FloatArray > ) target;
+			final ImageStack stack = new ImageStack( first.getWidth(), first.getHeight() );
+			for ( int i = 0; i < planar.numSlices(); i++ )
+			{
+				stack.addSlice( first.getStack().getSliceLabel( i + 1 ), planar.getPlane( i ).getCurrentStorageArray() );
+			}
+			final ImagePlus imp = new ImagePlus( expression, stack );
+			imp.setDimensions( first.getNChannels(), first.getNSlices(), first.getNFrames() );
+			imp.setOpenAsHyperStack( first.isHyperStack() );
+			return imp;
+		}
+		finally
+		{
+			target = previous_target;
+		}
+	}
+
+	/**
+	 * Prepare a slice by slice evaluation of the expression over the given
+	 * ImageJ images. Nothing is computed by this method: the slices of the
+	 * returned stack are evaluated when they are requested, from the matching
+	 * slices of the input images. This way, input virtual stacks are never
+	 * loaded in memory, and the result can be displayed as a virtual stack, or
+	 * computed slice after slice with
+	 * {@link ExpressionVirtualStack#toImageStack()}.
+	 * <p>
+	 * Only expressions made of pixel-wise operations can be evaluated this
+	 * way. If the expression is not one of them, or is invalid, this method
+	 * returns <code>null</code> and an explanatory message can be obtained by
+	 * {@link #getErrorMessage()}.
+	 *
+	 * @param imp_map
+	 *            the <code>String, ImagePlus</code> map of the input images
+	 * @return a new virtual stack, or <code>null</code>
+	 */
+	public ExpressionVirtualStack< T > createVirtualStack( final Map< String, ImagePlus > imp_map )
+	{
+		final ImgLibParser< T > parser = createParser();
+		for ( final String var : imp_map.keySet() )
+		{
+			parser.addVariable( var, null ); // set slice by slice
+		}
+		try
+		{
+			Node root_node = parser.parse( expression );
+			if ( optimize )
+			{
+				root_node = parser.optimize( root_node );
+			}
+			final ExpressionVirtualStack< T > stack = new ExpressionVirtualStack< T >( parser, root_node, imp_map );
+			error_message = "";
+			return stack;
+		}
+		catch ( final ParseException e )
+		{
+			error_message = e.getErrorInfo();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if one of the given images is a virtual stack.
+	 * Such images are best evaluated with
+	 * {@link #createVirtualStack(Map)}, when the expression allows it.
+	 */
+	public static boolean hasVirtualStack( final Map< String, ImagePlus > imp_map )
+	{
+		for ( final ImagePlus imp : imp_map.values() )
+		{
+			if ( imp.getStack().isVirtual() ) { return true; }
+		}
+		return false;
+	}
+
 	/*
 	 * SETTERS AND GETTERS
 	 */
@@ -245,14 +642,70 @@ public class Image_Expression_Parser< T extends RealType< T > & NativeType< T >
 	/**
 	 * Return the result of the last evaluation of the expression over the
 	 * images given. Is <code>null</code> if {@link #process()} was not called
-	 * before.
+	 * before. In lazy mode, the result is computed on the first call.
 	 */
 	@Override
+	@SuppressWarnings( "unchecked" )
 	public Img< T > getResult()
 	{
+		if ( null == result && null != result_view )
+		{
+			final PixelStatistics view_statistics = createStatistics();
+			try
+			{
+				if ( result_view instanceof Img && OutputType.FLOAT == view_output_type && null == target )
+				{
+					// Not computed on access: count it now
+					view_statistics.accumulate( ( Img< ? > ) result_view, num_threads );
+					result = ( Img< T > ) ( Object ) result_view;
+				}
+				else
+				{
+					final long[] dimensions = new long[ result_view.numDimensions() ];
+					result_view.dimensions( dimensions );
+					final Img< ? > materialized = null == target ? view_output_type.createImg( dimensions, null ) : target;
+					result = ( Img< T > ) ImgLibKernelView.materialize( result_view, materialized, num_threads, view_statistics );
+				}
+				statistics = view_statistics;
+			}
+			catch ( final ParseException e )
+			{
+				e.printStackTrace();
+				error_message = e.getErrorInfo();
+			}
+		}
 		return this.result;
 	}
 
+	/**
+	 * Return the statistics of the result of the last evaluation: its
+	 * minimum, maximum and sum, and its histogram if one was requested with
+	 * {@link #setHistogram(int, double, double)}. They are counted while the
+	 * result is written, so that a display range can be set without reading
+	 * it again. In lazy mode, the result is computed on the first call.
+	 * <p>
+	 * Is <code>null</code> if {@link #process()} was not called before or
+	 * failed. {@link #processRGB(Map)} does not compute statistics.
+	 */
+	public PixelStatistics getStatistics()
+	{
+		getResult();
+		return this.statistics;
+	}
+
+	/**
+	 * Return the result of the last evaluation as a view. In lazy mode, its
+	 * pixels are computed when they are accessed, so that a part of it can be
+	 * sampled, cropped or streamed without computing the whole image.
+	 * Otherwise, this is the image returned by {@link #getResult()}.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public RandomAccessibleInterval< FloatType > getResultView()
+	{
+		if ( null != result_view ) { return result_view; }
+		return ( RandomAccessibleInterval< FloatType > ) ( Object ) result;
+	}
+
 	/**
 	 * If an error occurred during the call of {@link #process()}, an error
 	 * message can be read here.
@@ -286,10 +739,307 @@ public class Image_Expression_Parser< T extends RealType< T > & NativeType< T >
 		return this.image_map;
 	}
 
+	/**
+	 * Set the strategy used to evaluate the expression. Default is
+	 * {@link EvaluationMode#FUSED}, which does not allocate intermediate
+	 * images for pixel-wise operations. Use {@link EvaluationMode#INTERPRETED}
+	 * to pick the plain JEP interpreter, or {@link EvaluationMode#COMPILED} to
+	 * compile the pixel-wise operations into method handles.
+	 */
+	public void setEvaluationMode( final EvaluationMode mode )
+	{
+		this.evaluation_mode = mode;
+	}
+
+	public EvaluationMode getEvaluationMode()
+	{
+		return this.evaluation_mode;
+	}
+
+	/**
+	 * Set whether {@link #process()} should return a view computed on access
+	 * instead of a whole image. Default is <code>false</code>.
+	 *
+	 * @see #getResultView()
+	 */
+	public void setLazy( final boolean lazy )
+	{
+		this.lazy = lazy;
+	}
+
+	public boolean isLazy()
+	{
+		return this.lazy;
+	}
+
+	/**
+	 * Set the factory used to create the result image. Default is
+	 * <code>null</code>, for an ArrayImg, which is limited to 2^31 pixels. With
+	 * a cell image factory, the expression is evaluated cell by cell, and the
+	 * result can be as large as the factory allows.
+	 *
+	 * @see ImgLibParser#setImgFactory(ImgFactory)
+	 */
+	public void setImgFactory( final ImgFactory< FloatType > img_factory )
+	{
+		this.img_factory = img_factory;
+	}
+
+	public ImgFactory< FloatType > getImgFactory()
+	{
+		return this.img_factory;
+	}
+
+	/**
+	 * Set the pixel type of the result. Default is {@link OutputType#FLOAT}.
+	 * With {@link OutputType#AUTO}, a mask made by comparisons and logical
+	 * operators, such as <code>A &gt; 128 &amp;&amp; B &lt; 50</code>, is
+	 * returned as a bit image, 32 times smaller than a float one. Use
+	 * {@link OutputType#UNSIGNED_SHORT} to keep the result of integer
+	 * arithmetic on 16-bit images in 16 bits.
+	 *
+	 * @see ImgLibParser#setOutputType(OutputType)
+	 */
+	public void setOutputType( final OutputType output_type )
+	{
+		this.output_type = output_type;
+	}
+
+	public OutputType getOutputType()
+	{
+		return this.output_type;
+	}
+
+	/**
+	 * Set the precision of <code>exp</code>, <code>log</code>, the
+	 * trigonometric and arc functions, and the power operator. Default is
+	 * {@link Precision#STRICT}. {@link Precision#FAST} is enough for display
+	 * transforms such as <code>log(A)</code> or <code>A^0.45</code> on large
+	 * images.
+	 *
+	 * @see ImgLibParser#setPrecision(Precision)
+	 */
+	public void setPrecision( final Precision precision )
+	{
+		this.precision = precision;
+	}
+
+	public Precision getPrecision()
+	{
+		return this.precision;
+	}
+
+	/**
+	 * Set the image the next evaluations write their result in, instead of a
+	 * new image. It must have the dimensions of the input images, and its
+	 * pixel type overrides the output type. Set it to <code>null</code> to
+	 * get a new image again.
+	 *
+	 * @see #processToImagePlus(Map, ImagePlus)
+	 */
+	public void setTarget( final Img< ? > target )
+	{
+		this.target = target;
+	}
+
+	public Img< ? > getTarget()
+	{
+		return this.target;
+	}
+
+	/**
+	 * Request the histogram of the next results, counted while they are
+	 * written. Since the range of the values is not known before, the range
+	 * of the histogram is fixed; values outside of it are not counted.
+	 *
+	 * @param n_bins
+	 *            the number of bins, 0 for no histogram, which is the default
+	 * @param min
+	 *            the lower bound of the first bin
+	 * @param max
+	 *            the upper bound of the last bin, included in it
+	 * @see #getStatistics()
+	 */
+	public void setHistogram( final int n_bins, final double min, final double max )
+	{
+		new PixelStatistics( n_bins, min, max ); // check the arguments
+		this.histogram_bins = n_bins;
+		this.histogram_min = min;
+		this.histogram_max = max;
+	}
+
+	/**
+	 * Set the number of threads used to evaluate the expression. Default is
+	 * the number of available processors.
+	 */
+	public void setNumThreads( final int num_threads )
+	{
+		this.num_threads = num_threads;
+	}
+
+	public int getNumThreads()
+	{
+		return this.num_threads;
+	}
+
+	/**
+	 * Set whether the parsed expression is simplified before its evaluation,
+	 * which saves full image passes for constant sub-expressions and identity
+	 * operations. Default is <code>false</code>, so that the results are the
+	 * ones of the expression as written: simplified expressions can differ
+	 * from the original one in the last bits of the float representation.
+	 *
+	 * @see fiji.expressionparser.ImgLibOptimizer
+	 */
+	public void setOptimize( final boolean optimize )
+	{
+		this.optimize = optimize;
+	}
+
+	public boolean isOptimize()
+	{
+		return this.optimize;
+	}
+
 	/*
 	 * PRIVATE METHODS
 	 */
 
+	/**
+	 * Instantiate a parser with the standard functions and the settings of
+	 * this instance, but no variables.
+	 */
+	private ImgLibParser< T > createParser()
+	{
+		final ImgLibParser< T > parser = ImgLibFunctionRegistry.getDefault().createParser();
+		configure( parser );
+		return parser;
+	}
+
+	/**
+	 * Pass the settings of this instance to a parser.
+	 */
+	private void configure( final ImgLibParser< T > parser )
+	{
+		parser.setEvaluationMode( evaluation_mode );
+		parser.setNumThreads( num_threads );
+		parser.setImgFactory( img_factory );
+		parser.setOutputType( output_type );
+		parser.setPrecision( precision );
+	}
+
+	/**
+	 * Return the current expression parsed for the given variables, from the
+	 * cache if it is there, and put it there otherwise. The expression is
+	 * optimized if this instance is set to.
+	 */
+	private ParsedExpression getParsedExpression( final List< String > variables )
+	{
+		final String key = optimize + " " + variables + " " + expression;
+		synchronized ( PARSE_CACHE )
+		{
+			final ParsedExpression cached = PARSE_CACHE.get( key );
+			if ( null != cached ) { return cached; }
+		}
+
+		// Parse outside of the lock, so that other expressions are not blocked
+		final ParsedExpression parsed = parse( variables );
+
+		synchronized ( PARSE_CACHE )
+		{
+			final ParsedExpression cached = PARSE_CACHE.get( key );
+			if ( null != cached ) { return cached; }
+			PARSE_CACHE.put( key, parsed );
+		}
+		return parsed;
+	}
+
+	/**
+	 * Parse the current expression for the given variables with a new parser,
+	 * and optimize it if this instance is set to.
+	 */
+	private ParsedExpression parse( final List< String > variables )
+	{
+		final ImgLibParser< T > parser = createParser();
+		for ( final String var : variables )
+		{
+			parser.addVariable( var, null ); // we do not care for value yet
+		}
+		parser.parseExpression( expression );
+		final String error = parser.getErrorInfo();
+		Node root = null;
+		if ( null == error )
+		{
+			root = parser.getTopNode();
+			if ( optimize )
+			{
+				root = parser.optimize( root );
+			}
+		}
+		return new ParsedExpression( root, error );
+	}
+
+	/**
+	 * Returns <code>true</code> if the given expression tree uses one of the
+	 * given variables.
+	 */
+	private static boolean usesVariable( final Node node, final Set< String > variables )
+	{
+		if ( node instanceof ASTVarNode && variables.contains( ( ( ASTVarNode ) node ).getVar().getName() ) ) { return true; }
+		for ( int i = 0; i < node.jjtGetNumChildren(); i++ )
+		{
+			if ( usesVariable( node.jjtGetChild( i ), variables ) ) { return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Wrap a stack of red, green and blue planes in a composite image with
+	 * the slices and frames of the given input image.
+	 */
+	private ImagePlus toComposite( final ImageStack stack, final ImagePlus first )
+	{
+		final ImagePlus imp = new ImagePlus( expression, stack );
+		imp.setDimensions( 3, first.getNSlices(), first.getNFrames() );
+		final CompositeImage composite = new CompositeImage( imp, CompositeImage.COMPOSITE );
+		for ( int channel = 3; channel > 0; channel-- )
+		{
+			composite.setPosition( channel, 1, 1 );
+			composite.resetDisplayRange();
+		}
+		return composite;
+	}
+
+	private PixelStatistics createStatistics()
+	{
+		return new PixelStatistics( histogram_bins, histogram_min, histogram_max );
+	}
+
+	private List< String > getSortedVariables()
+	{
+		final List< String > variables = new ArrayList< String >( image_map.keySet() );
+		Collections.sort( variables );
+		return variables;
+	}
+
+	/**
+	 * Return a new instance with the expression and the settings of this one,
+	 * but no images.
+	 */
+	private Image_Expression_Parser< T > copySettings()
+	{
+		final Image_Expression_Parser< T > copy = new Image_Expression_Parser< T >();
+		copy.setExpression( expression );
+		copy.setEvaluationMode( evaluation_mode );
+		copy.setNumThreads( num_threads );
+		copy.setOptimize( optimize );
+		copy.setImgFactory( img_factory );
+		copy.setOutputType( output_type );
+		copy.setPrecision( precision );
+		copy.setHistogram( histogram_bins, histogram_min, histogram_max );
+		return copy;
+	}
+
 	/**
 	 * Launch and display the GUI. Returns a reference to it that can be used to
 	 * retrieve settings.
@@ -342,17 +1092,7 @@ public class Image_Expression_Parser< T extends RealType< T > & NativeType< T >
 	 */
 	private Object[] isExpressionValid()
 	{
-		final ImgLibParser< T > parser = new ImgLibParser< T >();
-		parser.addStandardConstants();
-		parser.addStandardFunctions();
-		parser.addImgLibAlgorithms();
-		final Set< String > variables = image_map.keySet();
-		for ( final String var : variables )
-		{
-			parser.addVariable( var, null ); // we do not care for value yet
-		}
-		parser.parseExpression( expression );
-		final String error = parser.getErrorInfo();
+		final String error = getParsedExpression( getSortedVariables() ).error;
 		if ( null == error )
 		{
 			return new Object[] { true, "" };
@@ -414,6 +1154,18 @@ public class Image_Expression_Parser< T extends RealType< T > & NativeType< T >
 		final GenericDialog gd = new GenericDialog( "Image Expression Parser" );
 		expression = Prefs.get( prefix + "expression.val", "A^2" );
 		gd.addStringField( "Expression", expression, 20 );
+		final String[] output_types = new String[ OutputType.values().length ];
+		for ( int i = 0; i < output_types.length; i++ )
+		{
+			output_types[ i ] = OutputType.values()[ i ].name();
+		}
+		gd.addChoice( "Output type", output_types, Prefs.get( prefix + "output.type", OutputType.FLOAT.name() ) );
+		final String[] precisions = new String[ Precision.values().length ];
+		for ( int i = 0; i < precisions.length; i++ )
+		{
+			precisions[ i ] = Precision.values()[ i ].name();
+		}
+		gd.addChoice( "Precision", precisions, Prefs.get( prefix + "precision", Precision.STRICT.name() ) );
 
 		for ( int i = 0; i < n_images; i++ )
 		{
@@ -426,20 +1178,54 @@ public class Image_Expression_Parser< T extends RealType< T > & NativeType< T >
 
 		expression = gd.getNextString();
 		Prefs.set( prefix + "expression.val", expression );
-		image_map = new HashMap< String, Img< T > >( 1 );
+		output_type = OutputType.valueOf( gd.getNextChoice() );
+		Prefs.set( prefix + "output.type", output_type.name() );
+		precision = Precision.valueOf( gd.getNextChoice() );
+		Prefs.set( prefix + "precision", precision.name() );
+		final Map< String, ImagePlus > imp_map = new HashMap< String, ImagePlus >( 1 );
 		for ( int i = 0; i < n_images; i++ )
 		{
 			final String im = gd.getNextChoice();
 			if ( !im.equals( "None" ) )
 			{
 				Prefs.set( prefix + "image.selection." + i, im );
-				image_map.put( String.valueOf( letters[ i ] ), ImagePlusAdapter.< T >wrap( WindowManager.getImage( im ) ) );
+				imp_map.put( String.valueOf( letters[ i ] ), WindowManager.getImage( im ) );
 			}
 		}
 
-		if ( process() )
+		// Stream virtual stacks slice by slice when possible
+		if ( hasVirtualStack( imp_map ) )
 		{
-			ImageJFunctions.show( getResult(), "Parsed with " + expression );
+			final ExpressionVirtualStack< T > stack = createVirtualStack( imp_map );
+			if ( null != stack )
+			{
+				new ImagePlus( "Parsed with " + expression, stack ).show();
+				return;
+			}
+		}
+
+		// Evaluate the channels of RGB images separately
+		for ( final ImagePlus imp : imp_map.values() )
+		{
+			if ( imp.getType() == ImagePlus.COLOR_RGB )
+			{
+				final ImagePlus result_imp = processRGB( imp_map );
+				if ( null == result_imp )
+				{
+					IJ.error( error_message );
+					return;
+				}
+				result_imp.setTitle( "Parsed with " + expression );
+				result_imp.show();
+				return;
+			}
+		}
+
+		final ImagePlus result_imp = processToImagePlus( imp_map, null );
+		if ( null != result_imp )
+		{
+			result_imp.setTitle( "Parsed with " + expression );
+			result_imp.show();
 		}
 		else
 		{
@@ -447,6 +1233,31 @@ public class Image_Expression_Parser< T extends RealType< T > & NativeType< T >
 		}
 	}
 
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * An expression parsed for a set of variables. The tree is never modified
+	 * after it is cached: instances evaluate copies of it bound to their own
+	 * parser, see {@link ImgLibParser#bind(Node)}.
+	 */
+	private static final class ParsedExpression
+	{
+
+		/** The root of the parsed tree, <code>null</code> if it is invalid */
+		private final Node root;
+
+		/** The parse error, <code>null</code> if it is valid */
+		private final String error;
+
+		private ParsedExpression( final Node root, final String error )
+		{
+			this.root = root;
+			this.error = error;
+		}
+	}
+
 	/*
 	 * MAIN METHOD
 	 */
@@ -467,23 +1278,9 @@ public class Image_Expression_Parser< T extends RealType< T > & NativeType< T >
 		if ( everything_went_fine )
 		{
 			final ImagePlus result_imp = ImageJFunctions.show( result );
-
-			float max = Float.NEGATIVE_INFINITY;
-			float min = Float.POSITIVE_INFINITY;
-			for ( int i = 0; i < result_imp.getStackSize(); i++ )
-			{
-				final FloatProcessor fp = ( FloatProcessor ) result_imp.getStack().getProcessor( i + 1 );
-				final float[] arr = ( float[] ) fp.getPixels();
-				for ( int j = 0; j < arr.length; j++ )
-				{
-					if ( arr[ j ] > max )
-						max = arr[ j ];
-					if ( arr[ j ] < min )
-						min = arr[ j ];
-				}
-			}
+			final PixelStatistics statistics = iep.getStatistics();
 			result_imp.show();
-			result_imp.setDisplayRange( min, max );
+			result_imp.setDisplayRange( statistics.getMin(), statistics.getMax() );
 			result_imp.updateAndDraw();
 		}
 		else
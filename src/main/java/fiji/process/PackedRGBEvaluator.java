@@ -0,0 +1,223 @@
+package fiji.process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.nfunk.jep.Node;
+import org.nfunk.jep.ParseException;
+
+import fiji.expressionparser.ImgLibFusedEvaluator;
+import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.PixelKernel;
+import fiji.expressionparser.function.ParallelChunks;
+import fiji.expressionparser.function.PixelBlockWriter;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+
+/**
+ * Evaluates a pixel-wise expression directly on the packed pixels of RGB
+ * images, without splitting them in channels first.
+ * <p>
+ * The expression is compiled once in a {@link PixelKernel}. For every block
+ * of pixels, the red, green and blue values of the inputs are unpacked from
+ * the <code>int</code> arrays of their {@link ColorProcessor}s, the kernel is
+ * evaluated for each channel in turn, and the three results are written
+ * straight to the output: either packed again in an RGB stack, or in the float
+ * planes of a 3-channel stack.
+ */
+public class PackedRGBEvaluator
+{
+
+	/** The compiled expression. */
+	private final PixelKernel kernel;
+
+	/** The input images, in the order of the inputs of the kernel. */
+	private final ImagePlus[] inputs;
+
+	private final int width;
+
+	private final int height;
+
+	private final int n_planes;
+
+	/**
+	 * Compile an expression for RGB images.
+	 *
+	 * @param parser
+	 *            The parser the expression was parsed with. The values of its
+	 *            variables are changed during compilation, and reset to
+	 *            <code>null</code> afterwards.
+	 * @param root
+	 *            The parsed expression
+	 * @param imp_map
+	 *            The input images, by variable name. They must all be RGB
+	 *            images of the same dimensions.
+	 * @throws ParseException
+	 *             If the expression is not pixel-wise or does not use any
+	 *             image, or if the images cannot be evaluated this way
+	 */
+	public PackedRGBEvaluator( final ImgLibParser< ? > parser, final Node root, final Map< String, ImagePlus > imp_map ) throws ParseException
+	{
+		if ( !ExpressionVirtualStack.isPixelWise( root ) ) { throw new ParseException( "Only pixel-wise expressions can be evaluated on packed RGB pixels." ); }
+		final ImagePlus first = imp_map.values().iterator().next();
+		for ( final ImagePlus imp : imp_map.values() )
+		{
+			if ( imp.getType() != ImagePlus.COLOR_RGB ) { throw new ParseException( "Image " + imp.getTitle() + " is not a RGB image." ); }
+			if ( imp.getWidth() != first.getWidth() || imp.getHeight() != first.getHeight() || imp.getStackSize() != first.getStackSize() ) { throw new ParseException( "Input images do not have all the same dimensions." ); }
+		}
+
+		// Compile with a placeholder image per variable, to find which input
+		// of the kernel each variable is
+		final List< String > variables = new ArrayList< String >( imp_map.keySet() );
+		final List< Img< ? > > placeholders = new ArrayList< Img< ? > >( variables.size() );
+		final List< Img< ? > > kernel_inputs = new ArrayList< Img< ? > >();
+		try
+		{
+			for ( final String var : variables )
+			{
+				final Img< ? > placeholder = ArrayImgs.floats( 1 );
+				placeholders.add( placeholder );
+				parser.setVarValue( var, placeholder );
+			}
+			this.kernel = new ImgLibFusedEvaluator( parser.getSymbolTable() ).compile( root, kernel_inputs );
+		}
+		finally
+		{
+			for ( final String var : variables )
+			{
+				parser.setVarValue( var, null );
+			}
+		}
+		if ( kernel_inputs.isEmpty() ) { throw new ParseException( "The expression does not use any image." ); }
+
+		this.inputs = new ImagePlus[ kernel_inputs.size() ];
+		for ( int i = 0; i < inputs.length; i++ )
+		{
+			inputs[ i ] = imp_map.get( variables.get( placeholders.indexOf( kernel_inputs.get( i ) ) ) );
+		}
+		this.width = first.getWidth();
+		this.height = first.getHeight();
+		this.n_planes = first.getStackSize();
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Evaluate the expression, and pack its results in an RGB stack with the
+	 * planes of the inputs. Results are rounded and clamped to
+	 * <code>[0, 255]</code>.
+	 */
+	public ImageStack evaluatePacked( final int num_threads ) throws ParseException
+	{
+		final int[][] packed = new int[ n_planes ][ width * height ];
+		evaluate( packed, null, num_threads );
+		final ImageStack stack = new ImageStack( width, height );
+		for ( int n = 0; n < n_planes; n++ )
+		{
+			stack.addSlice( inputs[ 0 ].getStack().getSliceLabel( n + 1 ), new ColorProcessor( width, height, packed[ n ] ) );
+		}
+		return stack;
+	}
+
+	/**
+	 * Evaluate the expression, and store its results in a float stack with 3
+	 * channels per plane of the inputs: red, green and blue.
+	 */
+	public ImageStack evaluateChannels( final int num_threads ) throws ParseException
+	{
+		final float[][][] channels = new float[ n_planes ][ 3 ][ width * height ];
+		evaluate( null, channels, num_threads );
+		final ImageStack stack = new ImageStack( width, height );
+		for ( int n = 0; n < n_planes; n++ )
+		{
+			for ( int c = 0; c < 3; c++ )
+			{
+				stack.addSlice( new FloatProcessor( width, height, channels[ n ][ c ] ) );
+			}
+		}
+		return stack;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Evaluate the kernel over all the planes, and write the results either in
+	 * the packed planes or in the channel planes, whichever is not
+	 * <code>null</code>.
+	 */
+	private void evaluate( final int[][] packed, final float[][][] channels, final int num_threads ) throws ParseException
+	{
+		final int plane_size = width * height;
+		final int[][][] pixels = new int[ n_planes ][ inputs.length ][];
+		for ( int n = 0; n < n_planes; n++ )
+		{
+			for ( int i = 0; i < inputs.length; i++ )
+			{
+				pixels[ n ][ i ] = ( int[] ) inputs[ i ].getStack().getPixels( n + 1 );
+			}
+		}
+
+		ParallelChunks.run( ( long ) n_planes * plane_size, num_threads, new ParallelChunks.Task()
+		{
+			@Override
+			public void run( final long offset, final long length )
+			{
+				final PixelKernel chunk_kernel = kernel.copy();
+				final float[][] blocks = new float[ inputs.length ][ PixelKernel.BLOCK_SIZE ];
+				long done = 0;
+				while ( done < length )
+				{
+					// Blocks do not cross planes
+					final int plane = ( int ) ( ( offset + done ) / plane_size );
+					final int start = ( int ) ( ( offset + done ) % plane_size );
+					final int block_length = ( int ) Math.min( Math.min( PixelKernel.BLOCK_SIZE, length - done ), plane_size - start );
+					for ( int c = 0; c < 3; c++ )
+					{
+						final int shift = 16 - 8 * c;
+						for ( int i = 0; i < inputs.length; i++ )
+						{
+							final int[] source = pixels[ plane ][ i ];
+							final float[] block = blocks[ i ];
+							for ( int j = 0; j < block_length; j++ )
+							{
+								block[ j ] = ( source[ start + j ] >> shift ) & 0xff;
+							}
+						}
+						final float[] values = chunk_kernel.evaluate( blocks, block_length );
+						if ( null != packed )
+						{
+							final int[] target = packed[ plane ];
+							for ( int j = 0; j < block_length; j++ )
+							{
+								target[ start + j ] |= PixelBlockWriter.toUnsigned( values[ j ], 255 ) << shift;
+							}
+						}
+						else
+						{
+							System.arraycopy( values, 0, channels[ plane ][ c ], start, block_length );
+						}
+					}
+					if ( null != packed )
+					{
+						final int[] target = packed[ plane ];
+						for ( int j = 0; j < block_length; j++ )
+						{
+							target[ start + j ] |= 0xff000000;
+						}
+					}
+					done += block_length;
+				}
+			}
+		} );
+	}
+
+}
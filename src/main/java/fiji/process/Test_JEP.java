@@ -4,8 +4,8 @@ import org.nfunk.jep.Node;
 import org.nfunk.jep.ParseException;
 
 import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.PixelStatistics;
 import ij.ImagePlus;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import net.imglib2.img.ImagePlusAdapter;
 import net.imglib2.img.Img;
@@ -77,30 +77,18 @@ public class Test_JEP
 				final Node root_node = parser.parse( expression );
 
 				System.out.flush();
-				final Img< ? > result = ( Img< ? > ) parser.evaluate( root_node );
+				final PixelStatistics statistics = new PixelStatistics();
+				final Img< ? > result = ( Img< ? > ) parser.evaluate( root_node, null, statistics );
 				System.out.println( "Checking for errors: " + parser.getErrorInfo() );
 				System.out.println( "Resut is: " + result );
 				@SuppressWarnings( { "unchecked", "rawtypes" } )
 				final ImagePlus target_imp = ImageJFunctions.show( ( Img ) result );
 				target_imp.show();
 
-				max = Float.NEGATIVE_INFINITY;
-				min = Float.POSITIVE_INFINITY;
-				for ( int i = 0; i < target_imp.getStackSize(); i++ )
-				{
-					final FloatProcessor fp = ( FloatProcessor ) target_imp.getStack().getProcessor( i + 1 );
-					final float[] arr = ( float[] ) fp.getPixels();
-					for ( int j = 0; j < arr.length; j++ )
-					{
-						if ( arr[ j ] > max )
-							max = arr[ j ];
-						if ( arr[ j ] < min )
-							min = arr[ j ];
-					}
-				}
-				target_imp.setDisplayRange( min, max );
+				// Counted during the evaluation
+				target_imp.setDisplayRange( statistics.getMin(), statistics.getMax() );
 				target_imp.updateAndDraw();
-				System.out.println( String.format( "Min and max: %.2f - %.2f", min, max ) );
+				System.out.println( String.format( "Min and max: %.2f - %.2f", statistics.getMin(), statistics.getMax() ) );
 
 			}
 			catch ( final ParseException e )
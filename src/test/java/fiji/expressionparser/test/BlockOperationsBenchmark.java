@@ -0,0 +1,85 @@
+package fiji.expressionparser.test;
+
+import fiji.expressionparser.PixelKernel;
+import fiji.expressionparser.function.BlockOperations;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the speed of the scalar and vector {@link BlockOperations} backends
+ * for each pixel-wise operator, on the planes of two float images processed
+ * block by block, as the fused evaluator does. This is not a unit test: run it
+ * with its main method, on a JDK 17 or later with
+ * <code>--add-modules jdk.incubator.vector</code> to get the vector backend.
+ * The image size and the number of repetitions can be given as arguments.
+ */
+public class BlockOperationsBenchmark
+{
+
+	public static void main( final String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 1024;
+		final int repetitions = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 20;
+
+		final float[] plane_A = createRandomPlane( size, 1 );
+		final float[] plane_B = createRandomPlane( size, 2 );
+		final float[] output = new float[ plane_A.length ];
+
+		final BlockOperations scalar = BlockOperations.scalar();
+		final BlockOperations vector = BlockOperations.get();
+		System.out.println( "Image size: " + size + " x " + size + ", " + repetitions + " repetitions. Median times in ns per pixel." );
+		System.out.println( "Backend: " + vector.getName() );
+		System.out.println( String.format( "%-20s%12s%12s%12s", "Operation", "scalar", "backend", "speedup" ) );
+
+		for ( final BlockOperations.Operation operation : BlockOperations.Operation.values() )
+		{
+			final double scalar_time = time( scalar, operation, plane_A, plane_B, output, repetitions );
+			final double vector_time = time( vector, operation, plane_A, plane_B, output, repetitions );
+			System.out.println( String.format( "%-20s%12.3f%12.3f%11.2fx", operation, scalar_time, vector_time, scalar_time / vector_time ) );
+		}
+	}
+
+	/**
+	 * Return the median time per pixel, in ns, to apply an operation to two
+	 * planes block by block.
+	 */
+	private static double time( final BlockOperations operations, final BlockOperations.Operation operation, final float[] plane_A, final float[] plane_B, final float[] output, final int repetitions )
+	{
+		final float[] block1 = new float[ PixelKernel.BLOCK_SIZE ];
+		final float[] block2 = new float[ PixelKernel.BLOCK_SIZE ];
+		final float[] block = new float[ PixelKernel.BLOCK_SIZE ];
+		final long[] times = new long[ repetitions ];
+		// Warm up the JIT
+		for ( int r = -5; r < repetitions; r++ )
+		{
+			final long start = System.nanoTime();
+			for ( int offset = 0; offset < plane_A.length; offset += PixelKernel.BLOCK_SIZE )
+			{
+				final int length = Math.min( PixelKernel.BLOCK_SIZE, plane_A.length - offset );
+				System.arraycopy( plane_A, offset, block1, 0, length );
+				System.arraycopy( plane_B, offset, block2, 0, length );
+				operations.apply( operation, block1, block2, block, length );
+				System.arraycopy( block, 0, output, offset, length );
+			}
+			if ( r >= 0 )
+			{
+				times[ r ] = System.nanoTime() - start;
+			}
+		}
+		Arrays.sort( times );
+		return ( double ) times[ repetitions / 2 ] / plane_A.length;
+	}
+
+	private static float[] createRandomPlane( final int size, final long seed )
+	{
+		final float[] plane = new float[ size * size ];
+		final Random random = new Random( seed );
+		for ( int i = 0; i < plane.length; i++ )
+		{
+			plane[ i ] = random.nextFloat() - 0.5f;
+		}
+		return plane;
+	}
+
+}
@@ -0,0 +1,96 @@
+package fiji.expressionparser.test;
+
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibParser;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.nfunk.jep.Node;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Compares the speed of the {@link EvaluationMode}s on common expressions.
+ * This is not a unit test: run it with its main method. The image size and
+ * the number of repetitions can be given as arguments.
+ */
+public class EvaluationModesBenchmark
+{
+
+	private static final String[] EXPRESSIONS = new String[] {
+			"A + B",
+			"(A - B) / (A + B)",
+			"sqrt(A*A + B*B)",
+			"A * 0.5 + B * 0.5 - 10",
+			"(A > 0.5) * A + (A <= 0.5) * B",
+			"exp(-A) * cos(B)"
+	};
+
+	public static void main( final String[] args ) throws ParseException
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 1024;
+		final int repetitions = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 10;
+
+		final Img< FloatType > img_A = createRandomImage( size, 1 );
+		final Img< FloatType > img_B = createRandomImage( size, 2 );
+
+		System.out.println( "Image size: " + size + " x " + size + ", " + repetitions + " repetitions. Median times in ms." );
+		System.out.print( String.format( "%-36s", "Expression" ) );
+		for ( final EvaluationMode mode : EvaluationMode.values() )
+		{
+			System.out.print( String.format( "%12s", mode ) );
+		}
+		System.out.println();
+
+		for ( final String expression : EXPRESSIONS )
+		{
+			System.out.print( String.format( "%-36s", expression ) );
+			for ( final EvaluationMode mode : EvaluationMode.values() )
+			{
+				final ImgLibParser< FloatType > parser = new ImgLibParser< FloatType >();
+				parser.addStandardConstants();
+				parser.addStandardFunctions();
+				parser.addImgLibAlgorithms();
+				parser.addVariable( "A", img_A );
+				parser.addVariable( "B", img_B );
+				parser.setEvaluationMode( mode );
+				final Node root_node = parser.parse( expression );
+
+				// Warm up the JIT
+				for ( int i = 0; i < 3; i++ )
+				{
+					parser.evaluate( root_node );
+				}
+				final long[] times = new long[ repetitions ];
+				for ( int i = 0; i < repetitions; i++ )
+				{
+					final long start = System.nanoTime();
+					parser.evaluate( root_node );
+					times[ i ] = System.nanoTime() - start;
+				}
+				Arrays.sort( times );
+				System.out.print( String.format( "%12.1f", times[ repetitions / 2 ] / 1e6 ) );
+			}
+			System.out.println();
+		}
+	}
+
+	private static Img< FloatType > createRandomImage( final int size, final long seed )
+	{
+		final Img< FloatType > img = new ArrayImgFactory< FloatType >()
+				.create( new long[] { size, size }, new FloatType() );
+		final Random random = new Random( seed );
+		final Cursor< FloatType > cursor = img.cursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.next().set( random.nextFloat() );
+		}
+		return img;
+	}
+
+}
@@ -0,0 +1,139 @@
+package fiji.expressionparser.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import fiji.expressionparser.function.BlockOperations;
+import fiji.expressionparser.function.ImgLibAdd;
+import fiji.expressionparser.function.ImgLibComparison;
+import fiji.expressionparser.function.ImgLibDivide;
+import fiji.expressionparser.function.ImgLibLogical;
+import fiji.expressionparser.function.ImgLibMultiply;
+import fiji.expressionparser.function.ImgLibSubtract;
+import fiji.expressionparser.function.TwoOperandsPixelBasedAbstractFunction;
+
+import java.util.Random;
+
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Checks that the bulk evaluation of the pixel-wise operators, whatever the
+ * {@link BlockOperations} backend available in this JVM, returns exactly the
+ * values of their scalar evaluation, including for NaN, infinite and signed
+ * zero operands.
+ */
+public class TestBlockOperations
+{
+
+	/** Not a multiple of any vector length. */
+	private static final int LENGTH = 1037;
+
+	private static final float[] SPECIAL_VALUES = new float[] {
+			Float.NaN, 0f, -0f, 1f, -1f, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MIN_VALUE, Float.MAX_VALUE
+	};
+
+	@Test
+	public void backends()
+	{
+		assertNotNull( BlockOperations.get() );
+		assertSame( BlockOperations.scalar(), BlockOperations.scalar() );
+		assertEquals( "scalar", BlockOperations.scalar().getName() );
+	}
+
+	@Test
+	public void operators()
+	{
+		final float[] block1 = createBlock( 1 );
+		final float[] block2 = createBlock( 2 );
+		for ( final TwoOperandsPixelBasedAbstractFunction< FloatType > function : createOperators() )
+		{
+			final float[] output = new float[ LENGTH ];
+			function.evaluate( block1, block2, output, LENGTH );
+			for ( int i = 0; i < LENGTH; i++ )
+			{
+				final float expected = function.evaluate( block1[ i ], block2[ i ] );
+				assertEquals( function + " with " + BlockOperations.get().getName() + " on " + block1[ i ] + " and " + block2[ i ] + ".",
+						Float.floatToIntBits( expected ), Float.floatToIntBits( output[ i ] ) );
+			}
+		}
+	}
+
+	@Test
+	public void backendsAgree()
+	{
+		final float[] block1 = createBlock( 3 );
+		final float[] block2 = createBlock( 4 );
+		for ( final BlockOperations.Operation operation : BlockOperations.Operation.values() )
+		{
+			// Lengths smaller than, equal to and larger than a vector
+			for ( int length = 0; length < 70; length++ )
+			{
+				final float[] expected = new float[ length ];
+				final float[] actual = new float[ length ];
+				BlockOperations.scalar().apply( operation, block1, block2, expected, length );
+				BlockOperations.get().apply( operation, block1, block2, actual, length );
+				for ( int i = 0; i < length; i++ )
+				{
+					assertEquals( operation + " differs at " + i + " of " + length + ".",
+							Float.floatToIntBits( expected[ i ] ), Float.floatToIntBits( actual[ i ] ) );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void inPlace()
+	{
+		final float[] block1 = createBlock( 5 );
+		final float[] block2 = createBlock( 6 );
+		final float[] expected = new float[ LENGTH ];
+		BlockOperations.scalar().apply( BlockOperations.Operation.DIVIDE, block1, block2, expected, LENGTH );
+		BlockOperations.get().apply( BlockOperations.Operation.DIVIDE, block1, block2, block1, LENGTH );
+		for ( int i = 0; i < LENGTH; i++ )
+		{
+			assertEquals( Float.floatToIntBits( expected[ i ] ), Float.floatToIntBits( block1[ i ] ) );
+		}
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	private static TwoOperandsPixelBasedAbstractFunction< FloatType >[] createOperators()
+	{
+		@SuppressWarnings( "unchecked" )
+		final TwoOperandsPixelBasedAbstractFunction< FloatType >[] operators = new TwoOperandsPixelBasedAbstractFunction[] {
+				new ImgLibAdd< FloatType >(),
+				new ImgLibSubtract< FloatType >(),
+				new ImgLibMultiply< FloatType >(),
+				new ImgLibDivide< FloatType >(),
+				new ImgLibComparison.GreaterThan< FloatType >(),
+				new ImgLibComparison.LowerThan< FloatType >(),
+				new ImgLibComparison.GreaterOrEqual< FloatType >(),
+				new ImgLibComparison.LowerOrEqual< FloatType >(),
+				new ImgLibComparison.Equal< FloatType >(),
+				new ImgLibComparison.NotEqual< FloatType >(),
+				new ImgLibLogical.And< FloatType >(),
+				new ImgLibLogical.Or< FloatType >()
+		};
+		return operators;
+	}
+
+	/**
+	 * Random small integers, so that the comparisons often find equal values,
+	 * mixed with special values.
+	 */
+	private static float[] createBlock( final long seed )
+	{
+		final Random random = new Random( seed );
+		final float[] block = new float[ LENGTH ];
+		for ( int i = 0; i < LENGTH; i++ )
+		{
+			block[ i ] = random.nextInt( 4 ) == 0 ? SPECIAL_VALUES[ random.nextInt( SPECIAL_VALUES.length ) ] : random.nextInt( 7 ) - 3;
+		}
+		return block;
+	}
+
+}
@@ -0,0 +1,84 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.assertSameImage;
+import static fiji.expressionparser.test.TestUtilities.image_A;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibBufferPool;
+import fiji.expressionparser.ImgLibFusedEvaluator;
+import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.ImgLibUtils;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that the intermediate images of an evaluation are recycled, and that
+ * writing results in place does not change the result nor the input images.
+ */
+public class TestBufferPool
+{
+
+	@Test
+	public void recycling() throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = createParser();
+		final ImgLibFusedEvaluator evaluator = new ImgLibFusedEvaluator( parser.getSymbolTable() );
+		evaluator.evaluate( parser.parse( "gauss(A*2, 1) + gauss(A*3, 1)" ) );
+
+		// A*3 reuses the image of A*2, the sum is written in the first gauss
+		final ImgLibBufferPool pool = evaluator.getBufferPool();
+		assertEquals( 1, pool.getAllocatedCount() );
+		assertEquals( 1, pool.getReusedCount() );
+	}
+
+	@Test
+	public void sameResult() throws ParseException
+	{
+		checkSameResult( "gauss(A*2, 1) + gauss(A*3, 1)" );
+		checkSameResult( "sqrt(gauss(A, 1)) * gauss(A, 1) - gauss(sqrt(gauss(A, 1)), 1)" );
+		checkSameResult( "gauss(gauss(A, 1) * 2, 1) + gauss(A, 1) * 2" );
+		checkSameResult( "gauss(B, 1) * B + sqrt(B)" );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Test
+	public void variablesAreNotModified() throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = createParser();
+		final Img< FloatType > B = ( Img< FloatType > ) parser.getVarValue( "B" );
+		final Img< FloatType > copy = ImgLibUtils.copyToFloatTypeImage( B );
+		parser.setEvaluationMode( EvaluationMode.FUSED );
+		final Object result = parser.evaluate( parser.parse( "sqrt(B) + B * gauss(B, 1)" ) );
+		assertNotSame( B, result );
+		assertSameImage( "The variable B was modified.", copy, B, 0f );
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	@SuppressWarnings( "unchecked" )
+	private void checkSameResult( final String expression ) throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = createParser();
+		final Img< FloatType > expected = ( Img< FloatType > ) parser.evaluate( parser.parse( expression ) );
+		parser.setEvaluationMode( EvaluationMode.FUSED );
+		final Img< FloatType > fused = ( Img< FloatType > ) parser.evaluate( parser.parse( expression ) );
+		assertSameImage( "Fused evaluation of " + expression + " differs.", expected, fused, 0f );
+		parser.setEvaluationMode( EvaluationMode.COMPILED );
+		final Img< FloatType > compiled = ( Img< FloatType > ) parser.evaluate( parser.parse( expression ) );
+		assertSameImage( "Compiled evaluation of " + expression + " differs.", expected, compiled, 0f );
+	}
+
+	private ImgLibParser< UnsignedShortType > createParser()
+	{
+		return TestUtilities.createParser( image_A, ImgLibUtils.copyToFloatTypeImage( image_A ), EvaluationMode.INTERPRETED );
+	}
+
+}
@@ -0,0 +1,120 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.image_A;
+import static org.junit.Assert.assertEquals;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.ImgLibUtils;
+import fiji.expressionparser.function.SingleOperandAbstractFunction;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that structurally identical sub-expressions are evaluated once.
+ */
+public class TestCommonSubExpressions
+{
+
+	@Test
+	public void fused() throws ParseException
+	{
+		checkEvaluatedOnce( EvaluationMode.FUSED );
+	}
+
+	@Test
+	public void compiled() throws ParseException
+	{
+		checkEvaluatedOnce( EvaluationMode.COMPILED );
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	@SuppressWarnings( "unchecked" )
+	private void checkEvaluatedOnce( final EvaluationMode mode ) throws ParseException
+	{
+		final String expression = "count(A) > A && count(A) < 2*A || count(A + 0) == 0";
+
+		final CountingFunction< UnsignedShortType > interpreted_count = new CountingFunction< UnsignedShortType >();
+		final ImgLibParser< UnsignedShortType > interpreter = createParser( interpreted_count );
+		final Img< FloatType > expected = ( Img< FloatType > ) interpreter.evaluate( interpreter.parse( expression ) );
+		assertEquals( 3, interpreted_count.calls );
+
+		final CountingFunction< UnsignedShortType > count = new CountingFunction< UnsignedShortType >();
+		final ImgLibParser< UnsignedShortType > parser = createParser( count );
+		parser.setEvaluationMode( mode );
+		final Img< FloatType > actual = ( Img< FloatType > ) parser.evaluate( parser.parse( expression ) );
+		// count(A) is evaluated once, count(A + 0) is a different expression
+		assertEquals( 2, count.calls );
+
+		final Cursor< FloatType > ec = expected.cursor();
+		final Cursor< FloatType > ac = actual.cursor();
+		while ( ec.hasNext() )
+		{
+			assertEquals( ec.next().get(), ac.next().get(), 0f );
+		}
+	}
+
+	private ImgLibParser< UnsignedShortType > createParser( final CountingFunction< UnsignedShortType > count )
+	{
+		final ImgLibParser< UnsignedShortType > parser = new ImgLibParser< UnsignedShortType >();
+		parser.addStandardFunctions();
+		parser.addFunction( count.getFunctionString(), count );
+		parser.addVariable( "A", image_A );
+		return parser;
+	}
+
+	/**
+	 * An identity function, that counts how many times it is evaluated.
+	 */
+	private static final class CountingFunction< T extends RealType< T > > extends SingleOperandAbstractFunction< T >
+	{
+
+		private int calls = 0;
+
+		public CountingFunction()
+		{
+			numberOfParameters = 1;
+		}
+
+		@Override
+		public < R extends RealType< R > > Img< FloatType > evaluate( final Img< R > img ) throws ParseException
+		{
+			calls++;
+			return ImgLibUtils.copyToFloatTypeImage( img );
+		}
+
+		@Override
+		public < R extends RealType< R > > Img< FloatType > evaluate( final R alpha ) throws ParseException
+		{
+			throw new ParseException( "In function " + getFunctionString() + ": argument must be an image." );
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Counting identity";
+		}
+
+		@Override
+		public String getFunctionString()
+		{
+			return "count";
+		}
+
+		@Override
+		public String getDocumentationString()
+		{
+			return "";
+		}
+	}
+
+}
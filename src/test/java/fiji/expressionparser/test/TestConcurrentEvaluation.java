@@ -0,0 +1,151 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.assertSameImage;
+import static fiji.expressionparser.test.TestUtilities.createRandomImage;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibFunctionRegistry;
+import fiji.expressionparser.ImgLibParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that parsers sharing the functions of the registry can evaluate
+ * expressions from several threads at once, each with its own settings.
+ */
+public class TestConcurrentEvaluation
+{
+
+	private static final String EXPRESSION = "gauss(A, 1.5) * 2 + sqrt(B) - cos(A)";
+
+	private static final long[] DIMENSIONS = new long[] { 90, 70 };
+
+	private static final Img< UnsignedShortType > A = createRandomImage( 1, DIMENSIONS );
+
+	private static final Img< UnsignedShortType > B = createRandomImage( 2, DIMENSIONS );
+
+	@Test
+	public void sharedFunctions()
+	{
+		final ImgLibParser< UnsignedShortType > p1 = ImgLibFunctionRegistry.getDefault().createParser();
+		final ImgLibParser< UnsignedShortType > p2 = ImgLibFunctionRegistry.getDefault().createParser();
+		assertSame( p1.getFunctionTable().get( "cos" ), p2.getFunctionTable().get( "cos" ) );
+		assertSame( p1.getFunctionTable().get( "gauss" ), p2.getFunctionTable().get( "gauss" ) );
+		assertSame( p1.getOperatorSet(), p2.getOperatorSet() );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Test
+	public void concurrentSettings() throws Exception
+	{
+		final ImgLibParser< UnsignedShortType > reference = createParser( EvaluationMode.INTERPRETED, 1, false );
+		final Img< FloatType > expected = ( Img< FloatType > ) reference.evaluate( reference.parse( EXPRESSION ) );
+
+		final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+		try
+		{
+			final List< Future< Img< FloatType > > > futures = new ArrayList< Future< Img< FloatType > > >();
+			for ( int i = 0; i < 48; i++ )
+			{
+				final EvaluationMode mode = EvaluationMode.values()[ i % EvaluationMode.values().length ];
+				final int num_threads = 1 + i % 4;
+				final boolean cells = i % 2 == 0;
+				futures.add( executor.submit( new Callable< Img< FloatType > >()
+				{
+					@Override
+					public Img< FloatType > call() throws ParseException
+					{
+						final ImgLibParser< UnsignedShortType > parser = createParser( mode, num_threads, cells );
+						return ( Img< FloatType > ) parser.evaluate( parser.parse( EXPRESSION ) );
+					}
+				} ) );
+			}
+			for ( final Future< Img< FloatType > > future : futures )
+			{
+				assertSameImage( "Concurrent evaluation differs from the reference.", expected, future.get(), 1e-4f );
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * The number of parameters of a variadic function is set just before it
+	 * runs: calls with 1 and 2 parameters must not see each other's.
+	 */
+	@Test
+	public void variadicFunction() throws Exception
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+		try
+		{
+			final List< Future< Throwable > > futures = new ArrayList< Future< Throwable > >();
+			for ( int i = 0; i < 200; i++ )
+			{
+				// Both are invalid, and must fail with a parse error
+				final String expression = i % 2 == 0 ? "dither(3)" : "dither(100, A)";
+				futures.add( executor.submit( new Callable< Throwable >()
+				{
+					@Override
+					public Throwable call()
+					{
+						final ImgLibParser< UnsignedShortType > parser = createParser( EvaluationMode.INTERPRETED, 1, false );
+						try
+						{
+							parser.evaluate( parser.parse( expression ) );
+							return null;
+						}
+						catch ( final Throwable t )
+						{
+							return t;
+						}
+					}
+				} ) );
+			}
+			for ( final Future< Throwable > future : futures )
+			{
+				final Throwable t = future.get();
+				if ( !( t instanceof ParseException ) )
+				{
+					fail( "Expected a parse error, got " + t );
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	private static ImgLibParser< UnsignedShortType > createParser( final EvaluationMode mode, final int num_threads, final boolean cells )
+	{
+		final ImgLibParser< UnsignedShortType > parser = TestUtilities.createParser( A, B, mode );
+		parser.setNumThreads( num_threads );
+		if ( cells )
+		{
+			parser.setImgFactory( new CellImgFactory< FloatType >( new FloatType(), 16 ) );
+		}
+		return parser;
+	}
+
+}
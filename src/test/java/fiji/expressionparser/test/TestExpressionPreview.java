@@ -0,0 +1,76 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.createRandomImagePlusMap;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import fiji.process.ExpressionPreview;
+import fiji.process.ExpressionVirtualStack;
+import fiji.process.Image_Expression_Parser;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+
+import java.util.Map;
+
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import org.junit.Test;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that the preview of an expression on one slice, downsampled or not,
+ * matches the evaluation of that slice.
+ */
+public class TestExpressionPreview
+{
+
+	private static final String EXPRESSION = "sqrt(A*A + B*B) - 2 * (A > B)";
+
+	private static final int WIDTH = 300;
+
+	private static final int HEIGHT = 200;
+
+	private static final int N_SLICES = 3;
+
+	@Test
+	public void fullResolution() throws ParseException
+	{
+		final Map< String, ImagePlus > imp_map = createRandomImagePlusMap( WIDTH, HEIGHT, N_SLICES );
+		final Image_Expression_Parser< UnsignedShortType > iep = new Image_Expression_Parser< UnsignedShortType >();
+		iep.setExpression( EXPRESSION );
+		final ExpressionVirtualStack< UnsignedShortType > stack = iep.createVirtualStack( imp_map );
+
+		final ExpressionPreview< UnsignedShortType > preview = new ExpressionPreview< UnsignedShortType >( EXPRESSION, imp_map, 2 );
+		final FloatProcessor fp = preview.evaluate( Integer.MAX_VALUE );
+		assertArrayEquals( ( float[] ) stack.getProcessor( 2 ).getPixels(), ( float[] ) fp.getPixels(), 0f );
+	}
+
+	@Test
+	public void downsampled() throws ParseException
+	{
+		final Map< String, ImagePlus > imp_map = createRandomImagePlusMap( WIDTH, HEIGHT, N_SLICES );
+		final ExpressionPreview< UnsignedShortType > preview = new ExpressionPreview< UnsignedShortType >( EXPRESSION, imp_map, 1 );
+		assertTrue( preview.canDownsample() );
+		final FloatProcessor fp = preview.evaluate( 64 );
+		assertEquals( WIDTH, fp.getWidth() );
+		assertEquals( HEIGHT, fp.getHeight() );
+	}
+
+	@Test
+	public void notPixelWise() throws ParseException
+	{
+		final ExpressionPreview< UnsignedShortType > preview = new ExpressionPreview< UnsignedShortType >( "gauss(A, 1) + B", createRandomImagePlusMap( WIDTH, HEIGHT, N_SLICES ), 1 );
+		assertFalse( preview.canDownsample() );
+		final FloatProcessor fp = preview.evaluate( 64 );
+		assertEquals( WIDTH, fp.getWidth() );
+		assertEquals( HEIGHT, fp.getHeight() );
+	}
+
+	@Test( expected = ParseException.class )
+	public void invalidExpression() throws ParseException
+	{
+		new ExpressionPreview< UnsignedShortType >( "A * (2 + B", createRandomImagePlusMap( WIDTH, HEIGHT, N_SLICES ), 1 );
+	}
+
+}
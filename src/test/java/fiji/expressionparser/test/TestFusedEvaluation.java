@@ -0,0 +1,185 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.image_A;
+import static fiji.expressionparser.test.TestUtilities.image_B;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibKernelCompiler;
+import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.PixelKernel;
+import fiji.expressionparser.Precision;
+import fiji.expressionparser.function.ImgLibAdd;
+import fiji.expressionparser.function.ImgLibCosine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that the {@link EvaluationMode#FUSED} and
+ * {@link EvaluationMode#COMPILED} modes return the same results as the
+ * interpreted mode.
+ */
+public class TestFusedEvaluation
+{
+
+	private final Map< String, Img< UnsignedShortType > > source_map;
+	{
+		source_map = new HashMap< String, Img< UnsignedShortType > >();
+		source_map.put( "A", image_A );
+		source_map.put( "B", image_B );
+	}
+
+	@Test
+	public void arithmetic() throws ParseException
+	{
+		compareModes( "sqrt(A*A + B*B)" );
+		compareModes( "(A-B)/(A+B)" );
+		compareModes( "-A + 2*B - A%7" );
+	}
+
+	@Test
+	public void singletonExpansion() throws ParseException
+	{
+		compareModes( "A * pi / 180 * 2" );
+		compareModes( "atan2(100, A)" );
+		compareModes( "pow(A, 0.5) + 1" );
+	}
+
+	@Test
+	public void logical() throws ParseException
+	{
+		compareModes( "A > B && !(A == 0)" );
+		compareModes( "A <= 20 || B >= 250" );
+	}
+
+	@Test
+	public void mixedWithAlgorithms() throws ParseException
+	{
+		compareModes( "gauss(A, 1) - A" );
+		compareModes( "abs(gauss(A+B, 0.5) - normalize(B))" );
+	}
+
+	@Test
+	public void numbers() throws ParseException
+	{
+		for ( final EvaluationMode mode : new EvaluationMode[] { EvaluationMode.FUSED, EvaluationMode.COMPILED } )
+		{
+			final ImgLibParser< UnsignedShortType > parser = createParser( mode );
+			final Node root_node = parser.parse( "2 * (3 + 4) - sqrt(16)" );
+			final FloatType result = ( FloatType ) parser.evaluate( root_node );
+			assertEquals( 10f, result.get(), 0f );
+		}
+	}
+
+	/**
+	 * Images with the same number of pixels but different shapes must not be
+	 * combined pixel by pixel.
+	 */
+	/**
+	 * Kernels of the same structure share one compiled class, and others,
+	 * down to a constant or a precision, do not.
+	 */
+	@Test
+	public void compiledKernelCache()
+	{
+		final PixelKernel k1 = ImgLibKernelCompiler.compileKernel( createKernel( 2f, Precision.STRICT ), 1 );
+		final PixelKernel k2 = ImgLibKernelCompiler.compileKernel( createKernel( 2f, Precision.STRICT ), 1 );
+		assertNotSame( k1, k2 );
+		assertSame( k1.getClass(), k2.getClass() );
+		assertEquals( ( float ) Math.cos( 1 ) + 2f, k2.evaluate( new float[] { 1f } ), 0f );
+
+		assertNotSame( k1.getClass(), ImgLibKernelCompiler.compileKernel( createKernel( 3f, Precision.STRICT ), 1 ).getClass() );
+		assertNotSame( k1.getClass(), ImgLibKernelCompiler.compileKernel( createKernel( 2f, Precision.FAST ), 1 ).getClass() );
+	}
+
+	@Test
+	public void differentShapes()
+	{
+		for ( final EvaluationMode mode : new EvaluationMode[] { EvaluationMode.FUSED, EvaluationMode.COMPILED } )
+		{
+			final ImgLibParser< FloatType > parser = new ImgLibParser< FloatType >();
+			parser.addStandardFunctions();
+			parser.addVariable( "A", ArrayImgs.floats( 10, 20 ) );
+			parser.addVariable( "B", ArrayImgs.floats( 20, 10 ) );
+			parser.setEvaluationMode( mode );
+			try
+			{
+				parser.evaluate( parser.parse( "A + B" ) );
+				fail( mode + " evaluation combined images of different shapes." );
+			}
+			catch ( final ParseException e )
+			{
+				// Expected
+			}
+		}
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	/**
+	 * The kernel of <code>cos(A) + constant</code>.
+	 */
+	private static PixelKernel createKernel( final float constant, final Precision precision )
+	{
+		final PixelKernel cos = new PixelKernel.Unary( new ImgLibCosine< FloatType >( precision ), new PixelKernel.Input( 0 ) );
+		return new PixelKernel.Binary( new ImgLibAdd< FloatType >(), cos, new PixelKernel.Constant( constant ) );
+	}
+
+	private void compareModes( final String expression ) throws ParseException
+	{
+		compareModes( expression, EvaluationMode.FUSED );
+		compareModes( expression, EvaluationMode.COMPILED );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private void compareModes( final String expression, final EvaluationMode mode ) throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > interpreter = createParser( EvaluationMode.INTERPRETED );
+		final Img< FloatType > expected = ( Img< FloatType > ) interpreter.evaluate( interpreter.parse( expression ) );
+		final ImgLibParser< UnsignedShortType > parser = createParser( mode );
+		final Img< FloatType > actual = ( Img< FloatType > ) parser.evaluate( parser.parse( expression ) );
+
+		assertTrue( mode + " result of " + expression + " has wrong dimensions.", actual.size() == expected.size() );
+		final Cursor< FloatType > ec = expected.localizingCursor();
+		final RandomAccess< FloatType > ac = actual.randomAccess();
+		while ( ec.hasNext() )
+		{
+			ec.fwd();
+			ac.setPosition( ec );
+			assertEquals( mode + " evaluation of " + expression + " differs from interpreter.",
+					ec.get().get(), ac.get().get(), 0f );
+		}
+	}
+
+	private ImgLibParser< UnsignedShortType > createParser( final EvaluationMode mode )
+	{
+		final ImgLibParser< UnsignedShortType > parser = new ImgLibParser< UnsignedShortType >();
+		parser.addStandardConstants();
+		parser.addStandardFunctions();
+		parser.addImgLibAlgorithms();
+		for ( final String key : source_map.keySet() )
+		{
+			parser.addVariable( key, source_map.get( key ) );
+		}
+		parser.setEvaluationMode( mode );
+		return parser;
+	}
+
+}
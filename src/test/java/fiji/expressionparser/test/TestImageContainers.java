@@ -0,0 +1,147 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.doTest;
+import fiji.expressionparser.test.TestUtilities.ExpectedExpression;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks the evaluation of pixel-based functions for the common pixel types,
+ * on images read directly from their primitive storage arrays
+ * ({@link net.imglib2.img.array.ArrayImg}s and multi-plane
+ * {@link net.imglib2.img.planar.PlanarImg}s) and on images read through a
+ * cursor ({@link net.imglib2.img.cell.CellImg}s).
+ */
+public class TestImageContainers
+{
+
+	private static final int[] DIMENSIONS = new int[] { 11, 7, 3 };
+
+	@Test
+	public void unsignedByte() throws ParseException
+	{
+		doTests( new UnsignedByteType(), 0 );
+	}
+
+	@Test
+	public void signedByte() throws ParseException
+	{
+		doTests( new ByteType(), -100 );
+	}
+
+	@Test
+	public void unsignedShort() throws ParseException
+	{
+		doTests( new UnsignedShortType(), 60000 );
+	}
+
+	@Test
+	public void signedShort() throws ParseException
+	{
+		doTests( new ShortType(), -30000 );
+	}
+
+	@Test
+	public void unsignedInt() throws ParseException
+	{
+		doTests( new UnsignedIntType(), 1L << 31 );
+	}
+
+	@Test
+	public void signedInt() throws ParseException
+	{
+		doTests( new IntType(), -100000 );
+	}
+
+	@Test
+	public void float32() throws ParseException
+	{
+		doTests( new FloatType(), -99.5 );
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	private < T extends RealType< T > & NativeType< T > > void doTests( final T type, final double offset ) throws ParseException
+	{
+		doTests( new ArrayImgFactory< T >(), type, offset );
+		doTests( new PlanarImgFactory< T >(), type, offset );
+		doTests( new CellImgFactory< T >( 5 ), type, offset );
+	}
+
+	private < T extends RealType< T > & NativeType< T > > void doTests( final ImgFactory< T > factory, final T type, final double offset ) throws ParseException
+	{
+		final Map< String, Img< T > > source_map = new HashMap< String, Img< T > >();
+		source_map.put( "A", createImage( factory, type, offset, 37 ) );
+		source_map.put( "B", createImage( factory, type, offset, 53 ) );
+
+		doTest( "A * 2 - 1", source_map, new ExpectedExpression()
+		{
+			@Override
+			public < R extends RealType< R > > float getExpectedValue( final Map< String, RandomAccess< R > > cursors )
+			{
+				return cursors.get( "A" ).get().getRealFloat() * 2f - 1f;
+			}
+		} );
+		doTest( "3 - A", source_map, new ExpectedExpression()
+		{
+			@Override
+			public < R extends RealType< R > > float getExpectedValue( final Map< String, RandomAccess< R > > cursors )
+			{
+				return 3f - cursors.get( "A" ).get().getRealFloat();
+			}
+		} );
+		doTest( "A - B", source_map, new ExpectedExpression()
+		{
+			@Override
+			public < R extends RealType< R > > float getExpectedValue( final Map< String, RandomAccess< R > > cursors )
+			{
+				return cursors.get( "A" ).get().getRealFloat() - cursors.get( "B" ).get().getRealFloat();
+			}
+		} );
+		doTest( "-A + sqrt(abs(B))", source_map, new ExpectedExpression()
+		{
+			@Override
+			public < R extends RealType< R > > float getExpectedValue( final Map< String, RandomAccess< R > > cursors )
+			{
+				final float b = cursors.get( "B" ).get().getRealFloat();
+				return -cursors.get( "A" ).get().getRealFloat() + ( float ) Math.sqrt( Math.abs( b ) );
+			}
+		} );
+	}
+
+	private static < T extends RealType< T > & NativeType< T > > Img< T > createImage( final ImgFactory< T > factory, final T type, final double offset, final int step )
+	{
+		final Img< T > img = factory.create( DIMENSIONS, type );
+		final Cursor< T > cursor = img.cursor();
+		int index = 0;
+		while ( cursor.hasNext() )
+		{
+			cursor.next().setReal( offset + ( index++ * step ) % 200 );
+		}
+		return img;
+	}
+
+}
@@ -0,0 +1,152 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.createRandomImagePlusMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import fiji.expressionparser.EvaluationMode;
+import fiji.process.Image_Expression_Parser;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.util.Map;
+
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Checks that results handed to ImageJ share their pixel arrays with the
+ * evaluated image, and that they are written in the pixels of a matching
+ * target.
+ */
+public class TestImagePlusHandoff
+{
+
+	private static final String EXPRESSION = "A * 2 + sqrt(B)";
+
+	private static final int WIDTH = 29;
+
+	private static final int HEIGHT = 19;
+
+	private static final int N_SLICES = 3;
+
+	@SuppressWarnings( "unchecked" )
+	@Test
+	public void newImage()
+	{
+		final Map< String, ImagePlus > imp_map = createRandomImagePlusMap( WIDTH, HEIGHT, N_SLICES );
+		for ( final EvaluationMode mode : EvaluationMode.values() )
+		{
+			final Image_Expression_Parser< UnsignedShortType > iep = createPlugin( mode );
+			final ImagePlus result = iep.processToImagePlus( imp_map, null );
+			assertNotNull( result );
+			assertEquals( N_SLICES, result.getStackSize() );
+			checkResult( imp_map, result );
+
+			final PlanarImg< FloatType, FloatArray > img = ( PlanarImg< FloatType, FloatArray > ) ( Object ) iep.getResult();
+			for ( int n = 0; n < N_SLICES; n++ )
+			{
+				assertSame( img.getPlane( n ).getCurrentStorageArray(), result.getStack().getPixels( n + 1 ) );
+			}
+		}
+	}
+
+	@Test
+	public void existingTarget()
+	{
+		final Map< String, ImagePlus > imp_map = createRandomImagePlusMap( WIDTH, HEIGHT, N_SLICES );
+		final ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+		for ( int n = 0; n < N_SLICES; n++ )
+		{
+			stack.addSlice( new FloatProcessor( WIDTH, HEIGHT ) );
+		}
+		final ImagePlus target = new ImagePlus( "Target", stack );
+		final Object[] pixels = new Object[ N_SLICES ];
+		for ( int n = 0; n < N_SLICES; n++ )
+		{
+			pixels[ n ] = stack.getPixels( n + 1 );
+		}
+
+		for ( final EvaluationMode mode : EvaluationMode.values() )
+		{
+			final ImagePlus result = createPlugin( mode ).processToImagePlus( imp_map, target );
+			assertSame( target, result );
+			checkResult( imp_map, result );
+			for ( int n = 0; n < N_SLICES; n++ )
+			{
+				assertSame( pixels[ n ], result.getStack().getPixels( n + 1 ) );
+			}
+		}
+	}
+
+	@Test
+	public void mismatchedTarget()
+	{
+		final Map< String, ImagePlus > imp_map = createRandomImagePlusMap( WIDTH, HEIGHT, N_SLICES );
+		final ImagePlus target = new ImagePlus( "Target", new FloatProcessor( WIDTH, HEIGHT ) );
+		final ImagePlus result = createPlugin( EvaluationMode.FUSED ).processToImagePlus( imp_map, target );
+		assertNotSame( target, result );
+		checkResult( imp_map, result );
+	}
+
+	/**
+	 * A target with as many slices as the inputs, but split in channels and
+	 * slices, does not have their dimensions: a new image is created.
+	 */
+	@Test
+	public void hyperstackTarget()
+	{
+		final Map< String, ImagePlus > imp_map = createRandomImagePlusMap( WIDTH, HEIGHT, 6 );
+		final ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+		for ( int n = 0; n < 6; n++ )
+		{
+			stack.addSlice( new FloatProcessor( WIDTH, HEIGHT ) );
+		}
+		final ImagePlus target = new ImagePlus( "Target", stack );
+		target.setDimensions( 2, 3, 1 );
+
+		for ( final EvaluationMode mode : EvaluationMode.values() )
+		{
+			final ImagePlus result = createPlugin( mode ).processToImagePlus( imp_map, target );
+			assertNotNull( result );
+			assertNotSame( target, result );
+			assertEquals( 1, result.getNChannels() );
+			assertEquals( 6, result.getNSlices() );
+			checkResult( imp_map, result );
+		}
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	private static void checkResult( final Map< String, ImagePlus > imp_map, final ImagePlus result )
+	{
+		assertEquals( imp_map.get( "A" ).getStackSize(), result.getStackSize() );
+		for ( int n = 1; n <= result.getStackSize(); n++ )
+		{
+			final short[] a = ( short[] ) imp_map.get( "A" ).getStack().getPixels( n );
+			final short[] b = ( short[] ) imp_map.get( "B" ).getStack().getPixels( n );
+			final float[] values = ( float[] ) result.getStack().getPixels( n );
+			for ( int i = 0; i < values.length; i++ )
+			{
+				assertEquals( a[ i ] * 2 + ( float ) Math.sqrt( b[ i ] ), values[ i ], 1e-3f );
+			}
+		}
+	}
+
+	private static Image_Expression_Parser< UnsignedShortType > createPlugin( final EvaluationMode mode )
+	{
+		final Image_Expression_Parser< UnsignedShortType > iep = new Image_Expression_Parser< UnsignedShortType >();
+		iep.setExpression( EXPRESSION );
+		iep.setEvaluationMode( mode );
+		return iep;
+	}
+
+}
@@ -0,0 +1,116 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.image_A;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.function.ImgLibMultiply;
+import fiji.expressionparser.function.ImgLibSquareRoot;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.ASTConstant;
+import org.nfunk.jep.ASTFunNode;
+import org.nfunk.jep.ASTVarNode;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.ParseException;
+
+public class TestImgLibOptimizer
+{
+
+	@Test
+	public void constantFolding() throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = createParser();
+		final Node node = parser.optimize( parser.parse( "2 * (3 + 4) - sqrt(16)" ) );
+		assertTrue( node instanceof ASTConstant );
+		assertEquals( 10f, ( ( FloatType ) ( ( ASTConstant ) node ).getValue() ).get(), 0f );
+	}
+
+	@Test
+	public void scaleFactor() throws ParseException
+	{
+		checkScaledVariable( "2*3.14159/360*A", 2f * 3.14159f / 360f );
+		checkScaledVariable( "A * pi / 180 * 2", ( float ) Math.PI / 90f );
+		checkScaledVariable( "A / 4", 0.25f );
+		checkSameResult( "2*3.14159/360*A" );
+		checkSameResult( "A * pi / 180 * 2" );
+		checkSameResult( "A / 4" );
+	}
+
+	@Test
+	public void identities() throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = createParser();
+		final Node root = parser.parse( "sqrt(A) * 1 + 0" );
+		final Node node = parser.optimize( root );
+		assertTrue( node instanceof ASTFunNode );
+		assertTrue( ( ( ASTFunNode ) node ).getPFMC() instanceof ImgLibSquareRoot );
+		checkSameResult( "sqrt(A) * 1 + 0" );
+
+		// Kept on a variable, so that the result is a new image
+		final Node var_root = parser.parse( "A * 1" );
+		assertSame( var_root, parser.optimize( var_root ) );
+	}
+
+	@Test
+	public void integerPowers() throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = createParser();
+		final Node node = parser.optimize( parser.parse( "A^2" ) );
+		assertTrue( node instanceof ASTFunNode );
+		assertTrue( ( ( ASTFunNode ) node ).getPFMC() instanceof ImgLibMultiply );
+		assertTrue( node.jjtGetChild( 0 ) instanceof ASTVarNode );
+		assertTrue( node.jjtGetChild( 1 ) instanceof ASTVarNode );
+		checkSameResult( "A^2" );
+		checkSameResult( "pow(A, 3) - A" );
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	private void checkScaledVariable( final String expression, final float factor ) throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = createParser();
+		final Node node = parser.optimize( parser.parse( expression ) );
+		assertTrue( node instanceof ASTFunNode );
+		assertTrue( ( ( ASTFunNode ) node ).getPFMC() instanceof ImgLibMultiply );
+		assertTrue( node.jjtGetChild( 0 ) instanceof ASTVarNode );
+		assertTrue( node.jjtGetChild( 1 ) instanceof ASTConstant );
+		final float value = ( ( FloatType ) ( ( ASTConstant ) node.jjtGetChild( 1 ) ).getValue() ).get();
+		assertEquals( factor, value, 1e-6f * factor );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private void checkSameResult( final String expression ) throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = createParser();
+		final Img< FloatType > expected = ( Img< FloatType > ) parser.evaluate( parser.parse( expression ) );
+		final Img< FloatType > actual = ( Img< FloatType > ) parser.evaluate( parser.optimize( parser.parse( expression ) ) );
+		final Cursor< FloatType > ec = expected.cursor();
+		final Cursor< FloatType > ac = actual.cursor();
+		while ( ec.hasNext() )
+		{
+			final float e = ec.next().get();
+			final float a = ac.next().get();
+			assertEquals( "Optimized " + expression + " differs from original.", e, a, 1e-6f * Math.max( 1f, Math.abs( e ) ) );
+		}
+	}
+
+	private ImgLibParser< UnsignedShortType > createParser()
+	{
+		final ImgLibParser< UnsignedShortType > parser = new ImgLibParser< UnsignedShortType >();
+		parser.addStandardConstants();
+		parser.addStandardFunctions();
+		parser.addImgLibAlgorithms();
+		parser.addVariable( "A", image_A );
+		return parser;
+	}
+
+}
@@ -0,0 +1,83 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.assertSameImage;
+import static fiji.expressionparser.test.TestUtilities.image_A;
+import static fiji.expressionparser.test.TestUtilities.image_B;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibKernelView;
+import fiji.expressionparser.ImgLibParser;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that lazy evaluation gives the same pixels as a normal evaluation.
+ */
+public class TestLazyEvaluation
+{
+
+	@Test
+	public void sampling() throws ParseException
+	{
+		checkLazy( "sqrt(A*A + B*B)" );
+		checkLazy( "(A > B) * gauss(A, 2) - B / 3" );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Test
+	public void notPixelWise() throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = createParser();
+		final Object view = parser.evaluateView( parser.parse( "gauss(A + B, 1)" ) );
+		assertTrue( view instanceof Img );
+		assertSameImage( "Lazy evaluation of gauss(A + B, 1) differs.", ( Img< FloatType > ) parser.evaluate( parser.parse( "gauss(A + B, 1)" ) ), ( Img< FloatType > ) view, 1e-6f );
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	@SuppressWarnings( "unchecked" )
+	private void checkLazy( final String expression ) throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = createParser();
+		final Img< FloatType > expected = ( Img< FloatType > ) parser.evaluate( parser.parse( expression ) );
+		final Object result = parser.evaluateView( parser.parse( expression ) );
+		assertFalse( result instanceof Img );
+		final RandomAccessibleInterval< FloatType > view = ( RandomAccessibleInterval< FloatType > ) result;
+
+		// Sample a few pixels
+		final RandomAccess< FloatType > ra = view.randomAccess();
+		final RandomAccess< FloatType > era = expected.randomAccess();
+		final long[][] positions = new long[][] { { 0, 0 }, { 3, 7 }, { 5, 2 }, { expected.dimension( 0 ) - 1, expected.dimension( 1 ) - 1 } };
+		for ( final long[] position : positions )
+		{
+			ra.setPosition( position );
+			era.setPosition( position );
+			assertClose( expression, era.get().get(), ra.get().get() );
+		}
+
+		// And all of them
+		assertSameImage( "Lazy evaluation of " + expression + " differs.", expected, ImgLibKernelView.materialize( view, 4 ), 1e-6f );
+	}
+
+	private static void assertClose( final String expression, final float expected, final float actual )
+	{
+		assertEquals( "Lazy evaluation of " + expression + " differs.", expected, actual, 1e-6f * Math.max( 1f, Math.abs( expected ) ) );
+	}
+
+	private ImgLibParser< UnsignedShortType > createParser()
+	{
+		return TestUtilities.createParser( image_A, image_B, EvaluationMode.INTERPRETED );
+	}
+
+}
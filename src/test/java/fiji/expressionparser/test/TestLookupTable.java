@@ -0,0 +1,145 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.createParser;
+import static fiji.expressionparser.test.TestUtilities.fillRandom;
+import static fiji.expressionparser.test.TestUtilities.toArray;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibFusedEvaluator;
+import fiji.expressionparser.ImgLibLookupTable;
+import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.PixelKernel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that single-input expressions on 8 and 16-bit images, and
+ * two-input expressions on 8-bit images, are evaluated through a lookup table
+ * only when possible, with the results of the interpreter.
+ */
+public class TestLookupTable
+{
+
+	private static final String[] EXPRESSIONS = new String[] {
+			"log(A)*255/log(255)",
+			"A > 100 && A < 2000",
+			"sqrt(A) + sin(A / 10) * exp(-A / 1000)",
+			"atan2(A, 100) % 0.5"
+	};
+
+	@Test
+	public void unsignedByte() throws ParseException
+	{
+		final Img< UnsignedByteType > img = fillRandom( ArrayImgs.unsignedBytes( 301, 203 ), 256, 1 );
+		for ( final String expression : EXPRESSIONS )
+		{
+			compareModes( expression, img );
+		}
+	}
+
+	@Test
+	public void unsignedShort() throws ParseException
+	{
+		final Img< UnsignedShortType > img = fillRandom( ArrayImgs.unsignedShorts( 401, 303 ), 65536, 2 );
+		for ( final String expression : EXPRESSIONS )
+		{
+			compareModes( expression, img );
+		}
+	}
+
+	@Test
+	public void tabulate() throws ParseException
+	{
+		assertNotNull( tabulate( ArrayImgs.unsignedBytes( 16, 16 ) ) );
+		assertNotNull( tabulate( ArrayImgs.unsignedShorts( 256, 256 ) ) );
+		// Fewer pixels than table entries
+		assertNull( tabulate( ArrayImgs.unsignedBytes( 15, 15 ) ) );
+		assertNull( tabulate( ArrayImgs.unsignedShorts( 255, 256 ) ) );
+		// Not an integer image
+		assertNull( tabulate( ArrayImgs.floats( 512, 512 ) ) );
+	}
+
+	@Test
+	public void twoUnsignedBytes() throws ParseException
+	{
+		final Img< UnsignedByteType > img_A = fillRandom( ArrayImgs.unsignedBytes( 301, 257 ), 256, 1 );
+		final Img< UnsignedByteType > img_B = fillRandom( ArrayImgs.unsignedBytes( 301, 257 ), 256, 2 );
+		final String[] expressions = new String[] {
+				"(A-B)/(A+B)",
+				"(A > 50) * log(B + 1)",
+				"atan2(B, A) * 2 - A / 7"
+		};
+		for ( final String expression : expressions )
+		{
+			compareModes( expression, img_A, img_B );
+		}
+	}
+
+	@Test
+	public void twoInputs() throws ParseException
+	{
+		assertNotNull( tabulate( ArrayImgs.unsignedBytes( 256, 256 ), ArrayImgs.unsignedBytes( 256, 256 ) ) );
+		// Fewer pixels than table entries
+		assertNull( tabulate( ArrayImgs.unsignedBytes( 255, 256 ), ArrayImgs.unsignedBytes( 255, 256 ) ) );
+		// Not both 8-bit
+		assertNull( tabulate( ArrayImgs.unsignedBytes( 512, 512 ), ArrayImgs.unsignedShorts( 512, 512 ) ) );
+		assertNull( tabulate( ArrayImgs.unsignedShorts( 512, 512 ), ArrayImgs.unsignedShorts( 512, 512 ) ) );
+		assertNull( tabulate( ArrayImgs.unsignedBytes( 512, 512 ), ArrayImgs.floats( 512, 512 ) ) );
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	private static PixelKernel tabulate( final Img< ? > img ) throws ParseException
+	{
+		return tabulate( "sqrt(A) * 2", img, null );
+	}
+
+	private static PixelKernel tabulate( final Img< ? > img_A, final Img< ? > img_B ) throws ParseException
+	{
+		return tabulate( "sqrt(A) * B", img_A, img_B );
+	}
+
+	private static PixelKernel tabulate( final String expression, final Img< ? > img_A, final Img< ? > img_B ) throws ParseException
+	{
+		final ImgLibParser< FloatType > parser = createParser( img_A, img_B, EvaluationMode.FUSED );
+		final List< Img< ? > > inputs = new ArrayList< Img< ? > >();
+		final PixelKernel kernel = new ImgLibFusedEvaluator( parser.getSymbolTable() ).compile( parser.parse( expression ), inputs );
+		return ImgLibLookupTable.tabulate( kernel, inputs );
+	}
+
+	private static < T extends RealType< T > > void compareModes( final String expression, final Img< T > img ) throws ParseException
+	{
+		compareModes( expression, img, null );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static void compareModes( final String expression, final Img< ? > img_A, final Img< ? > img_B ) throws ParseException
+	{
+		final ImgLibParser< FloatType > interpreter = createParser( img_A, img_B, EvaluationMode.INTERPRETED );
+		final float[] expected = toArray( ( Img< FloatType > ) interpreter.evaluate( interpreter.parse( expression ) ) );
+		for ( final EvaluationMode mode : new EvaluationMode[] { EvaluationMode.FUSED, EvaluationMode.COMPILED } )
+		{
+			final ImgLibParser< FloatType > parser = createParser( img_A, img_B, mode );
+			final float[] actual = toArray( ( Img< FloatType > ) parser.evaluate( parser.parse( expression ) ) );
+			assertEquals( expected.length, actual.length );
+			assertArrayEquals( mode + " evaluation of " + expression + " differs from interpreter.", expected, actual, 0f );
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.assertSameImage;
+import static fiji.expressionparser.test.TestUtilities.createParser;
+import static fiji.expressionparser.test.TestUtilities.createRandomImage;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibParser;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that evaluating an expression with several threads gives the same
+ * result as with a single thread, on images large enough to be split in
+ * chunks.
+ */
+public class TestMultiThreadedEvaluation
+{
+
+	private static final int WIDTH = 512;
+
+	private static final int HEIGHT = 300;
+
+	private static final Img< UnsignedShortType > img_A = createRandomImage( 1, WIDTH, HEIGHT );
+
+	private static final Img< UnsignedShortType > img_B = createRandomImage( 2, WIDTH, HEIGHT );
+
+	@Test
+	public void interpreted() throws ParseException
+	{
+		compareThreads( "sqrt(A*A + B*B)", EvaluationMode.INTERPRETED );
+		compareThreads( "2 - A", EvaluationMode.INTERPRETED );
+		compareThreads( "-A % 7", EvaluationMode.INTERPRETED );
+	}
+
+	@Test
+	public void fused() throws ParseException
+	{
+		compareThreads( "sqrt(A*A + B*B)", EvaluationMode.FUSED );
+		compareThreads( "(A > B) * gauss(A, 2)", EvaluationMode.FUSED );
+		compareThreads( "(A - B) / (A + B)", EvaluationMode.COMPILED );
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	@SuppressWarnings( "unchecked" )
+	private void compareThreads( final String expression, final EvaluationMode mode ) throws ParseException
+	{
+		final Img< FloatType > expected = ( Img< FloatType > ) evaluate( expression, mode, 1 );
+		final Img< FloatType > actual = ( Img< FloatType > ) evaluate( expression, mode, 4 );
+		assertSameImage( "Multi-threaded evaluation of " + expression + " differs from single-threaded one.", expected, actual, 0f );
+	}
+
+	private Object evaluate( final String expression, final EvaluationMode mode, final int num_threads ) throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = createParser( img_A, img_B, mode );
+		parser.setNumThreads( num_threads );
+		return parser.evaluate( parser.parse( expression ) );
+	}
+
+}
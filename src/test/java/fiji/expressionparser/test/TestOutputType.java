@@ -0,0 +1,108 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.createRandomImage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.OutputType;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that results stored in compact types hold the float result, rounded
+ * and clamped to the range of the type.
+ */
+public class TestOutputType
+{
+
+	/** Large enough to be split in several chunks. */
+	private static final long[] DIMENSIONS = new long[] { 701, 301 };
+
+	private static final Img< UnsignedShortType > A = createRandomImage( 1, DIMENSIONS );
+
+	private static final Img< UnsignedShortType > B = createRandomImage( 2, DIMENSIONS );
+
+	@Test
+	public void masksAreBits() throws ParseException
+	{
+		for ( final EvaluationMode mode : EvaluationMode.values() )
+		{
+			checkType( "A > B", mode, OutputType.AUTO, BitType.class );
+			checkType( "A > 500 && B <= 300 || !(A == B)", mode, OutputType.AUTO, BitType.class );
+			checkType( "A > B", mode, OutputType.UNSIGNED_BYTE, UnsignedByteType.class );
+			checkType( "A + B", mode, OutputType.AUTO, FloatType.class );
+		}
+	}
+
+	@Test
+	public void integerArithmetic() throws ParseException
+	{
+		for ( final EvaluationMode mode : EvaluationMode.values() )
+		{
+			checkType( "A * 2 + B", mode, OutputType.UNSIGNED_SHORT, UnsignedShortType.class );
+			checkType( "A - B", mode, OutputType.UNSIGNED_SHORT, UnsignedShortType.class );
+			checkType( "A / 7", mode, OutputType.UNSIGNED_BYTE, UnsignedByteType.class );
+		}
+	}
+
+	@Test
+	public void notPixelWise() throws ParseException
+	{
+		checkType( "gauss(A, 1) > B", EvaluationMode.FUSED, OutputType.AUTO, BitType.class );
+		checkType( "gauss(A > B, 1)", EvaluationMode.FUSED, OutputType.UNSIGNED_BYTE, UnsignedByteType.class );
+		checkType( "A", EvaluationMode.FUSED, OutputType.BIT, BitType.class );
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	@SuppressWarnings( "unchecked" )
+	private static void checkType( final String expression, final EvaluationMode mode, final OutputType type, final Class< ? > expected_type ) throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = TestUtilities.createParser( A, B, mode );
+		parser.setNumThreads( 4 );
+		final Img< FloatType > expected = ( Img< FloatType > ) parser.evaluate( parser.parse( expression ) );
+
+		parser.setOutputType( type );
+		final Img< ? extends RealType< ? > > actual = ( Img< ? extends RealType< ? > > ) parser.evaluate( parser.parse( expression ) );
+		assertTrue( "Bad type for " + expression + ": " + actual.firstElement().getClass().getSimpleName(), expected_type.isInstance( actual.firstElement() ) );
+
+		final RealType< ? > t = actual.firstElement();
+		final double min = t instanceof FloatType ? Double.NEGATIVE_INFINITY : t.getMinValue();
+		final double max = t instanceof FloatType ? Double.POSITIVE_INFINITY : t.getMaxValue();
+		final Cursor< FloatType > ec = Views.flatIterable( expected ).cursor();
+		final Cursor< ? extends RealType< ? > > ac = Views.flatIterable( actual ).cursor();
+		while ( ec.hasNext() )
+		{
+			final float e = ec.next().get();
+			final double a = ac.next().getRealDouble();
+			final double converted;
+			if ( t instanceof BitType )
+			{
+				converted = e != 0 ? 1 : 0;
+			}
+			else if ( t instanceof FloatType )
+			{
+				converted = e;
+			}
+			else
+			{
+				converted = Math.max( min, Math.min( max, Math.floor( e + 0.5 ) ) );
+			}
+			assertEquals( "Bad value for " + expression + " in " + type + ".", converted, a, 0 );
+		}
+	}
+
+}
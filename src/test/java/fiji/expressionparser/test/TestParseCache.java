@@ -0,0 +1,164 @@
+package fiji.expressionparser.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibFunctionRegistry;
+import fiji.expressionparser.ImgLibParser;
+import fiji.process.Image_Expression_Parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that an expression taken from the parse cache is evaluated on the
+ * images of each call, including when several instances evaluate it at the
+ * same time.
+ */
+public class TestParseCache
+{
+
+	private static final String EXPRESSION = "A * 2 + B";
+
+	private static final long[] DIMENSIONS = new long[] { 64, 48 };
+
+	@Test
+	public void repeatedCalls()
+	{
+		for ( int i = 0; i < 5; i++ )
+		{
+			assertTrue( evaluateAndCheck( i ) );
+		}
+	}
+
+	@Test
+	public void concurrentCalls() throws Exception
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+		try
+		{
+			final List< Future< Boolean > > futures = new ArrayList< Future< Boolean > >();
+			for ( int i = 0; i < 32; i++ )
+			{
+				final int value = i;
+				futures.add( executor.submit( new Callable< Boolean >()
+				{
+					@Override
+					public Boolean call()
+					{
+						return evaluateAndCheck( value );
+					}
+				} ) );
+			}
+			for ( final Future< Boolean > future : futures )
+			{
+				assertTrue( future.get() );
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void invalidExpression()
+	{
+		for ( int i = 0; i < 2; i++ )
+		{
+			final Image_Expression_Parser< UnsignedShortType > iep = createPlugin( 1 );
+			iep.setExpression( "A * (2 + B" );
+			assertFalse( iep.process() );
+			assertFalse( iep.getErrorMessage().isEmpty() );
+		}
+	}
+
+	/**
+	 * A tree parsed once is evaluated by other parsers, each with its own
+	 * images.
+	 */
+	@Test
+	@SuppressWarnings( "unchecked" )
+	public void boundTree() throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = ImgLibFunctionRegistry.getDefault().createParser();
+		parser.addVariable( "A", null );
+		parser.addVariable( "B", null );
+		final Node root = parser.parse( EXPRESSION );
+		for ( int i = 0; i < 3; i++ )
+		{
+			final ImgLibParser< UnsignedShortType > other = ImgLibFunctionRegistry.getDefault().createParser();
+			other.addVariable( "A", createImage( i ) );
+			other.addVariable( "B", createImage( i + 1 ) );
+			other.setEvaluationMode( EvaluationMode.values()[ i ] );
+			checkResult( ( Img< FloatType > ) other.evaluate( other.bind( root ) ), i );
+		}
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	/**
+	 * Evaluate the expression over images filled with <code>value</code> and
+	 * <code>value + 1</code>, and check the result.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static boolean evaluateAndCheck( final int value )
+	{
+		final Image_Expression_Parser< UnsignedShortType > iep = createPlugin( value );
+		iep.setExpression( EXPRESSION );
+		if ( !iep.process() ) { return false; }
+		checkResult( ( Img< FloatType > ) ( Object ) iep.getResult(), value );
+		return true;
+	}
+
+	private static void checkResult( final Img< FloatType > result, final int value )
+	{
+		final Cursor< FloatType > cursor = Views.flatIterable( result ).cursor();
+		while ( cursor.hasNext() )
+		{
+			assertEquals( value * 2 + value + 1, cursor.next().get(), 0f );
+		}
+	}
+
+	private static Image_Expression_Parser< UnsignedShortType > createPlugin( final int value )
+	{
+		final Map< String, Img< UnsignedShortType > > map = new HashMap< String, Img< UnsignedShortType > >();
+		map.put( "A", createImage( value ) );
+		map.put( "B", createImage( value + 1 ) );
+		final Image_Expression_Parser< UnsignedShortType > iep = new Image_Expression_Parser< UnsignedShortType >();
+		iep.setImageMap( map );
+		iep.setNumThreads( 1 );
+		return iep;
+	}
+
+	private static Img< UnsignedShortType > createImage( final int value )
+	{
+		final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( DIMENSIONS );
+		for ( final UnsignedShortType t : img )
+		{
+			t.set( value );
+		}
+		return img;
+	}
+
+}
@@ -0,0 +1,161 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.fillRandom;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.OutputType;
+import fiji.expressionparser.PixelStatistics;
+import fiji.process.Image_Expression_Parser;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Checks that the statistics counted during the evaluation match the values
+ * of the result, whatever the way it was computed.
+ */
+public class TestPixelStatistics
+{
+
+	private static final long[] DIMENSIONS = new long[] { 157, 93, 7 };
+
+	@Test
+	public void pixelWise()
+	{
+		for ( final EvaluationMode mode : EvaluationMode.values() )
+		{
+			checkStatistics( "A * 2 - sqrt(B)", mode, OutputType.FLOAT, false );
+		}
+	}
+
+	@Test
+	public void notPixelWise()
+	{
+		for ( final EvaluationMode mode : EvaluationMode.values() )
+		{
+			checkStatistics( "gauss(A, 1.5)", mode, OutputType.FLOAT, false );
+		}
+	}
+
+	@Test
+	public void converted()
+	{
+		for ( final EvaluationMode mode : EvaluationMode.values() )
+		{
+			checkStatistics( "A - B", mode, OutputType.UNSIGNED_BYTE, false );
+			checkStatistics( "A > B", mode, OutputType.BIT, false );
+		}
+	}
+
+	@Test
+	public void lazy()
+	{
+		checkStatistics( "A * 2 - sqrt(B)", EvaluationMode.FUSED, OutputType.FLOAT, true );
+		checkStatistics( "gauss(A, 1.5)", EvaluationMode.FUSED, OutputType.FLOAT, true );
+		checkStatistics( "A - B", EvaluationMode.FUSED, OutputType.UNSIGNED_SHORT, true );
+	}
+
+	@Test
+	public void histogram()
+	{
+		final Image_Expression_Parser< FloatType > iep = createPlugin( "A + B", EvaluationMode.FUSED );
+		iep.setOutputType( OutputType.UNSIGNED_BYTE );
+		iep.setHistogram( 256, 0, 255 );
+		assertTrue( iep.process() );
+		final long[] histogram = iep.getStatistics().getHistogram();
+		assertNotNull( histogram );
+
+		final long[] expected = new long[ 256 ];
+		for ( final RealType< ? > value : iep.getResult() )
+		{
+			expected[ ( int ) value.getRealDouble() ]++;
+		}
+		for ( int i = 0; i < expected.length; i++ )
+		{
+			assertEquals( "Bin " + i, expected[ i ], histogram[ i ] );
+		}
+	}
+
+	@Test
+	public void invalidExpression()
+	{
+		final Image_Expression_Parser< FloatType > iep = createPlugin( "A * (2", EvaluationMode.FUSED );
+		assertTrue( !iep.process() );
+		assertNull( iep.getStatistics() );
+	}
+
+	@Test
+	public void accumulator()
+	{
+		final PixelStatistics statistics = new PixelStatistics( 4, 0, 4 );
+		final PixelStatistics chunk = statistics.newAccumulator();
+		chunk.add( new float[] { 1, Float.NaN, 3, 10, -2 }, 4 );
+		statistics.merge( chunk );
+		assertEquals( 3, statistics.getCount() );
+		assertEquals( 1, statistics.getMin(), 0 );
+		assertEquals( 10, statistics.getMax(), 0 );
+		assertEquals( 14, statistics.getSum(), 0 );
+		final long[] histogram = statistics.getHistogram();
+		assertEquals( 1, histogram[ 1 ] );
+		assertEquals( 1, histogram[ 3 ] );
+		assertTrue( Double.isNaN( new PixelStatistics().getMin() ) );
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	private static void checkStatistics( final String expression, final EvaluationMode mode, final OutputType type, final boolean lazy )
+	{
+		final Image_Expression_Parser< FloatType > iep = createPlugin( expression, mode );
+		iep.setOutputType( type );
+		iep.setLazy( lazy );
+		assertTrue( iep.process() );
+		final PixelStatistics statistics = iep.getStatistics();
+		assertNotNull( statistics );
+
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0;
+		long count = 0;
+		final Cursor< ? extends RealType< ? > > cursor = iep.getResult().cursor();
+		while ( cursor.hasNext() )
+		{
+			final double value = cursor.next().getRealDouble();
+			min = Math.min( min, value );
+			max = Math.max( max, value );
+			sum += value;
+			count++;
+		}
+		final String message = expression + " in " + mode + " mode, " + type + ( lazy ? ", lazy" : "" );
+		assertEquals( message, count, statistics.getCount() );
+		assertEquals( message, min, statistics.getMin(), 1e-6 );
+		assertEquals( message, max, statistics.getMax(), 1e-6 );
+		assertEquals( message, sum, statistics.getSum(), 1e-6 * Math.abs( sum ) + 1e-3 );
+	}
+
+	private static Image_Expression_Parser< FloatType > createPlugin( final String expression, final EvaluationMode mode )
+	{
+		final Map< String, Img< FloatType > > map = new HashMap< String, Img< FloatType > >();
+		map.put( "A", fillRandom( ArrayImgs.floats( DIMENSIONS ), 200, 1 ) );
+		map.put( "B", fillRandom( ArrayImgs.floats( DIMENSIONS ), 200, 2 ) );
+		final Image_Expression_Parser< FloatType > iep = new Image_Expression_Parser< FloatType >();
+		iep.setImageMap( map );
+		iep.setExpression( expression );
+		iep.setEvaluationMode( mode );
+		iep.setNumThreads( 4 );
+		return iep;
+	}
+
+}
@@ -0,0 +1,212 @@
+package fiji.expressionparser.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.Precision;
+import fiji.expressionparser.function.FloatMath;
+import fiji.expressionparser.function.ImgLibAdd;
+import fiji.expressionparser.function.ImgLibExp;
+import fiji.expressionparser.function.ImgLibPower;
+import fiji.expressionparser.function.SingleOperandPixelBasedAbstractFunction;
+import fiji.expressionparser.function.TwoOperandsPixelBasedAbstractFunction;
+
+import java.util.Random;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that the {@link Precision#FAST} precision computes the transcendental
+ * functions within the documented errors of {@link FloatMath}, in all the
+ * evaluation modes, and that the default {@link Precision#STRICT} precision is
+ * unchanged.
+ */
+public class TestPrecision
+{
+
+	private static final float INF = Float.POSITIVE_INFINITY;
+
+	private static final float[] SPECIAL_VALUES = new float[] { Float.NaN, 0f, -0f, INF, -INF, Float.MIN_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE };
+
+	@Test
+	public void withPrecision()
+	{
+		final ImgLibExp< FloatType > exp = new ImgLibExp< FloatType >();
+		assertEquals( Precision.STRICT, exp.getPrecision() );
+		assertSame( exp, exp.withPrecision( Precision.STRICT ) );
+		final SingleOperandPixelBasedAbstractFunction< FloatType > fast_exp = exp.withPrecision( Precision.FAST );
+		assertEquals( Precision.FAST, fast_exp.getPrecision() );
+		assertSame( fast_exp, fast_exp.withPrecision( Precision.FAST ) );
+		assertEquals( FloatMath.exp( 0.3f ), fast_exp.evaluate( 0.3f ), 0f );
+
+		final TwoOperandsPixelBasedAbstractFunction< FloatType > fast_pow = new ImgLibPower< FloatType >().withPrecision( Precision.FAST );
+		assertEquals( FloatMath.pow( 3f, 0.45f ), fast_pow.evaluate( 3f, 0.45f ), 0f );
+
+		// No approximation
+		final ImgLibAdd< FloatType > add = new ImgLibAdd< FloatType >();
+		assertSame( add, add.withPrecision( Precision.FAST ) );
+	}
+
+	/**
+	 * Arguments outside the domains of the approximations are computed by
+	 * {@link Math}.
+	 */
+	@Test
+	public void specialValues()
+	{
+		for ( final float x : new float[] { Float.NaN, INF, -INF, 100f, -100f, Float.MAX_VALUE, -Float.MAX_VALUE } )
+		{
+			assertSameValue( "exp", Math.exp( x ), FloatMath.exp( x ) );
+		}
+		for ( final float x : new float[] { Float.NaN, 0f, -0f, -1f, INF, -INF, Float.MIN_VALUE } )
+		{
+			assertSameValue( "log", Math.log( x ), FloatMath.log( x ) );
+		}
+		for ( final float x : new float[] { Float.NaN, INF, -INF, 1e30f, -1e6f } )
+		{
+			assertSameValue( "sin", Math.sin( x ), FloatMath.sin( x ) );
+			assertSameValue( "cos", Math.cos( x ), FloatMath.cos( x ) );
+			assertSameValue( "tan", Math.tan( x ), FloatMath.tan( x ) );
+		}
+		for ( final float x : new float[] { Float.NaN, 1f, -1f, 2f, -2f, INF, -INF } )
+		{
+			assertSameValue( "asin", Math.asin( x ), FloatMath.asin( x ) );
+			assertSameValue( "acos", Math.acos( x ), FloatMath.acos( x ) );
+		}
+		for ( final float x : new float[] { Float.NaN, 0f, -0f, INF, -INF } )
+		{
+			assertSameValue( "atan", Math.atan( x ), FloatMath.atan( x ) );
+		}
+		for ( final float x : SPECIAL_VALUES )
+		{
+			for ( final float y : SPECIAL_VALUES )
+			{
+				assertSameValue( "atan2", Math.atan2( y, x ), FloatMath.atan2( y, x ) );
+				assertSameValue( "atan2", Math.atan2( 1f, x ), FloatMath.atan2( 1f, x ) );
+				assertSameValue( "atan2", Math.atan2( y, 1f ), FloatMath.atan2( y, 1f ) );
+				assertSameValue( "pow", Math.pow( x, y ), FloatMath.pow( x, y ) );
+				assertSameValue( "pow", Math.pow( -2f, y ), FloatMath.pow( -2f, y ) );
+			}
+			assertSameValue( "pow", Math.pow( x, 2f ), FloatMath.pow( x, 2f ) );
+		}
+	}
+
+	@Test
+	public void maximalErrors()
+	{
+		final Random random = new Random( 1 );
+		for ( int i = 0; i < 100000; i++ )
+		{
+			final float x = ( random.nextFloat() - 0.5f ) * 160;
+			final float t = ( random.nextFloat() - 0.5f ) * 2000;
+			final float u = random.nextFloat() * 2 - 1;
+			final float p = ( float ) Math.exp( random.nextGaussian() * 10 );
+			final float y = ( float ) random.nextGaussian() * 3;
+			assertRelativeError( "exp", Math.exp( x ), FloatMath.exp( x ), 3e-7 );
+			assertRelativeError( "log", Math.log( p ), FloatMath.log( p ), 3e-7 );
+			assertAbsoluteError( "sin", Math.sin( t ), FloatMath.sin( t ), 2e-7 );
+			assertAbsoluteError( "cos", Math.cos( t ), FloatMath.cos( t ), 2e-7 );
+			assertRelativeError( "tan", Math.tan( t ), FloatMath.tan( t ), 4e-7 );
+			assertAbsoluteError( "atan", Math.atan( t ), FloatMath.atan( t ), 3e-7 );
+			assertAbsoluteError( "atan2", Math.atan2( t, x ), FloatMath.atan2( t, x ), 3e-7 );
+			assertAbsoluteError( "asin", Math.asin( u ), FloatMath.asin( u ), 3e-7 );
+			assertAbsoluteError( "acos", Math.acos( u ), FloatMath.acos( u ), 3e-7 );
+			final double expected = Math.pow( p, y );
+			if ( expected >= Float.MIN_NORMAL && expected <= Float.MAX_VALUE )
+			{
+				assertRelativeError( "pow", expected, FloatMath.pow( p, y ), 3e-7 * ( 1 + Math.abs( y * Math.log( p ) ) ) );
+			}
+		}
+	}
+
+	@Test
+	public void evaluationModes() throws ParseException
+	{
+		final Img< FloatType > img_A = ArrayImgs.floats( 301, 203 );
+		final Img< FloatType > img_B = ArrayImgs.floats( 301, 203 );
+		final Random random = new Random( 2 );
+		for ( final FloatType pixel : img_A )
+		{
+			pixel.set( random.nextFloat() * 255 + 1 );
+		}
+		for ( final FloatType pixel : img_B )
+		{
+			pixel.set( random.nextFloat() * 2 - 1 );
+		}
+
+		final String[] expressions = new String[] {
+				"log(A)*255/log(256)",
+				"255 * (A/256)^0.45",
+				"exp(-A/50) * cos(A) + sin(B) * tan(B)",
+				"atan2(B, A) + asin(B) + acos(B) + atan(A)"
+		};
+		for ( final String expression : expressions )
+		{
+			final float[] strict = evaluate( expression, img_A, img_B, EvaluationMode.INTERPRETED, Precision.STRICT );
+			for ( final EvaluationMode mode : EvaluationMode.values() )
+			{
+				// The strict precision is the default one, and is exact in all the modes
+				final float[] strict_mode = evaluate( expression, img_A, img_B, mode, null );
+				final float[] fast = evaluate( expression, img_A, img_B, mode, Precision.FAST );
+				boolean differs = false;
+				for ( int i = 0; i < strict.length; i++ )
+				{
+					assertEquals( mode + " " + expression, strict[ i ], strict_mode[ i ], 0f );
+					assertEquals( mode + " " + expression, strict[ i ], fast[ i ], 1e-5 * Math.max( 1, Math.abs( strict[ i ] ) ) );
+					differs |= strict[ i ] != fast[ i ];
+				}
+				assertTrue( mode + " evaluation of " + expression + " did not use the fast functions.", differs );
+			}
+		}
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	@SuppressWarnings( "unchecked" )
+	private static float[] evaluate( final String expression, final Img< FloatType > img_A, final Img< FloatType > img_B, final EvaluationMode mode, final Precision precision ) throws ParseException
+	{
+		final ImgLibParser< FloatType > parser = new ImgLibParser< FloatType >();
+		parser.addStandardConstants();
+		parser.addStandardFunctions();
+		parser.addVariable( "A", img_A );
+		parser.addVariable( "B", img_B );
+		parser.setEvaluationMode( mode );
+		if ( null != precision )
+		{
+			parser.setPrecision( precision );
+		}
+		final Img< FloatType > result = ( Img< FloatType > ) parser.evaluate( parser.parse( expression ) );
+		final float[] values = new float[ ( int ) result.size() ];
+		int i = 0;
+		for ( final FloatType pixel : result )
+		{
+			values[ i++ ] = pixel.get();
+		}
+		return values;
+	}
+
+	private static void assertSameValue( final String function, final double expected, final float actual )
+	{
+		assertEquals( function, Float.floatToIntBits( ( float ) expected ), Float.floatToIntBits( actual ) );
+	}
+
+	private static void assertAbsoluteError( final String function, final double expected, final float actual, final double max_error )
+	{
+		assertEquals( function, ( float ) expected, actual, max_error );
+	}
+
+	private static void assertRelativeError( final String function, final double expected, final float actual, final double max_error )
+	{
+		assertEquals( function, ( float ) expected, actual, max_error * Math.abs( ( float ) expected ) );
+	}
+
+}
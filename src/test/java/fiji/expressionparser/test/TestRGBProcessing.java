@@ -0,0 +1,158 @@
+package fiji.expressionparser.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import fiji.expressionparser.OutputType;
+import fiji.process.Image_Expression_Parser;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ColorProcessor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+import org.junit.Test;
+
+/**
+ * Checks that the channels of RGB images are evaluated and merged in the right
+ * order, on packed pixels as well as on split channels.
+ */
+public class TestRGBProcessing
+{
+
+	private static final int WIDTH = 31;
+
+	private static final int HEIGHT = 17;
+
+	private static final int N_SLICES = 2;
+
+	@Test
+	public void channels()
+	{
+		final Map< String, ImagePlus > imp_map = new HashMap< String, ImagePlus >();
+		imp_map.put( "A", createRandomImage( 1 ) );
+		imp_map.put( "B", createRandomImage( 2 ) );
+		final Image_Expression_Parser< UnsignedByteType > iep = new Image_Expression_Parser< UnsignedByteType >();
+		iep.setExpression( "A / 2 + B" );
+
+		final ImagePlus result = iep.processRGB( imp_map );
+		assertNotNull( result );
+		assertEquals( 3, result.getNChannels() );
+		assertEquals( N_SLICES, result.getNSlices() );
+
+		final ImageStack stack = result.getStack();
+		for ( int z = 0; z < N_SLICES; z++ )
+		{
+			final int[] a = ( int[] ) imp_map.get( "A" ).getStack().getPixels( z + 1 );
+			final int[] b = ( int[] ) imp_map.get( "B" ).getStack().getPixels( z + 1 );
+			for ( int c = 0; c < 3; c++ )
+			{
+				final int shift = 16 - 8 * c;
+				final float[] pixels = ( float[] ) stack.getPixels( 3 * z + c + 1 );
+				for ( int i = 0; i < pixels.length; i++ )
+				{
+					final int va = ( a[ i ] >> shift ) & 0xff;
+					final int vb = ( b[ i ] >> shift ) & 0xff;
+					assertEquals( va / 2f + vb, pixels[ i ], 0f );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void packed()
+	{
+		final Map< String, ImagePlus > imp_map = new HashMap< String, ImagePlus >();
+		imp_map.put( "A", createRandomImage( 1 ) );
+		imp_map.put( "B", createRandomImage( 2 ) );
+		final Image_Expression_Parser< UnsignedByteType > iep = new Image_Expression_Parser< UnsignedByteType >();
+		iep.setExpression( "(A + B) / 2 - 10" );
+		iep.setOutputType( OutputType.UNSIGNED_BYTE );
+
+		final ImagePlus result = iep.processRGB( imp_map );
+		assertNotNull( result );
+		assertEquals( ImagePlus.COLOR_RGB, result.getType() );
+		assertEquals( N_SLICES, result.getStackSize() );
+
+		for ( int z = 0; z < N_SLICES; z++ )
+		{
+			final int[] a = ( int[] ) imp_map.get( "A" ).getStack().getPixels( z + 1 );
+			final int[] b = ( int[] ) imp_map.get( "B" ).getStack().getPixels( z + 1 );
+			final int[] pixels = ( int[] ) result.getStack().getPixels( z + 1 );
+			for ( int i = 0; i < pixels.length; i++ )
+			{
+				for ( int shift = 0; shift <= 16; shift += 8 )
+				{
+					final float value = ( ( ( a[ i ] >> shift ) & 0xff ) + ( ( b[ i ] >> shift ) & 0xff ) ) / 2f - 10;
+					final int expected = value <= 0 ? 0 : ( int ) ( value + 0.5f );
+					assertEquals( expected, ( pixels[ i ] >> shift ) & 0xff );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void notPixelWise()
+	{
+		final Map< String, ImagePlus > imp_map = new HashMap< String, ImagePlus >();
+		imp_map.put( "A", createRandomImage( 1 ) );
+		final Image_Expression_Parser< UnsignedByteType > iep = new Image_Expression_Parser< UnsignedByteType >();
+		iep.setExpression( "gauss(A, 1)" );
+
+		final ImagePlus result = iep.processRGB( imp_map );
+		assertNotNull( result );
+		assertEquals( 3, result.getNChannels() );
+		assertEquals( 3 * N_SLICES, result.getStackSize() );
+	}
+
+	@Test
+	public void invalidExpression()
+	{
+		final Map< String, ImagePlus > imp_map = new HashMap< String, ImagePlus >();
+		imp_map.put( "A", createRandomImage( 1 ) );
+		final Image_Expression_Parser< UnsignedByteType > iep = new Image_Expression_Parser< UnsignedByteType >();
+		iep.setExpression( "A * (2" );
+		assertNull( iep.processRGB( imp_map ) );
+	}
+
+	/**
+	 * Errors of the evaluation on packed pixels are reported.
+	 */
+	@Test
+	public void differentDimensions()
+	{
+		final Map< String, ImagePlus > imp_map = new HashMap< String, ImagePlus >();
+		imp_map.put( "A", createRandomImage( 1 ) );
+		imp_map.put( "B", new ImagePlus( "Small", new ColorProcessor( WIDTH / 2, HEIGHT ) ) );
+		final Image_Expression_Parser< UnsignedByteType > iep = new Image_Expression_Parser< UnsignedByteType >();
+		iep.setExpression( "A + B" );
+		assertNull( iep.processRGB( imp_map ) );
+		assertFalse( iep.getErrorMessage().isEmpty() );
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	private static ImagePlus createRandomImage( final long seed )
+	{
+		final Random random = new Random( seed );
+		final ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+		for ( int n = 0; n < N_SLICES; n++ )
+		{
+			final int[] pixels = new int[ WIDTH * HEIGHT ];
+			for ( int i = 0; i < pixels.length; i++ )
+			{
+				pixels[ i ] = random.nextInt( 0x1000000 );
+			}
+			stack.addSlice( "", new ColorProcessor( WIDTH, HEIGHT, pixels ) );
+		}
+		return new ImagePlus( "Image " + seed, stack );
+	}
+
+}
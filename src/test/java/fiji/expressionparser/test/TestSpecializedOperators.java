@@ -0,0 +1,209 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.createParser;
+import static fiji.expressionparser.test.TestUtilities.toArray;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibFusedEvaluator;
+import fiji.expressionparser.ImgLibParser;
+import fiji.expressionparser.PixelKernel;
+import fiji.expressionparser.Precision;
+import fiji.expressionparser.function.ImgLibModulus;
+import fiji.expressionparser.function.ImgLibPower;
+import fiji.expressionparser.function.SingleOperandPixelBasedAbstractFunction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that the power and modulus operators with a constant second operand
+ * are evaluated by their specialized functions, with the values of the
+ * general ones in the strict precision.
+ */
+public class TestSpecializedOperators
+{
+
+	private static final float[] SPECIAL_VALUES = new float[] {
+			Float.NaN, 0f, -0f, 1f, -1f, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+			Float.MIN_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, 2147483520f, -2147483648f, 3e9f
+	};
+
+	@Test
+	public void power()
+	{
+		final ImgLibPower< FloatType > power = new ImgLibPower< FloatType >();
+		for ( final float exponent : new float[] { 0, 1, 2, 0.5f } )
+		{
+			final SingleOperandPixelBasedAbstractFunction< FloatType > specialized = power.specialize( exponent );
+			for ( final float x : createValues( 1 ) )
+			{
+				assertSameValue( x + "^" + exponent, power.evaluate( x, exponent ), specialized.evaluate( x ) );
+			}
+		}
+		// Not exact: only in the fast precision
+		assertNull( power.specialize( 3 ) );
+		assertNull( power.specialize( -1 ) );
+		assertNull( power.specialize( 0.45f ) );
+		assertNull( power.specialize( Float.NaN ) );
+	}
+
+	@Test
+	public void fastPower()
+	{
+		final ImgLibPower< FloatType > power = new ImgLibPower< FloatType >( Precision.FAST );
+		for ( final float exponent : new float[] { -64, -3, -2, -1, 3, 4, 7, 64 } )
+		{
+			final SingleOperandPixelBasedAbstractFunction< FloatType > specialized = power.specialize( exponent );
+			for ( final float x : createValues( 1 ) )
+			{
+				final float expected = ( float ) Math.pow( x, exponent );
+				final float actual = specialized.evaluate( x );
+				if ( Float.isNaN( expected ) || Float.isInfinite( expected ) || expected == 0f )
+				{
+					assertSameValue( x + "^" + exponent, expected, actual );
+				}
+				else
+				{
+					assertEquals( x + "^" + exponent, expected, actual, Math.ulp( expected ) );
+				}
+			}
+		}
+		assertNull( power.specialize( 65 ) );
+		assertNull( power.specialize( 0.45f ) );
+	}
+
+	@Test
+	public void modulus()
+	{
+		final ImgLibModulus< FloatType > modulus = new ImgLibModulus< FloatType >();
+		for ( final float divisor : new float[] { 1, 2, 3, 16, 255, -7, 1 << 24 } )
+		{
+			final SingleOperandPixelBasedAbstractFunction< FloatType > specialized = modulus.specialize( divisor );
+			for ( final float x : createValues( 2 ) )
+			{
+				assertSameValue( x + "%" + divisor, modulus.evaluate( x, divisor ), specialized.evaluate( x ) );
+			}
+		}
+		assertNull( modulus.specialize( 0 ) );
+		assertNull( modulus.specialize( 2.5f ) );
+		assertNull( modulus.specialize( 1 << 25 ) );
+	}
+
+	@Test
+	public void kernels() throws ParseException
+	{
+		final Img< FloatType > img = ArrayImgs.floats( 16, 16 );
+		assertTrue( compile( "(A-B)^2", img ).contains( "pow(*, 2)" ) );
+		assertTrue( compile( "A^0.5", img ).contains( "pow(*, 0.5)" ) );
+		assertTrue( compile( "A % 16", img ).contains( "% 16" ) );
+		// Not exact in the strict precision
+		assertFalse( compile( "A^3", img ).contains( "pow(*" ) );
+		// Not a constant exponent
+		assertFalse( compile( "A^B", img ).contains( "pow(*" ) );
+	}
+
+	/**
+	 * Compare with the same expressions where the constants are images filled
+	 * with them, which are evaluated by the general functions.
+	 */
+	@Test
+	@SuppressWarnings( "unchecked" )
+	public void evaluationModes() throws ParseException
+	{
+		final Img< FloatType > img_A = createImage( 3 );
+		final Img< FloatType > img_B = createImage( 4 );
+		final String[][] expressions = new String[][] {
+				{ "(A-B)^2", "(A-B)^TWO" },
+				{ "A^3 + B^(-2)", "A^THREE + B^MINUS_TWO" },
+				{ "A^0.5", "A^HALF" },
+				{ "A % 16 + B % (-3)", "A % SIXTEEN + B % MINUS_THREE" },
+				{ "(A - B) % 7", "(A - B) % SEVEN" }
+		};
+		final ImgLibParser< FloatType > reference = createParser( img_A, img_B, EvaluationMode.INTERPRETED );
+		final String[] names = new String[] { "TWO", "THREE", "MINUS_TWO", "HALF", "SIXTEEN", "MINUS_THREE", "SEVEN" };
+		final float[] values = new float[] { 2, 3, -2, 0.5f, 16, -3, 7 };
+		for ( int i = 0; i < names.length; i++ )
+		{
+			final Img< FloatType > constant = ArrayImgs.floats( img_A.dimension( 0 ), img_A.dimension( 1 ) );
+			for ( final FloatType pixel : constant )
+			{
+				pixel.set( values[ i ] );
+			}
+			reference.addVariable( names[ i ], constant );
+		}
+
+		for ( final String[] expression : expressions )
+		{
+			final float[] expected = toArray( ( Img< FloatType > ) reference.evaluate( reference.parse( expression[ 1 ] ) ) );
+			for ( final EvaluationMode mode : EvaluationMode.values() )
+			{
+				final ImgLibParser< FloatType > parser = createParser( img_A, img_B, mode );
+				final float[] actual = toArray( ( Img< FloatType > ) parser.evaluate( parser.parse( expression[ 0 ] ) ) );
+				for ( int i = 0; i < expected.length; i++ )
+				{
+					assertSameValue( mode + " " + expression[ 0 ], expected[ i ], actual[ i ] );
+				}
+			}
+		}
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	private static String compile( final String expression, final Img< FloatType > img ) throws ParseException
+	{
+		final ImgLibParser< FloatType > parser = createParser( img, img, EvaluationMode.FUSED );
+		final PixelKernel kernel = new ImgLibFusedEvaluator( parser.getSymbolTable() ).compile( parser.parse( expression ), new ArrayList< Img< ? > >() );
+		return kernel.toString();
+	}
+
+	/**
+	 * Integers, as in integer images, fractional values and special values.
+	 */
+	private static List< Float > createValues( final long seed )
+	{
+		final List< Float > values = new ArrayList< Float >();
+		for ( final float value : SPECIAL_VALUES )
+		{
+			values.add( value );
+		}
+		final Random random = new Random( seed );
+		for ( int i = 0; i < 10000; i++ )
+		{
+			values.add( ( float ) ( random.nextInt( 70000 ) - 35000 ) );
+			values.add( ( float ) random.nextGaussian() * 100 );
+			values.add( Float.intBitsToFloat( random.nextInt() ) );
+		}
+		return values;
+	}
+
+	private static Img< FloatType > createImage( final long seed )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( 301, 203 );
+		final Random random = new Random( seed );
+		int i = 0;
+		for ( final FloatType pixel : img )
+		{
+			pixel.set( i++ % 2 == 0 ? random.nextInt( 512 ) - 256 : ( float ) random.nextGaussian() * 50 );
+		}
+		return img;
+	}
+
+	private static void assertSameValue( final String message, final float expected, final float actual )
+	{
+		assertEquals( message, Float.floatToIntBits( expected ), Float.floatToIntBits( actual ) );
+	}
+
+}
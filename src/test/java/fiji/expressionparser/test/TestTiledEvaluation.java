@@ -0,0 +1,76 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.assertSameImage;
+import static fiji.expressionparser.test.TestUtilities.createParser;
+import static fiji.expressionparser.test.TestUtilities.fillRandom;
+import static org.junit.Assert.assertTrue;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibParser;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.ParseException;
+
+/**
+ * Checks that evaluating an expression cell by cell, in a cell image, gives
+ * the same result as evaluating it on whole images, including at the borders
+ * of the cells for neighborhood functions.
+ */
+public class TestTiledEvaluation
+{
+
+	private static final long[] DIMENSIONS = new long[] { 100, 70 };
+
+	private static final int CELL_SIZE = 16;
+
+	@Test
+	public void arrayInputs() throws ParseException
+	{
+		final Img< UnsignedShortType > A = createRandomImage( new ArrayImgFactory< UnsignedShortType >(), 1 );
+		final Img< UnsignedShortType > B = createRandomImage( new ArrayImgFactory< UnsignedShortType >(), 2 );
+		compareTiled( "sqrt(A*A + B*B)", A, B );
+		compareTiled( "gauss(A, 2) - B", A, B );
+		compareTiled( "gauss(A * B, 1.5) / (1 + gauss(B, 3))", A, B );
+	}
+
+	@Test
+	public void cellInputs() throws ParseException
+	{
+		// Same cells as the result: read cell by cell
+		final Img< UnsignedShortType > A = createRandomImage( new CellImgFactory< UnsignedShortType >( CELL_SIZE ), 1 );
+		// Other cells: read through cursors
+		final Img< UnsignedShortType > B = createRandomImage( new CellImgFactory< UnsignedShortType >( 10 ), 2 );
+		compareTiled( "sqrt(A*A + B*B)", A, B );
+		compareTiled( "gauss(A, 2) - B", A, B );
+	}
+
+	/*
+	 * UTILS
+	 */
+
+	@SuppressWarnings( "unchecked" )
+	private void compareTiled( final String expression, final Img< UnsignedShortType > A, final Img< UnsignedShortType > B ) throws ParseException
+	{
+		final ImgLibParser< UnsignedShortType > parser = createParser( A, B, EvaluationMode.FUSED );
+		final Img< FloatType > expected = ( Img< FloatType > ) parser.evaluate( parser.parse( expression ) );
+
+		parser.setImgFactory( new CellImgFactory< FloatType >( new FloatType(), CELL_SIZE ) );
+		parser.setNumThreads( 4 );
+		final Img< FloatType > actual = ( Img< FloatType > ) parser.evaluate( parser.parse( expression ) );
+		assertTrue( actual instanceof AbstractCellImg );
+		assertSameImage( "Tiled evaluation of " + expression + " differs.", expected, actual, 1e-5f );
+	}
+
+	private static Img< UnsignedShortType > createRandomImage( final ImgFactory< UnsignedShortType > factory, final long seed )
+	{
+		return fillRandom( factory.create( DIMENSIONS, new UnsignedShortType() ), 1000, seed );
+	}
+
+}
@@ -2,21 +2,29 @@ package fiji.expressionparser.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import fiji.expressionparser.EvaluationMode;
+import fiji.expressionparser.ImgLibFunctionRegistry;
 import fiji.expressionparser.ImgLibParser;
 import fiji.expressionparser.ImgLibUtils;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
 
 import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
 
 import org.nfunk.jep.Node;
 import org.nfunk.jep.ParseException;
@@ -167,6 +175,108 @@ public class TestUtilities< T extends RealType< T > >
 		return ok;
 	}
 
+	/**
+	 * Fill an image with random integers from 0 to <code>max - 1</code>, in
+	 * its iteration order, and return it.
+	 */
+	public static final < T extends RealType< T > > Img< T > fillRandom( final Img< T > img, final int max, final long seed )
+	{
+		final Random random = new Random( seed );
+		for ( final T pixel : img )
+		{
+			pixel.setReal( random.nextInt( max ) );
+		}
+		return img;
+	}
+
+	/**
+	 * Create a 16-bit image filled with random integers from 0 to 999.
+	 */
+	public static final Img< UnsignedShortType > createRandomImage( final long seed, final long... dimensions )
+	{
+		return fillRandom( ArrayImgs.unsignedShorts( dimensions ), 1000, seed );
+	}
+
+	/**
+	 * Create a 16-bit stack filled with random integers from 0 to 999.
+	 */
+	public static final ImagePlus createRandomImagePlus( final long seed, final int width, final int height, final int n_slices )
+	{
+		final Random random = new Random( seed );
+		final ImageStack stack = new ImageStack( width, height );
+		for ( int n = 0; n < n_slices; n++ )
+		{
+			final short[] pixels = new short[ width * height ];
+			for ( int i = 0; i < pixels.length; i++ )
+			{
+				pixels[ i ] = ( short ) random.nextInt( 1000 );
+			}
+			stack.addSlice( "", new ShortProcessor( width, height, pixels, null ) );
+		}
+		return new ImagePlus( "Image " + seed, stack );
+	}
+
+	/**
+	 * Create the map of two random 16-bit stacks A and B, made by
+	 * {@link #createRandomImagePlus(long, int, int, int)} with the seeds 1
+	 * and 2.
+	 */
+	public static final Map< String, ImagePlus > createRandomImagePlusMap( final int width, final int height, final int n_slices )
+	{
+		final Map< String, ImagePlus > imp_map = new HashMap< String, ImagePlus >();
+		imp_map.put( "A", createRandomImagePlus( 1, width, height, n_slices ) );
+		imp_map.put( "B", createRandomImagePlus( 2, width, height, n_slices ) );
+		return imp_map;
+	}
+
+	/**
+	 * Create a parser with the standard constants, functions and ImgLib
+	 * algorithms, the images A and B as variables, B only if it is not
+	 * <code>null</code>, and the given evaluation mode.
+	 */
+	public static final < T extends RealType< T > > ImgLibParser< T > createParser( final Img< ? > img_A, final Img< ? > img_B, final EvaluationMode mode )
+	{
+		final ImgLibParser< T > parser = ImgLibFunctionRegistry.getDefault().createParser();
+		parser.addVariable( "A", img_A );
+		if ( null != img_B )
+		{
+			parser.addVariable( "B", img_B );
+		}
+		parser.setEvaluationMode( mode );
+		return parser;
+	}
+
+	/**
+	 * Assert that two images have the same values in flat iteration order,
+	 * within the given tolerance, relative for values larger than 1 in
+	 * absolute value.
+	 */
+	public static final void assertSameImage( final String message, final Img< FloatType > expected, final Img< FloatType > actual, final float tolerance )
+	{
+		assertEquals( message, expected.size(), actual.size() );
+		final Cursor< FloatType > ec = Views.flatIterable( expected ).cursor();
+		final Cursor< FloatType > ac = Views.flatIterable( actual ).cursor();
+		while ( ec.hasNext() )
+		{
+			final float e = ec.next().get();
+			assertEquals( message, e, ac.next().get(), tolerance * Math.max( 1f, Math.abs( e ) ) );
+		}
+	}
+
+	/**
+	 * Return the values of an image in its iteration order.
+	 */
+	public static final float[] toArray( final Img< FloatType > img )
+	{
+		final float[] values = new float[ ( int ) img.size() ];
+		int i = 0;
+		for ( final FloatType pixel : img )
+		{
+			values[ i++ ] = pixel.get();
+		}
+		return values;
+	}
+
 	public static final < T extends RealType< T > > void echoImage( Img< T > img, PrintStream logger )
 	{
 		RandomAccess< T > lc = img.randomAccess();
@@ -0,0 +1,77 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.createRandomImagePlusMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import fiji.process.ExpressionVirtualStack;
+import fiji.process.Image_Expression_Parser;
+import ij.ImagePlus;
+
+import java.util.Map;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Checks that a pixel-wise expression evaluated slice by slice in a virtual
+ * stack gives the same result as on the whole stack.
+ */
+public class TestVirtualStackStreaming
+{
+
+	private static final int WIDTH = 37;
+
+	private static final int HEIGHT = 23;
+
+	private static final int N_SLICES = 4;
+
+	@SuppressWarnings( "unchecked" )
+	@Test
+	public void sameSlices()
+	{
+		final Map< String, ImagePlus > imp_map = createRandomImagePlusMap( WIDTH, HEIGHT, N_SLICES );
+		final Image_Expression_Parser< UnsignedShortType > iep = new Image_Expression_Parser< UnsignedShortType >();
+		iep.setExpression( "sqrt(A*A + B*B) - 2 * (A > B)" );
+
+		final ExpressionVirtualStack< UnsignedShortType > stack = iep.createVirtualStack( imp_map );
+		assertNotNull( stack );
+		assertTrue( stack.isVirtual() );
+		assertEquals( N_SLICES, stack.getSize() );
+
+		iep.setImageMap( iep.convertToImglib( imp_map ) );
+		assertTrue( iep.process() );
+		final Img< FloatType > expected = ( Img< FloatType > ) ( Object ) iep.getResult();
+		final RandomAccess< FloatType > ra = expected.randomAccess();
+
+		// In any order
+		for ( final int n : new int[] { 3, 1, 4, 2 } )
+		{
+			final float[] pixels = ( float[] ) stack.getProcessor( n ).getPixels();
+			for ( int y = 0; y < HEIGHT; y++ )
+			{
+				for ( int x = 0; x < WIDTH; x++ )
+				{
+					ra.setPosition( new long[] { x, y, n - 1 } );
+					assertEquals( ra.get().get(), pixels[ x + y * WIDTH ], 0f );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void notPixelWise()
+	{
+		final Image_Expression_Parser< UnsignedShortType > iep = new Image_Expression_Parser< UnsignedShortType >();
+		iep.setExpression( "gauss(A, 1) + B" );
+		assertNull( iep.createVirtualStack( createRandomImagePlusMap( WIDTH, HEIGHT, N_SLICES ) ) );
+		assertFalse( iep.getErrorMessage().isEmpty() );
+	}
+
+}